@@ -54,14 +54,15 @@ public class AgentConversationController {
     }
 
     /**
-     * 获取会话消息列表（从MySQL读取）
+     * 获取会话消息列表（从MySQL读取最近 limit 条；传入 beforeId 时加载该消息之前的更早消息）
      */
     @GetMapping("/conversation/{id}/messages")
     public Result<List<MessageResponse>> getConversationMessages(
             @PathVariable("id") String conversationId,
-            @RequestParam(required = false, defaultValue = "50") Integer limit) {
+            @RequestParam(required = false, defaultValue = "50") Integer limit,
+            @RequestParam(required = false) Long beforeId) {
         List<MessageResponse> messages =
-            messageService.getMessages(conversationId, limit);
+            messageService.getMessages(conversationId, limit, beforeId);
 
         return Result.success(messages);
     }
@@ -154,6 +154,7 @@ public class AgentDefinitionController {
         update.setSkillTree(serializeSkillTree(request.getSkillTree()));
 
         agentMapper.update(update);
+        agentDefinitionLoader.evict(id);
         log.info("更新 Agent 定义: id={}", id);
 
         AgentEntity updated = agentMapper.selectById(id);
@@ -175,6 +176,7 @@ public class AgentDefinitionController {
             return Result.error("内置 Agent 不允许删除");
         }
         agentMapper.deleteById(id);
+        agentDefinitionLoader.evict(id);
         log.info("删除 Agent 定义: id={}", id);
         return Result.success("删除成功", true);
     }
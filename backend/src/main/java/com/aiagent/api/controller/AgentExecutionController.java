@@ -11,7 +11,9 @@ import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
@@ -33,6 +35,16 @@ public class AgentExecutionController {
         return agentService.execute(request);
     }
 
+    /**
+     * 订阅Agent任务事件流（断线重连时浏览器自动携带 Last-Event-ID）
+     */
+    @GetMapping("/execute/{requestId}/events")
+    public SseEmitter subscribe(@PathVariable String requestId,
+                                @RequestHeader(value = "Last-Event-ID", required = false) Long lastEventIdHeader,
+                                @RequestParam(value = "lastEventId", required = false) Long lastEventId) {
+        return agentService.subscribe(requestId, lastEventIdHeader != null ? lastEventIdHeader : lastEventId);
+    }
+
     /**
      * 停止Agent执行
      */
@@ -4,7 +4,9 @@ import com.aiagent.api.dto.McpToolInfo;
 import com.aiagent.infrastructure.config.AgentConfig;
 import com.aiagent.common.enums.ModelType;
 import com.aiagent.infrastructure.external.mcp.McpManager;
+import com.aiagent.api.dto.ModelHealthVO;
 import com.aiagent.api.dto.ModelInfoVO;
+import com.aiagent.infrastructure.external.llm.ModelHealthRegistry;
 import com.aiagent.common.response.Result;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -31,6 +33,17 @@ public class AgentMetadataController {
     @Autowired
     private McpManager mcpManager;
 
+    @Autowired
+    private ModelHealthRegistry modelHealthRegistry;
+
+    /**
+     * 获取模型运行时健康状态（熔断状态、错误率、首 token 延迟 p95、限流）
+     */
+    @GetMapping("/models/health")
+    public Result<List<ModelHealthVO>> getModelHealth() {
+        return Result.success(modelHealthRegistry.snapshot());
+    }
+
     /**
      * 获取可用模型列表
      */
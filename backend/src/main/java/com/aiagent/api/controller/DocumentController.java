@@ -4,6 +4,7 @@ import com.aiagent.api.dto.Page;
 import com.aiagent.api.dto.PageResult;
 import com.aiagent.domain.model.bo.Document;
 import com.aiagent.domain.rag.DocumentService;
+import com.aiagent.domain.rag.IngestionProgress;
 import com.aiagent.common.response.Result;
 import com.aiagent.api.dto.TextDocumentRequest;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -82,6 +83,14 @@ public class DocumentController {
         return Result.success(result);
     }
     
+    /**
+     * 查询文档入库进度
+     */
+    @GetMapping("/{docId}/progress")
+    public Result<IngestionProgress> getIngestionProgress(@PathVariable String docId) {
+        return Result.success(documentService.getIngestionProgress(docId));
+    }
+    
     /**
      * 重建文档向量
      */
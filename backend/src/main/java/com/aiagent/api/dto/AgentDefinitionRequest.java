@@ -54,6 +54,10 @@ public class AgentDefinitionRequest {
         private Integer historyMessageLoadLimit;
         /** 最大工具调用轮数（默认 8） */
         private Integer maxToolRounds;
+        /** 同一轮内最大并行工具调用数（默认取全局配置，1 表示串行） */
+        private Integer maxParallelToolCalls;
+        /** 流式 token 合并发送的时间窗口（毫秒，0 表示逐 token 发送） */
+        private Integer streamFlushIntervalMs;
     }
 
     @Data
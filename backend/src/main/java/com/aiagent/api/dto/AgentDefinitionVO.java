@@ -46,6 +46,10 @@ public class AgentDefinitionVO {
         private Integer historyMessageLoadLimit;
         /** 最大工具调用轮数 */
         private Integer maxToolRounds;
+        /** 同一轮内最大并行工具调用数 */
+        private Integer maxParallelToolCalls;
+        /** 流式 token 合并发送的时间窗口（毫秒） */
+        private Integer streamFlushIntervalMs;
     }
 
     @Data
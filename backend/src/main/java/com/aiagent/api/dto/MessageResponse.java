@@ -18,6 +18,11 @@ public class MessageResponse {
      */
     private String id;
     
+    /**
+     * 消息序号（数据库自增 ID），作为向前翻页的 beforeId 游标
+     */
+    private Long seq;
+    
     /**
      * 角色：user/assistant/system
      */
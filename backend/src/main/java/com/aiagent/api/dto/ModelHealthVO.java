@@ -0,0 +1,78 @@
+package com.aiagent.api.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 模型运行时健康状态VO
+ * 
+ * @author aiagent
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class ModelHealthVO {
+
+    /**
+     * 模型ID
+     */
+    private String modelId;
+
+    /**
+     * 熔断状态（CLOSED / OPEN / HALF_OPEN）
+     */
+    private String state;
+
+    /**
+     * 当前是否可路由
+     */
+    private Boolean available;
+
+    /**
+     * 滑动窗口内错误率
+     */
+    private Double errorRate;
+
+    /**
+     * 滑动窗口内首 token 延迟 p95（毫秒）
+     */
+    private Long p95TtftMs;
+
+    /**
+     * 滑动窗口内调用数
+     */
+    private Integer windowCalls;
+
+    /**
+     * 累计调用数
+     */
+    private Long totalCalls;
+
+    /**
+     * 累计失败数
+     */
+    private Long totalFailures;
+
+    /**
+     * 累计限流次数
+     */
+    private Long totalThrottled;
+
+    /**
+     * 是否处于限流冷却期
+     */
+    private Boolean throttled;
+
+    /**
+     * 熔断打开截止时间（毫秒时间戳），未熔断时为空
+     */
+    private Long openUntil;
+
+    /**
+     * 最近一次熔断原因
+     */
+    private String lastTripReason;
+}
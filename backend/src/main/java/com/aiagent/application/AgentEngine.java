@@ -3,6 +3,8 @@ package com.aiagent.application;
 import com.aiagent.domain.model.bo.AgentContext;
 import com.aiagent.domain.model.bo.AgentExecutionResult;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Agent 推理引擎统一接口
  * 所有推理引擎（ReAct、NativeFunctionCalling 等）均实现此接口，
@@ -17,4 +19,17 @@ public interface AgentEngine {
      * @return 执行结果
      */
     AgentExecutionResult execute(AgentContext context);
+
+    /**
+     * 异步执行 Agent 推理循环
+     *
+     * <p>默认在调用线程上同步执行；支持 continuation 驱动的引擎应覆盖此方法，
+     * 在等待 LLM 与工具结果期间释放线程。
+     *
+     * @param context Agent 上下文
+     * @return 执行结果 Future
+     */
+    default CompletableFuture<AgentExecutionResult> executeAsync(AgentContext context) {
+        return CompletableFuture.completedFuture(execute(context));
+    }
 }
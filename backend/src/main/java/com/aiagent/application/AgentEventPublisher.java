@@ -12,6 +12,7 @@ import com.aiagent.common.constant.AgentConstants;
  * <p>当前实现：
  * <ul>
  *   <li>{@link SseAgentEventPublisher} - 将事件序列化为 SSE 推送给浏览器</li>
+ *   <li>{@link CoalescingAgentEventPublisher} - 装饰器，将时间窗口内的 token 合并为单帧发送</li>
  * </ul>
  */
 public interface AgentEventPublisher {
@@ -73,6 +74,42 @@ public interface AgentEventPublisher {
         // 默认空实现，SseAgentEventPublisher 覆盖此方法
     }
 
+    /**
+     * LLM 调用因客户端限流进入排队（默认以 agent:rate_limited 事件透传）
+     *
+     * @param modelId 模型
+     * @param queued  该模型当前排队的请求数
+     */
+    default void onRateLimited(String modelId, int queued) {
+        java.util.Map<String, Object> data = new java.util.HashMap<>();
+        data.put("modelId", modelId);
+        data.put("state", "queued");
+        data.put("queued", queued);
+        accept(AgentEventData.builder()
+            .event(AgentConstants.EVENT_AGENT_RATE_LIMITED)
+            .message("模型 " + modelId + " 请求限流，排队中")
+            .data(data)
+            .build());
+    }
+
+    /**
+     * 限流排队结束（默认以 agent:rate_limited 事件透传排队时长）
+     *
+     * @param modelId 模型
+     * @param waitMs  排队等待时长（毫秒）
+     */
+    default void onRateLimitAcquired(String modelId, long waitMs) {
+        java.util.Map<String, Object> data = new java.util.HashMap<>();
+        data.put("modelId", modelId);
+        data.put("state", "acquired");
+        data.put("waitMs", waitMs);
+        accept(AgentEventData.builder()
+            .event(AgentConstants.EVENT_AGENT_RATE_LIMITED)
+            .message("模型 " + modelId + " 排队结束，等待 " + waitMs + " ms")
+            .data(data)
+            .build());
+    }
+
     /**
      * 所有流式 token 发送完毕（最终回复已完整输出）
      */
@@ -90,6 +127,13 @@ public interface AgentEventPublisher {
      */
     void onError(String error);
 
+    /**
+     * 立即发送所有已缓冲的事件（无缓冲的实现为空操作）
+     */
+    default void flush() {
+        // 默认空实现，CoalescingAgentEventPublisher 覆盖此方法
+    }
+
     // ── 兼容旧调用方式（过渡期使用，后续移除）────────────────────────────────
 
     /**
@@ -0,0 +1,324 @@
+package com.aiagent.application;
+
+import com.aiagent.infrastructure.config.AgentConfig;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Agent 执行调度器（带准入控制）
+ *
+ * <p>Agent 运行不能放在公共 ForkJoinPool 上执行，否则会耗尽公共池并拖慢其他并行流。
+ * 此类使用独立线程池执行运行的同步准备阶段与收尾阶段，运行本身以 {@link CompletableFuture} 表示，
+ * 并发计数在 Future 完成时释放（与是否占用线程无关）。在其前面维护一个有界 FIFO 等待队列：
+ * <ol>
+ *   <li>运行中数量未达 {@code maxConcurrentRuns} 时立即执行</li>
+ *   <li>否则进入等待队列，通过 {@link Listener#onQueued} 通知排队位置；前序任务结束时位置前移并再次通知</li>
+ *   <li>等待队列已满（{@code maxQueuedRuns}）时直接拒绝</li>
+ * </ol>
+ * 线程池拒绝执行（应用关闭中）的运行同样通过 {@link Listener#onRejected} 通知，并立即释放并发计数。
+ *
+ * <p>指标：
+ * <ul>
+ *   <li>{@code aiagent.agent.runs.active} - 正在执行的运行数</li>
+ *   <li>{@code aiagent.agent.runs.queued} - 排队等待的运行数</li>
+ *   <li>{@code aiagent.agent.runs.rejected} - 因队列已满或线程池拒绝而未执行的运行数</li>
+ * </ul>
+ */
+@Slf4j
+@Component
+public class AgentExecutionScheduler {
+
+    @Autowired
+    private AgentConfig agentConfig;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private ExecutorService executor;
+
+    private Counter rejectedCounter;
+
+    /** 等待队列（按提交顺序） */
+    private final LinkedList<PendingRun> waiting = new LinkedList<>();
+
+    /** 正在执行的运行数（受本对象锁保护） */
+    private int running;
+
+    /**
+     * 排队状态回调
+     */
+    public interface Listener {
+        /**
+         * 进入等待队列或排队位置变化
+         *
+         * @param position 排队位置（从 1 开始）
+         * @param queued   当前等待队列长度
+         */
+        void onQueued(int position, int queued);
+
+        /**
+         * 等待队列已满（或线程池已关闭），运行被拒绝
+         */
+        void onRejected(int maxQueued);
+    }
+
+    /**
+     * 提交结果
+     */
+    public enum Admission {
+        /** 已开始执行 */
+        STARTED,
+        /** 已进入等待队列 */
+        QUEUED,
+        /** 队列已满被拒绝 */
+        REJECTED
+    }
+
+    private static final class PendingRun {
+        private final String requestId;
+        private final Supplier<CompletableFuture<?>> task;
+        private final Listener listener;
+
+        private PendingRun(String requestId, Supplier<CompletableFuture<?>> task, Listener listener) {
+            this.requestId = requestId;
+            this.task = task;
+            this.listener = listener;
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        int maxConcurrent = maxConcurrentRuns();
+        AtomicInteger threadIndex = new AtomicInteger();
+        // 并发度由准入控制保证，线程池只需要固定数量的工作线程
+        executor = Executors.newFixedThreadPool(maxConcurrent, r -> {
+            Thread t = new Thread(r, "agent-exec-" + threadIndex.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        Gauge.builder("aiagent.agent.runs.active", this, AgentExecutionScheduler::activeCount)
+            .description("正在执行的 Agent 运行数")
+            .register(meterRegistry);
+        Gauge.builder("aiagent.agent.runs.queued", this, AgentExecutionScheduler::queuedCount)
+            .description("排队等待的 Agent 运行数")
+            .register(meterRegistry);
+        rejectedCounter = Counter.builder("aiagent.agent.runs.rejected")
+            .description("等待队列已满或线程池拒绝而未执行的 Agent 运行数")
+            .register(meterRegistry);
+        log.info("Agent 执行调度器初始化完成: maxConcurrentRuns={}, maxQueuedRuns={}",
+            maxConcurrent, agentConfig.getExecution().getMaxQueuedRuns());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            long waitSeconds = Math.max(0, agentConfig.getExecution().getShutdownTimeoutSeconds());
+            if (!executor.awaitTermination(waitSeconds, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 提交一次 Agent 运行
+     *
+     * @param requestId 运行 ID
+     * @param task      执行体，返回整个运行完成时完成的 Future（内部自行处理异常）
+     * @param listener  排队状态回调
+     */
+    public Admission submit(String requestId, Supplier<CompletableFuture<?>> task, Listener listener) {
+        int maxQueued = Math.max(0, agentConfig.getExecution().getMaxQueuedRuns());
+        PendingRun run = new PendingRun(requestId, task, listener);
+        int position;
+        synchronized (this) {
+            if (running < maxConcurrentRuns() && waiting.isEmpty()) {
+                running++;
+                if (start(run)) {
+                    return Admission.STARTED;
+                }
+                running--;
+                position = 0;
+            } else if (waiting.size() >= maxQueued) {
+                position = -1;
+            } else {
+                waiting.addLast(run);
+                position = waiting.size();
+            }
+        }
+        if (position <= 0) {
+            if (position < 0) {
+                log.warn("Agent 等待队列已满，拒绝执行: requestId={}, maxQueuedRuns={}", requestId, maxQueued);
+            }
+            reject(run, maxQueued);
+            return Admission.REJECTED;
+        }
+        log.info("Agent 运行进入等待队列: requestId={}, position={}", requestId, position);
+        listener.onQueued(position, position);
+        return Admission.QUEUED;
+    }
+
+    /**
+     * 取消仍在等待队列中的运行（已开始执行的运行不受影响）
+     *
+     * @return 是否从等待队列中移除
+     */
+    public boolean cancel(String requestId) {
+        List<PendingRun> moved;
+        synchronized (this) {
+            Iterator<PendingRun> it = waiting.iterator();
+            boolean removed = false;
+            int index = 0;
+            int removedIndex = -1;
+            while (it.hasNext()) {
+                if (it.next().requestId.equals(requestId)) {
+                    it.remove();
+                    removed = true;
+                    removedIndex = index;
+                    break;
+                }
+                index++;
+            }
+            if (!removed) {
+                return false;
+            }
+            moved = new ArrayList<>(waiting.subList(removedIndex, waiting.size()));
+        }
+        notifyPositions(moved);
+        return true;
+    }
+
+    public synchronized int activeCount() {
+        return running;
+    }
+
+    public synchronized int queuedCount() {
+        return waiting.size();
+    }
+
+    /**
+     * 调度线程池（供运行收尾等需要离开网络回调线程的阻塞操作使用）
+     */
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    // ── 内部工具方法 ──────────────────────────────────────────────────────────
+
+    /**
+     * 在线程池上开始执行（调用方已计入 running）
+     *
+     * @return 线程池拒绝（已关闭）时返回 false，由调用方撤销计数并通知拒绝
+     */
+    private boolean start(PendingRun run) {
+        try {
+            executor.execute(() -> execute(run));
+            return true;
+        } catch (RejectedExecutionException e) {
+            log.warn("Agent 执行线程池拒绝执行（应用关闭中）: requestId={}", run.requestId);
+            return false;
+        }
+    }
+
+    private void execute(PendingRun run) {
+        CompletableFuture<?> completion;
+        try {
+            completion = run.task.get();
+        } catch (Throwable e) {
+            log.error("Agent 运行异常退出: requestId={}", run.requestId, e);
+            completion = null;
+        }
+        if (completion == null) {
+            onRunFinished();
+            return;
+        }
+        completion.whenComplete((result, e) -> onRunFinished());
+    }
+
+    private void reject(PendingRun run, int maxQueued) {
+        rejectedCounter.increment();
+        try {
+            run.listener.onRejected(maxQueued);
+        } catch (Exception e) {
+            log.warn("通知运行被拒绝失败: requestId={}", run.requestId, e);
+        }
+    }
+
+    /**
+     * 一个运行结束：从等待队列取下一个开始执行，并通知其余等待者新的排队位置
+     */
+    private void onRunFinished() {
+        List<PendingRun> moved;
+        List<PendingRun> rejected = new ArrayList<>();
+        synchronized (this) {
+            running--;
+            if (waiting.isEmpty()) {
+                return;
+            }
+            while (running < maxConcurrentRuns() && !waiting.isEmpty()) {
+                PendingRun next = waiting.pollFirst();
+                running++;
+                if (!start(next)) {
+                    running--;
+                    rejected.add(next);
+                }
+            }
+            moved = new ArrayList<>(waiting);
+        }
+        int maxQueued = Math.max(0, agentConfig.getExecution().getMaxQueuedRuns());
+        rejected.forEach(run -> reject(run, maxQueued));
+        notifyPositions(moved);
+    }
+
+    /**
+     * 通知等待者最新排队位置（在锁外回调，位置按通知时刻的队列计算）
+     */
+    private void notifyPositions(List<PendingRun> runs) {
+        for (PendingRun run : runs) {
+            int position;
+            int queued;
+            synchronized (this) {
+                position = waiting.indexOf(run) + 1;
+                queued = waiting.size();
+            }
+            if (position <= 0) {
+                continue;
+            }
+            try {
+                run.listener.onQueued(position, queued);
+            } catch (Exception e) {
+                log.debug("通知排队位置失败: requestId={}", run.requestId, e);
+            }
+        }
+    }
+
+    private int maxConcurrentRuns() {
+        return Math.max(1, agentConfig.getExecution().getMaxConcurrentRuns());
+    }
+}
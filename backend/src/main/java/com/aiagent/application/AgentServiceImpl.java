@@ -5,14 +5,17 @@ import com.aiagent.domain.model.bo.ExecutionProcessRecord;
 import com.aiagent.domain.model.bo.MessageBO;
 import com.aiagent.infrastructure.config.AgentConfig;
 import com.aiagent.common.constant.AgentConstants;
-import com.aiagent.domain.conversation.ConversationService;
+import com.aiagent.domain.conversation.MessagePersistencePipeline;
+import com.aiagent.domain.conversation.MessageService;
+import com.aiagent.domain.model.entity.MessageEntity;
 import com.aiagent.domain.model.bo.AgentExecutionResult;
+import com.aiagent.domain.memory.ConversationCompactionService;
 import com.aiagent.domain.memory.MemorySystem;
 import com.aiagent.api.dto.AgentEventData;
 import com.aiagent.api.dto.AgentRequest;
 import com.aiagent.domain.model.bo.AgentContext;
+import com.aiagent.common.util.CancellationToken;
 import com.aiagent.common.util.UUIDGenerator;
-import com.aiagent.application.SseAgentEventPublisher;
 import dev.langchain4j.data.message.ChatMessage;
 import dev.langchain4j.data.message.UserMessage;
 import lombok.extern.slf4j.Slf4j;
@@ -21,8 +24,13 @@ import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Service;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.CountDownLatch;
 
 /**
@@ -46,15 +54,21 @@ public class AgentServiceImpl implements IAgentService {
 
     @Autowired
     private MemorySystem memorySystem;
-    
+
     @Autowired
-    private AgentStateMachine stateMachine;
+    private ConversationCompactionService compactionService;
+
+    @Autowired
+    private MessageService messageService;
+
+    @Autowired
+    private MessagePersistencePipeline messagePersistence;
     
     @Autowired
-    private AgentConfig agentConfig;
+    private AgentStateMetrics stateMetrics;
     
     @Autowired
-    private ConversationService conversationService;
+    private AgentConfig agentConfig;
 
     @Autowired
     private AgentContextService agentContextService;
@@ -65,6 +79,9 @@ public class AgentServiceImpl implements IAgentService {
     @Autowired
     private StopRequestManager stopRequestManager;
 
+    @Autowired
+    private AgentExecutionScheduler executionScheduler;
+
     
     @Override
     //todo 前端UI界面参照Google的炫酷画面
@@ -89,16 +106,51 @@ public class AgentServiceImpl implements IAgentService {
         // 4. 缓存emitter
         streamingService.cacheEmitter(requestId, emitter);
         
-        // 5. 异步执行任务
-        CompletableFuture.runAsync(() -> {
+        // 5. 提交到执行调度器（并发已满时排队，队列已满时拒绝）
+        executionScheduler.submit(requestId, () -> {
+            CompletableFuture<Void> run;
             try {
-                executeWithEngine(request, requestId, emitter);
+                run = executeWithEngine(request, requestId, emitter);
             } catch (Exception e) {
-                log.error("Agent任务执行失败", e);
+                run = CompletableFuture.failedFuture(e);
+            }
+            return run.exceptionally(e -> {
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                log.error("Agent任务执行失败", cause);
                 streamingService.sendEvent(emitter, AgentEventData.builder()
                     .requestId(requestId)
                     .event(AgentConstants.EVENT_AGENT_ERROR)
-                    .message("执行失败: " + e.getMessage())
+                    .message("执行失败: " + cause.getMessage())
+                    .conversationId(request.getConversationId())
+                    .build());
+                streamingService.closeEmitter(emitter, requestId);
+                return null;
+            });
+        }, new AgentExecutionScheduler.Listener() {
+            @Override
+            public void onQueued(int position, int queued) {
+                Map<String, Object> data = new HashMap<>();
+                data.put("position", position);
+                data.put("queued", queued);
+                streamingService.sendEvent(emitter, AgentEventData.builder()
+                    .requestId(requestId)
+                    .event(AgentConstants.EVENT_AGENT_QUEUED)
+                    .message("排队中，前方还有 " + (position - 1) + " 个任务")
+                    .data(data)
+                    .conversationId(request.getConversationId())
+                    .build());
+            }
+
+            @Override
+            public void onRejected(int maxQueued) {
+                Map<String, Object> data = new HashMap<>();
+                data.put("code", AgentConstants.ERROR_CODE_TOO_MANY_RUNS);
+                data.put("maxQueued", maxQueued);
+                streamingService.sendEvent(emitter, AgentEventData.builder()
+                    .requestId(requestId)
+                    .event(AgentConstants.EVENT_AGENT_ERROR)
+                    .message("服务繁忙，当前排队任务已满，请稍后重试")
+                    .data(data)
                     .conversationId(request.getConversationId())
                     .build());
                 streamingService.closeEmitter(emitter, requestId);
@@ -110,8 +162,13 @@ public class AgentServiceImpl implements IAgentService {
     
     /**
      * 使用 AgentEngine 执行任务
+     *
+     * <p>准备阶段在调度线程上同步执行，推理循环通过 {@link AgentEngine#executeAsync} 异步推进，
+     * 完成后的持久化与关闭 SSE 回到调度线程池执行。
+     *
+     * @return 整个运行（含收尾）完成时完成的 Future
      */
-    private void executeWithEngine(AgentRequest request, String requestId, SseEmitter emitter) {
+    private CompletableFuture<Void> executeWithEngine(AgentRequest request, String requestId, SseEmitter emitter) {
         long totalStartNs = System.nanoTime();
         long stepStartNs = System.nanoTime();
         
@@ -129,7 +186,7 @@ public class AgentServiceImpl implements IAgentService {
             // 2. 保存用户消息到记忆和MySQL（统一通过MemorySystem处理）
             UserMessage userMessage = new UserMessage(request.getContent());
             // 用户消息不携带 agentId（agentId 只用于 assistant 消息）
-            memorySystem.saveShortTermMemory(conversationId, userMessage, null, null, null, null, null);
+            String userMessageId = memorySystem.saveShortTermMemory(conversationId, userMessage, null, null, null, null, null);
             context.addMessage(userMessage);
             stepStartNs = logStep("save_user_message", stepStartNs, requestId, conversationId, null, emitter);
 
@@ -150,12 +207,16 @@ public class AgentServiceImpl implements IAgentService {
                 log.info("使用指定模型: {}", modelId);
             }
             context.setRequestId(requestId);
+            // 取消令牌：停止请求（本机或经 pub/sub 推送自其他实例）到达时中止 LLM 流与工具调用
+            CancellationToken cancellationToken = new CancellationToken();
+            context.setCancellationToken(cancellationToken);
+            stopRequestManager.register(requestId, cancellationToken);
             stepStartNs = logStep("init_context_vars", stepStartNs, requestId, conversationId,
                 "modelId=" + modelId, emitter);
 
-            // 设置事件发布器（SseAgentEventPublisher 将语义调用翻译为 SSE 事件）
-            SseAgentEventPublisher publisher = new SseAgentEventPublisher(
-                requestId, context.getConversationId(), emitter, streamingService);
+            // 设置事件发布器（SseAgentEventPublisher 将语义调用翻译为 SSE 事件，
+            // 配置了合并窗口时外层包装 CoalescingAgentEventPublisher，合并 token 帧）
+            AgentEventPublisher publisher = createEventPublisher(requestId, context, emitter);
             context.setEventPublisher(publisher);
 
             // 3.1 设置流式输出回调（使用CountDownLatch确保流式完成后再关闭SSE）
@@ -189,6 +250,16 @@ public class AgentServiceImpl implements IAgentService {
                 public void onStart() {
                     log.debug("LLM开始生成");
                 }
+
+                @Override
+                public void onRateLimited(String limitedModelId, int queued) {
+                    publisher.onRateLimited(limitedModelId, queued);
+                }
+
+                @Override
+                public void onRateLimitAcquired(String limitedModelId, long waitMs) {
+                    publisher.onRateLimitAcquired(limitedModelId, waitMs);
+                }
             });
             stepStartNs = logStep("init_streaming_callback", stepStartNs, requestId, conversationId, null, emitter);
 
@@ -205,15 +276,16 @@ public class AgentServiceImpl implements IAgentService {
                     "knowledgeCount=" + context.getKnowledgeIds().size(), emitter);
             }
 
-            // 4. 注册状态变更监听器
-            stateMachine.initialize(context, newState -> {
-                streamingService.sendEvent(emitter, AgentEventData.builder()
-                    .requestId(requestId)
-                    .event(AgentConstants.EVENT_AGENT_THINKING)
-                    .message("状态: " + newState.getDescription())
-                    .conversationId(context.getConversationId())
-                    .build());
-            });
+            // 4. 创建本次运行的状态机，状态变更推送 SSE（经 publisher 保证与已缓冲 token 的顺序）并计入指标
+            AgentStateMachine stateMachine = new AgentStateMachine();
+            context.setStateMachine(stateMachine);
+            stateMachine.subscribe(change -> publisher.accept(AgentEventData.builder()
+                .requestId(requestId)
+                .event(AgentConstants.EVENT_AGENT_THINKING)
+                .message("状态: " + change.getTo().getDescription())
+                .conversationId(context.getConversationId())
+                .build()));
+            stateMetrics.attach(stateMachine);
             stepStartNs = logStep("init_state_machine", stepStartNs, requestId, conversationId, null, emitter);
 
             // 5. 执行推理循环
@@ -225,44 +297,78 @@ public class AgentServiceImpl implements IAgentService {
                 .build());
 
             long engineStartNs = System.nanoTime();
-            AgentExecutionResult executionResult = agentEngine.execute(context);
-            stepStartNs = logStep("engine_execute", engineStartNs, requestId, conversationId,
-                "modelId=" + modelId + ", iterations=" + executionResult.getIterations(), emitter);
-
-            // 6. 批量保存本轮新增的 AI/Tool 消息（UserMessage 已在步骤2保存，此处跳过）
-            // executionResult.getMessages() 是完整消息列表，新增消息 = 总数 - 加载到历史消息数 - 1(本轮user)
-            // 但最简单可靠的方式：保存 context 中类型非 USER 且非 SYSTEM 的新增消息
-            saveNewAssistantMessages(context, context.getModelId(), conversationId);
-            stepStartNs = logStep("save_assistant_messages", stepStartNs, requestId, conversationId, null, emitter);
-
-            // 更新对话消息数量
-            try {
-                conversationService.incrementMessageCount(context.getConversationId());
-            } catch (Exception e) {
-                log.warn("更新消息数量失败: conversationId={}", context.getConversationId(), e);
-            }
-            stepStartNs = logStep("increment_message_count", stepStartNs, requestId, conversationId, null, emitter);
-
-
-            // 7. 保存上下文
-            memorySystem.saveContext(context);
-            stepStartNs = logStep("save_context", stepStartNs, requestId, conversationId, null, emitter);
-
-            // 8. 关闭SSE（此时所有流式事件都已发送完成）
-            streamingService.closeEmitter(emitter, requestId);
-            logStep("close_emitter", System.nanoTime(), requestId, conversationId, null, emitter);
-            logStep("total", totalStartNs, requestId, conversationId, null, emitter);
-            
-        } finally {
+            final String resolvedModelId = modelId;
+            return agentEngine.executeAsync(context)
+                .thenAcceptAsync(executionResult -> {
+                    publisher.flush();
+                    long stepNs = logStep("engine_execute", engineStartNs, requestId, conversationId,
+                        "modelId=" + resolvedModelId + ", iterations=" + executionResult.getIterations(), emitter);
+                    completeExecution(context, userMessageId, requestId, emitter, stepNs, totalStartNs);
+                }, executionScheduler.getExecutor())
+                .whenComplete((v, e) -> {
+                    stopRequestManager.unregister(requestId);
+                    stopRequestManager.clearStopFlag(requestId);
+                });
+        } catch (RuntimeException e) {
             // 清除 Redis 中的停止标志（防止遗留）
+            stopRequestManager.unregister(requestId);
             stopRequestManager.clearStopFlag(requestId);
+            throw e;
         }
     }
+
+    /**
+     * 推理循环结束后的收尾：提交消息异步写入、保存上下文，关闭 SSE
+     *
+     * @param userMessageId 步骤2写入的用户消息 message_id（本轮没有新增消息时即为数据库最新一条）
+     */
+    private void completeExecution(AgentContext context, String userMessageId, String requestId, SseEmitter emitter,
+                                   long stepStartNs, long totalStartNs) {
+        String conversationId = context.getConversationId();
+
+        // 6. 本轮新增的 AI/Tool 消息与消息计数更新交给后台批量写入（UserMessage 已在步骤2保存）
+        // 关闭 SSE 不等待数据库写入；同一会话的下一次请求加载历史前会等待写入完成
+        List<MessageEntity> newMessages = collectNewAssistantMessages(context, context.getModelId(), conversationId);
+        CompletableFuture<Void> persisted = messagePersistence.submit(conversationId, newMessages);
+        stepStartNs = logStep("enqueue_messages", stepStartNs, requestId, conversationId,
+            "count=" + newMessages.size(), emitter);
+
+        // 7. 保存上下文：记录列表末尾对应的数据库消息，下一次请求据此判断 Redis 列表是否与数据库一致
+        // （未走到这里的运行、或后台写入最终失败时，数据库最新消息与之不同，将改从数据库加载）
+        context.setMessageListTailId(newMessages.isEmpty()
+            ? userMessageId
+            : newMessages.get(newMessages.size() - 1).getMessageId());
+        memorySystem.saveContext(context);
+        stepStartNs = logStep("save_context", stepStartNs, requestId, conversationId, null, emitter);
+
+        // 8. 关闭SSE（此时所有流式事件都已发送完成）
+        streamingService.closeEmitter(emitter, requestId);
+        logStep("close_emitter", System.nanoTime(), requestId, conversationId, null, emitter);
+        logStep("total", totalStartNs, requestId, conversationId, null, emitter);
+
+        // 9. 消息落库后在后台检查历史长度，超过阈值时压缩为滚动摘要（异步，不影响本次响应）
+        persisted.thenRun(() -> compactionService.maybeCompactAsync(conversationId));
+    }
     
     @Override
     public boolean stop(String requestId) {
         log.info("收到停止请求: requestId={}", requestId);
         
+        // 0. 仍在等待队列中的运行直接移除，无需设置停止标志
+        if (executionScheduler.cancel(requestId)) {
+            SseEmitter queuedEmitter = streamingService.getEmitter(requestId);
+            if (queuedEmitter != null) {
+                streamingService.sendEvent(queuedEmitter, AgentEventData.builder()
+                    .requestId(requestId)
+                    .event(AgentConstants.EVENT_AGENT_COMPLETE)
+                    .message("用户已停止")
+                    .build());
+                streamingService.closeEmitter(queuedEmitter, requestId);
+            }
+            log.info("已从等待队列移除: requestId={}", requestId);
+            return true;
+        }
+        
         // 1. 在 Redis 中设置停止标志（支持多实例）
         boolean success = stopRequestManager.setStopFlag(requestId);
         
@@ -288,12 +394,28 @@ public class AgentServiceImpl implements IAgentService {
         return true;
     }
     
+    @Override
+    public SseEmitter subscribe(String requestId, Long lastEventId) {
+        return streamingService.subscribe(requestId, lastEventId);
+    }
+    
     @Override
     public boolean clearMemory(String conversationId) {
         memorySystem.clearMemory(conversationId);
         return true;
     }
 
+    private AgentEventPublisher createEventPublisher(String requestId, AgentContext context, SseEmitter emitter) {
+        SseAgentEventPublisher ssePublisher = new SseAgentEventPublisher(
+            requestId, context.getConversationId(), emitter, streamingService);
+        int flushIntervalMs = context.getStreamFlushIntervalMs();
+        if (flushIntervalMs <= 0) {
+            return ssePublisher;
+        }
+        return new CoalescingAgentEventPublisher(
+            ssePublisher, flushIntervalMs, agentConfig.getStreaming().getTokenFlushMaxChars());
+    }
+
     private long logStep(String step, long startNs, String requestId, String conversationId,
                          String extra, SseEmitter emitter) {
         long durationMs = (System.nanoTime() - startNs) / 1_000_000;
@@ -313,17 +435,18 @@ public class AgentServiceImpl implements IAgentService {
     }
 
     /**
-     * 批量保存本轮新增的 AI/Tool 消息到 MySQL
+     * 收集本轮新增的 AI/Tool 消息，构建为待批量写入的 MessageEntity（按时间顺序）
      * 策略：从 messageDTOs 中找出新增的非 USER 消息（通过简单时序判断）
      *
      * <p>对于最后一条（最新）AI 最终回复消息，会将 {@code context.executionProcess}（执行过程记录）
      * 注入到 customMetadata，持久化到 {@code MessageEntity.metadata.executionProcess}，
      * 供历史对话加载时还原 ReAct 迭代展示。
      */
-    private void saveNewAssistantMessages(AgentContext context, String modelId, String conversationId) {
+    private List<MessageEntity> collectNewAssistantMessages(AgentContext context, String modelId, String conversationId) {
+        List<MessageEntity> entities = new ArrayList<>();
         List<MessageBO> allDTOs = context.getMessageBOS();
         if (allDTOs == null || allDTOs.isEmpty()) {
-            return;
+            return entities;
         }
 
         // 判断是否有执行过程记录（有工具调用时才有）
@@ -356,11 +479,15 @@ public class AgentServiceImpl implements IAgentService {
                         }
                         // AI/assistant 消息携带 agentId；TOOL_EXECUTION 消息不需要
                         String msgAgentId = "AI".equals(type) ? agentId : null;
-                        memorySystem.saveShortTermMemory(conversationId, message, modelId, msgAgentId, null, null, metadata);
-                        savedCount++;
+                        MessageEntity entity = messageService.buildEntity(
+                            conversationId, message, modelId, msgAgentId, null, null, metadata);
+                        if (entity != null) {
+                            entities.add(entity);
+                            savedCount++;
+                        }
                     }
                 } catch (Exception e) {
-                    log.warn("保存消息失败，跳过: type={}, error={}", type, e.getMessage());
+                    log.warn("构建消息失败，跳过: type={}, error={}", type, e.getMessage());
                 }
             } else if ("USER".equals(type)) {
                 // 遇到 USER 消息说明前面的都是历史消息，停止遍历
@@ -368,10 +495,13 @@ public class AgentServiceImpl implements IAgentService {
             }
         }
 
+        // 倒序收集，反转后按时间顺序写入，使自增 ID 与消息顺序一致
+        Collections.reverse(entities);
         if (savedCount > 0) {
-            log.info("批量保存本轮新增消息完成: conversationId={}, count={}, agentId={}, hasExecutionProcess={}",
+            log.info("收集本轮新增消息: conversationId={}, count={}, agentId={}, hasExecutionProcess={}",
                 conversationId, savedCount, agentId, executionProcess != null && !executionProcess.getIterations().isEmpty());
         }
+        return entities;
     }
 }
 
@@ -0,0 +1,27 @@
+package com.aiagent.application;
+
+import com.aiagent.common.enums.AgentState;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * 状态机的一次状态变更事件
+ */
+@Getter
+@ToString
+@AllArgsConstructor
+public class AgentStateChange {
+
+    /** 变更前状态 */
+    private final AgentState from;
+
+    /** 变更后状态 */
+    private final AgentState to;
+
+    /** 在变更前状态停留的时长（毫秒） */
+    private final long elapsedMs;
+
+    /** 变更发生时间（epoch 毫秒） */
+    private final long timestamp;
+}
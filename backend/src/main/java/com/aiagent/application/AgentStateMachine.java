@@ -3,57 +3,73 @@ package com.aiagent.application;
 import com.aiagent.common.enums.AgentState;
 import com.aiagent.domain.model.bo.AgentContext;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.stereotype.Component;
 
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.function.Consumer;
 
 /**
  * Agent状态机
  * 管理Agent执行过程中的状态转换
+ * <p>
+ * 每次运行创建独立实例并挂在该次运行的 {@link AgentContext} 上（{@link #of}），并发运行互不影响。
+ * 状态变更以 {@link AgentStateChange} 事件按发生顺序通知订阅者（SSE 推送、指标统计等）。
  * 
  * @author aiagent
  */
 @Slf4j
-@Component
 public class AgentStateMachine {
 
-    private AgentState currentState;
-    private AgentContext context;
-    private Consumer<AgentState> onStateChange;
-    
+    private volatile AgentState currentState = AgentState.INITIALIZING;
+
+    private long stateEnteredNs = System.nanoTime();
+
+    private final List<Consumer<AgentStateChange>> listeners = new CopyOnWriteArrayList<>();
+
     /**
-     * 初始化状态机
+     * 获取本次运行的状态机，尚未创建时创建并挂到上下文上
      */
-    public void initialize(AgentContext context, Consumer<AgentState> onStateChange) {
-        this.currentState = AgentState.INITIALIZING;
-        this.context = context;
-        this.onStateChange = onStateChange;
-        log.info("Agent状态机初始化，初始状态: {}", currentState);
+    public static AgentStateMachine of(AgentContext context) {
+        AgentStateMachine stateMachine = context.getStateMachine();
+        if (stateMachine == null) {
+            stateMachine = new AgentStateMachine();
+            context.setStateMachine(stateMachine);
+        }
+        return stateMachine;
+    }
+
+    /**
+     * 订阅状态变更事件（监听器在执行转换的线程上同步调用，应保持轻量）
+     */
+    public AgentStateMachine subscribe(Consumer<AgentStateChange> listener) {
+        if (listener != null) {
+            listeners.add(listener);
+        }
+        return this;
     }
     
     /**
      * 转换到新状态
      */
-    public boolean transition(AgentState newState) {
-        if (currentState == null) {
-            log.warn("状态机未初始化，无法转换状态");
-            return false;
-        }
-        
+    public synchronized boolean transition(AgentState newState) {
         if (!currentState.canTransitionTo(newState)) {
             log.warn("无效的状态转换: {} -> {}", currentState, newState);
             return false;
         }
         
         AgentState oldState = currentState;
+        long nowNs = System.nanoTime();
+        AgentStateChange change = new AgentStateChange(oldState, newState,
+            (nowNs - stateEnteredNs) / 1_000_000L, System.currentTimeMillis());
         currentState = newState;
+        stateEnteredNs = nowNs;
         
         log.info("Agent状态转换: {} -> {}", oldState, newState);
         
         // 触发状态变更回调
-        if (onStateChange != null) {
+        for (Consumer<AgentStateChange> listener : listeners) {
             try {
-                onStateChange.accept(newState);
+                listener.accept(change);
             } catch (Exception e) {
                 log.error("状态变更回调执行失败", e);
             }
@@ -87,15 +103,15 @@ public class AgentStateMachine {
      * 检查是否为终态
      */
     public boolean isTerminal() {
-        return currentState != null && currentState.isTerminal();
+        return currentState.isTerminal();
     }
     
     /**
      * 重置状态机
      */
-    public void reset() {
+    public synchronized void reset() {
         this.currentState = AgentState.INITIALIZING;
+        this.stateEnteredNs = System.nanoTime();
         log.info("Agent状态机已重置");
     }
 }
-
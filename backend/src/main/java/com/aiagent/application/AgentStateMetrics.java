@@ -0,0 +1,45 @@
+package com.aiagent.application;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 状态机指标：订阅每次运行的 {@link AgentStateMachine}，统计各状态停留时长与状态转换次数
+ *
+ * <ul>
+ *   <li>{@code aiagent.agent.state.duration{state}} - 在某状态停留的时长</li>
+ *   <li>{@code aiagent.agent.state.transitions{from,to}} - 状态转换次数</li>
+ * </ul>
+ */
+@Component
+public class AgentStateMetrics {
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    /**
+     * 为本次运行的状态机挂上指标监听器
+     */
+    public void attach(AgentStateMachine stateMachine) {
+        stateMachine.subscribe(this::record);
+    }
+
+    private void record(AgentStateChange change) {
+        Timer.builder("aiagent.agent.state.duration")
+            .description("Agent 在各执行状态停留的时长")
+            .tag("state", change.getFrom().name())
+            .register(meterRegistry)
+            .record(change.getElapsedMs(), TimeUnit.MILLISECONDS);
+        Counter.builder("aiagent.agent.state.transitions")
+            .description("Agent 状态转换次数")
+            .tag("from", change.getFrom().name())
+            .tag("to", change.getTo().name())
+            .register(meterRegistry)
+            .increment();
+    }
+}
@@ -3,26 +3,183 @@ package com.aiagent.application;
 import com.aiagent.common.constant.AgentConstants;
 import com.aiagent.common.util.LocalCache;
 import com.aiagent.api.dto.AgentEventData;
+import com.aiagent.infrastructure.config.AgentConfig;
 import com.alibaba.fastjson2.JSON;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.IOException;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * SSE 事件发送与连接管理
+ *
+ * <p>每个 {@link SseEmitter} 对应一个有界出站队列（{@link SseEmitterChannel}），
+ * {@link #sendEvent} 只负责入队，由 writer 线程池异步序列化并写出，
+ * 慢客户端不会阻塞 Agent 推理线程。
+ *
+ * <p>每次运行（requestId）的事件同时写入 {@link RunEventLog}，分配单调递增的 SSE 事件 ID。
+ * 浏览器断线后可通过 {@link #subscribe} 携带 {@code Last-Event-ID} 回放并继续接收实时事件，
+ * 多个标签页也可同时订阅同一次运行，无需重复执行。
+ *
+ * <p>指标：
+ * <ul>
+ *   <li>{@code aiagent.sse.queue.depth} - 所有连接出站队列中待发送事件总数</li>
+ *   <li>{@code aiagent.sse.channels.active} - 当前活跃 SSE 连接数</li>
+ *   <li>{@code aiagent.sse.events.merged} - 与队尾合并的 token 事件数</li>
+ *   <li>{@code aiagent.sse.events.dropped} - 因背压或连接关闭被丢弃的事件数</li>
+ *   <li>{@code aiagent.sse.clients.evicted} - 因队列超过硬上限或单次发送超时被断开的客户端数</li>
+ * </ul>
  */
 @Slf4j
 @Service
 public class AgentStreamingService {
 
+    @Autowired
+    private AgentConfig agentConfig;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private RunEventLogStore eventLogStore;
+
+    /** 发起执行的 emitter → 出站队列（运行结束前不移除，连接断开后事件仍写入事件日志） */
+    private final Map<SseEmitter, SseEmitterChannel> channels = new ConcurrentHashMap<>();
+
+    private ExecutorService writerExecutor;
+
+    /** 定期检查单次发送是否超时 */
+    private ScheduledExecutorService sendWatchdog;
+
+    private Counter mergedCounter;
+    private Counter droppedCounter;
+    private Counter evictedCounter;
+
+    private final SseEmitterChannel.Listener channelListener = new SseEmitterChannel.Listener() {
+        @Override
+        public void onMerged() {
+            mergedCounter.increment();
+        }
+
+        @Override
+        public void onDropped(String event) {
+            droppedCounter.increment();
+        }
+
+        @Override
+        public void onEvicted(SseEmitterChannel channel) {
+            evictedCounter.increment();
+            detach(channel);
+        }
+
+        @Override
+        public void onClosed(SseEmitterChannel channel) {
+            detach(channel);
+        }
+    };
+
+    @PostConstruct
+    public void init() {
+        // send 在慢 socket 上会阻塞，线程数按上限创建、空闲回收，少数卡住的连接不会占满全部 writer 线程
+        int writerThreads = Math.max(1, agentConfig.getStreaming().getWriterThreads());
+        AtomicInteger threadIndex = new AtomicInteger();
+        ThreadPoolExecutor writerPool = new ThreadPoolExecutor(
+            writerThreads, writerThreads, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            r -> {
+                Thread t = new Thread(r, "sse-writer-" + threadIndex.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        writerPool.allowCoreThreadTimeOut(true);
+        writerExecutor = writerPool;
+
+        long sendTimeoutMs = agentConfig.getStreaming().getSendTimeoutMs();
+        if (sendTimeoutMs > 0) {
+            sendWatchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "sse-send-watchdog");
+                t.setDaemon(true);
+                return t;
+            });
+            long period = Math.max(100, Math.min(1000, sendTimeoutMs / 2));
+            sendWatchdog.scheduleWithFixedDelay(() -> evictStalledChannels(sendTimeoutMs), period, period, TimeUnit.MILLISECONDS);
+        }
+
+        Gauge.builder("aiagent.sse.queue.depth", eventLogStore,
+                store -> store.all().stream()
+                    .flatMap(run -> run.getSubscribers().stream())
+                    .mapToInt(SseEmitterChannel::depth)
+                    .sum())
+            .description("SSE 出站队列待发送事件总数")
+            .register(meterRegistry);
+        Gauge.builder("aiagent.sse.channels.active", eventLogStore,
+                store -> store.all().stream().mapToInt(run -> run.getSubscribers().size()).sum())
+            .description("活跃 SSE 连接数（含订阅连接）")
+            .register(meterRegistry);
+        mergedCounter = Counter.builder("aiagent.sse.events.merged")
+            .description("与队尾合并的 token 事件数")
+            .register(meterRegistry);
+        droppedCounter = Counter.builder("aiagent.sse.events.dropped")
+            .description("因背压或连接关闭被丢弃的事件数")
+            .register(meterRegistry);
+        evictedCounter = Counter.builder("aiagent.sse.clients.evicted")
+            .description("出站队列超过硬上限或单次发送超时被断开的客户端数")
+            .register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (sendWatchdog != null) {
+            sendWatchdog.shutdownNow();
+        }
+        if (writerExecutor != null) {
+            writerExecutor.shutdown();
+        }
+    }
+
+    /**
+     * 驱逐单次发送超时的连接（发送阻塞在慢 socket 上时队列深度不一定增长，硬上限无法及时生效）
+     */
+    private void evictStalledChannels(long sendTimeoutMs) {
+        try {
+            long now = System.nanoTime();
+            long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(sendTimeoutMs);
+            eventLogStore.all().stream()
+                .flatMap(run -> run.getSubscribers().stream())
+                .forEach(channel -> channel.evictIfStalled(now, timeoutNanos));
+        } catch (Exception e) {
+            log.warn("检查 SSE 发送超时失败: {}", e.getMessage());
+        }
+    }
+
     public SseEmitter createEmitter(String requestId) {
         SseEmitter emitter = new SseEmitter(AgentConstants.SSE_TIMEOUT_MILLIS);
+        SseEmitterChannel channel = newChannel(requestId, emitter);
+        channels.put(emitter, channel);
+        eventLogStore.open(requestId).addSubscriber(channel);
+
         emitter.onError(throwable -> {
             log.error("SSE连接错误: {}", throwable.getMessage());
             removeEmitter(requestId);
+            channel.abort();
             try {
                 emitter.complete();
             } catch (Exception ignore) {}
@@ -42,22 +199,61 @@ public class AgentStreamingService {
         LocalCache.remove(AgentConstants.CACHE_PREFIX_AGENT_SSE, requestId);
     }
 
+    /**
+     * 订阅一次运行的事件流：回放 {@code lastEventId} 之后的事件，运行未结束时继续接收实时事件
+     *
+     * @param requestId   运行 ID
+     * @param lastEventId 客户端最后收到的事件 ID（Last-Event-ID），null 表示从头回放
+     */
+    public SseEmitter subscribe(String requestId, Long lastEventId) {
+        long cursor = lastEventId != null ? lastEventId : 0L;
+        SseEmitter emitter = new SseEmitter(AgentConstants.SSE_TIMEOUT_MILLIS);
+        SseEmitterChannel channel = newChannel(requestId, emitter);
+        emitter.onError(throwable -> channel.abort());
+        emitter.onCompletion(channel::abort);
+
+        RunEventLog run = eventLogStore.get(requestId);
+        if (run != null) {
+            eventLogStore.attach(run, channel, cursor);
+            log.info("订阅 Agent 事件流: requestId={}, lastEventId={}", requestId, cursor);
+            return emitter;
+        }
+
+        // 本机无运行记录：任务在其他实例执行或本机日志已过期，尝试从 Redis Stream 回放
+        List<RunEventLog.Entry> spilled = eventLogStore.readSpilled(requestId, cursor);
+        if (spilled.isEmpty()) {
+            log.info("未找到可回放的 Agent 事件: requestId={}, lastEventId={}", requestId, cursor);
+            sendDirect(emitter, AgentEventData.builder()
+                .requestId(requestId)
+                .event(AgentConstants.EVENT_AGENT_ERROR)
+                .message("未找到对应的Agent任务或事件已过期")
+                .build());
+            try {
+                emitter.complete();
+            } catch (Exception ignore) {}
+            return emitter;
+        }
+        channel.replay(spilled);
+        channel.close();
+        return emitter;
+    }
+
+    /**
+     * 发送事件（写入运行事件日志并广播给所有订阅连接，入队后立即返回，由 writer 线程异步写出）
+     */
     public void sendEvent(SseEmitter emitter, AgentEventData eventData) {
-        try {
-            String eventName = eventData.getEvent();
-            if (eventName == null || eventName.isBlank()) {
-                eventName = AgentConstants.EVENT_AGENT_MESSAGE;
+        SseEmitterChannel channel = channels.get(emitter);
+        if (channel != null) {
+            RunEventLog run = eventLogStore.get(channel.getRequestId());
+            if (run != null) {
+                eventLogStore.append(run, eventData);
+            } else {
+                channel.offer(0L, eventData);
             }
-            String eventStr = JSON.toJSONString(eventData);
-            emitter.send(SseEmitter.event()
-                .name(eventName)
-                .data(Objects.requireNonNull(eventStr)));
-            log.debug("发送Agent事件: {}", eventName);
-        } catch (IllegalStateException e) {
-            log.debug("SSE连接已关闭，忽略事件发送: {}", eventData.getEvent());
-        } catch (IOException e) {
-            log.error("发送SSE事件失败", e);
+            return;
         }
+        // 非 createEmitter 创建或已结束的连接：同步发送
+        sendDirect(emitter, eventData);
     }
 
     public void closeEmitter(SseEmitter emitter, String requestId) {
@@ -71,9 +267,47 @@ public class AgentStreamingService {
             log.error("发送完成事件失败", e);
         } finally {
             removeEmitter(requestId);
-            try {
-                emitter.complete();
-            } catch (Exception ignore) {}
+            SseEmitterChannel channel = channels.remove(emitter);
+            if (channel != null) {
+                // 关闭该运行的全部订阅连接（队列中剩余事件发送完毕后再 complete）
+                channel.close();
+                eventLogStore.finish(channel.getRequestId());
+            } else {
+                try {
+                    emitter.complete();
+                } catch (Exception ignore) {}
+            }
+        }
+    }
+
+    private SseEmitterChannel newChannel(String requestId, SseEmitter emitter) {
+        AgentConfig.StreamingConfig cfg = agentConfig.getStreaming();
+        return new SseEmitterChannel(requestId, emitter, writerExecutor,
+            cfg.getOutboundQueueSoftLimit(), cfg.getOutboundQueueHardLimit(), channelListener);
+    }
+
+    private void detach(SseEmitterChannel channel) {
+        RunEventLog run = eventLogStore.get(channel.getRequestId());
+        if (run != null) {
+            run.removeSubscriber(channel);
+        }
+    }
+
+    private void sendDirect(SseEmitter emitter, AgentEventData eventData) {
+        try {
+            String eventName = eventData.getEvent();
+            if (eventName == null || eventName.isBlank()) {
+                eventName = AgentConstants.EVENT_AGENT_MESSAGE;
+            }
+            String eventStr = JSON.toJSONString(eventData);
+            emitter.send(SseEmitter.event()
+                .name(eventName)
+                .data(Objects.requireNonNull(eventStr)));
+            log.debug("发送Agent事件: {}", eventName);
+        } catch (IllegalStateException e) {
+            log.debug("SSE连接已关闭，忽略事件发送: {}", eventData.getEvent());
+        } catch (IOException e) {
+            log.error("发送SSE事件失败", e);
         }
     }
 }
@@ -0,0 +1,179 @@
+package com.aiagent.application;
+
+import com.aiagent.api.dto.AgentEventData;
+import com.aiagent.common.constant.AgentConstants;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 合并流式 token 的 AgentEventPublisher 装饰器
+ *
+ * <p>LLM 每个 token 单独发送一个 SSE 帧时，JSON 序列化与 socket 写入开销远大于 token 本身。
+ * 此类将时间窗口（{@code flushIntervalMs}）内的连续 token 合并为一个帧，
+ * 缓冲区达到 {@code maxBufferChars} 时立即发送。
+ *
+ * <p>以下情况会先冲刷缓冲区再转发事件，保证事件顺序不变：
+ * <ul>
+ *   <li>token 类型切换（最终回复 ↔ 中间推理）</li>
+ *   <li>工具调用 / 工具结果 / PERSONAL 工具下发</li>
+ *   <li>流式完成、任务完成、错误及其他透传事件</li>
+ * </ul>
+ *
+ * <p>与 {@link SseAgentEventPublisher} 一样按请求实例化，窗口大小来自
+ * {@code AgentDefinition.contextConfig.streamFlushIntervalMs}（默认取全局配置）。
+ */
+@Slf4j
+public class CoalescingAgentEventPublisher implements AgentEventPublisher {
+
+    /** 定时冲刷调度器（所有请求共享，仅执行轻量的 flush 动作） */
+    private static final ScheduledExecutorService FLUSH_SCHEDULER =
+        Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "sse-token-coalescer");
+            t.setDaemon(true);
+            return t;
+        });
+
+    private final AgentEventPublisher delegate;
+    private final long flushIntervalMs;
+    private final int maxBufferChars;
+
+    /** 待发送的 token 缓冲区（同一时刻只缓存一种类型） */
+    private final StringBuilder buffer = new StringBuilder();
+
+    /** 当前缓冲区内容是否为中间推理 token */
+    private boolean bufferThinking;
+
+    /** 已调度但尚未执行的定时冲刷任务 */
+    private ScheduledFuture<?> pendingFlush;
+
+    public CoalescingAgentEventPublisher(AgentEventPublisher delegate,
+                                         long flushIntervalMs,
+                                         int maxBufferChars) {
+        this.delegate = delegate;
+        this.flushIntervalMs = flushIntervalMs;
+        this.maxBufferChars = Math.max(1, maxBufferChars);
+    }
+
+    @Override
+    public void onToken(String token) {
+        append(false, token);
+    }
+
+    @Override
+    public void onThinkingToken(String token) {
+        append(true, token);
+    }
+
+    @Override
+    public void onToolCall(String toolName, Object params) {
+        flush();
+        delegate.onToolCall(toolName, params);
+    }
+
+    @Override
+    public void onToolCall(String toolName, Object params, boolean requiresConfirmation, String toolExecutionId) {
+        flush();
+        delegate.onToolCall(toolName, params, requiresConfirmation, toolExecutionId);
+    }
+
+    @Override
+    public void onToolResult(String toolName, Object result, long durationMs, String error) {
+        flush();
+        delegate.onToolResult(toolName, result, durationMs, error);
+    }
+
+    @Override
+    public void onPersonalToolCall(String callId, String toolName, String serverId, Object params) {
+        flush();
+        delegate.onPersonalToolCall(callId, toolName, serverId, params);
+    }
+
+    @Override
+    public void onStreamComplete() {
+        flush();
+        delegate.onStreamComplete();
+    }
+
+    @Override
+    public void onComplete() {
+        flush();
+        delegate.onComplete();
+    }
+
+    @Override
+    public void onError(String error) {
+        flush();
+        delegate.onError(error);
+    }
+
+    /**
+     * token 类事件进入缓冲区，其余事件先冲刷再交给被装饰的 publisher 处理
+     */
+    @Override
+    public void accept(AgentEventData eventData) {
+        if (eventData == null || eventData.getEvent() == null) {
+            return;
+        }
+        String content = eventData.getContent() != null ? eventData.getContent() : "";
+        switch (eventData.getEvent()) {
+            case AgentConstants.EVENT_AGENT_MESSAGE:
+                onToken(content);
+                break;
+            case AgentConstants.EVENT_AGENT_THINKING_DELTA:
+                onThinkingToken(content);
+                break;
+            default:
+                flush();
+                delegate.accept(eventData);
+                break;
+        }
+    }
+
+    /**
+     * 立即发送缓冲区中的全部 token
+     */
+    @Override
+    public synchronized void flush() {
+        if (pendingFlush != null) {
+            pendingFlush.cancel(false);
+            pendingFlush = null;
+        }
+        if (buffer.length() == 0) {
+            return;
+        }
+        String content = buffer.toString();
+        buffer.setLength(0);
+        try {
+            if (bufferThinking) {
+                delegate.onThinkingToken(content);
+            } else {
+                delegate.onToken(content);
+            }
+        } catch (Exception e) {
+            log.debug("冲刷 token 缓冲区失败", e);
+        }
+    }
+
+    // ── 内部工具方法 ──────────────────────────────────────────────────────────
+
+    private synchronized void append(boolean thinking, String token) {
+        if (token == null || token.isEmpty()) {
+            return;
+        }
+        if (buffer.length() > 0 && bufferThinking != thinking) {
+            flush();
+        }
+        bufferThinking = thinking;
+        buffer.append(token);
+
+        if (buffer.length() >= maxBufferChars) {
+            flush();
+        } else if (pendingFlush == null) {
+            pendingFlush = FLUSH_SCHEDULER.schedule(this::flush, flushIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -3,9 +3,13 @@ package com.aiagent.application;
 import com.aiagent.common.constant.AgentConstants;
 import com.aiagent.common.enums.AgentMode;
 import com.aiagent.common.enums.AgentState;
+import com.aiagent.common.util.CancellationToken;
 import com.aiagent.domain.agent.AgentDefinition;
 import com.aiagent.domain.agent.AgentDefinitionLoader;
+import com.aiagent.domain.context.ContextWindow;
+import com.aiagent.domain.context.ContextWindowManager;
 import com.aiagent.domain.llm.SimpleLLMChatHandler;
+import com.aiagent.domain.memory.ConversationCompactionService;
 import com.aiagent.domain.model.bo.AgentContext;
 import com.aiagent.domain.model.bo.AgentExecutionResult;
 import com.aiagent.domain.model.bo.AgentRuntimeConfig;
@@ -19,6 +23,7 @@ import com.aiagent.domain.tool.ToolRegistry;
 import com.aiagent.domain.tool.todo.TodoItem;
 import com.aiagent.api.dto.McpToolInfo;
 import com.aiagent.domain.mcp.McpServerService;
+import com.aiagent.infrastructure.config.AgentConfig;
 import com.aiagent.infrastructure.external.mcp.ClientToolCallManager;
 import com.aiagent.infrastructure.external.mcp.ToolConfirmationDecision;
 import com.aiagent.infrastructure.external.mcp.ToolConfirmationManager;
@@ -35,7 +40,17 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 /**
  * 基于 LangChain4j 原生 Function Calling 的标准 Agent 推理引擎（默认引擎）
@@ -48,9 +63,15 @@ import java.util.*;
  * <ul>
  *   <li>{@link AgentMode#AUTO}   - 工具立即执行，无需用户确认</li>
  *   <li>{@link AgentMode#MANUAL} - 每个工具执行前发出确认请求，等待用户批准/拒绝，
- *       通过 {@link ToolConfirmationManager} + Redis BlockingQueue 实现阻塞等待</li>
+ *       通过 {@link ToolConfirmationManager} + Redis BlockingQueue 异步等待</li>
  * </ul>
  *
+ * <p>AUTO 模式下同一轮返回多个工具调用时并行分发，并发上限由 {@code context.getMaxParallelToolCalls()} 控制，
+ * 结果按原请求顺序回填到 messages 与执行过程记录。
+ *
+ * <p>推理循环由 {@link #executeAsync} 以 continuation 方式驱动：LLM 流式调用、用户确认、
+ * PERSONAL 工具回传均以 {@link CompletableFuture} 完成后继续下一步，等待期间不占用线程。
+ *
  * <p>最大工具轮数通过 {@code context.getMaxToolRounds()} 读取（委托到 {@link AgentRuntimeConfig}），
  * 默认值 8，可在 {@link AgentDefinition.ContextConfig} 中配置。
  */
@@ -64,6 +85,9 @@ public class FunctionCallingEngine implements AgentEngine {
     @Autowired
     private SimpleLLMChatHandler llmChatHandler;
 
+    @Autowired
+    private ContextWindowManager contextWindowManager;
+
     @Autowired
     private AgentDefinitionLoader agentDefinitionLoader;
 
@@ -79,10 +103,53 @@ public class FunctionCallingEngine implements AgentEngine {
     @Autowired
     private ClientToolCallManager clientToolCallManager;
 
+    @Autowired
+    private AgentConfig agentConfig;
+
+    @Autowired
+    private StopRequestManager stopRequestManager;
+
+    /** 服务端工具执行的共享线程池（由 LLM 回调线程提交任务，排队而不是由调用方执行，避免阻塞网络回调线程） */
+    private ThreadPoolExecutor toolExecutor;
+
+    @PostConstruct
+    public void initToolExecutor() {
+        int poolSize = Math.max(1, agentConfig.getTools().getParallelExecution().getPoolSize());
+        AtomicInteger threadIndex = new AtomicInteger();
+        toolExecutor = new ThreadPoolExecutor(
+            poolSize, poolSize, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            r -> {
+                Thread t = new Thread(r, "fc-tool-executor-" + threadIndex.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        toolExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    @PreDestroy
+    public void shutdownToolExecutor() {
+        if (toolExecutor != null) {
+            toolExecutor.shutdown();
+        }
+    }
+
     @Override
     public AgentExecutionResult execute(AgentContext context) {
+        return executeAsync(context).join();
+    }
+
+    /**
+     * 以 continuation 方式驱动推理循环：每轮 LLM 流式调用完成后在回调线程上继续，
+     * 工具调用在工具线程池上执行、等待用户确认 / 客户端回传时不占用线程，
+     * 整个运行期间没有线程阻塞等待 token 或工具结果。
+     */
+    @Override
+    public CompletableFuture<AgentExecutionResult> executeAsync(AgentContext context) {
         long startNs = System.nanoTime();
         AgentEventPublisher publisher = context.getEventPublisher();
+        AgentStateMachine stateMachine = AgentStateMachine.of(context);
+        stateMachine.transition(AgentState.THINKING);
 
         String agentId = context.getAgentId();
         AgentDefinition agentDef = agentDefinitionLoader.getById(agentId);
@@ -103,300 +170,510 @@ public class FunctionCallingEngine implements AgentEngine {
             manualMode ? "MANUAL" : "AUTO",
             progressiveMode ? "已启用" : "未启用");
 
-        // 初始化 messages
-        List<ChatMessage> messages = buildMessages(agentDef, context, progressiveMode);
+        RunState state;
+        try {
+            // 初始化 messages（启用 token 预算时每轮调用前由 ContextWindow 裁剪）
+            ContextWindow window = contextWindowManager.isEnabled()
+                ? contextWindowManager.open(context.getModelId())
+                : null;
+            List<ChatMessage> messages = buildMessages(agentDef, context, progressiveMode, window);
+
+            // 初始化 toolSpecs（GLOBAL 工具），运行时 systemTools 优先覆盖 AgentDef
+            List<ToolSpecification> toolSpecs = resolveInitialToolSpecs(agentDef, context, progressiveMode);
+
+            // PERSONAL MCP 工具：由前端 prefetch 后随 AgentRequest 上传真实 schema，
+            // 后端直接构造真实 ToolSpecification，不再注入占位假工具
+            List<com.aiagent.api.dto.PersonalMcpToolSchema> personalSchemas = context.getPersonalMcpTools();
+            java.util.Map<String, String> personalToolServerId = toolRegistry.buildPersonalToolMapFromSchemas(personalSchemas);
+            if (personalSchemas != null && !personalSchemas.isEmpty()) {
+                toolSpecs = toolRegistry.appendPersonalToolSpecs(toolSpecs, personalSchemas);
+                log.info("注入 PERSONAL MCP 真实工具 schema: {} 个", personalSchemas.size());
+            }
 
-        // 初始化 toolSpecs（GLOBAL 工具），运行时 systemTools 优先覆盖 AgentDef
-        List<ToolSpecification> toolSpecs = resolveInitialToolSpecs(agentDef, context, progressiveMode);
+            state = new RunState(context, publisher, messages, toolSpecs, personalToolServerId,
+                manualMode, progressiveMode, maxToolRounds, startNs, window);
+        } catch (Exception e) {
+            return CompletableFuture.completedFuture(
+                finish(stateMachine, handleFailure(context, publisher, e, 0, startNs)));
+        }
 
-        // PERSONAL MCP 工具：由前端 prefetch 后随 AgentRequest 上传真实 schema，
-        // 后端直接构造真实 ToolSpecification，不再注入占位假工具
-        List<com.aiagent.api.dto.PersonalMcpToolSchema> personalSchemas = context.getPersonalMcpTools();
-        java.util.Map<String, String> personalToolServerId = toolRegistry.buildPersonalToolMapFromSchemas(personalSchemas);
-        if (personalSchemas != null && !personalSchemas.isEmpty()) {
-            toolSpecs = toolRegistry.appendPersonalToolSpecs(toolSpecs, personalSchemas);
-            log.info("注入 PERSONAL MCP 真实工具 schema: {} 个", personalSchemas.size());
+        CompletableFuture<AgentExecutionResult> rounds;
+        try {
+            rounds = runRound(state);
+        } catch (Exception e) {
+            rounds = CompletableFuture.failedFuture(e);
         }
+        return rounds.exceptionally(e -> CancellationToken.isCancellation(e)
+                ? stopped(state)
+                : handleFailure(context, publisher, unwrap(e), state.toolRound, startNs))
+            .thenApply(result -> finish(stateMachine, result));
+    }
 
-        int toolRound = 0;
+    /**
+     * 运行结束时将状态机转换到结果对应的终态
+     */
+    private AgentExecutionResult finish(AgentStateMachine stateMachine, AgentExecutionResult result) {
+        AgentState finalState = result.getFinalState() != null ? result.getFinalState()
+            : (result.isSuccess() ? AgentState.COMPLETED : AgentState.FAILED);
+        if (finalState.isTerminal()) {
+            stateMachine.transition(finalState);
+        }
+        return result;
+    }
 
-        ExecutionProcessRecord processRecord = new ExecutionProcessRecord();
-        processRecord.setIterations(new ArrayList<>());
+    // ── 私有辅助方法 ──────────────────────────────────────────────────────────
 
-        try {
-            while (toolRound <= maxToolRounds) {
-                log.info("Function Calling 循环第 {} 轮", toolRound);
-
-                final boolean[] isToolRound = {false};
-                final StringBuilder roundBuffer = new StringBuilder();
-                StreamingCallback roundCallback = buildRoundCallback(context, roundBuffer, isToolRound);
-
-                ChatResponse response = llmChatHandler.chatWithToolsStreaming(
-                    context.getModelId(), messages, toolSpecs, roundCallback
-                );
-                if (response == null) {
-                    log.error("LLM 返回空响应");
-                    long durationMs = elapsedMs(startNs);
-                    return AgentExecutionResult.failure("LLM 返回空响应", "NULL_RESPONSE",
-                        context.getMessages(), toolRound, durationMs, AgentState.FAILED);
-                }
+    /**
+     * 单次运行的循环状态（同一时刻只有一个 continuation 在推进，无需加锁）
+     */
+    private static final class RunState {
+        private final AgentContext context;
+        private final AgentEventPublisher publisher;
+        private final List<ChatMessage> messages;
+        private final List<ToolSpecification> toolSpecs;
+        private final Map<String, String> personalToolServerId;
+        private final boolean manualMode;
+        private final boolean progressiveMode;
+        private final int maxToolRounds;
+        private final long startNs;
+        /** token 预算窗口（未启用时为 null） */
+        private final ContextWindow window;
+        private final ExecutionProcessRecord processRecord = new ExecutionProcessRecord();
+        private volatile int toolRound;
+
+        private RunState(AgentContext context, AgentEventPublisher publisher,
+                         List<ChatMessage> messages, List<ToolSpecification> toolSpecs,
+                         Map<String, String> personalToolServerId,
+                         boolean manualMode, boolean progressiveMode,
+                         int maxToolRounds, long startNs, ContextWindow window) {
+            this.context = context;
+            this.publisher = publisher;
+            this.messages = messages;
+            this.toolSpecs = toolSpecs;
+            this.personalToolServerId = personalToolServerId;
+            this.manualMode = manualMode;
+            this.progressiveMode = progressiveMode;
+            this.maxToolRounds = maxToolRounds;
+            this.startNs = startNs;
+            this.window = window;
+            this.processRecord.setIterations(new ArrayList<>());
+        }
+    }
 
-                AiMessage aiMessage = response.aiMessage();
-                messages.add(aiMessage);
-                context.addMessage(aiMessage);
-                FinishReason finishReason = response.finishReason();
-                log.info("LLM 返回 finishReason={}", finishReason);
-
-                if (FinishReason.TOOL_EXECUTION.equals(finishReason) && aiMessage.hasToolExecutionRequests()) {
-                    isToolRound[0] = true;
-                    String thinkingContent = roundBuffer.toString();
-                    flushThinkingBuffer(publisher, roundBuffer);
-
-                    toolRound++;
-                    List<ToolExecutionRequest> toolRequests = aiMessage.toolExecutionRequests();
-
-                    long iterStartNs = System.nanoTime();
-                    Iteration iteration = new Iteration();
-                    iteration.setIterationNumber(toolRound);
-                    iteration.setSteps(new ArrayList<>());
-
-                    if (!thinkingContent.isBlank()) {
-                        iteration.getSteps().add(Step.builder()
-                            .type("thinking")
-                            .content(thinkingContent)
-                            .build());
-                    }
+    /**
+     * 发起一轮 LLM 调用，完成后由 {@link #onRoundResponse} 继续
+     */
+    private CompletableFuture<AgentExecutionResult> runRound(RunState state) {
+        CancellationToken cancellationToken = state.context.getCancellationToken();
+        // 兜底：停止请求的 pub/sub 推送丢失时，每轮开始前读取一次 Redis 停止标志
+        if (cancellationToken != null && !cancellationToken.isCancelled()
+                && stopRequestManager.isStopRequested(state.context.getRequestId())) {
+            cancellationToken.cancel("用户已停止");
+        }
+        if (cancellationToken != null && cancellationToken.isCancelled()) {
+            return CompletableFuture.completedFuture(stopped(state));
+        }
+        log.info("Function Calling 循环第 {} 轮", state.toolRound);
+
+        final boolean[] isToolRound = {false};
+        final StringBuilder roundBuffer = new StringBuilder();
+        StreamingCallback roundCallback = buildRoundCallback(state.context, roundBuffer, isToolRound);
+
+        List<ChatMessage> roundMessages = state.window != null
+            ? state.window.fit(state.messages, state.toolSpecs)
+            : state.messages;
+        return llmChatHandler.chatWithToolsStreamingAsync(state.context.getModelId(), roundMessages,
+                state.toolSpecs, roundCallback, state.context.getConversationId(), cancellationToken)
+            .thenCompose(response -> onRoundResponse(state, response, roundBuffer, isToolRound));
+    }
 
-                    for (ToolExecutionRequest toolRequest : toolRequests) {
-                        iteration.getSteps().add(Step.builder()
-                            .type("tool_call")
-                            .toolName(toolRequest.name())
-                            .toolParams(toolRequest.arguments())
-                            .build());
-
-                        ToolExecutionResultMessage resultMsg;
-
-                        if (manualMode) {
-                            // ── MANUAL 模式：先通知前端等待确认，再阻塞等待用户决策 ─────
-                            String toolExecutionId = UUID.randomUUID().toString();
-                            toolConfirmationManager.register(toolExecutionId);
-
-                            if (publisher != null) {
-                                publisher.onToolCall(
-                                    toolRequest.name(),
-                                    parseArguments(toolRequest.arguments()),
-                                    true,
-                                    toolExecutionId
-                                );
-                            }
-
-                            log.info("[MANUAL] 等待用户确认: toolName={}, toolExecutionId={}",
-                                toolRequest.name(), toolExecutionId);
-
-                            ToolConfirmationDecision decision =
-                                toolConfirmationManager.waitForDecision(toolExecutionId, MANUAL_CONFIRM_TIMEOUT_MS);
-
-                            log.info("[MANUAL] 用户决策: toolName={}, decision={}",
-                                toolRequest.name(), decision);
-
-                            if (ToolConfirmationDecision.APPROVED.equals(decision)) {
-                                long toolStart = System.nanoTime();
-                                resultMsg = toolRegistry.execute(toolRequest, context);
-                                long toolDurationMs = (System.nanoTime() - toolStart) / 1_000_000;
-
-                                messages.add(resultMsg);
-                                context.addMessage(resultMsg);
-
-                                boolean isError = resultMsg.text() != null && resultMsg.text().startsWith("[ERROR]");
-                                iteration.getSteps().add(Step.builder()
-                                    .type("tool_result")
-                                    .toolName(toolRequest.name())
-                                    .toolResult(resultMsg.text())
-                                    .toolDurationMs(toolDurationMs)
-                                    .error(isError)
-                                    .errorMessage(isError ? resultMsg.text() : null)
-                                    .build());
-
-                                if (publisher != null) {
-                                    publisher.onToolResult(
-                                        toolRequest.name(),
-                                        resultMsg.text(),
-                                        toolDurationMs,
-                                        isError ? resultMsg.text() : null
-                                    );
-                                }
-                            } else {
-                                // 拒绝或超时：构造拒绝结果，让 LLM 感知并重新规划
-                                String rejectMsg = ToolConfirmationDecision.TIMEOUT.equals(decision)
-                                    ? "用户未在规定时间内确认，工具执行已取消"
-                                    : "用户拒绝了工具执行请求";
-                                resultMsg = ToolExecutionResultMessage.builder()
-                                    .id(toolRequest.id())
-                                    .toolName(toolRequest.name())
-                                    .text(rejectMsg)
-                                    .isError(false)
-                                    .build();
-
-                                messages.add(resultMsg);
-                                context.addMessage(resultMsg);
-
-                                iteration.getSteps().add(Step.builder()
-                                    .type("tool_result")
-                                    .toolName(toolRequest.name())
-                                    .toolResult(rejectMsg)
-                                    .toolDurationMs(0L)
-                                    .error(false)
-                                    .build());
-
-                                if (publisher != null) {
-                                    publisher.onToolResult(toolRequest.name(), rejectMsg, 0L, null);
-                                }
-                            }
-
-                        } else {
-                            // ── AUTO 模式：判断是否为 PERSONAL 工具 ──────────────────────
-
-                            String personalServerId = toolRegistry.getPersonalServerId(
-                                toolRequest.name(), personalToolServerId);
-
-                            if (personalServerId != null && publisher != null) {
-                                // ── PERSONAL MCP：通过 SSE 下发给浏览器执行 ──────────────
-                                java.util.concurrent.CompletableFuture<String> future =
-                                    new java.util.concurrent.CompletableFuture<>();
-                                String callId = clientToolCallManager.newCall(future);
-
-                                publisher.onPersonalToolCall(
-                                    callId,
-                                    toolRequest.name(),
-                                    personalServerId,
-                                    parseArguments(toolRequest.arguments())
-                                );
-
-                                log.info("[PERSONAL] SSE 下发工具调用: toolName={}, callId={}",
-                                    toolRequest.name(), callId);
-
-                                long toolStart = System.nanoTime();
-                                String resultText;
-                                boolean isError = false;
-                                try {
-                                    resultText = clientToolCallManager.waitForResult(callId);
-                                } catch (Exception ex) {
-                                    resultText = "[ERROR] 客户端工具执行失败: " + ex.getMessage();
-                                    isError = true;
-                                }
-                                long toolDurationMs = (System.nanoTime() - toolStart) / 1_000_000;
-
-                                resultMsg = ToolExecutionResultMessage.builder()
-                                    .id(toolRequest.id())
-                                    .toolName(toolRequest.name())
-                                    .text(resultText)
-                                    .isError(isError)
-                                    .build();
-
-                                messages.add(resultMsg);
-                                context.addMessage(resultMsg);
-
-                                iteration.getSteps().add(Step.builder()
-                                    .type("tool_result")
-                                    .toolName(toolRequest.name())
-                                    .toolResult(resultText)
-                                    .toolDurationMs(toolDurationMs)
-                                    .error(isError)
-                                    .errorMessage(isError ? resultText : null)
-                                    .build());
-
-                                if (publisher != null) {
-                                    publisher.onToolResult(
-                                        toolRequest.name(), resultText, toolDurationMs,
-                                        isError ? resultText : null);
-                                }
-
-                            } else {
-                                // ── GLOBAL MCP / 系统工具：直接在服务端执行 ──────────────
-                                if (publisher != null) {
-                                    publisher.onToolCall(toolRequest.name(),
-                                        parseArguments(toolRequest.arguments()));
-                                }
-
-                                long toolStart = System.nanoTime();
-                                resultMsg = toolRegistry.execute(toolRequest, context);
-                                long toolDurationMs = (System.nanoTime() - toolStart) / 1_000_000;
-
-                                messages.add(resultMsg);
-                                context.addMessage(resultMsg);
-
-                                boolean isError = resultMsg.text() != null
-                                    && resultMsg.text().startsWith("[ERROR]");
-                                iteration.getSteps().add(Step.builder()
-                                    .type("tool_result")
-                                    .toolName(toolRequest.name())
-                                    .toolResult(resultMsg.text())
-                                    .toolDurationMs(toolDurationMs)
-                                    .error(isError)
-                                    .errorMessage(isError ? resultMsg.text() : null)
-                                    .build());
-
-                                if (publisher != null) {
-                                    publisher.onToolResult(
-                                        toolRequest.name(),
-                                        resultMsg.text(),
-                                        toolDurationMs,
-                                        isError ? resultMsg.text() : null
-                                    );
-                                }
-                            }
-                        }
-                        log.info("迭代执行结果：{}", resultMsg);
-                    }
+    private CompletableFuture<AgentExecutionResult> onRoundResponse(RunState state,
+                                                                     ChatResponse response,
+                                                                     StringBuilder roundBuffer,
+                                                                     boolean[] isToolRound) {
+        AgentContext context = state.context;
+        if (response == null) {
+            log.error("LLM 返回空响应");
+            long durationMs = elapsedMs(state.startNs);
+            return CompletableFuture.completedFuture(AgentExecutionResult.failure("LLM 返回空响应", "NULL_RESPONSE",
+                context.getMessages(), state.toolRound, durationMs, AgentState.FAILED));
+        }
 
-                    iteration.setDurationMs(elapsedMs(iterStartNs));
-                    processRecord.getIterations().add(iteration);
-
-                    // 渐进式加载：检测是否有新的工具加载请求
-                    if (progressiveMode && context.getActiveMcpToolNames() != null
-                        && !context.getActiveMcpToolNames().isEmpty()) {
-                        List<ToolSpecification> newToolSpecs =
-                            toolRegistry.resolveActiveToolSpecifications(context.getActiveMcpToolNames());
-                        toolSpecs.addAll(newToolSpecs);
-                        log.info("动态加载 {} 个 MCP 工具，当前 toolSpecs 共 {} 个",
-                            newToolSpecs.size(), toolSpecs.size());
-                        context.getActiveMcpToolNames().clear();
-                    }
+        AiMessage aiMessage = response.aiMessage();
+        state.messages.add(aiMessage);
+        context.addMessage(aiMessage);
+        FinishReason finishReason = response.finishReason();
+        log.info("LLM 返回 finishReason={}", finishReason);
+
+        if (!FinishReason.TOOL_EXECUTION.equals(finishReason) || !aiMessage.hasToolExecutionRequests()) {
+            log.info("Function Calling 循环结束，共执行 {} 轮工具调用", state.toolRound);
+            long durationMs = elapsedMs(state.startNs);
+            state.processRecord.setTotalDurationMs(durationMs);
+            context.setExecutionProcess(state.processRecord);
+            return CompletableFuture.completedFuture(
+                AgentExecutionResult.success(context.getMessages(), state.toolRound, durationMs, AgentState.COMPLETED));
+        }
+
+        isToolRound[0] = true;
+        String thinkingContent = roundBuffer.toString();
+        flushThinkingBuffer(state.publisher, roundBuffer);
+
+        state.toolRound++;
+        List<ToolExecutionRequest> toolRequests = aiMessage.toolExecutionRequests();
 
-                    continue;
+        long iterStartNs = System.nanoTime();
+        Iteration iteration = new Iteration();
+        iteration.setIterationNumber(state.toolRound);
+        iteration.setSteps(new ArrayList<>());
+
+        if (!thinkingContent.isBlank()) {
+            iteration.getSteps().add(Step.builder()
+                .type("thinking")
+                .content(thinkingContent)
+                .build());
+        }
+
+        // 执行本轮全部工具调用（可并行），结果按原请求顺序回填
+        return executeToolRequestsAsync(toolRequests, state)
+            .thenCompose(outcomes -> {
+                for (int i = 0; i < toolRequests.size(); i++) {
+                    ToolExecutionRequest toolRequest = toolRequests.get(i);
+                    ToolCallOutcome outcome = outcomes.get(i);
+
+                    iteration.getSteps().add(Step.builder()
+                        .type("tool_call")
+                        .toolName(toolRequest.name())
+                        .toolParams(toolRequest.arguments())
+                        .build());
+
+                    state.messages.add(outcome.resultMsg);
+                    context.addMessage(outcome.resultMsg);
+
+                    iteration.getSteps().add(Step.builder()
+                        .type("tool_result")
+                        .toolName(toolRequest.name())
+                        .toolResult(outcome.resultMsg.text())
+                        .toolDurationMs(outcome.durationMs)
+                        .error(outcome.error)
+                        .errorMessage(outcome.error ? outcome.resultMsg.text() : null)
+                        .build());
+                    log.info("迭代执行结果：{}", outcome.resultMsg);
                 }
 
-                log.info("Function Calling 循环结束，共执行 {} 轮工具调用", toolRound);
-                break;
-            }
+                iteration.setDurationMs(elapsedMs(iterStartNs));
+                state.processRecord.getIterations().add(iteration);
+
+                // 渐进式加载：检测是否有新的工具加载请求
+                if (state.progressiveMode && context.getActiveMcpToolNames() != null
+                    && !context.getActiveMcpToolNames().isEmpty()) {
+                    List<ToolSpecification> newToolSpecs =
+                        toolRegistry.resolveActiveToolSpecifications(context.getActiveMcpToolNames());
+                    state.toolSpecs.addAll(newToolSpecs);
+                    log.info("动态加载 {} 个 MCP 工具，当前 toolSpecs 共 {} 个",
+                        newToolSpecs.size(), state.toolSpecs.size());
+                    context.getActiveMcpToolNames().clear();
+                }
 
-            if (toolRound > maxToolRounds) {
-                log.warn("工具调用轮次超限（max={}），强制终止推理循环", maxToolRounds);
-                long durationMs = elapsedMs(startNs);
-                return AgentExecutionResult.failure("工具调用轮次超限", "MAX_ITERATIONS_EXCEEDED",
-                    context.getMessages(), toolRound, durationMs, AgentState.FAILED);
-            }
+                if (state.toolRound > state.maxToolRounds) {
+                    log.warn("工具调用轮次超限（max={}），强制终止推理循环", state.maxToolRounds);
+                    long durationMs = elapsedMs(state.startNs);
+                    return CompletableFuture.completedFuture(AgentExecutionResult.failure("工具调用轮次超限",
+                        "MAX_ITERATIONS_EXCEEDED", context.getMessages(), state.toolRound, durationMs, AgentState.FAILED));
+                }
+                return runRound(state);
+            });
+    }
 
-            long durationMs = elapsedMs(startNs);
-            processRecord.setTotalDurationMs(durationMs);
-            context.setExecutionProcess(processRecord);
+    /**
+     * 用户停止：结束推理循环，已产生的消息照常保存（与 ObservationEngine 一致，停止视为正常结束）
+     */
+    private AgentExecutionResult stopped(RunState state) {
+        log.info("运行已取消，结束推理循环: requestId={}, toolRound={}",
+            state.context.getRequestId(), state.toolRound);
+        long durationMs = elapsedMs(state.startNs);
+        state.processRecord.setTotalDurationMs(durationMs);
+        state.context.setExecutionProcess(state.processRecord);
+        return AgentExecutionResult.success(state.context.getMessages(), state.toolRound, durationMs,
+            AgentState.COMPLETED);
+    }
 
-            return AgentExecutionResult.success(context.getMessages(), toolRound, durationMs, AgentState.COMPLETED);
+    private AgentExecutionResult handleFailure(AgentContext context, AgentEventPublisher publisher,
+                                               Throwable e, int toolRound, long startNs) {
+        log.error("FunctionCallingEngine 执行异常", e);
+        if (publisher != null) {
+            publisher.onError("执行失败: " + e.getMessage());
+        }
+        long durationMs = elapsedMs(startNs);
+        return AgentExecutionResult.failure(e.getMessage(), "EXCEPTION",
+            context.getMessages(), toolRound, durationMs, AgentState.FAILED);
+    }
+
+    /**
+     * 执行一轮中的全部工具调用，返回与 {@code toolRequests} 顺序一致的结果列表
+     *
+     * <p>AUTO 模式且本轮工具数大于 1 时并行分发：工具按顺序轮流分配到至多
+     * {@code context.getMaxParallelToolCalls()} 条执行链，链内串行、链间并行；
+     * 修改上下文状态的系统工具（{@link com.aiagent.domain.tool.SystemTool#isParallelSafe()} 为 false）
+     * 固定放在第一条链上按原顺序执行。MANUAL 模式需逐个确认，始终只有一条链。
+     */
+    private CompletableFuture<List<ToolCallOutcome>> executeToolRequestsAsync(List<ToolExecutionRequest> toolRequests,
+                                                                              RunState state) {
+        int maxParallel = state.context.getMaxParallelToolCalls();
+        boolean parallel = !state.manualMode
+            && toolRequests.size() > 1
+            && maxParallel > 1
+            && agentConfig.getTools().getParallelExecution().isEnabled();
+        int laneCount = parallel ? Math.min(maxParallel, toolRequests.size()) : 1;
+        if (parallel) {
+            log.info("并行执行本轮 {} 个工具调用，最大并发 {}", toolRequests.size(), laneCount);
+        }
 
+        List<List<Integer>> lanes = new ArrayList<>(laneCount);
+        for (int i = 0; i < laneCount; i++) {
+            lanes.add(new ArrayList<>());
+        }
+        int nextLane = 0;
+        for (int i = 0; i < toolRequests.size(); i++) {
+            if (!parallel || !toolRegistry.isParallelSafe(toolRequests.get(i).name(), state.personalToolServerId)) {
+                lanes.get(0).add(i);
+            } else {
+                lanes.get(nextLane).add(i);
+                nextLane = (nextLane + 1) % laneCount;
+            }
+        }
+
+        ToolCallOutcome[] outcomes = new ToolCallOutcome[toolRequests.size()];
+        List<CompletableFuture<Void>> chains = new ArrayList<>(laneCount);
+        for (List<Integer> lane : lanes) {
+            CompletableFuture<Void> chain = CompletableFuture.completedFuture(null);
+            for (int index : lane) {
+                ToolExecutionRequest toolRequest = toolRequests.get(index);
+                chain = chain.thenCompose(v -> dispatchToolCallAsync(toolRequest, state)
+                    .thenAccept(outcome -> outcomes[index] = outcome));
+            }
+            chains.add(chain);
+        }
+        return CompletableFuture.allOf(chains.toArray(new CompletableFuture[0]))
+            .thenApply(v -> Arrays.asList(outcomes));
+    }
+
+    /**
+     * 执行单个工具调用并发送 tool_call / tool_result 事件，异常统一转为错误结果（返回的 Future 不会异常完成）
+     *
+     * <p>运行被取消时立即以"已取消"结果结束（不再推送事件），服务端工具线程被中断，
+     * 等待中的确认 / 客户端回传不再等待；结果消息保证 AI 的工具调用请求在历史中都有对应的结果。
+     */
+    private CompletableFuture<ToolCallOutcome> dispatchToolCallAsync(ToolExecutionRequest toolRequest, RunState state) {
+        AgentContext context = state.context;
+        AgentEventPublisher publisher = state.publisher;
+        CancellationToken cancellationToken = context.getCancellationToken();
+        CompletableFuture<ToolCallOutcome> future;
+        try {
+            if (state.manualMode) {
+                future = executeManualToolCallAsync(toolRequest, context, publisher);
+            } else {
+                String personalServerId = toolRegistry.getPersonalServerId(toolRequest.name(), state.personalToolServerId);
+                if (personalServerId != null && publisher != null) {
+                    future = executePersonalToolCallAsync(toolRequest, personalServerId, publisher);
+                } else {
+                    future = supplyInterruptibly(
+                        () -> executeGlobalToolCall(toolRequest, context, publisher), cancellationToken);
+                }
+            }
         } catch (Exception e) {
-            log.error("FunctionCallingEngine 执行异常", e);
+            future = CompletableFuture.failedFuture(e);
+        }
+        if (cancellationToken != null) {
+            future = cancellationToken.bind(future);
+        }
+        return future.handle((outcome, e) -> {
+            if (e == null) {
+                return outcome;
+            }
+            Throwable cause = unwrap(e);
+            if (CancellationToken.isCancellation(cause)) {
+                log.info("工具调用已取消: toolName={}", toolRequest.name());
+                return new ToolCallOutcome(ToolExecutionResultMessage.builder()
+                    .id(toolRequest.id())
+                    .toolName(toolRequest.name())
+                    .text("[ERROR] 工具调用已取消（用户停止）")
+                    .isError(true)
+                    .build(), 0L, true);
+            }
+            log.error("工具调用异常: toolName={}", toolRequest.name(), cause);
+            String errorText = "[ERROR] 工具执行异常: " + cause.getMessage();
             if (publisher != null) {
-                publisher.onError("执行失败: " + e.getMessage());
+                publisher.onToolResult(toolRequest.name(), errorText, 0L, errorText);
             }
-            long durationMs = elapsedMs(startNs);
-            return AgentExecutionResult.failure(e.getMessage(), "EXCEPTION",
-                context.getMessages(), toolRound, durationMs, AgentState.FAILED);
+            return new ToolCallOutcome(ToolExecutionResultMessage.builder()
+                .id(toolRequest.id())
+                .toolName(toolRequest.name())
+                .text(errorText)
+                .isError(true)
+                .build(), 0L, true);
+        });
+    }
+
+    /**
+     * MANUAL 模式：先通知前端等待确认，用户决策到达后再执行
+     */
+    private CompletableFuture<ToolCallOutcome> executeManualToolCallAsync(ToolExecutionRequest toolRequest,
+                                                                          AgentContext context,
+                                                                          AgentEventPublisher publisher) {
+        String toolExecutionId = UUID.randomUUID().toString();
+        toolConfirmationManager.register(toolExecutionId);
+
+        if (publisher != null) {
+            publisher.onToolCall(
+                toolRequest.name(),
+                parseArguments(toolRequest.arguments()),
+                true,
+                toolExecutionId
+            );
         }
+
+        log.info("[MANUAL] 等待用户确认: toolName={}, toolExecutionId={}",
+            toolRequest.name(), toolExecutionId);
+
+        return toolConfirmationManager.awaitDecision(toolExecutionId, MANUAL_CONFIRM_TIMEOUT_MS)
+            .thenCompose(decision -> {
+                log.info("[MANUAL] 用户决策: toolName={}, decision={}",
+                    toolRequest.name(), decision);
+
+                if (ToolConfirmationDecision.APPROVED.equals(decision)) {
+                    return supplyInterruptibly(
+                        () -> executeOnServer(toolRequest, context, publisher), context.getCancellationToken());
+                }
+
+                // 拒绝或超时：构造拒绝结果，让 LLM 感知并重新规划
+                String rejectMsg = ToolConfirmationDecision.TIMEOUT.equals(decision)
+                    ? "用户未在规定时间内确认，工具执行已取消"
+                    : "用户拒绝了工具执行请求";
+                ToolExecutionResultMessage resultMsg = ToolExecutionResultMessage.builder()
+                    .id(toolRequest.id())
+                    .toolName(toolRequest.name())
+                    .text(rejectMsg)
+                    .isError(false)
+                    .build();
+
+                if (publisher != null) {
+                    publisher.onToolResult(toolRequest.name(), rejectMsg, 0L, null);
+                }
+                return CompletableFuture.completedFuture(new ToolCallOutcome(resultMsg, 0L, false));
+            });
     }
 
-    // ── 私有辅助方法 ──────────────────────────────────────────────────────────
+    /**
+     * PERSONAL MCP：通过 SSE 下发给浏览器执行，客户端回传结果后继续
+     */
+    private CompletableFuture<ToolCallOutcome> executePersonalToolCallAsync(ToolExecutionRequest toolRequest,
+                                                                            String personalServerId,
+                                                                            AgentEventPublisher publisher) {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        String callId = clientToolCallManager.newCall(future);
+
+        publisher.onPersonalToolCall(
+            callId,
+            toolRequest.name(),
+            personalServerId,
+            parseArguments(toolRequest.arguments())
+        );
+
+        log.info("[PERSONAL] SSE 下发工具调用: toolName={}, callId={}",
+            toolRequest.name(), callId);
+
+        long toolStart = System.nanoTime();
+        return clientToolCallManager.awaitResult(callId).handle((result, ex) -> {
+            String resultText = result;
+            boolean isError = false;
+            if (ex != null) {
+                resultText = "[ERROR] 客户端工具执行失败: " + unwrap(ex).getMessage();
+                isError = true;
+            }
+            long toolDurationMs = (System.nanoTime() - toolStart) / 1_000_000;
+
+            ToolExecutionResultMessage resultMsg = ToolExecutionResultMessage.builder()
+                .id(toolRequest.id())
+                .toolName(toolRequest.name())
+                .text(resultText)
+                .isError(isError)
+                .build();
+
+            publisher.onToolResult(
+                toolRequest.name(), resultText, toolDurationMs,
+                isError ? resultText : null);
+            return new ToolCallOutcome(resultMsg, toolDurationMs, isError);
+        });
+    }
 
-    private List<ChatMessage> buildMessages(AgentDefinition agentDef, AgentContext context, boolean progressiveMode) {
+    /**
+     * 在工具线程池上执行；令牌取消时中断执行线程（阻塞中的 MCP 调用随之中止）
+     */
+    private <T> CompletableFuture<T> supplyInterruptibly(Supplier<T> task, CancellationToken cancellationToken) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Future<?> running = toolExecutor.submit(() -> {
+            try {
+                future.complete(task.get());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        });
+        if (cancellationToken != null) {
+            Runnable unregister = cancellationToken.onCancel(() -> running.cancel(true));
+            future.whenComplete((v, e) -> unregister.run());
+        }
+        return future;
+    }
+
+    /**
+     * GLOBAL MCP / 系统工具：直接在服务端执行
+     */
+    private ToolCallOutcome executeGlobalToolCall(ToolExecutionRequest toolRequest,
+                                                  AgentContext context,
+                                                  AgentEventPublisher publisher) {
+        if (publisher != null) {
+            publisher.onToolCall(toolRequest.name(),
+                parseArguments(toolRequest.arguments()));
+        }
+        return executeOnServer(toolRequest, context, publisher);
+    }
+
+    private ToolCallOutcome executeOnServer(ToolExecutionRequest toolRequest,
+                                            AgentContext context,
+                                            AgentEventPublisher publisher) {
+        long toolStart = System.nanoTime();
+        ToolExecutionResultMessage resultMsg = toolRegistry.execute(toolRequest, context);
+        long toolDurationMs = (System.nanoTime() - toolStart) / 1_000_000;
+
+        boolean isError = resultMsg.text() != null && resultMsg.text().startsWith("[ERROR]");
+        if (publisher != null) {
+            publisher.onToolResult(
+                toolRequest.name(),
+                resultMsg.text(),
+                toolDurationMs,
+                isError ? resultMsg.text() : null
+            );
+        }
+        return new ToolCallOutcome(resultMsg, toolDurationMs, isError);
+    }
+
+    /**
+     * 单个工具调用的执行结果（供按原顺序回填 messages 与 Iteration steps）
+     */
+    private static final class ToolCallOutcome {
+        private final ToolExecutionResultMessage resultMsg;
+        private final long durationMs;
+        private final boolean error;
+
+        private ToolCallOutcome(ToolExecutionResultMessage resultMsg, long durationMs, boolean error) {
+            this.resultMsg = resultMsg;
+            this.durationMs = durationMs;
+            this.error = error;
+        }
+    }
+
+    private List<ChatMessage> buildMessages(AgentDefinition agentDef, AgentContext context, boolean progressiveMode,
+                                            ContextWindow window) {
         List<ChatMessage> messages = new ArrayList<>();
 
         if (agentDef != null && agentDef.getSystemPrompt() != null && !agentDef.getSystemPrompt().isEmpty()) {
@@ -422,10 +699,14 @@ public class FunctionCallingEngine implements AgentEngine {
             messages.add(SystemMessage.from(systemPrompt));
         }
 
-        List<ChatMessage> history = context.getMessages();
-        if (history != null) {
-            messages.addAll(history);
+        // 较早历史已压缩为摘要时，以紧随系统提示的 System 消息注入（窗口裁剪时始终保留）
+        String summary = context.getConversationSummary();
+        if (summary != null && !summary.isBlank()) {
+            messages.add(SystemMessage.from(ConversationCompactionService.SUMMARY_PREFIX + summary));
         }
+
+        // 历史消息取自上下文的 ChatMessage 视图，token 估算值缓存在 MessageBO 上，直接登记到窗口
+        contextWindowManager.appendHistory(window, context, messages);
         return messages;
     }
 
@@ -631,6 +912,20 @@ public class FunctionCallingEngine implements AgentEngine {
                     original.onStart();
                 }
             }
+
+            @Override
+            public void onRateLimited(String modelId, int queued) {
+                if (publisher != null) {
+                    publisher.onRateLimited(modelId, queued);
+                }
+            }
+
+            @Override
+            public void onRateLimitAcquired(String modelId, long waitMs) {
+                if (publisher != null) {
+                    publisher.onRateLimitAcquired(modelId, waitMs);
+                }
+            }
         };
     }
 
@@ -641,9 +936,7 @@ public class FunctionCallingEngine implements AgentEngine {
         }
         String content = buffer.toString();
         buffer.setLength(0);
-        for (int i = 0; i < content.length(); i++) {
-            publisher.onThinkingToken(String.valueOf(content.charAt(i)));
-        }
+        publisher.onThinkingToken(content);
     }
 
     private Object parseArguments(String arguments) {
@@ -660,4 +953,11 @@ public class FunctionCallingEngine implements AgentEngine {
     private long elapsedMs(long startNs) {
         return (System.nanoTime() - startNs) / 1_000_000;
     }
+
+    private static Throwable unwrap(Throwable e) {
+        while (e instanceof CompletionException && e.getCause() != null) {
+            e = e.getCause();
+        }
+        return e;
+    }
 }
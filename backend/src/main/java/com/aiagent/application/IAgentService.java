@@ -21,6 +21,11 @@ public interface IAgentService {
      */
     boolean stop(String requestId);
     
+    /**
+     * 订阅Agent任务事件流（断线重连 / 多标签页），从 lastEventId 之后开始回放
+     */
+    SseEmitter subscribe(String requestId, Long lastEventId);
+    
     /**
      * 清除会话记忆
      */
@@ -48,9 +48,6 @@ public class PromptReActEngine implements AgentEngine {
     @Autowired
     private ObservationEngine observationEngine;
     
-    @Autowired
-    private AgentStateMachine stateMachine;
-    
     /**
      * 最大迭代次数
      */
@@ -76,10 +73,8 @@ public class PromptReActEngine implements AgentEngine {
         log.info("开始ReAct循环执行，目标: {}", goal);
         long totalStartNs = System.nanoTime();
         
-        // 初始化状态机
-        stateMachine.initialize(context, newState -> {
-            log.debug("状态变更: {}", newState);
-        });
+        // 本次运行的状态机（由调用方创建并订阅，独立调用时在此创建）
+        AgentStateMachine stateMachine = AgentStateMachine.of(context);
         
         // 转换到思考状态
         stateMachine.transition(AgentState.THINKING);
@@ -0,0 +1,135 @@
+package com.aiagent.application;
+
+import com.aiagent.api.dto.AgentEventData;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 单次 Agent 运行（requestId）的事件日志
+ *
+ * <p>按发送顺序为每个事件分配单调递增的 ID（即 SSE {@code id} 字段），
+ * 最近 {@code capacity} 条保存在内存环形缓冲区中，供断线重连按 {@code Last-Event-ID} 回放。
+ * 同时维护当前订阅此运行的所有连接（发起请求的连接 + 通过订阅接口接入的其他标签页），
+ * 追加事件时统一广播，回放与接入实时流在同一把锁内完成，不会丢失或重复事件。
+ */
+final class RunEventLog {
+
+    /**
+     * 已分配 ID 的事件
+     */
+    static final class Entry {
+        final long id;
+        final AgentEventData data;
+
+        Entry(long id, AgentEventData data) {
+            this.id = id;
+            this.data = data;
+        }
+    }
+
+    private final String requestId;
+    private final int capacity;
+    private final Deque<Entry> ring = new ArrayDeque<>();
+
+    /** 订阅连接（关闭时无需持有本对象锁即可移除） */
+    private final List<SseEmitterChannel> subscribers = new CopyOnWriteArrayList<>();
+
+    private long lastId;
+    private boolean finished;
+
+    RunEventLog(String requestId, int capacity) {
+        this.requestId = requestId;
+        this.capacity = Math.max(1, capacity);
+    }
+
+    String getRequestId() {
+        return requestId;
+    }
+
+    List<SseEmitterChannel> getSubscribers() {
+        return subscribers;
+    }
+
+    synchronized boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * 追加事件并广播给全部订阅连接
+     */
+    synchronized Entry append(AgentEventData data) {
+        Entry entry = new Entry(++lastId, data);
+        ring.addLast(entry);
+        if (ring.size() > capacity) {
+            ring.pollFirst();
+        }
+        for (SseEmitterChannel subscriber : subscribers) {
+            subscriber.offer(entry.id, data);
+        }
+        return entry;
+    }
+
+    /**
+     * 内存中最早一条事件的 ID（无事件时返回下一个将分配的 ID）
+     */
+    synchronized long oldestId() {
+        Entry first = ring.peekFirst();
+        return first != null ? first.id : lastId + 1;
+    }
+
+    /**
+     * 回放 {@code lastEventId} 之后的事件并接入实时流；运行已结束时回放后直接关闭连接
+     *
+     * @param channel     新订阅连接
+     * @param lastEventId 客户端最后收到的事件 ID（0 表示从头回放）
+     * @param spilled     内存缓冲区之前、由外部存储补齐的事件（可为空）
+     */
+    synchronized void attach(SseEmitterChannel channel, long lastEventId, List<Entry> spilled) {
+        List<Entry> replay = new ArrayList<>();
+        long cursor = lastEventId;
+        if (spilled != null) {
+            for (Entry entry : spilled) {
+                if (entry.id > cursor && entry.id < oldestId()) {
+                    replay.add(entry);
+                    cursor = entry.id;
+                }
+            }
+        }
+        for (Entry entry : ring) {
+            if (entry.id > cursor) {
+                replay.add(entry);
+            }
+        }
+        channel.replay(replay);
+
+        if (finished) {
+            channel.close();
+        } else {
+            subscribers.add(channel);
+        }
+    }
+
+    void addSubscriber(SseEmitterChannel channel) {
+        subscribers.add(channel);
+    }
+
+    void removeSubscriber(SseEmitterChannel channel) {
+        subscribers.remove(channel);
+    }
+
+    /**
+     * 标记运行结束，关闭全部订阅连接（已入队事件发送完毕后关闭）
+     */
+    void finish() {
+        synchronized (this) {
+            finished = true;
+        }
+        for (SseEmitterChannel subscriber : subscribers) {
+            subscriber.close();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.aiagent.application;
+
+import com.aiagent.api.dto.AgentEventData;
+import com.aiagent.infrastructure.config.AgentConfig;
+import com.alibaba.fastjson2.JSON;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RFuture;
+import org.redisson.api.RStream;
+import org.redisson.api.RedissonClient;
+import org.redisson.api.StreamMessageId;
+import org.redisson.api.stream.StreamAddArgs;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Agent 运行事件日志存储
+ *
+ * <p>内存中按 requestId 保存 {@link RunEventLog}，运行结束后保留
+ * {@code eventLogRetentionSeconds} 秒供断线重连回放，之后自动清理。
+ *
+ * <p>开启 {@code eventLogSpillEnabled} 时，每个事件同时异步写入 Redis Stream
+ * （{@code aiagent:run:events:{requestId}}），用于：
+ * <ul>
+ *   <li>{@code Last-Event-ID} 早于内存环形缓冲区时补齐缺口</li>
+ *   <li>任务在其他实例执行、或本机日志已过期时回放</li>
+ * </ul>
+ */
+@Slf4j
+@Component
+public class RunEventLogStore {
+
+    private static final String SPILL_KEY_PREFIX = "aiagent:run:events:";
+    private static final String FIELD_ID = "id";
+    private static final String FIELD_DATA = "data";
+
+    @Autowired
+    private AgentConfig agentConfig;
+
+    @Autowired
+    private RedissonClient redissonClient;
+
+    private final Map<String, RunEventLog> runs = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "run-event-log-reaper");
+        t.setDaemon(true);
+        return t;
+    });
+
+    @PreDestroy
+    public void shutdown() {
+        reaper.shutdownNow();
+    }
+
+    /**
+     * 为新运行创建事件日志
+     */
+    RunEventLog open(String requestId) {
+        return runs.computeIfAbsent(requestId,
+            id -> new RunEventLog(id, agentConfig.getStreaming().getEventLogCapacity()));
+    }
+
+    RunEventLog get(String requestId) {
+        return runs.get(requestId);
+    }
+
+    Collection<RunEventLog> all() {
+        return runs.values();
+    }
+
+    /**
+     * 追加事件（广播给订阅连接，并按配置异步写入 Redis Stream）
+     */
+    long append(RunEventLog run, AgentEventData data) {
+        RunEventLog.Entry entry = run.append(data);
+        if (agentConfig.getStreaming().isEventLogSpillEnabled()) {
+            spillAsync(run.getRequestId(), entry);
+        }
+        return entry.id;
+    }
+
+    /**
+     * 运行结束：关闭订阅连接，保留期过后清理内存日志
+     */
+    void finish(String requestId) {
+        RunEventLog run = runs.get(requestId);
+        if (run == null) {
+            return;
+        }
+        run.finish();
+        long retentionSeconds = Math.max(0, agentConfig.getStreaming().getEventLogRetentionSeconds());
+        reaper.schedule(() -> runs.remove(requestId, run), retentionSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 接入已有运行：先回放 lastEventId 之后的事件，再接收实时事件
+     */
+    void attach(RunEventLog run, SseEmitterChannel channel, long lastEventId) {
+        List<RunEventLog.Entry> spilled = null;
+        if (agentConfig.getStreaming().isEventLogSpillEnabled() && lastEventId + 1 < run.oldestId()) {
+            spilled = readSpilled(run.getRequestId(), lastEventId);
+        }
+        run.attach(channel, lastEventId, spilled);
+    }
+
+    /**
+     * 从 Redis Stream 读取 lastEventId 之后的事件（未开启溢出存储时返回空列表）
+     */
+    List<RunEventLog.Entry> readSpilled(String requestId, long lastEventId) {
+        List<RunEventLog.Entry> result = new ArrayList<>();
+        if (!agentConfig.getStreaming().isEventLogSpillEnabled()) {
+            return result;
+        }
+        try {
+            RStream<String, String> stream = redissonClient.getStream(SPILL_KEY_PREFIX + requestId, StringCodec.INSTANCE);
+            Map<StreamMessageId, Map<String, String>> messages = stream.range(StreamMessageId.MIN, StreamMessageId.MAX);
+            for (Map<String, String> fields : messages.values()) {
+                long id = Long.parseLong(fields.get(FIELD_ID));
+                if (id > lastEventId) {
+                    result.add(new RunEventLog.Entry(id, JSON.parseObject(fields.get(FIELD_DATA), AgentEventData.class)));
+                }
+            }
+            // 异步写入不保证 Stream 内顺序，按事件 ID 排序
+            result.sort(Comparator.comparingLong(e -> e.id));
+        } catch (Exception e) {
+            log.warn("读取 Redis 事件日志失败: requestId={}, error={}", requestId, e.getMessage());
+        }
+        return result;
+    }
+
+    private void spillAsync(String requestId, RunEventLog.Entry entry) {
+        try {
+            AgentConfig.StreamingConfig cfg = agentConfig.getStreaming();
+            RStream<String, String> stream = redissonClient.getStream(SPILL_KEY_PREFIX + requestId, StringCodec.INSTANCE);
+            Map<String, String> fields = new HashMap<>();
+            fields.put(FIELD_ID, String.valueOf(entry.id));
+            fields.put(FIELD_DATA, JSON.toJSONString(entry.data));
+            RFuture<StreamMessageId> future = stream.addAsync(
+                StreamAddArgs.entries(fields).trimNonStrict().maxLen(cfg.getEventLogSpillMaxLen()).noLimit());
+            if (entry.id == 1) {
+                // 首条写入创建 Stream 后再设置过期时间
+                future.whenComplete((id, ex) -> stream.expireAsync(Duration.ofSeconds(cfg.getEventLogSpillTtlSeconds())));
+            }
+        } catch (Exception e) {
+            log.debug("写入 Redis 事件日志失败: requestId={}", requestId, e);
+        }
+    }
+}
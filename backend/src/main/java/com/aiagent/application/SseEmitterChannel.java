@@ -0,0 +1,351 @@
+package com.aiagent.application;
+
+import com.aiagent.api.dto.AgentEventData;
+import com.aiagent.common.constant.AgentConstants;
+import com.alibaba.fastjson2.JSON;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+
+/**
+ * 单个 SseEmitter 的出站队列
+ *
+ * <p>Agent 推理线程 / LLM 回调线程只负责 {@link #offer} 入队，序列化与 {@code emitter.send}
+ * 由共享的 writer 线程池异步完成，慢客户端不再阻塞推理循环。
+ *
+ * <p>背压策略（按队列深度递进）：
+ * <ol>
+ *   <li>队尾为同类 token 事件（agent:message / agent:thinking_delta）时直接拼接 content，无损合并</li>
+ *   <li>超过 {@code softLimit} 后丢弃低优先级事件（思考增量、状态提示）</li>
+ *   <li>超过 {@code hardLimit} 后断开客户端，Agent 继续无头执行，后续事件全部丢弃</li>
+ * </ol>
+ *
+ * <p>servlet 异步模式下 {@code emitter.send} 遇到慢 socket 会阻塞 writer 线程，队列深度无法反映这种情况；
+ * 由 {@link AgentStreamingService} 定期调用 {@link #evictIfStalled} 驱逐单次发送超时的连接并中断其 writer 线程。
+ */
+@Slf4j
+final class SseEmitterChannel {
+
+    /** 单次 drain 最多发送的事件数，超过后重新排队，避免单个连接长期占用 writer 线程 */
+    private static final int MAX_EVENTS_PER_DRAIN = 64;
+
+    private final String requestId;
+    private final SseEmitter emitter;
+    private final Executor writer;
+    private final int softLimit;
+    private final int hardLimit;
+    private final Listener listener;
+
+    private final Deque<QueuedEvent> queue = new ArrayDeque<>();
+
+    /** 是否已有 drain 任务在排队或执行 */
+    private boolean draining;
+
+    /** 是否已请求关闭（队列发送完毕后 complete emitter） */
+    private boolean closeRequested;
+
+    /** 是否已关闭（正常关闭 / 被驱逐 / 连接异常），关闭后事件全部丢弃 */
+    private volatile boolean closed;
+
+    /** 当前 {@code emitter.send} 的开始时间（纳秒），0 表示没有进行中的发送 */
+    private volatile long sendStartedNanos;
+
+    /** 正在执行 send 的 writer 线程 */
+    private volatile Thread sendingThread;
+
+    /** 是否因发送超时被驱逐（卡住的 send 返回后由 writer 线程 complete emitter） */
+    private volatile boolean stalled;
+
+    /**
+     * 带事件 ID 的队列元素（ID 写入 SSE {@code id} 字段，供 Last-Event-ID 重连；0 表示不写）
+     */
+    private static final class QueuedEvent {
+        private final long id;
+        private final AgentEventData data;
+
+        private QueuedEvent(long id, AgentEventData data) {
+            this.id = id;
+            this.data = data;
+        }
+    }
+
+    /**
+     * 队列事件回调（由 AgentStreamingService 提供，用于指标统计与连接清理）
+     */
+    interface Listener {
+        void onMerged();
+
+        void onDropped(String event);
+
+        void onEvicted(SseEmitterChannel channel);
+
+        void onClosed(SseEmitterChannel channel);
+    }
+
+    SseEmitterChannel(String requestId, SseEmitter emitter, Executor writer,
+                      int softLimit, int hardLimit, Listener listener) {
+        this.requestId = requestId;
+        this.emitter = emitter;
+        this.writer = writer;
+        this.softLimit = softLimit;
+        this.hardLimit = Math.max(softLimit, hardLimit);
+        this.listener = listener;
+    }
+
+    String getRequestId() {
+        return requestId;
+    }
+
+    SseEmitter getEmitter() {
+        return emitter;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    synchronized int depth() {
+        return queue.size();
+    }
+
+    /**
+     * 事件入队，不阻塞调用线程
+     *
+     * @param eventId   事件 ID（来自 {@link RunEventLog}）
+     * @param eventData 事件数据
+     */
+    void offer(long eventId, AgentEventData eventData) {
+        boolean evict = false;
+        synchronized (this) {
+            if (closed || closeRequested) {
+                listener.onDropped(eventData.getEvent());
+                return;
+            }
+            if (tryMerge(eventId, eventData)) {
+                listener.onMerged();
+                return;
+            }
+            if (queue.size() >= softLimit && isLowPriority(eventData.getEvent())) {
+                listener.onDropped(eventData.getEvent());
+                return;
+            }
+            if (queue.size() >= hardLimit) {
+                closed = true;
+                queue.clear();
+                evict = true;
+            } else {
+                queue.addLast(new QueuedEvent(eventId, eventData));
+                scheduleDrain();
+            }
+        }
+        if (evict) {
+            log.warn("SSE 客户端消费过慢，出站队列超过上限 {}，断开连接并继续无头执行: requestId={}",
+                hardLimit, requestId);
+            listener.onDropped(eventData.getEvent());
+            listener.onEvicted(this);
+            completeQuietly();
+        }
+    }
+
+    /**
+     * 断线重连回放：按顺序入队历史事件，不受背压上限限制（回放量受事件日志容量约束）
+     */
+    synchronized void replay(List<RunEventLog.Entry> entries) {
+        if (closed || entries.isEmpty()) {
+            return;
+        }
+        for (RunEventLog.Entry entry : entries) {
+            queue.addLast(new QueuedEvent(entry.id, entry.data));
+        }
+        scheduleDrain();
+    }
+
+    /**
+     * 请求关闭：已入队事件发送完毕后 complete emitter
+     */
+    void close() {
+        boolean alreadyClosed;
+        synchronized (this) {
+            alreadyClosed = closed;
+            if (!alreadyClosed) {
+                closeRequested = true;
+                scheduleDrain();
+            }
+        }
+        if (alreadyClosed) {
+            listener.onClosed(this);
+        }
+    }
+
+    /**
+     * 连接异常时立即关闭，丢弃未发送事件
+     */
+    void abort() {
+        synchronized (this) {
+            closed = true;
+            queue.clear();
+        }
+        listener.onClosed(this);
+    }
+
+    /**
+     * 单次发送超过 timeoutNanos 时驱逐连接：丢弃未发送事件、中断 writer 线程，Agent 继续无头执行
+     *
+     * @return 本次调用是否驱逐了连接
+     */
+    boolean evictIfStalled(long nowNanos, long timeoutNanos) {
+        long started = sendStartedNanos;
+        if (started == 0 || nowNanos - started < timeoutNanos) {
+            return false;
+        }
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            closed = true;
+            stalled = true;
+            queue.clear();
+        }
+        log.warn("SSE 单次发送超过 {}ms 未完成，断开连接并继续无头执行: requestId={}",
+            timeoutNanos / 1_000_000, requestId);
+        Thread thread = sendingThread;
+        if (thread != null) {
+            thread.interrupt();
+        }
+        listener.onEvicted(this);
+        return true;
+    }
+
+    // ── writer 线程 ──────────────────────────────────────────────────────────
+
+    private void drain() {
+        for (int sent = 0; ; sent++) {
+            QueuedEvent next;
+            boolean finish = false;
+            synchronized (this) {
+                if (sent >= MAX_EVENTS_PER_DRAIN && !queue.isEmpty()) {
+                    writer.execute(this::drain);
+                    return;
+                }
+                next = queue.pollFirst();
+                if (next == null) {
+                    draining = false;
+                    if (!closeRequested || closed) {
+                        return;
+                    }
+                    closed = true;
+                    finish = true;
+                }
+            }
+            if (finish) {
+                completeQuietly();
+                listener.onClosed(this);
+                return;
+            }
+            boolean written = write(next);
+            if (stalled) {
+                // 发送超时已被驱逐：卡住的 send 返回后再结束 emitter（send 与 complete 共用 emitter 锁）
+                Thread.interrupted();
+                completeQuietly();
+                listener.onClosed(this);
+                return;
+            }
+            if (!written) {
+                abort();
+                return;
+            }
+        }
+    }
+
+    private boolean write(QueuedEvent queued) {
+        AgentEventData eventData = queued.data;
+        try {
+            String eventName = eventData.getEvent();
+            if (eventName == null || eventName.isBlank()) {
+                eventName = AgentConstants.EVENT_AGENT_MESSAGE;
+            }
+            String eventStr = JSON.toJSONString(eventData);
+            SseEmitter.SseEventBuilder event = SseEmitter.event()
+                .name(eventName)
+                .data(Objects.requireNonNull(eventStr));
+            if (queued.id > 0) {
+                event.id(String.valueOf(queued.id));
+            }
+            sendingThread = Thread.currentThread();
+            sendStartedNanos = System.nanoTime();
+            try {
+                emitter.send(event);
+            } finally {
+                sendStartedNanos = 0;
+                sendingThread = null;
+            }
+            log.debug("发送Agent事件: {}", eventName);
+            return true;
+        } catch (IllegalStateException e) {
+            log.debug("SSE连接已关闭，忽略事件发送: {}", eventData.getEvent());
+            return false;
+        } catch (Exception e) {
+            log.warn("发送SSE事件失败，转为无头执行: requestId={}, error={}", requestId, e.getMessage());
+            return false;
+        }
+    }
+
+    // ── 内部工具方法 ──────────────────────────────────────────────────────────
+
+    private void scheduleDrain() {
+        if (!draining) {
+            draining = true;
+            writer.execute(this::drain);
+        }
+    }
+
+    /**
+     * 与队尾同类 token 事件合并（调用方持有锁）
+     */
+    private boolean tryMerge(long eventId, AgentEventData eventData) {
+        QueuedEvent tailEvent = queue.peekLast();
+        if (tailEvent == null) {
+            return false;
+        }
+        AgentEventData tail = tailEvent.data;
+        if (!isMergeable(eventData) || !isMergeable(tail)
+                || !Objects.equals(tail.getEvent(), eventData.getEvent())) {
+            return false;
+        }
+        // 合并后的帧使用最新事件 ID，重连时从其后继续即可
+        queue.pollLast();
+        queue.addLast(new QueuedEvent(eventId, AgentEventData.builder()
+            .requestId(tail.getRequestId())
+            .event(tail.getEvent())
+            .content(tail.getContent() + eventData.getContent())
+            .conversationId(tail.getConversationId())
+            .build()));
+        return true;
+    }
+
+    private static boolean isMergeable(AgentEventData eventData) {
+        String event = eventData.getEvent();
+        return (AgentConstants.EVENT_AGENT_MESSAGE.equals(event)
+                || AgentConstants.EVENT_AGENT_THINKING_DELTA.equals(event))
+            && eventData.getContent() != null
+            && eventData.getData() == null
+            && eventData.getMessage() == null;
+    }
+
+    private static boolean isLowPriority(String event) {
+        return AgentConstants.EVENT_AGENT_THINKING_DELTA.equals(event)
+            || AgentConstants.EVENT_AGENT_THINKING.equals(event)
+            || (event != null && event.startsWith("agent:status:"));
+    }
+
+    private void completeQuietly() {
+        try {
+            emitter.complete();
+        } catch (Exception ignore) {}
+    }
+}
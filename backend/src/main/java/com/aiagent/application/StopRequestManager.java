@@ -1,12 +1,18 @@
 package com.aiagent.application;
 
 import lombok.extern.slf4j.Slf4j;
+import com.aiagent.common.util.CancellationToken;
 import org.redisson.api.RBucket;
+import org.redisson.api.RTopic;
 import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
 import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * 停止请求管理器
@@ -14,6 +20,10 @@ import java.time.Duration;
  * 
  * 参考 ToolConfirmationManager 实现，使用 Redis 存储停止标志
  * 支持跨实例通信：停止请求和任务执行可能在不同的机器上
+ * <p>
+ * 运行中的任务在本机登记 {@link CancellationToken}；设置停止标志时同时通过 Redis pub/sub 推送，
+ * 执行该任务的实例收到后立即取消令牌（中止 LLM 流、中断工具调用），无需轮询停止标志。
+ * 停止标志仍然保留，用于覆盖登记之前到达的停止请求；推送丢失时推理循环在每轮开始前读取一次停止标志兜底。
  * 
  * @author aiagent
  */
@@ -23,10 +33,44 @@ public class StopRequestManager {
 
     private static final String KEY_PREFIX = "aiagent:stop:request:";
     private static final long DEFAULT_EXPIRE_MS = 5 * 60_000L; // 5分钟
+    private static final String STOP_CHANNEL = "aiagent:stop:channel";
 
     @Autowired
     private RedissonClient redissonClient;
 
+    /** 本机运行中任务的取消令牌（requestId → token） */
+    private final Map<String, CancellationToken> tokens = new ConcurrentHashMap<>();
+
+    private RTopic stopTopic;
+
+    @PostConstruct
+    public void init() {
+        stopTopic = redissonClient.getTopic(STOP_CHANNEL, StringCodec.INSTANCE);
+        stopTopic.addListener(String.class, (channel, requestId) -> cancelLocal(requestId));
+    }
+
+    /**
+     * 登记本机运行中任务的取消令牌；停止请求已先到达时立即取消
+     */
+    public void register(String requestId, CancellationToken token) {
+        if (requestId == null || token == null) {
+            return;
+        }
+        tokens.put(requestId, token);
+        if (isStopRequested(requestId)) {
+            cancelLocal(requestId);
+        }
+    }
+
+    /**
+     * 任务结束后注销取消令牌
+     */
+    public void unregister(String requestId) {
+        if (requestId != null) {
+            tokens.remove(requestId);
+        }
+    }
+
     /**
      * 设置停止标志
      * 
@@ -46,11 +90,36 @@ public class StopRequestManager {
             bucket.expire(Duration.ofMillis(DEFAULT_EXPIRE_MS));
             
             log.info("设置停止标志成功: requestId={}", requestId);
-            return true;
         } catch (Exception e) {
             log.error("设置停止标志异常: requestId={}", requestId, e);
+            return cancelLocal(requestId);
+        }
+
+        // 本机执行的任务直接取消，其他实例通过 pub/sub 推送
+        cancelLocal(requestId);
+        try {
+            stopTopic.publish(requestId);
+        } catch (Exception e) {
+            log.warn("推送停止请求失败（执行实例将在下一轮推理开始前检查停止标志时停止）: requestId={}, error={}",
+                requestId, e.getMessage());
+        }
+        return true;
+    }
+
+    /**
+     * 取消本机登记的任务
+     *
+     * @return 本机是否有该任务
+     */
+    private boolean cancelLocal(String requestId) {
+        CancellationToken token = tokens.get(requestId);
+        if (token == null) {
             return false;
         }
+        if (token.cancel("用户已停止")) {
+            log.info("取消运行中的任务: requestId={}", requestId);
+        }
+        return true;
     }
 
     /**
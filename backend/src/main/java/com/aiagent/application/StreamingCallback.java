@@ -38,6 +38,26 @@ public interface StreamingCallback {
      */
     void onError(Throwable error);
     
+    /**
+     * 模型调用因客户端限流（RPM / TPM）进入排队时调用
+     *
+     * @param modelId 排队的模型
+     * @param queued  该模型当前排队的请求数
+     */
+    default void onRateLimited(String modelId, int queued) {
+        // 默认空实现
+    }
+
+    /**
+     * 限流排队结束、开始调用模型时调用（仅在实际排队过时调用）
+     *
+     * @param modelId 模型
+     * @param waitMs  排队等待时长（毫秒）
+     */
+    default void onRateLimitAcquired(String modelId, long waitMs) {
+        // 默认空实现
+    }
+
     /**
      * 当开始生成时调用（可选）
      */
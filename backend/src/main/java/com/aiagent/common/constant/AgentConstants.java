@@ -85,6 +85,21 @@ public class AgentConstants {
     public static final String EVENT_STATUS_TOOL_EXECUTING_BATCH = "agent:status:tool_executing_batch";
     public static final String EVENT_STATUS_RETRYING = "agent:status:retrying";
 
+    /**
+     * 执行调度事件：运行在等待队列中（data 携带 position / queued）
+     */
+    public static final String EVENT_AGENT_QUEUED = "agent:queued";
+
+    /**
+     * 模型限流事件：LLM 调用因 RPM / TPM 限制排队（data 携带 modelId / state / queued / waitMs）
+     */
+    public static final String EVENT_AGENT_RATE_LIMITED = "agent:rate_limited";
+
+    /**
+     * 执行调度拒绝码（等待队列已满，语义同 HTTP 429）
+     */
+    public static final int ERROR_CODE_TOO_MANY_RUNS = 429;
+
     /**
      * Redis缓存前缀
      */
@@ -0,0 +1,121 @@
+package com.aiagent.common.util;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 运行取消令牌
+ *
+ * <p>每次运行一个实例，随 AgentContext 传递给 LLM 流式调用、工具执行等环节。
+ * {@link #cancel} 只生效一次：依次执行已注册的取消回调（中止 HTTP 流、中断工具线程等），
+ * 之后注册的回调立即执行。等待中的异步步骤可通过 {@link #bind} 在取消时以 {@link CancellationException} 结束。
+ */
+@Slf4j
+public final class CancellationToken {
+
+    private final List<Runnable> callbacks = new ArrayList<>();
+
+    private volatile String reason;
+
+    public boolean isCancelled() {
+        return reason != null;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    /**
+     * 取消（重复调用无效）
+     *
+     * @return 本次调用是否触发了取消
+     */
+    public boolean cancel(String reason) {
+        List<Runnable> toRun;
+        synchronized (callbacks) {
+            if (this.reason != null) {
+                return false;
+            }
+            this.reason = reason != null ? reason : "cancelled";
+            toRun = new ArrayList<>(callbacks);
+            callbacks.clear();
+        }
+        for (Runnable callback : toRun) {
+            runQuietly(callback);
+        }
+        return true;
+    }
+
+    /**
+     * 注册取消回调；已取消时立即执行
+     *
+     * @return 注销回调的句柄（步骤正常结束后调用，避免回调堆积）
+     */
+    public Runnable onCancel(Runnable callback) {
+        synchronized (callbacks) {
+            if (reason == null) {
+                callbacks.add(callback);
+                return () -> {
+                    synchronized (callbacks) {
+                        callbacks.remove(callback);
+                    }
+                };
+            }
+        }
+        runQuietly(callback);
+        return () -> { };
+    }
+
+    /**
+     * 返回一个在 future 完成或令牌取消（以 {@link CancellationException} 异常完成）时先到先完成的 Future
+     */
+    public <T> CompletableFuture<T> bind(CompletableFuture<T> future) {
+        CompletableFuture<T> bound = new CompletableFuture<>();
+        Runnable unregister = onCancel(() -> bound.completeExceptionally(new CancellationException(reason)));
+        future.whenComplete((value, error) -> {
+            unregister.run();
+            if (error != null) {
+                bound.completeExceptionally(error);
+            } else {
+                bound.complete(value);
+            }
+        });
+        return bound;
+    }
+
+    /**
+     * 已取消时抛出 {@link CancellationException}
+     */
+    public void throwIfCancelled() {
+        if (reason != null) {
+            throw new CancellationException(reason);
+        }
+    }
+
+    /**
+     * 异常链中是否包含取消
+     */
+    public static boolean isCancellation(Throwable error) {
+        for (Throwable e = error; e != null; e = e.getCause()) {
+            if (e instanceof CancellationException) {
+                return true;
+            }
+            if (e.getCause() == e) {
+                break;
+            }
+        }
+        return false;
+    }
+
+    private static void runQuietly(Runnable callback) {
+        try {
+            callback.run();
+        } catch (Exception e) {
+            log.warn("取消回调执行失败: {}", e.getMessage());
+        }
+    }
+}
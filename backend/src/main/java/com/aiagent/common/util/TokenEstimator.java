@@ -0,0 +1,107 @@
+package com.aiagent.common.util;
+
+import dev.langchain4j.agent.tool.ToolExecutionRequest;
+import dev.langchain4j.agent.tool.ToolSpecification;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.ToolExecutionResultMessage;
+import dev.langchain4j.data.message.UserMessage;
+
+import java.util.List;
+
+/**
+ * Token 数估算工具
+ *
+ * <p>不依赖具体模型的 tokenizer，按字符粗略估算：CJK 字符按 1 token，其余字符按 4 字符 1 token，
+ * 每条消息另加固定的角色 / 分隔开销。用于上下文窗口预算与 TPM 限流，结果偏保守即可。
+ *
+ * @author aiagent
+ */
+public class TokenEstimator {
+
+    /** 每条消息的角色与分隔符开销 */
+    public static final int MESSAGE_OVERHEAD_TOKENS = 4;
+
+    private TokenEstimator() {
+    }
+
+    /**
+     * 估算文本 token 数
+     */
+    public static int estimate(CharSequence text) {
+        if (text == null) {
+            return 0;
+        }
+        int cjk = 0;
+        int other = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (Character.UnicodeScript.of(text.charAt(i)) == Character.UnicodeScript.HAN) {
+                cjk++;
+            } else {
+                other++;
+            }
+        }
+        return cjk + (other + 3) / 4;
+    }
+
+    /**
+     * 估算单条消息 token 数（含工具调用请求的名称与参数）
+     */
+    public static int estimate(ChatMessage message) {
+        if (message == null) {
+            return 0;
+        }
+        int tokens = MESSAGE_OVERHEAD_TOKENS;
+        if (message instanceof UserMessage) {
+            UserMessage userMessage = (UserMessage) message;
+            tokens += userMessage.hasSingleText() ? estimate(userMessage.singleText()) : estimate(message.toString());
+        } else if (message instanceof AiMessage) {
+            AiMessage aiMessage = (AiMessage) message;
+            tokens += estimate(aiMessage.text());
+            if (aiMessage.hasToolExecutionRequests()) {
+                for (ToolExecutionRequest request : aiMessage.toolExecutionRequests()) {
+                    tokens += MESSAGE_OVERHEAD_TOKENS + estimate(request.name()) + estimate(request.arguments());
+                }
+            }
+        } else if (message instanceof SystemMessage) {
+            tokens += estimate(((SystemMessage) message).text());
+        } else if (message instanceof ToolExecutionResultMessage) {
+            ToolExecutionResultMessage resultMessage = (ToolExecutionResultMessage) message;
+            tokens += estimate(resultMessage.toolName()) + estimate(resultMessage.text());
+        } else {
+            tokens += estimate(message.toString());
+        }
+        return tokens;
+    }
+
+    /**
+     * 估算消息列表 token 数
+     */
+    public static long estimate(List<ChatMessage> messages) {
+        if (messages == null) {
+            return 0L;
+        }
+        long total = 0;
+        for (ChatMessage message : messages) {
+            total += estimate(message);
+        }
+        return total;
+    }
+
+    /**
+     * 估算工具定义 token 数（名称、描述与参数 schema 都会随请求发送）
+     */
+    public static int estimateToolSpecs(List<ToolSpecification> toolSpecs) {
+        if (toolSpecs == null) {
+            return 0;
+        }
+        int total = 0;
+        for (ToolSpecification spec : toolSpecs) {
+            if (spec != null) {
+                total += MESSAGE_OVERHEAD_TOKENS + estimate(spec.toString());
+            }
+        }
+        return total;
+    }
+}
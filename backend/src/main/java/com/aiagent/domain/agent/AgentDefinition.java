@@ -94,5 +94,15 @@ public class AgentDefinition {
          * 最大工具调用轮数（默认 8）
          */
         private Integer maxToolRounds;
+
+        /**
+         * 同一轮内最大并行工具调用数（默认取全局 aiagent.tools.parallel-execution 配置，1 表示串行）
+         */
+        private Integer maxParallelToolCalls;
+
+        /**
+         * 流式 token 合并发送的时间窗口（毫秒，默认取全局 aiagent.streaming 配置，0 表示逐 token 发送）
+         */
+        private Integer streamFlushIntervalMs;
     }
 }
@@ -3,6 +3,9 @@ package com.aiagent.domain.agent;
 import com.aiagent.api.dto.RAGConfig;
 import com.aiagent.domain.model.entity.AgentEntity;
 import com.aiagent.domain.skill.SkillTreeNode;
+import com.aiagent.infrastructure.cache.NearCache;
+import com.aiagent.infrastructure.cache.NearCacheRegistry;
+import com.aiagent.infrastructure.config.AgentConfig;
 import com.aiagent.infrastructure.mapper.AgentMapper;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -22,17 +25,27 @@ import java.util.UUID;
  * <p>
  * 启动时将 classpath:config/agents.yaml 中的内置 Agent upsert 入 DB，
  * 之后所有 Agent 定义统一从数据库读取，支持用户自定义。
+ * <p>
+ * {@link #getById} 经过进程内近端缓存（每次请求会读取多次）；修改或删除 Agent 后需调用 {@link #evict}。
  */
 @Slf4j
 @Component
 @RequiredArgsConstructor
 public class AgentDefinitionLoader {
 
+    /** 近端缓存名称 */
+    public static final String CACHE_NAME = "agent-definition";
+
     private final AgentMapper agentMapper;
+    private final AgentConfig agentConfig;
+    private final NearCacheRegistry nearCacheRegistry;
     private final ObjectMapper jsonMapper = new ObjectMapper();
 
+    private NearCache<AgentDefinition> cache;
+
     @PostConstruct
     public void init() {
+        cache = nearCacheRegistry.create(CACHE_NAME, agentConfig.getNearCache().getAgentDefinition());
         syncBuiltinAgentsToDb();
     }
 
@@ -69,11 +82,20 @@ public class AgentDefinitionLoader {
     }
 
     /**
-     * 从数据库根据 ID 获取 AgentDefinition
+     * 根据 ID 获取 AgentDefinition（优先读取近端缓存；返回的实例在请求间共享，调用方不得修改）
      */
     public AgentDefinition getById(String agentId) {
-        AgentEntity entity = agentMapper.selectById(agentId);
-        return entity == null ? null : toDomain(entity);
+        return cache.get(agentId, id -> {
+            AgentEntity entity = agentMapper.selectById(id);
+            return entity == null ? null : toDomain(entity);
+        });
+    }
+
+    /**
+     * Agent 定义被修改或删除后失效缓存（同时通知集群其他节点）
+     */
+    public void evict(String agentId) {
+        nearCacheRegistry.invalidate(CACHE_NAME, agentId);
     }
 
     /**
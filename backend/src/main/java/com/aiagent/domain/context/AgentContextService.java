@@ -4,7 +4,6 @@ import com.aiagent.domain.agent.AgentDefinition;
 import com.aiagent.domain.agent.AgentDefinitionLoader;
 import com.aiagent.domain.model.bo.AgentRuntimeConfig;
 import com.aiagent.domain.model.bo.KnowledgeBase;
-import com.aiagent.domain.model.bo.MessageBO;
 import com.aiagent.domain.rag.KnowledgeBaseService;
 import com.aiagent.domain.rag.RAGEnhancer;
 import com.aiagent.common.constant.AgentConstants;
@@ -12,20 +11,20 @@ import com.aiagent.domain.memory.MemorySystem;
 import com.aiagent.common.util.StringUtils;
 import com.aiagent.common.util.UUIDGenerator;
 import com.aiagent.domain.model.bo.AgentContext;
+import com.aiagent.domain.model.bo.MessageBO;
 import com.aiagent.api.dto.AgentEventData;
 import com.aiagent.domain.model.bo.AgentKnowledgeResult;
 import com.aiagent.api.dto.AgentRequest;
 import com.aiagent.api.dto.ConversationInfo;
 import com.aiagent.api.dto.RAGConfig;
 import com.aiagent.domain.conversation.ConversationService;
+import com.aiagent.domain.conversation.MessagePersistencePipeline;
+import com.aiagent.domain.conversation.MessageService;
+import com.aiagent.domain.memory.ConversationCompactionService;
+import com.aiagent.domain.model.entity.ConversationSummaryEntity;
 import com.aiagent.domain.model.entity.MessageEntity;
-import com.aiagent.infrastructure.mapper.MessageMapper;
-import com.alibaba.fastjson2.JSON;
-import com.alibaba.fastjson2.JSONObject;
-import dev.langchain4j.data.message.AiMessage;
+import com.aiagent.infrastructure.config.AgentConfig;
 import dev.langchain4j.data.message.ChatMessage;
-import dev.langchain4j.data.message.SystemMessage;
-import dev.langchain4j.data.message.UserMessage;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
@@ -33,6 +32,7 @@ import org.springframework.stereotype.Service;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.function.Consumer;
 
 /**
@@ -52,6 +52,9 @@ public class AgentContextService {
     @Autowired
     private MemorySystem memorySystem;
 
+    @Autowired
+    private ContextWindowManager contextWindowManager;
+
     @Autowired
     private ConversationService conversationService;
 
@@ -62,11 +65,20 @@ public class AgentContextService {
     private KnowledgeBaseService knowledgeBaseService;
 
     @Autowired
-    private MessageMapper messageMapper;
+    private MessageService messageService;
+
+    @Autowired
+    private MessagePersistencePipeline messagePersistence;
+
+    @Autowired
+    private ConversationCompactionService compactionService;
 
     @Autowired
     private AgentDefinitionLoader agentDefinitionLoader;
 
+    @Autowired
+    private AgentConfig agentConfig;
+
     public String normalizeConversationId(String conversationId) {
         if (StringUtils.isEmpty(conversationId) || conversationId.startsWith("temp-")) {
             return UUIDGenerator.generate();
@@ -144,6 +156,8 @@ public class AgentContextService {
         // 上下文行为参数：AgentDefinition > 默认值
         cfgBuilder.historyMessageLoadLimit(resolveHistoryLoadLimit(agentDef));
         cfgBuilder.maxToolRounds(resolveMaxToolRounds(agentDef));
+        cfgBuilder.maxParallelToolCalls(resolveMaxParallelToolCalls(agentDef));
+        cfgBuilder.streamFlushIntervalMs(resolveStreamFlushIntervalMs(agentDef));
 
         // RAG 配置：AgentDefinition > 默认值（直接使用 RAGConfig，无需字段复制）
         RAGConfig ragConfig = resolveRagConfig(agentDef);
@@ -238,7 +252,7 @@ public class AgentContextService {
                 && agentDef.getContextConfig().getHistoryMessageLoadLimit() != null) {
             return agentDef.getContextConfig().getHistoryMessageLoadLimit();
         }
-        return 20;
+        return contextWindowManager.defaultHistoryLoadLimit(20);
     }
 
     private int resolveMaxToolRounds(AgentDefinition agentDef) {
@@ -249,6 +263,22 @@ public class AgentContextService {
         return 8;
     }
 
+    private int resolveMaxParallelToolCalls(AgentDefinition agentDef) {
+        if (agentDef != null && agentDef.getContextConfig() != null
+                && agentDef.getContextConfig().getMaxParallelToolCalls() != null) {
+            return agentDef.getContextConfig().getMaxParallelToolCalls();
+        }
+        return agentConfig.getTools().getParallelExecution().getMaxConcurrencyPerRequest();
+    }
+
+    private int resolveStreamFlushIntervalMs(AgentDefinition agentDef) {
+        if (agentDef != null && agentDef.getContextConfig() != null
+                && agentDef.getContextConfig().getStreamFlushIntervalMs() != null) {
+            return agentDef.getContextConfig().getStreamFlushIntervalMs();
+        }
+        return agentConfig.getStreaming().getTokenFlushIntervalMs();
+    }
+
     /**
      * 从 AgentDefinition 解析 RAG 配置。
      * AgentDefinition.ragConfig 已直接使用 {@link RAGConfig}，无需字段复制。
@@ -271,14 +301,47 @@ public class AgentContextService {
     }
 
     /**
-     * 从数据库加载历史对话消息
+     * 加载历史对话消息
+     * <p>会话已有滚动摘要时只加载摘要之后的最近消息，摘要写入 {@code context.conversationSummary}。
+     * Redis 消息列表的起点与当前摘要边界一致、且列表末尾与数据库最新一条消息相同时直接读取列表末尾，
+     * 否则（首次加载、摘要推进、列表不完整、上一轮运行中途失败或后台写入失败）从数据库加载，并在保存上下文时整体重写列表
      */
     private void loadHistoryMessages(AgentContext context, String conversationId, int limit) {
+        context.setConversationSummary(null);
+        // 上一轮的消息可能仍在后台批量写入，先等待其落库
+        messagePersistence.awaitPersisted(conversationId);
         try {
-            List<MessageEntity> historyEntities = messageMapper.selectByConversationId(
-                conversationId,
-                limit
-            );
+            ConversationSummaryEntity summary = compactionService.loadSummary(conversationId);
+            Long afterId = null;
+            if (summary != null) {
+                context.setConversationSummary(summary.getSummary());
+                afterId = summary.getSummaryUntilId();
+                log.debug("使用会话摘要: conversationId={}, summaryUntilId={}, summaryTokens={}",
+                    conversationId, summary.getSummaryUntilId(), summary.getSummaryTokens());
+            }
+            long baseId = afterId != null ? afterId : 0L;
+            String latestMessageId = messageService.getLatestMessageId(conversationId);
+            boolean listUsable = Objects.equals(context.getMessageListBaseId(), baseId);
+            if (listUsable && (context.getMessageListTailId() == null
+                    || !context.getMessageListTailId().equals(latestMessageId))) {
+                log.info("Redis 消息列表与数据库不一致，从数据库加载历史: conversationId={}, listTail={}, dbTail={}",
+                    conversationId, context.getMessageListTailId(), latestMessageId);
+                listUsable = false;
+            }
+            if (listUsable) {
+                List<MessageBO> tail = memorySystem.loadMessageTail(conversationId, limit);
+                if (tail != null && !tail.isEmpty()) {
+                    context.setMessageBOS(tail);
+                    context.setPersistedMessageCount(tail.size());
+                    log.debug("从 Redis 消息列表加载历史: conversationId={}, 消息数: {}", conversationId, tail.size());
+                    return;
+                }
+            }
+            context.setMessageListBaseId(baseId);
+            context.setMessageListTailId(latestMessageId);
+
+            // 按 keyset 只加载最近 limit 条，代价与会话总长度无关
+            List<MessageEntity> historyEntities = messageService.loadHistoryTail(conversationId, afterId, null, limit);
 
             if (historyEntities == null || historyEntities.isEmpty()) {
                 log.debug("会话 {} 没有历史消息", conversationId);
@@ -288,7 +351,7 @@ public class AgentContextService {
 
             List<ChatMessage> historyMessages = new ArrayList<>();
             for (MessageEntity entity : historyEntities) {
-                ChatMessage message = convertToChatMessage(entity);
+                ChatMessage message = messageService.toChatMessage(entity);
                 if (message != null) {
                     historyMessages.add(message);
                 }
@@ -306,59 +369,6 @@ public class AgentContextService {
         }
     }
 
-    /**
-     * 将 MessageEntity 转换为 ChatMessage
-     */
-    private ChatMessage convertToChatMessage(MessageEntity entity) {
-        if (entity == null) {
-            return null;
-        }
-
-        if (entity.getMetadata() != null && !entity.getMetadata().isEmpty()) {
-            try {
-                JSONObject metadata = JSON.parseObject(entity.getMetadata());
-                if (metadata != null && metadata.containsKey("messageData")) {
-                    Object messageDataObj = metadata.get("messageData");
-                    MessageBO dto = null;
-
-                    if (messageDataObj instanceof JSONObject) {
-                        dto = ((JSONObject) messageDataObj).toJavaObject(MessageBO.class);
-                    } else if (messageDataObj instanceof String) {
-                        dto = JSON.parseObject((String) messageDataObj, MessageBO.class);
-                    }
-
-                    if (dto != null) {
-                        ChatMessage restored = dto.toChatMessage();
-                        if (restored != null) {
-                            return restored;
-                        }
-                    }
-                }
-            } catch (Exception e) {
-                log.warn("从 metadata 还原消息失败，降级使用 role+content: conversationId={}, error={}",
-                    entity.getConversationId(), e.getMessage());
-            }
-        }
-
-        String role = entity.getRole();
-        String content = entity.getContent() != null ? entity.getContent() : "";
-
-        if ("user".equalsIgnoreCase(role)) {
-            return new UserMessage(content);
-        } else if ("assistant".equalsIgnoreCase(role) || "ai".equalsIgnoreCase(role)) {
-            return content.isEmpty() ? null : AiMessage.from(content);
-        } else if ("system".equalsIgnoreCase(role)) {
-            return SystemMessage.from(content);
-        } else if ("tool".equalsIgnoreCase(role)) {
-            log.warn("无法还原 tool 类型消息（缺少 metadata.messageData），跳过: messageId={}",
-                entity.getMessageId());
-            return null;
-        } else {
-            log.warn("未知的消息角色类型: {}", role);
-            return null;
-        }
-    }
-
     /**
      * 解析 agentId
      */
@@ -0,0 +1,239 @@
+package com.aiagent.domain.context;
+
+import com.aiagent.common.util.TokenEstimator;
+import com.aiagent.infrastructure.config.AgentConfig;
+import dev.langchain4j.agent.tool.ToolSpecification;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.ToolExecutionResultMessage;
+import dev.langchain4j.data.message.UserMessage;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 单次运行的上下文窗口（按 token 预算选择发送给模型的消息）
+ *
+ * <p>每条消息的 token 估算值按对象缓存，只计算一次：历史消息直接使用 {@code MessageBO} 上缓存的估算值，
+ * 运行中新增的 AI / 工具结果消息在第一次参与预算时计算。
+ *
+ * <p>每轮调用前由 {@link #fit} 组装消息，预算 = 模型上下文长度 − 输出预留 − 工具定义：
+ * <ol>
+ *   <li>开头的 System 消息始终保留</li>
+ *   <li>其余消息以 User 消息为界切分为轮次，当前轮（最新一轮）始终保留，
+ *       单条工具结果超过 {@code maxToolResultTokens} 时截断，整轮仍超预算时继续压缩本轮工具结果</li>
+ *   <li>更早的轮次由新到旧整轮加入，工具结果先截断到 {@code historyToolResultTokens}，
+ *       预算不足时丢弃该轮及更早的全部轮次（最旧的先被裁剪，且不会拆开工具调用与结果）</li>
+ * </ol>
+ * 同一运行内同一时刻只有一个 continuation 访问，无需加锁。
+ */
+@Slf4j
+public final class ContextWindow {
+
+    /** 压缩当前轮工具结果时每条至少保留的 token 数 */
+    private static final int MIN_TOOL_RESULT_TOKENS = 200;
+
+    private final String modelId;
+    private final int contextTokens;
+    private final AgentConfig.MemoryConfig.ContextWindowConfig config;
+
+    /** 消息 → 估算 token 数（按对象身份缓存） */
+    private final Map<ChatMessage, Integer> tokenCache = new IdentityHashMap<>();
+
+    /** 原始工具结果 → 截断后的消息（按对象身份缓存，截断上限变化时重新生成） */
+    private final Map<ChatMessage, Truncation> truncations = new IdentityHashMap<>();
+
+    ContextWindow(String modelId, int contextTokens, AgentConfig.MemoryConfig.ContextWindowConfig config) {
+        this.modelId = modelId;
+        this.contextTokens = contextTokens;
+        this.config = config;
+    }
+
+    /**
+     * 登记已知 token 估算值的消息（如历史消息的 {@code MessageBO.estimateTokens()}），避免重复计算
+     */
+    public void remember(ChatMessage message, int tokens) {
+        if (message != null) {
+            tokenCache.put(message, tokens);
+        }
+    }
+
+    public int tokensOf(ChatMessage message) {
+        Integer cached = tokenCache.get(message);
+        if (cached != null) {
+            return cached;
+        }
+        int tokens = TokenEstimator.estimate(message);
+        tokenCache.put(message, tokens);
+        return tokens;
+    }
+
+    /**
+     * 按预算组装本轮发送给模型的消息（不修改传入列表；无需裁剪时直接返回原列表）
+     */
+    public List<ChatMessage> fit(List<ChatMessage> messages, List<ToolSpecification> toolSpecs) {
+        if (messages == null || messages.isEmpty()) {
+            return messages;
+        }
+        int budget = contextTokens - Math.max(0, config.getOutputReserveTokens())
+            - TokenEstimator.estimateToolSpecs(toolSpecs);
+
+        int start = 0;
+        List<ChatMessage> systemMessages = new ArrayList<>();
+        while (start < messages.size() && messages.get(start) instanceof SystemMessage) {
+            ChatMessage system = messages.get(start++);
+            systemMessages.add(system);
+            budget -= tokensOf(system);
+        }
+
+        List<List<ChatMessage>> turns = splitTurns(messages.subList(start, messages.size()));
+        List<List<ChatMessage>> kept = new ArrayList<>();
+        int used = 0;
+        int droppedMessages = 0;
+        for (int t = turns.size() - 1; t >= 0; t--) {
+            boolean currentTurn = t == turns.size() - 1;
+            List<ChatMessage> turn = capToolResults(turns.get(t),
+                currentTurn ? config.getMaxToolResultTokens() : config.getHistoryToolResultTokens());
+            int tokens = sumTokens(turn);
+            if (currentTurn) {
+                if (tokens > budget) {
+                    turn = shrinkToFit(turn, tokens - budget);
+                    tokens = sumTokens(turn);
+                    if (tokens > budget) {
+                        log.warn("当前轮消息仍超出上下文预算: modelId={}, tokens={}, budget={}", modelId, tokens, budget);
+                    }
+                }
+            } else if (used + tokens > budget) {
+                for (int d = t; d >= 0; d--) {
+                    droppedMessages += turns.get(d).size();
+                }
+                break;
+            }
+            kept.add(turn);
+            used += tokens;
+        }
+
+        List<ChatMessage> result = new ArrayList<>(systemMessages);
+        Collections.reverse(kept);
+        for (List<ChatMessage> turn : kept) {
+            result.addAll(turn);
+        }
+        if (droppedMessages > 0 || !sameMessages(result, messages)) {
+            log.info("上下文窗口裁剪: modelId={}, 消息 {} → {}，丢弃最早 {} 条，估算 {} / {} tokens",
+                modelId, messages.size(), result.size(), droppedMessages,
+                used + sumTokens(systemMessages), contextTokens - Math.max(0, config.getOutputReserveTokens()));
+            return result;
+        }
+        return messages;
+    }
+
+    // ── 内部工具方法 ──────────────────────────────────────────────────────────
+
+    /**
+     * 以 User 消息为界切分轮次；历史被条数截断时开头可能残留无对应调用的工具结果，直接跳过
+     */
+    private static List<List<ChatMessage>> splitTurns(List<ChatMessage> messages) {
+        List<List<ChatMessage>> turns = new ArrayList<>();
+        List<ChatMessage> current = null;
+        for (ChatMessage message : messages) {
+            if (current == null && message instanceof ToolExecutionResultMessage) {
+                continue;
+            }
+            if (current == null || message instanceof UserMessage) {
+                current = new ArrayList<>();
+                turns.add(current);
+            }
+            current.add(message);
+        }
+        return turns;
+    }
+
+    private List<ChatMessage> capToolResults(List<ChatMessage> turn, int maxTokens) {
+        if (maxTokens <= 0) {
+            return turn;
+        }
+        List<ChatMessage> result = null;
+        for (int i = 0; i < turn.size(); i++) {
+            ChatMessage message = turn.get(i);
+            if (message instanceof ToolExecutionResultMessage && tokensOf(message) > maxTokens) {
+                if (result == null) {
+                    result = new ArrayList<>(turn);
+                }
+                result.set(i, truncate((ToolExecutionResultMessage) message, maxTokens));
+            }
+        }
+        return result != null ? result : turn;
+    }
+
+    /**
+     * 当前轮超出预算：从本轮最早的工具结果开始压缩，直到释放 overflow 个 token
+     */
+    private List<ChatMessage> shrinkToFit(List<ChatMessage> turn, int overflow) {
+        List<ChatMessage> result = new ArrayList<>(turn);
+        for (int i = 0; i < result.size() && overflow > 0; i++) {
+            ChatMessage message = result.get(i);
+            if (!(message instanceof ToolExecutionResultMessage)) {
+                continue;
+            }
+            int tokens = tokensOf(message);
+            int target = Math.max(MIN_TOOL_RESULT_TOKENS, tokens - overflow);
+            if (target >= tokens) {
+                continue;
+            }
+            ChatMessage shrunk = truncate((ToolExecutionResultMessage) message, target);
+            overflow -= tokens - tokensOf(shrunk);
+            result.set(i, shrunk);
+        }
+        return result;
+    }
+
+    private ChatMessage truncate(ToolExecutionResultMessage message, int maxTokens) {
+        Truncation cached = truncations.get(message);
+        if (cached != null && cached.maxTokens == maxTokens) {
+            return cached.message;
+        }
+        String text = message.text() != null ? message.text() : "";
+        int tokens = Math.max(1, TokenEstimator.estimate(text));
+        int keepChars = (int) Math.min(text.length(), (long) text.length() * maxTokens / tokens);
+        String truncatedText = text.substring(0, keepChars)
+            + "\n...[工具结果过长已截断，原始约 " + tokens + " tokens]";
+        ToolExecutionResultMessage truncated =
+            ToolExecutionResultMessage.from(message.id(), message.toolName(), truncatedText);
+        truncations.put(message, new Truncation(maxTokens, truncated));
+        return truncated;
+    }
+
+    private int sumTokens(List<ChatMessage> messages) {
+        int total = 0;
+        for (ChatMessage message : messages) {
+            total += tokensOf(message);
+        }
+        return total;
+    }
+
+    private static boolean sameMessages(List<ChatMessage> a, List<ChatMessage> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            if (a.get(i) != b.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final class Truncation {
+        private final int maxTokens;
+        private final ChatMessage message;
+
+        private Truncation(int maxTokens, ChatMessage message) {
+            this.maxTokens = maxTokens;
+            this.message = message;
+        }
+    }
+}
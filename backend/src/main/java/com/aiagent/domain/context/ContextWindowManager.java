@@ -0,0 +1,72 @@
+package com.aiagent.domain.context;
+
+import com.aiagent.domain.model.bo.AgentContext;
+import com.aiagent.domain.model.bo.MessageBO;
+import com.aiagent.infrastructure.config.AgentConfig;
+import com.aiagent.infrastructure.external.llm.ModelManager;
+import dev.langchain4j.data.message.ChatMessage;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * 上下文窗口管理器
+ *
+ * <p>根据模型上下文长度（{@code ModelDefinition.contextWindowTokens}，未配置时使用全局默认值）
+ * 为每次运行创建 {@link ContextWindow}，推理循环每轮调用前由其按 token 预算选择历史、工具结果。
+ */
+@Component
+public class ContextWindowManager {
+
+    @Autowired
+    private AgentConfig agentConfig;
+
+    @Autowired
+    private ModelManager modelManager;
+
+    public boolean isEnabled() {
+        return config().isEnabled();
+    }
+
+    /**
+     * 为一次运行创建上下文窗口
+     *
+     * @param modelId 本次运行使用的模型
+     */
+    public ContextWindow open(String modelId) {
+        return new ContextWindow(modelId, contextTokens(modelId), config());
+    }
+
+    /**
+     * 将历史消息追加到 target（取自上下文的 ChatMessage 物化视图，不重复转换），
+     * 并把 {@link MessageBO} 上缓存的 token 估算值登记到窗口
+     */
+    public void appendHistory(ContextWindow window, AgentContext context, List<ChatMessage> target) {
+        context.forEachMessage((bo, message) -> {
+            target.add(message);
+            if (window != null) {
+                window.remember(message, bo.estimateTokens());
+            }
+        });
+    }
+
+    /**
+     * Agent 未配置 historyMessageLoadLimit 时的历史加载条数：启用 token 预算时多加载一些，由窗口按预算裁剪
+     */
+    public int defaultHistoryLoadLimit(int fallback) {
+        return isEnabled() ? Math.max(fallback, config().getHistoryMaxMessages()) : fallback;
+    }
+
+    private int contextTokens(String modelId) {
+        AgentConfig.LLMConfig.ModelDefinition modelDef = modelId != null ? modelManager.getModelDefinition(modelId) : null;
+        if (modelDef != null && modelDef.getContextWindowTokens() != null && modelDef.getContextWindowTokens() > 0) {
+            return modelDef.getContextWindowTokens();
+        }
+        return config().getDefaultContextTokens();
+    }
+
+    private AgentConfig.MemoryConfig.ContextWindowConfig config() {
+        return agentConfig.getMemory().getContextWindow();
+    }
+}
@@ -0,0 +1,362 @@
+package com.aiagent.domain.conversation;
+
+import com.aiagent.domain.model.entity.MessageEntity;
+import com.aiagent.infrastructure.config.AgentConfig;
+import com.aiagent.infrastructure.mapper.ConversationMapper;
+import com.aiagent.infrastructure.mapper.MessageMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RBucket;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 消息异步批量持久化（write-behind）
+ *
+ * <p>每轮推理结束后，新增的 AI / 工具消息连同一次消息计数更新作为一个"轮次写入"提交到有界队列，
+ * 由单个后台线程取出：一次取出的多个轮次合并为一条多行 INSERT 与每个会话一次计数 UPDATE，在同一事务中提交。
+ * 合并事务失败时逐轮单独重试一次，仍失败则记录错误并放弃该轮。
+ *
+ * <p>队列满时由提交线程同步写入（不丢消息），写入前先等待同一会话仍在队列中的上一轮完成；
+ * 关闭时停止接收并写完队列中剩余的轮次。
+ * 同一会话的下一次请求加载历史前通过 {@link #awaitPersisted} 等待该会话未完成的写入，
+ * 保证历史完整且新消息的自增 ID 排在上一轮之后。
+ *
+ * <p>多实例部署时下一次请求可能落在其他实例：提交时在 Redis 写入会话的待写入标记
+ * （{@code aiagent:memory:pending:{conversationId}}，带过期时间，值为本次写入的 ID），写入完成或失败后删除
+ * （只删除仍是自己的标记）；{@link #awaitPersisted} 先等待本实例的写入，再轮询该标记直到消失，
+ * 两者共用 {@code await-timeout-ms} 上限。Redis 不可用时退化为只等待本实例的写入。
+ *
+ * <p>指标：
+ * <ul>
+ *   <li>{@code aiagent.memory.write_behind.queued} - 队列中待写入的轮次数</li>
+ *   <li>{@code aiagent.memory.write_behind.flush} - 每次事务写入耗时</li>
+ *   <li>{@code aiagent.memory.write_behind.messages} - 写入的消息条数</li>
+ *   <li>{@code aiagent.memory.write_behind.sync_fallback} - 队列满 / 已关闭时同步写入的轮次数</li>
+ *   <li>{@code aiagent.memory.write_behind.failed} - 最终写入失败的轮次数</li>
+ * </ul>
+ */
+@Slf4j
+@Component
+public class MessagePersistencePipeline {
+
+    private static final String PENDING_KEY_PREFIX = "aiagent:memory:pending:";
+
+    /** 轮询其他实例待写入标记的间隔 */
+    private static final long PENDING_POLL_INTERVAL_MS = 20;
+
+    @Autowired
+    private AgentConfig agentConfig;
+
+    @Autowired
+    private RedissonClient redissonClient;
+
+    @Autowired
+    private MessageMapper messageMapper;
+
+    @Autowired
+    private ConversationMapper conversationMapper;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    /** 会话 → 最近一次提交的写入（单线程按 FIFO 写入，最近一次完成即代表之前的都已完成） */
+    private final Map<String, CompletableFuture<Void>> pending = new ConcurrentHashMap<>();
+
+    private BlockingQueue<TurnWrite> queue;
+
+    private Thread writer;
+
+    private volatile boolean running;
+
+    private Timer flushTimer;
+
+    private Counter messagesCounter;
+
+    private Counter syncFallbackCounter;
+
+    private Counter failedCounter;
+
+    @PostConstruct
+    public void init() {
+        queue = new ArrayBlockingQueue<>(Math.max(1, config().getQueueCapacity()));
+        Gauge.builder("aiagent.memory.write_behind.queued", queue, BlockingQueue::size)
+            .description("等待写入的消息轮次数")
+            .register(meterRegistry);
+        flushTimer = Timer.builder("aiagent.memory.write_behind.flush")
+            .description("消息批量写入事务耗时")
+            .register(meterRegistry);
+        messagesCounter = Counter.builder("aiagent.memory.write_behind.messages")
+            .description("批量写入的消息条数")
+            .register(meterRegistry);
+        syncFallbackCounter = Counter.builder("aiagent.memory.write_behind.sync_fallback")
+            .description("队列满或已关闭时同步写入的轮次数")
+            .register(meterRegistry);
+        failedCounter = Counter.builder("aiagent.memory.write_behind.failed")
+            .description("最终写入失败的消息轮次数")
+            .register(meterRegistry);
+        running = true;
+        writer = new Thread(this::writeLoop, "message-write-behind");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        running = false;
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(Math.max(1, config().getShutdownTimeoutSeconds())));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // 后台线程未在超时内写完时，由关闭线程写完剩余轮次
+        List<TurnWrite> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        if (!remaining.isEmpty()) {
+            log.info("关闭前写入剩余消息轮次: {}", remaining.size());
+            flush(remaining);
+        }
+    }
+
+    /**
+     * 提交一轮新增消息与一次消息计数更新
+     *
+     * @param messages 按时间顺序排列的新增消息（可为空，此时只更新计数）
+     * @return 写入完成（或最终失败）时完成的 Future
+     */
+    public CompletableFuture<Void> submit(String conversationId, List<MessageEntity> messages) {
+        TurnWrite write = new TurnWrite(conversationId, messages != null ? messages : new ArrayList<>());
+        CompletableFuture<Void> previous = pending.put(conversationId, write.future);
+        markPending(write);
+        write.future.whenComplete((v, e) -> {
+            pending.remove(conversationId, write.future);
+            clearPending(write);
+        });
+
+        if (config().isEnabled() && running && queue.offer(write)) {
+            return write.future;
+        }
+        if (config().isEnabled()) {
+            syncFallbackCounter.increment();
+            log.warn("消息写入队列已满或已关闭，同步写入: conversationId={}, messages={}",
+                conversationId, write.messages.size());
+        }
+        // 同步写入不经过队列：先等该会话仍在队列中的上一轮写完，保证自增 ID 顺序与轮次一致
+        awaitPrevious(conversationId, previous);
+        flush(List.of(write));
+        return write.future;
+    }
+
+    /**
+     * 等待该会话尚未完成的写入：先等本实例的写入，再等其他实例在 Redis 中留下的待写入标记消失
+     * （总计不超过 await-timeout-ms，超时后继续，仅记录日志）
+     */
+    public void awaitPersisted(String conversationId) {
+        if (conversationId == null) {
+            return;
+        }
+        long startNs = System.nanoTime();
+        long deadlineNs = startNs + TimeUnit.MILLISECONDS.toNanos(Math.max(0, config().getAwaitTimeoutMs()));
+        CompletableFuture<Void> future = pending.get(conversationId);
+        if (future != null) {
+            try {
+                future.get(Math.max(0, deadlineNs - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                log.warn("等待上一轮消息写入超时，历史可能不完整: conversationId={}", conversationId);
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.warn("上一轮消息写入失败: conversationId={}, error={}", conversationId, e.getMessage());
+            }
+        }
+        awaitRemotePending(conversationId, deadlineNs);
+        long waitedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNs);
+        if (waitedMs > 0) {
+            log.debug("等待上一轮消息写入完成: conversationId={}, {}ms", conversationId, waitedMs);
+        }
+    }
+
+    // ── 内部方法 ──────────────────────────────────────────────────────────────
+
+    /**
+     * 轮询 Redis 待写入标记直到消失或超时（本实例的标记在本地写入完成后异步删除，通常只需一两次轮询）
+     */
+    private void awaitRemotePending(String conversationId, long deadlineNs) {
+        try {
+            RBucket<String> marker = pendingMarker(conversationId);
+            while (marker.isExists()) {
+                if (System.nanoTime() >= deadlineNs) {
+                    log.warn("等待其他实例写入上一轮消息超时，历史可能不完整: conversationId={}", conversationId);
+                    return;
+                }
+                Thread.sleep(PENDING_POLL_INTERVAL_MS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.warn("检查会话待写入标记失败: conversationId={}, error={}", conversationId, e.getMessage());
+        }
+    }
+
+    private void markPending(TurnWrite write) {
+        try {
+            pendingMarker(write.conversationId).set(write.id,
+                Math.max(1, config().getPendingMarkerTtlSeconds()), TimeUnit.SECONDS);
+        } catch (Exception e) {
+            log.warn("写入会话待写入标记失败: conversationId={}, error={}", write.conversationId, e.getMessage());
+        }
+    }
+
+    /**
+     * 删除待写入标记（仅当标记仍是本次写入的；之后的提交已覆盖时保留）
+     */
+    private void clearPending(TurnWrite write) {
+        try {
+            pendingMarker(write.conversationId).compareAndSetAsync(write.id, null)
+                .whenComplete((deleted, e) -> {
+                    if (e != null) {
+                        log.warn("删除会话待写入标记失败: conversationId={}, error={}",
+                            write.conversationId, e.getMessage());
+                    }
+                });
+        } catch (Exception e) {
+            log.warn("删除会话待写入标记失败: conversationId={}, error={}", write.conversationId, e.getMessage());
+        }
+    }
+
+    private RBucket<String> pendingMarker(String conversationId) {
+        return redissonClient.getBucket(PENDING_KEY_PREFIX + conversationId, StringCodec.INSTANCE);
+    }
+
+    private void awaitPrevious(String conversationId, CompletableFuture<Void> previous) {
+        if (previous == null || previous.isDone()) {
+            return;
+        }
+        try {
+            previous.get(Math.max(1, config().getShutdownTimeoutSeconds()), TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            log.warn("等待上一轮消息写入超时，同步写入可能排在其之前: conversationId={}", conversationId);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            // 上一轮最终失败，不影响本轮写入
+        }
+    }
+
+    private void writeLoop() {
+        int maxBatchTurns = Math.max(1, config().getMaxBatchTurns());
+        while (running || !queue.isEmpty()) {
+            try {
+                TurnWrite first = queue.poll(200, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                List<TurnWrite> batch = new ArrayList<>();
+                batch.add(first);
+                queue.drainTo(batch, maxBatchTurns - 1);
+                flush(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("消息写入线程异常", e);
+            }
+        }
+    }
+
+    /**
+     * 合并写入多个轮次；合并事务失败时逐轮单独重试
+     */
+    private void flush(List<TurnWrite> batch) {
+        try {
+            write(batch);
+            batch.forEach(w -> w.future.complete(null));
+            return;
+        } catch (Exception e) {
+            if (batch.size() == 1) {
+                fail(batch.get(0), e);
+                return;
+            }
+            log.warn("合并写入 {} 个轮次失败，逐轮重试: {}", batch.size(), e.getMessage());
+        }
+        for (TurnWrite write : batch) {
+            try {
+                write(List.of(write));
+                write.future.complete(null);
+            } catch (Exception e) {
+                fail(write, e);
+            }
+        }
+    }
+
+    private void write(List<TurnWrite> batch) {
+        List<MessageEntity> messages = new ArrayList<>();
+        Map<String, Integer> turnsByConversation = new LinkedHashMap<>();
+        for (TurnWrite write : batch) {
+            messages.addAll(write.messages);
+            turnsByConversation.merge(write.conversationId, 1, Integer::sum);
+        }
+        long startNs = System.nanoTime();
+        transactionTemplate.executeWithoutResult(status -> {
+            if (!messages.isEmpty()) {
+                messageMapper.insertBatch(messages);
+            }
+            turnsByConversation.forEach(conversationMapper::addMessageCount);
+        });
+        flushTimer.record(System.nanoTime() - startNs, TimeUnit.NANOSECONDS);
+        messagesCounter.increment(messages.size());
+        log.debug("批量写入消息: turns={}, messages={}", batch.size(), messages.size());
+    }
+
+    private void fail(TurnWrite write, Exception e) {
+        failedCounter.increment();
+        log.error("写入消息失败，放弃该轮: conversationId={}, messages={}",
+            write.conversationId, write.messages.size(), e);
+        write.future.completeExceptionally(e);
+    }
+
+    private AgentConfig.MemoryConfig.WriteBehindConfig config() {
+        return agentConfig.getMemory().getWriteBehind();
+    }
+
+    private static final class TurnWrite {
+        private final String conversationId;
+        private final List<MessageEntity> messages;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        /** Redis 待写入标记的值 */
+        private final String id = UUID.randomUUID().toString();
+
+        private TurnWrite(String conversationId, List<MessageEntity> messages) {
+            this.conversationId = conversationId;
+            this.messages = messages;
+        }
+    }
+}
@@ -6,11 +6,17 @@ import com.aiagent.domain.model.entity.MessageEntity;
 import com.aiagent.infrastructure.mapper.MessageMapper;
 import com.aiagent.common.util.UUIDGenerator;
 import com.alibaba.fastjson2.JSON;
+import com.alibaba.fastjson2.JSONObject;
+import dev.langchain4j.data.message.AiMessage;
 import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.UserMessage;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -32,24 +38,44 @@ public class MessageService {
      * 保存消息
      * 将 ChatMessage 通过 MessageDTO 完整序列化（含 tool_calls），存入 metadata.messageData
      * 支持无损还原所有 LangChain4j 消息类型
+     *
+     * @return 写入消息的 message_id，消息无法序列化时返回 null
      */
-    public void saveMessage(String conversationId, ChatMessage message, String modelId,
+    public String saveMessage(String conversationId, ChatMessage message, String modelId,
                            Integer tokens, Integer duration, Map<String, Object> customMetadata) {
-        saveMessage(conversationId, message, modelId, null, tokens, duration, customMetadata);
+        return saveMessage(conversationId, message, modelId, null, tokens, duration, customMetadata);
     }
 
     /**
      * 保存消息（含 agentId）
      * 将 ChatMessage 通过 MessageDTO 完整序列化（含 tool_calls），存入 metadata.messageData
      * 支持无损还原所有 LangChain4j 消息类型
+     *
+     * @return 写入消息的 message_id，消息无法序列化时返回 null
      */
-    public void saveMessage(String conversationId, ChatMessage message, String modelId,
+    public String saveMessage(String conversationId, ChatMessage message, String modelId,
                            String agentId, Integer tokens, Integer duration, Map<String, Object> customMetadata) {
+        MessageEntity entity = buildEntity(conversationId, message, modelId, agentId, tokens, duration, customMetadata);
+        if (entity == null) {
+            return null;
+        }
+        messageMapper.insert(entity);
+        log.debug("保存消息: conversationId={}, role={}, agentId={}", conversationId, entity.getRole(), agentId);
+        return entity.getMessageId();
+    }
+
+    /**
+     * 构建待持久化的 MessageEntity（不写库，供批量写入使用）
+     *
+     * @return 消息无法序列化时返回 null
+     */
+    public MessageEntity buildEntity(String conversationId, ChatMessage message, String modelId,
+                                     String agentId, Integer tokens, Integer duration, Map<String, Object> customMetadata) {
         // 1. 通过 MessageDTO（BO）将 ChatMessage 完整序列化
         MessageBO messageBO = MessageBO.from(message);
         if (messageBO == null) {
             log.warn("消息序列化失败，跳过保存: conversationId={}", conversationId);
-            return;
+            return null;
         }
 
         // 2. 构建 MessageEntity
@@ -79,11 +105,62 @@ public class MessageService {
         }
         fullMetadata.put("messageData", JSON.parseObject(JSON.toJSONString(messageBO)));
         entity.setMetadata(JSON.toJSONString(fullMetadata));
-
-        messageMapper.insert(entity);
-        log.debug("保存消息: conversationId={}, role={}, agentId={}", conversationId, role, agentId);
+        return entity;
     }
     
+    /**
+     * 将 MessageEntity 还原为 ChatMessage（优先使用 metadata.messageData 无损还原，缺失时按 role + content 降级）
+     */
+    public ChatMessage toChatMessage(MessageEntity entity) {
+        if (entity == null) {
+            return null;
+        }
+
+        if (entity.getMetadata() != null && !entity.getMetadata().isEmpty()) {
+            try {
+                JSONObject metadata = JSON.parseObject(entity.getMetadata());
+                if (metadata != null && metadata.containsKey("messageData")) {
+                    Object messageDataObj = metadata.get("messageData");
+                    MessageBO dto = null;
+
+                    if (messageDataObj instanceof JSONObject) {
+                        dto = ((JSONObject) messageDataObj).toJavaObject(MessageBO.class);
+                    } else if (messageDataObj instanceof String) {
+                        dto = JSON.parseObject((String) messageDataObj, MessageBO.class);
+                    }
+
+                    if (dto != null) {
+                        ChatMessage restored = dto.toChatMessage();
+                        if (restored != null) {
+                            return restored;
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                log.warn("从 metadata 还原消息失败，降级使用 role+content: conversationId={}, error={}",
+                    entity.getConversationId(), e.getMessage());
+            }
+        }
+
+        String role = entity.getRole();
+        String content = entity.getContent() != null ? entity.getContent() : "";
+
+        if ("user".equalsIgnoreCase(role)) {
+            return new UserMessage(content);
+        } else if ("assistant".equalsIgnoreCase(role) || "ai".equalsIgnoreCase(role)) {
+            return content.isEmpty() ? null : AiMessage.from(content);
+        } else if ("system".equalsIgnoreCase(role)) {
+            return SystemMessage.from(content);
+        } else if ("tool".equalsIgnoreCase(role)) {
+            log.warn("无法还原 tool 类型消息（缺少 metadata.messageData），跳过: messageId={}",
+                entity.getMessageId());
+            return null;
+        } else {
+            log.warn("未知的消息角色类型: {}", role);
+            return null;
+        }
+    }
+
     /**
      * 获取会话消息列表（仅返回对话展示有意义的 user / assistant 消息）
      *
@@ -97,7 +174,18 @@ public class MessageService {
      * </ul>
      */
     public List<MessageResponse> getMessages(String conversationId, int limit) {
-        List<MessageEntity> entities = messageMapper.selectByConversationId(conversationId, limit);
+        return getMessages(conversationId, limit, null);
+    }
+
+    /**
+     * 获取会话消息列表（最近 limit 条，按时间正序返回；过滤规则同上）
+     *
+     * @param beforeId 向前翻页游标：只返回 {@code seq} 小于该值的消息，传入上一页最早一条的 {@code seq}；
+     *                 null 表示从最新消息开始
+     */
+    public List<MessageResponse> getMessages(String conversationId, int limit, Long beforeId) {
+        List<MessageEntity> entities = messageMapper.selectPageDesc(conversationId, beforeId, limit);
+        Collections.reverse(entities);
 
         return entities.stream()
             .filter(this::isDisplayableMessage)
@@ -105,6 +193,32 @@ public class MessageService {
             .collect(Collectors.toList());
     }
 
+    /**
+     * 按 keyset 加载会话最近的历史消息（按时间正序返回，仅包含还原 ChatMessage 所需的列）
+     * <p>只扫描 (conversation_id, id) 索引上的 limit 条记录，加载代价不随会话长度增长；
+     * 需要更早的消息时以返回结果中第一条的 id 作为 beforeId 继续加载。
+     *
+     * @param afterId  只加载 id 大于该值的消息（如摘要覆盖点），null 表示不限制
+     * @param beforeId 只加载 id 小于该值的消息，null 表示从最新消息开始
+     */
+    public List<MessageEntity> loadHistoryTail(String conversationId, Long afterId, Long beforeId, int limit) {
+        List<MessageEntity> entities = messageMapper.selectHistoryDesc(conversationId, afterId, beforeId, limit);
+        if (entities == null) {
+            return new ArrayList<>();
+        }
+        Collections.reverse(entities);
+        return entities;
+    }
+
+    /**
+     * 查询会话最新一条消息的 message_id（只走 (conversation_id, id) 索引取一行）
+     *
+     * @return 会话没有消息时返回 null
+     */
+    public String getLatestMessageId(String conversationId) {
+        return messageMapper.selectLatestMessageId(conversationId);
+    }
+
     /**
      * 判断消息是否需要展示给前端
      * 过滤掉工具执行结果消息和空内容的工具调用请求消息（这些已内嵌到 executionProcess 中）
@@ -151,6 +265,7 @@ public class MessageService {
     private MessageResponse convertToResponse(MessageEntity entity) {
         MessageResponse response = new MessageResponse();
         response.setId(entity.getMessageId());
+        response.setSeq(entity.getId());
         response.setRole(entity.getRole());
         response.setContent(entity.getContent());
         response.setModelId(entity.getModelId());
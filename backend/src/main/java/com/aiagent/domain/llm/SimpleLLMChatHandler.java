@@ -1,7 +1,13 @@
 package com.aiagent.domain.llm;
 
 import com.aiagent.application.StreamingCallback;
+import com.aiagent.common.util.CancellationToken;
+import com.aiagent.common.util.TokenEstimator;
+import com.aiagent.infrastructure.config.AgentConfig;
+import com.aiagent.infrastructure.external.llm.ModelHealthRegistry;
+import com.aiagent.infrastructure.external.llm.ModelHedgingPolicy;
 import com.aiagent.infrastructure.external.llm.ModelManager;
+import com.aiagent.infrastructure.external.llm.ModelRateLimiter;
 import dev.langchain4j.agent.tool.ToolSpecification;
 import dev.langchain4j.data.message.AiMessage;
 import dev.langchain4j.data.message.ChatMessage;
@@ -10,8 +16,12 @@ import dev.langchain4j.model.chat.StreamingChatModel;
 import dev.langchain4j.model.chat.request.ChatRequest;
 import dev.langchain4j.model.chat.request.ResponseFormat;
 import dev.langchain4j.model.chat.response.ChatResponse;
+import dev.langchain4j.model.chat.response.PartialResponse;
+import dev.langchain4j.model.chat.response.PartialResponseContext;
 import dev.langchain4j.model.chat.response.PartialThinking;
+import dev.langchain4j.model.chat.response.PartialThinkingContext;
 import dev.langchain4j.model.chat.response.StreamingChatResponseHandler;
+import dev.langchain4j.model.chat.response.StreamingHandle;
 import dev.langchain4j.service.AiServices;
 import dev.langchain4j.service.TokenStream;
 import lombok.extern.slf4j.Slf4j;
@@ -19,6 +29,11 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * 简化的LLM聊天处理器
@@ -26,6 +41,10 @@ import java.util.List;
  * 
  * 实现方式：使用AiServices创建接口代理，自动生成TokenStream
  * 
+ * 流式 / 非流式调用经过运行时路由：熔断或限流中的模型按 task-model-mapping 切换到后续模型，
+ * 调用结果记录到 {@link ModelHealthRegistry}；Function Calling 流式对话可开启对冲请求（{@link ModelHedgingPolicy}）。
+ * 每次实际调用模型前经过 {@link ModelRateLimiter} 申请 RPM / TPM 额度，超限时排队等待
+ * 
  * @author aiagent
  */
 @Slf4j
@@ -34,6 +53,18 @@ public class SimpleLLMChatHandler {
     
     @Autowired
     private ModelManager modelManager;
+
+    @Autowired
+    private ModelHealthRegistry modelHealthRegistry;
+
+    @Autowired
+    private ModelHedgingPolicy hedgingPolicy;
+
+    @Autowired
+    private ModelRateLimiter rateLimiter;
+
+    @Autowired
+    private AgentConfig agentConfig;
     
     /**
      * 流式聊天接口
@@ -98,23 +129,52 @@ public class SimpleLLMChatHandler {
         log.info("开始LLM非流式对话，模型: {}, messages={}, chars={}", modelId, messageCount, totalChars);
         long startNs = System.nanoTime();
         
-        try {
-            // 使用ModelManager获取模型实例（支持故障转移）
-            ChatModel chatModel = modelManager.getOrCreateChatModel(modelId);
-            
-            // 直接使用ChatModel的generate方法（LangChain4j 1.9.1的ChatModel接口方法）
-            ChatResponse response = chatModel.chat(messages);
-            AiMessage aiMessage = response.aiMessage();
-            String responseText = aiMessage != null ? aiMessage.text() : "";
-            
-            log.info("LLM非流式对话完成，耗时 {} ms，响应长度: {}", elapsedMs(startNs),
-                responseText != null ? responseText.length() : 0);
-            return responseText;
+        Exception lastError = null;
+        List<String> candidates = routingCandidates(modelId);
+        boolean attempted = false;
+        for (int i = 0; i < candidates.size(); i++) {
+            String candidate = candidates.get(i);
+            // 熔断中的模型跳过；全部候选均不可用时仍尝试最后一个，让真实错误暴露
+            boolean lastCandidate = i == candidates.size() - 1;
+            ModelHealthRegistry.Admission admission = modelHealthRegistry.admit(candidate);
+            if (admission == ModelHealthRegistry.Admission.REJECTED && (attempted || !lastCandidate)) {
+                continue;
+            }
+            attempted = true;
+            try {
+                await(rateLimiter.acquire(candidate, null, TokenEstimator.estimate(messages), null),
+                    "LLM限流排队失败: ");
+            } catch (RuntimeException e) {
+                // 本地限流排队超时：请求未发往服务商，不计入模型健康状态，归还探测名额后尝试下一个候选
+                if (admission == ModelHealthRegistry.Admission.PROBE) {
+                    modelHealthRegistry.releaseProbe(candidate);
+                }
+                log.warn("LLM限流排队失败，模型: {}，耗时 {} ms: {}", candidate, elapsedMs(startNs), e.getMessage());
+                lastError = e;
+                continue;
+            }
+            try {
+                // 使用ModelManager获取模型实例（熔断的模型按 task-model-mapping 故障转移）
+                ChatModel chatModel = modelManager.getOrCreateChatModel(candidate);
                 
-        } catch (Exception e) {
-            log.error("LLM非流式调用失败，耗时 {} ms", elapsedMs(startNs), e);
-            throw new RuntimeException("LLM调用失败: " + e.getMessage(), e);
+                // 直接使用ChatModel的generate方法（LangChain4j 1.9.1的ChatModel接口方法）
+                ChatResponse response = chatModel.chat(messages);
+                modelHealthRegistry.recordSuccess(candidate);
+                AiMessage aiMessage = response.aiMessage();
+                String responseText = aiMessage != null ? aiMessage.text() : "";
+                
+                log.info("LLM非流式对话完成，模型: {}，耗时 {} ms，响应长度: {}", candidate, elapsedMs(startNs),
+                    responseText != null ? responseText.length() : 0);
+                return responseText;
+                    
+            } catch (Exception e) {
+                modelHealthRegistry.recordFailure(candidate, e);
+                log.warn("LLM非流式调用失败，模型: {}，耗时 {} ms: {}", candidate, elapsedMs(startNs), e.getMessage());
+                lastError = e;
+            }
         }
+        log.error("LLM非流式调用失败，耗时 {} ms", elapsedMs(startNs), lastError);
+        throw new RuntimeException("LLM调用失败: " + (lastError != null ? lastError.getMessage() : "没有可用的模型"), lastError);
     }
 
     /**
@@ -129,220 +189,46 @@ public class SimpleLLMChatHandler {
      * @return 完整的AI回复文本（阻塞等待完成）
      */
     public String chatWithCallback(String modelId, List<ChatMessage> messages, StreamingCallback callback) {
+        return await(chatWithCallbackAsync(modelId, messages, callback), "LLM调用失败: ");
+    }
+
+    /**
+     * 流式聊天（异步版本），不占用调用线程等待生成完成
+     *
+     * @return 生成完成后以完整回复文本完成的 Future
+     */
+    public CompletableFuture<String> chatWithCallbackAsync(String modelId, List<ChatMessage> messages, StreamingCallback callback) {
         log.info("开始LLM真正流式对话，模型: {}", modelId);
-        long startNs = System.nanoTime();
-        
-        try {
-            // 通知开始生成
-            if (callback != null) {
-                callback.onStart();
-            }
-            
-            // 获取流式模型
-            StreamingChatModel streamingModel = modelManager.getOrCreateStreamingModel(modelId);
-            
-            // 用于收集完整文本和同步
-            StringBuilder fullTextBuilder = new StringBuilder();
-            final Object lock = new Object();
-            final boolean[] completed = {false};
-            final Throwable[] error = {null};
-            
-            // 创建ChatRequest
-            ChatRequest chatRequest = ChatRequest.builder()
-                .messages(messages)
-                .build();
-            
-            // 创建StreamingChatResponseHandler适配器
-            StreamingChatResponseHandler handler = new StreamingChatResponseHandler() {
-                @Override
-                public void onPartialResponse(String partialResponse) {
-                    // 收集token
-                    fullTextBuilder.append(partialResponse);
-                    
-                    // 实时发送到callback
-                    if (callback != null) {
-                        try {
-                            callback.onToken(partialResponse);
-                        } catch (Exception e) {
-                            log.error("回调onToken失败", e);
-                        }
-                    }
-                }
-                
-                // 适配 LangChain4j 的思考过程回调 (既然用户明确要求使用 onPartialThinking，我们假设 SDK 支持此方法)
-                // 如果编译报错，说明 SDK 版本过低，需要升级或移除
-                public void onPartialThinking(String partialThinking) {
-                    if (callback != null) {
-                        try {
-                            callback.onThinking(partialThinking);
-                        } catch (Exception e) {
-                            log.error("回调onThinking失败", e);
-                        }
-                    }
-                }
-                
-                @Override
-                public void onCompleteResponse(ChatResponse completeResponse) {
-                    String fullText = fullTextBuilder.toString();
-                    log.info("LLM真正流式对话完成，总长度: {}", fullText.length());
-                    
-                    // 通知完成（这会触发SSE事件发送）
-                    if (callback != null) {
-                        try {
-                            callback.onComplete(fullText);
-                        } catch (Exception e) {
-                            log.error("回调onComplete失败", e);
-                        }
-                    }
-                    
-                    // onCompleteResponse 是在最后一个 onPartialResponse 之后被调用的
-                    // 此时所有token都已发送完成，可以安全地唤醒主线程
-                    synchronized (lock) {
-                        completed[0] = true;
-                        lock.notifyAll();
-                    }
-                }
-                
-                @Override
-                public void onError(Throwable throwable) {
-                    synchronized (lock) {
-                        error[0] = throwable;
-                        completed[0] = true;
-                        lock.notifyAll();
-                    }
-                    
-                    log.error("LLM流式对话错误", throwable);
-                    
-                    // 通知错误
-                    if (callback != null) {
-                        try {
-                            callback.onError(throwable);
-                        } catch (Exception e) {
-                            log.error("回调onError失败", e);
-                        }
-                    }
-                }
-            };
-            
-            // 调用真正的流式API
-            streamingModel.chat(chatRequest, handler);
-            
-            // 阻塞等待流式处理完成
-            synchronized (lock) {
-                while (!completed[0]) {
-                    try {
-                        lock.wait();
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                        throw new RuntimeException("等待LLM响应被中断", e);
-                    }
-                }
-            }
-            
-            // 检查是否有错误
-            if (error[0] != null) {
-                throw new RuntimeException("LLM生成失败", error[0]);
-            }
-            log.info("LLM真正流式对话完成，耗时 {} ms", elapsedMs(startNs));
-            return fullTextBuilder.toString();
-                
-        } catch (Exception e) {
-            log.error("LLM真正流式调用失败，耗时 {} ms", elapsedMs(startNs), e);
-            if (callback != null) {
-                try {
-                    callback.onError(e);
-                } catch (Exception ex) {
-                    log.error("回调onError失败", ex);
-                }
-            }
-            throw new RuntimeException("LLM调用失败: " + e.getMessage(), e);
-        }
+        ChatRequest chatRequest = ChatRequest.builder()
+            .messages(messages)
+            .build();
+        StringBuilder fullTextBuilder = new StringBuilder();
+        return streamAsync(modelId, chatRequest, callback, fullTextBuilder, false, false, null, "LLM流式对话", null)
+            .thenApply(response -> fullTextBuilder.toString());
     }
 
     public String chatWithResponseFormat(String modelId, List<ChatMessage> messages, ResponseFormat responseFormat, StreamingCallback callback) {
+        return await(chatWithResponseFormatAsync(modelId, messages, responseFormat, callback), "LLM调用失败: ");
+    }
+
+    /**
+     * 结构化输出流式聊天（异步版本）
+     *
+     * @return 生成完成后以完整回复文本完成的 Future
+     */
+    public CompletableFuture<String> chatWithResponseFormatAsync(String modelId, List<ChatMessage> messages,
+                                                                 ResponseFormat responseFormat, StreamingCallback callback) {
         if (callback==null){
             throw new RuntimeException("callback 参数必传");
         }
         log.info("开始LLM流式对话（结构化输出），模型: {}", modelId);
-        long startNs = System.nanoTime();
-        try {
-            callback.onStart();
-            StreamingChatModel streamingModel = modelManager.getOrCreateStreamingModel(modelId);
-            StringBuilder fullTextBuilder = new StringBuilder();
-            final Object lock = new Object();
-            final boolean[] completed = new boolean[1];
-            final Throwable[] error = new Throwable[1];
-            StreamingChatResponseHandler handler = new StreamingChatResponseHandler() {
-                @Override
-                public void onPartialResponse(String partialResponse) {
-                    fullTextBuilder.append(partialResponse);
-                    try {
-                        callback.onToken(partialResponse);
-                    } catch (Exception e) {
-                        log.error("回调onToken失败", e);
-                    }
-                }
-
-                @Override
-                public void onPartialThinking(PartialThinking partialThinking) {
-                    try {
-                        callback.onThinking(partialThinking.text());
-                    } catch (Exception e) {
-                        log.error("回调onThinking失败", e);
-                    }
-                }
-                
-                @Override
-                public void onCompleteResponse(ChatResponse completeResponse) {
-                    String fullText = fullTextBuilder.toString();
-                    try {
-                        callback.onComplete(fullText);
-                    } catch (Exception e) {
-                        log.error("回调onComplete失败", e);
-                    }
-                    synchronized (lock) {
-                        completed[0] = true;
-                        lock.notifyAll();
-                    }
-                }
-                @Override
-                public void onError(Throwable throwable) {
-                    synchronized (lock) {
-                        error[0] = throwable;
-                        completed[0] = true;
-                        lock.notifyAll();
-                    }
-                    try {
-                        callback.onError(throwable);
-                    } catch (Exception e) {
-                        log.error("回调onError失败", e);
-                    }
-                }
-            };
-            ChatRequest chatRequest = ChatRequest.builder()
-                .messages(messages)
-                .responseFormat(responseFormat)
-                .build();
-            streamingModel.chat(chatRequest, handler);
-            synchronized (lock) {
-                while (!completed[0]) {
-                    try {
-                        lock.wait();
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                        throw new RuntimeException("等待LLM响应被中断", e);
-                    }
-                }
-            }
-            if (error[0] != null) {
-                throw new RuntimeException("LLM生成失败", error[0]);
-            }
-            log.info("LLM结构化流式对话完成，耗时 {} ms", elapsedMs(startNs));
-            return fullTextBuilder.toString();
-        } catch (Exception e) {
-            log.error("LLM结构化流式调用失败，耗时 {} ms", elapsedMs(startNs), e);
-            throw new RuntimeException("LLM调用失败: " + e.getMessage(), e);
-        }
+        ChatRequest chatRequest = ChatRequest.builder()
+            .messages(messages)
+            .responseFormat(responseFormat)
+            .build();
+        StringBuilder fullTextBuilder = new StringBuilder();
+        return streamAsync(modelId, chatRequest, callback, fullTextBuilder, true, false, null, "LLM结构化流式对话", null)
+            .thenApply(response -> fullTextBuilder.toString());
     }
 
     private int estimateMessageChars(List<ChatMessage> messages) {
@@ -363,28 +249,308 @@ public class SimpleLLMChatHandler {
             List<ChatMessage> messages,
             List<ToolSpecification> toolSpecs,
             StreamingCallback callback) {
+        return await(chatWithToolsStreamingAsync(modelId, messages, toolSpecs, callback), "LLM 调用失败: ");
+    }
+
+    /**
+     * Function Calling 流式对话（异步版本）
+     *
+     * <p>发起请求后立即返回，token 通过 callback 实时推送，模型完成时 Future 以完整 {@link ChatResponse} 完成，
+     * 出错时以异常完成（callback.onError 已被调用）。等待期间不占用任何线程，
+     * 供 {@code FunctionCallingEngine} 以 continuation 方式驱动推理循环。
+     */
+    public CompletableFuture<ChatResponse> chatWithToolsStreamingAsync(
+            String modelId,
+            List<ChatMessage> messages,
+            List<ToolSpecification> toolSpecs,
+            StreamingCallback callback) {
+        return chatWithToolsStreamingAsync(modelId, messages, toolSpecs, callback, null);
+    }
+
+    /**
+     * Function Calling 流式对话（异步版本，带会话 ID）
+     *
+     * @param conversationId 会话 ID，模型限流排队时按会话公平调度
+     */
+    public CompletableFuture<ChatResponse> chatWithToolsStreamingAsync(
+            String modelId,
+            List<ChatMessage> messages,
+            List<ToolSpecification> toolSpecs,
+            StreamingCallback callback,
+            String conversationId) {
+        return chatWithToolsStreamingAsync(modelId, messages, toolSpecs, callback, conversationId, null);
+    }
+
+    /**
+     * Function Calling 流式对话（异步版本，带会话 ID 与取消令牌）
+     *
+     * @param cancellationToken 取消时中止进行中的 HTTP 流（含对冲请求），Future 以
+     *                          {@link CancellationException} 完成且不再回调 callback；可为空
+     */
+    public CompletableFuture<ChatResponse> chatWithToolsStreamingAsync(
+            String modelId,
+            List<ChatMessage> messages,
+            List<ToolSpecification> toolSpecs,
+            StreamingCallback callback,
+            String conversationId,
+            CancellationToken cancellationToken) {
         log.info("开始 Function Calling 流式对话，模型: {}, toolSpecs={}", modelId,
             toolSpecs != null ? toolSpecs.size() : 0);
-        long startNs = System.nanoTime();
+        ChatRequest.Builder requestBuilder = ChatRequest.builder()
+                .messages(messages);
+        if (toolSpecs != null && !toolSpecs.isEmpty()) {
+            requestBuilder.toolSpecifications(toolSpecs);
+        }
+        return streamAsync(modelId, requestBuilder.build(), callback, new StringBuilder(), true, true,
+            conversationId, "Function Calling 流式对话", cancellationToken);
+    }
+
+    /**
+     * 发起流式请求，将回调桥接为 Future
+     *
+     * @param fullTextBuilder 收集完整回复文本
+     * @param forwardThinking 是否将思考增量转发给 callback.onThinking
+     * @param hedgeable       是否允许对冲请求（同时需开启 aiagent.model.hedging.enabled）
+     * @param conversationId  会话 ID（限流排队的公平调度键，可为空）
+     * @param label           日志标识
+     * @param cancellationToken 取消令牌（可为空）
+     */
+    private CompletableFuture<ChatResponse> streamAsync(String modelId,
+                                                        ChatRequest chatRequest,
+                                                        StreamingCallback callback,
+                                                        StringBuilder fullTextBuilder,
+                                                        boolean forwardThinking,
+                                                        boolean hedgeable,
+                                                        String conversationId,
+                                                        String label,
+                                                        CancellationToken cancellationToken) {
+        RoutedStream stream = new RoutedStream(chatRequest, callback, fullTextBuilder, forwardThinking,
+            hedgeable && hedgingPolicy.isEnabled(), conversationId, label);
+        if (cancellationToken != null) {
+            Runnable unregister = cancellationToken.onCancel(() -> stream.cancel(cancellationToken.getReason()));
+            stream.future.whenComplete((r, e) -> unregister.run());
+            if (cancellationToken.isCancelled()) {
+                return stream.future;
+            }
+        }
         try {
             if (callback != null) {
                 callback.onStart();
             }
-            StreamingChatModel streamingModel = modelManager.getOrCreateStreamingModel(modelId);
-            StringBuilder fullTextBuilder = new StringBuilder();
-            final Object lock = new Object();
-            final boolean[] completed = {false};
-            final Throwable[] error = {null};
-            final ChatResponse[] finalResponse = {null};
-            ChatRequest.Builder requestBuilder = ChatRequest.builder()
-                    .messages(messages);
-            if (toolSpecs != null && !toolSpecs.isEmpty()) {
-                requestBuilder.toolSpecifications(toolSpecs);
-            }
-            ChatRequest chatRequest = requestBuilder.build();
+            stream.candidates = routingCandidates(modelId);
+            stream.next(0, null);
+        } catch (Exception e) {
+            stream.fail(e);
+        }
+        return stream.future;
+    }
+
+    /**
+     * 模型路由候选列表：开启路由时为 请求模型 + task-model-mapping 中的后续模型 + 默认模型
+     */
+    private List<String> routingCandidates(String modelId) {
+        if (!agentConfig.getModel().getRouting().isEnabled()) {
+            String resolved = modelId == null || modelId.isEmpty() ? agentConfig.getModel().getDefaultModelId() : modelId;
+            return java.util.Collections.singletonList(resolved);
+        }
+        return modelManager.resolveFallbackChain(modelId);
+    }
+
+    /**
+     * 一次带故障转移与对冲的流式调用
+     *
+     * <p>按候选顺序选择熔断器放行的模型；调用失败且尚未向 callback 推送任何内容时切换到下一个候选模型，
+     * 已推送内容后失败则直接报错（避免前端收到两段拼接的回复）。
+     * 每次调用的首 token 延迟、成功 / 失败 / 限流结果记录到 {@link ModelHealthRegistry}。
+     *
+     * <p>开启对冲时，若在 {@link ModelHedgingPolicy#hedgeDelayMs} 内未收到首 token，
+     * 在预算允许的情况下向后续候选模型（或同一模型）再发起一次请求。两路中先产出内容（或直接完成）的一路胜出，
+     * 另一路的后续事件全部丢弃、结果不再使用；两路都失败后才进入故障转移。
+     */
+    private final class RoutedStream {
+        private final ChatRequest chatRequest;
+        private final StreamingCallback callback;
+        private final StringBuilder fullTextBuilder;
+        private final boolean forwardThinking;
+        private final boolean hedging;
+        private final String conversationId;
+        private final long estimatedTokens;
+        private final String label;
+        private final long startNs = System.nanoTime();
+        private final CompletableFuture<ChatResponse> future = new CompletableFuture<>();
+        private List<String> candidates;
+
+        /** 胜出的调用（首个向 callback 推送内容或完成的一路），之后其余调用的事件全部忽略 */
+        private final AtomicReference<Attempt> winner = new AtomicReference<>();
+
+        /** 已取消：之后所有调用的事件全部忽略，不再故障转移或对冲 */
+        private volatile boolean cancelled;
+
+        /** 已发起的调用（取消时逐个中止其 HTTP 流） */
+        private final List<Attempt> attempts = new java.util.concurrent.CopyOnWriteArrayList<>();
+
+        // 以下字段受本对象锁保护
+        /** 进行中的调用数 */
+        private int inFlight;
+        /** 故障转移时的下一个候选下标 */
+        private int nextIndex;
+        /** 当前主调用（非对冲） */
+        private Attempt primary;
+        /** 本次流式调用是否已发出对冲请求（每次最多对冲一次） */
+        private boolean hedged;
+        private ScheduledFuture<?> hedgeTimer;
+
+        private RoutedStream(ChatRequest chatRequest, StreamingCallback callback, StringBuilder fullTextBuilder,
+                             boolean forwardThinking, boolean hedging, String conversationId, String label) {
+            this.chatRequest = chatRequest;
+            this.callback = callback;
+            this.fullTextBuilder = fullTextBuilder;
+            this.forwardThinking = forwardThinking;
+            this.hedging = hedging;
+            this.conversationId = conversationId;
+            this.estimatedTokens = TokenEstimator.estimate(chatRequest.messages());
+            this.label = label;
+        }
+
+        /**
+         * 从 fromIndex 开始选择第一个可用模型发起调用
+         */
+        void next(int fromIndex, Throwable lastError) {
+            if (cancelled) {
+                return;
+            }
+            int index = -1;
+            boolean probe = false;
+            for (int i = fromIndex; i < candidates.size(); i++) {
+                ModelHealthRegistry.Admission admission = modelHealthRegistry.admit(candidates.get(i));
+                if (admission != ModelHealthRegistry.Admission.REJECTED) {
+                    index = i;
+                    probe = admission == ModelHealthRegistry.Admission.PROBE;
+                    break;
+                }
+            }
+            if (index < 0) {
+                if (fromIndex > 0) {
+                    fail(lastError);
+                    return;
+                }
+                // 全部候选均熔断：仍使用请求的模型，让真实错误暴露并顺带探测恢复
+                index = 0;
+                log.warn("{}：候选模型均不可用，仍尝试请求的模型: {}", label, candidates.get(0));
+            }
+            String candidate = candidates.get(index);
+            if (index > 0) {
+                log.warn("{}：路由到备用模型 {}（请求模型 {}）", label, candidate, candidates.get(0));
+            }
+            Attempt attempt = new Attempt(index, candidate, false);
+            attempt.probe = probe;
+            boolean armHedge;
+            synchronized (this) {
+                inFlight++;
+                nextIndex = Math.max(nextIndex, index + 1);
+                primary = attempt;
+                armHedge = hedging && !hedged;
+            }
+            if (armHedge) {
+                armHedge(attempt);
+            }
+            start(attempt);
+        }
+
+        private void armHedge(Attempt attempt) {
+            hedgingPolicy.recordRequest(attempt.candidate);
+            long delayMs = hedgingPolicy.hedgeDelayMs(attempt.candidate);
+            ScheduledFuture<?> timer = hedgingPolicy.schedule(() -> fireHedge(attempt, delayMs), delayMs);
+            synchronized (this) {
+                cancelHedgeTimer();
+                hedgeTimer = timer;
+            }
+        }
+
+        /**
+         * 对冲延迟到期：主调用仍未产出内容时，在预算内发起对冲请求
+         */
+        private void fireHedge(Attempt hedgedAttempt, long delayMs) {
+            Attempt hedge;
+            synchronized (this) {
+                hedgeTimer = null;
+                if (cancelled || hedged || primary != hedgedAttempt || winner.get() != null || inFlight == 0
+                        || future.isDone()) {
+                    return;
+                }
+                int target = hedgeTarget(hedgedAttempt);
+                if (target < 0 || !hedgingPolicy.tryAcquireHedge(hedgedAttempt.candidate)) {
+                    return;
+                }
+                boolean probe = false;
+                if (target != hedgedAttempt.index) {
+                    ModelHealthRegistry.Admission admission = modelHealthRegistry.admit(candidates.get(target));
+                    if (admission == ModelHealthRegistry.Admission.REJECTED) {
+                        // 备用模型刚被熔断，改为对冲到同一模型
+                        target = hedgedAttempt.index;
+                    } else {
+                        probe = admission == ModelHealthRegistry.Admission.PROBE;
+                    }
+                }
+                hedged = true;
+                inFlight++;
+                nextIndex = Math.max(nextIndex, target + 1);
+                hedge = new Attempt(target, candidates.get(target), true);
+                hedge.probe = probe;
+            }
+            log.info("{}：模型 {} 在 {} ms 内未返回首 token，发起对冲请求到模型 {}", label,
+                hedgedAttempt.candidate, delayMs, hedge.candidate);
+            start(hedge);
+        }
+
+        /**
+         * 对冲目标：优先后续候选中可用的其他模型，否则同一模型（调用方持有锁）
+         */
+        private int hedgeTarget(Attempt hedgedAttempt) {
+            if (hedgingPolicy.isPreferSecondaryModel()) {
+                for (int i = nextIndex; i < candidates.size(); i++) {
+                    String candidate = candidates.get(i);
+                    if (!candidate.equals(hedgedAttempt.candidate) && modelHealthRegistry.isAvailable(candidate)) {
+                        return i;
+                    }
+                }
+            }
+            return modelHealthRegistry.isAvailable(hedgedAttempt.candidate) ? hedgedAttempt.index : -1;
+        }
+
+        private void start(Attempt attempt) {
+            attempts.add(attempt);
+            Attempt current = winner.get();
+            if (current != null && current != attempt) {
+                // 对冲触发与另一路胜出并发：胜出方已遍历过 attempts，这里补上中止
+                attempt.cancel();
+            }
             StreamingChatResponseHandler handler = new StreamingChatResponseHandler() {
+                private boolean firstToken = true;
+
+                @Override
+                public void onPartialResponse(PartialResponse partialResponse, PartialResponseContext context) {
+                    if (attempt.bind(context.streamingHandle())) {
+                        onPartialResponse(partialResponse.text());
+                    }
+                }
+
+                @Override
+                public void onPartialThinking(PartialThinking partialThinking, PartialThinkingContext context) {
+                    if (attempt.bind(context.streamingHandle())) {
+                        onPartialThinking(partialThinking);
+                    }
+                }
+
                 @Override
                 public void onPartialResponse(String partialResponse) {
+                    if (cancelled || attempt.cancelled) {
+                        return;
+                    }
+                    observeFirstToken();
+                    if (!claim(attempt)) {
+                        return;
+                    }
                     fullTextBuilder.append(partialResponse);
                     if (callback != null) {
                         try {
@@ -394,9 +560,17 @@ public class SimpleLLMChatHandler {
                         }
                     }
                 }
+
                 @Override
-                public void onPartialThinking(dev.langchain4j.model.chat.response.PartialThinking partialThinking) {
-                    if (callback != null) {
+                public void onPartialThinking(PartialThinking partialThinking) {
+                    if (cancelled || attempt.cancelled) {
+                        return;
+                    }
+                    observeFirstToken();
+                    if (!claim(attempt)) {
+                        return;
+                    }
+                    if (forwardThinking && callback != null) {
                         try {
                             callback.onThinking(partialThinking.text());
                         } catch (Exception e) {
@@ -404,12 +578,25 @@ public class SimpleLLMChatHandler {
                         }
                     }
                 }
+
                 @Override
                 public void onCompleteResponse(ChatResponse completeResponse) {
-                    finalResponse[0] = completeResponse;
+                    if (cancelled || attempt.cancelled) {
+                        // 整体取消或对冲落败被中止：结果不计入模型健康状态
+                        abandon(attempt);
+                        return;
+                    }
+                    modelHealthRegistry.recordSuccess(attempt.candidate);
+                    release();
+                    if (!claim(attempt)) {
+                        log.debug("{}：落败调用已完成，忽略结果，模型={}", label, attempt.candidate);
+                        return;
+                    }
                     String fullText = fullTextBuilder.toString();
-                    log.info("Function Calling 流式对话完成，文本长度={}, finishReason={}",
-                        fullText.length(), completeResponse.finishReason());
+                    log.info("{}完成，模型={}, 文本长度={}, finishReason={}, 耗时 {} ms", label, attempt.candidate,
+                        fullText.length(), completeResponse != null ? completeResponse.finishReason() : null,
+                        elapsedMs(startNs));
+                    // onCompleteResponse 在最后一个 onPartialResponse 之后调用，此时所有 token 都已推送
                     if (callback != null) {
                         try {
                             callback.onComplete(fullText);
@@ -417,54 +604,279 @@ public class SimpleLLMChatHandler {
                             log.error("回调 onComplete 失败", e);
                         }
                     }
-                    synchronized (lock) {
-                        completed[0] = true;
-                        lock.notifyAll();
-                    }
+                    future.complete(completeResponse);
                 }
+
                 @Override
                 public void onError(Throwable throwable) {
-                    synchronized (lock) {
-                        error[0] = throwable;
-                        completed[0] = true;
-                        lock.notifyAll();
+                    if (cancelled || attempt.cancelled) {
+                        // 主动中止（整体取消或对冲落败）引起的错误不计入模型健康状态，也不触发故障转移
+                        abandon(attempt);
+                        return;
                     }
-                    log.error("Function Calling 流式对话错误", throwable);
-                    if (callback != null) {
-                        try {
-                            callback.onError(throwable);
-                        } catch (Exception e) {
-                            log.error("回调 onError 失败", e);
-                        }
+                    modelHealthRegistry.recordFailure(attempt.candidate, throwable);
+                    onAttemptFailed(attempt, throwable);
+                }
+
+                private void observeFirstToken() {
+                    if (firstToken) {
+                        firstToken = false;
+                        modelHealthRegistry.recordFirstToken(attempt.candidate, elapsedMs(attempt.startNs));
                     }
                 }
             };
-            streamingModel.chat(chatRequest, handler);
-            synchronized (lock) {
-                while (!completed[0]) {
+            // 先申请限流额度，排队期间不占用线程；首 token 延迟从真正发起请求时开始计算
+            CompletableFuture<Long> permit = rateLimiter.acquire(attempt.candidate, conversationId, estimatedTokens, queued -> {
+                if (callback != null) {
+                    callback.onRateLimited(attempt.candidate, queued);
+                }
+            });
+            // 排队期间被取消（停止请求或对冲落败）时取消等待，请求立即离开限流队列
+            attempt.bindPermit(permit);
+            permit.whenComplete((waitMs, error) -> {
+                if (error != null) {
+                    if (cancelled || attempt.cancelled) {
+                        abandon(attempt);
+                        return;
+                    }
+                    // 本地限流排队超时：请求未发往服务商，不计入模型健康状态（不算失败也不算 429），直接故障转移
+                    releaseProbe(attempt);
+                    log.warn("{}：限流排队失败，模型={}: {}", label, attempt.candidate, error.getMessage());
+                    onAttemptFailed(attempt, error);
+                    return;
+                }
+                if (waitMs > 0 && callback != null) {
                     try {
-                        lock.wait();
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                        throw new RuntimeException("等待 LLM 响应被中断", e);
+                        callback.onRateLimitAcquired(attempt.candidate, waitMs);
+                    } catch (Exception e) {
+                        log.error("回调 onRateLimitAcquired 失败", e);
                     }
                 }
+                if (cancelled || attempt.cancelled) {
+                    abandon(attempt);
+                    return;
+                }
+                attempt.startNs = System.nanoTime();
+                try {
+                    StreamingChatModel streamingModel = modelManager.getOrCreateStreamingModel(attempt.candidate);
+                    streamingModel.chat(chatRequest, handler);
+                } catch (Exception e) {
+                    handler.onError(e);
+                }
+            });
+        }
+
+        /**
+         * 尝试成为胜出调用：首个推送内容或完成的一路胜出，取消尚未触发的对冲并中止落败的另一路
+         * （落败调用不再消耗 token 和限流额度，其后续回调只释放计数，不计入模型健康状态）
+         */
+        private boolean claim(Attempt attempt) {
+            Attempt current = winner.get();
+            if (current == attempt) {
+                return true;
+            }
+            if (current != null || !winner.compareAndSet(null, attempt)) {
+                return false;
+            }
+            boolean raced;
+            Attempt hedgedAttempt;
+            synchronized (this) {
+                cancelHedgeTimer();
+                raced = hedged;
+                hedgedAttempt = primary;
+            }
+            for (Attempt other : attempts) {
+                if (other != attempt) {
+                    other.cancel();
+                }
             }
-            if (error[0] != null) {
-                throw new RuntimeException("LLM Function Calling 失败", error[0]);
+            if (attempt.hedge) {
+                hedgingPolicy.recordHedgeWon(hedgedAttempt.candidate);
+                log.info("{}：对冲请求胜出，模型={}", label, attempt.candidate);
+            } else if (raced) {
+                log.info("{}：原请求先于对冲请求返回，模型={}", label, attempt.candidate);
             }
-            log.info("Function Calling 流式对话完成，耗时 {} ms", elapsedMs(startNs));
-            return finalResponse[0];
-        } catch (Exception e) {
-            log.error("Function Calling 流式对话失败，耗时 {} ms", elapsedMs(startNs), e);
+            return true;
+        }
+
+        private synchronized void release() {
+            inFlight--;
+        }
+
+        /**
+         * 结束一路未记录结果的调用（被取消或放弃）：释放计数，并归还其占用的半开探测名额，
+         * 否则模型将一直停留在 HALF_OPEN 且探测名额被占用，不再被路由
+         */
+        private void abandon(Attempt attempt) {
+            releaseProbe(attempt);
+            release();
+        }
+
+        private void releaseProbe(Attempt attempt) {
+            if (attempt.probe) {
+                attempt.probe = false;
+                modelHealthRegistry.releaseProbe(attempt.candidate);
+            }
+        }
+
+        /**
+         * 单路调用失败：已胜出则整体失败；另一路仍在进行则等待；否则故障转移到下一个候选模型
+         */
+        private void onAttemptFailed(Attempt attempt, Throwable error) {
+            Attempt current;
+            int remaining;
+            int from;
+            synchronized (this) {
+                inFlight--;
+                current = winner.get();
+                remaining = inFlight;
+                from = nextIndex;
+                if (current == null && remaining == 0) {
+                    cancelHedgeTimer();
+                }
+            }
+            if (current == attempt) {
+                fail(error);
+                return;
+            }
+            if (current != null || remaining > 0) {
+                log.warn("{}：模型 {} 调用失败，另一路请求仍在进行: {}", label, attempt.candidate, error.getMessage());
+                return;
+            }
+            if (from < candidates.size()) {
+                log.warn("{}：模型 {} 调用失败，尝试故障转移: {}", label, attempt.candidate, error.getMessage());
+                next(from, error);
+                return;
+            }
+            fail(error);
+        }
+
+        /**
+         * 取消：Future 以 {@link CancellationException} 完成，中止全部进行中的 HTTP 流（尚未收到首个分片的调用
+         * 在收到首个分片时中止）
+         */
+        void cancel(String reason) {
+            cancelled = true;
+            synchronized (this) {
+                cancelHedgeTimer();
+            }
+            for (Attempt attempt : attempts) {
+                attempt.cancel();
+            }
+            if (future.completeExceptionally(new CancellationException(reason))) {
+                log.info("{}已取消，耗时 {} ms: {}", label, elapsedMs(startNs), reason);
+            }
+        }
+
+        private void cancelHedgeTimer() {
+            if (hedgeTimer != null) {
+                hedgeTimer.cancel(false);
+                hedgeTimer = null;
+            }
+        }
+
+        void fail(Throwable error) {
+            if (error == null) {
+                error = new IllegalStateException("没有可用的模型");
+            }
+            synchronized (this) {
+                cancelHedgeTimer();
+            }
+            log.error("{}错误，耗时 {} ms", label, elapsedMs(startNs), error);
             if (callback != null) {
                 try {
-                    callback.onError(e);
-                } catch (Exception ex) {
-                    log.error("回调 onError 失败", ex);
+                    callback.onError(error);
+                } catch (Exception e) {
+                    log.error("回调 onError 失败", e);
                 }
             }
-            throw new RuntimeException("LLM 调用失败: " + e.getMessage(), e);
+            future.completeExceptionally(new RuntimeException(label + "失败", error));
+        }
+    }
+
+    /**
+     * 单路模型调用
+     */
+    private static final class Attempt {
+        private final int index;
+        private final String candidate;
+        /** 是否为对冲请求 */
+        private final boolean hedge;
+        /** 实际发起请求的时间（限流排队结束后重置） */
+        private volatile long startNs = System.nanoTime();
+        /** 底层 HTTP 流的句柄（收到首个分片时获得） */
+        private volatile StreamingHandle handle;
+        /** 是否占用了熔断器 HALF_OPEN 的探测名额（未记录结果就结束时需归还） */
+        private volatile boolean probe;
+        /** 限流排队等待（获得额度前取消时一并取消，离开等待队列） */
+        private volatile CompletableFuture<Long> permit;
+        private volatile boolean cancelled;
+
+        private Attempt(int index, String candidate, boolean hedge) {
+            this.index = index;
+            this.candidate = candidate;
+            this.hedge = hedge;
+        }
+
+        /**
+         * 记录流句柄；已取消时立即中止流
+         *
+         * @return 是否继续处理该分片
+         */
+        private boolean bind(StreamingHandle streamingHandle) {
+            if (handle == null) {
+                handle = streamingHandle;
+            }
+            if (cancelled) {
+                cancelHandle();
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * 记录限流排队等待；已取消时立即取消等待
+         */
+        private void bindPermit(CompletableFuture<Long> rateLimitPermit) {
+            permit = rateLimitPermit;
+            if (cancelled) {
+                rateLimitPermit.cancel(false);
+            }
+        }
+
+        private void cancel() {
+            cancelled = true;
+            CompletableFuture<Long> current = permit;
+            if (current != null) {
+                current.cancel(false);
+            }
+            cancelHandle();
+        }
+
+        private void cancelHandle() {
+            StreamingHandle current = handle;
+            if (current != null && !current.isCancelled()) {
+                try {
+                    current.cancel();
+                } catch (Exception e) {
+                    log.debug("中止 LLM 流失败: model={}, error={}", candidate, e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * 同步 API：阻塞等待异步结果，异常统一包装为 RuntimeException
+     */
+    private <T> T await(CompletableFuture<T> future, String errorPrefix) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("等待LLM响应被中断", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            throw new RuntimeException(errorPrefix + cause.getMessage(), cause);
         }
     }
 
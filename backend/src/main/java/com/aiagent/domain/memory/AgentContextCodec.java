@@ -0,0 +1,238 @@
+package com.aiagent.domain.memory;
+
+import com.aiagent.domain.model.bo.AgentContext;
+import com.aiagent.domain.model.bo.MessageBO;
+import com.aiagent.infrastructure.config.AgentConfig;
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * AgentContext 的 Redis 紧凑编码
+ *
+ * <p>原先通过 {@code GenericJackson2JsonRedisSerializer}（{@code DefaultTyping.NON_FINAL}）写入文本 JSON，
+ * 每个对象都内嵌完整类名。这里改为按字段编码为 Smile 二进制 JSON：根类型固定为 {@link AgentContext}，
+ * 不写类名，重复的字段名与短字符串（如消息类型）在流内共享；编码结果超过阈值时再做 Deflate 压缩。
+ *
+ * <p>格式：{@code [0x5A 0x43][编码格式版本][flags][结构版本][payload]}，flags bit0 表示 payload 已压缩。
+ * <ul>
+ *   <li>兼容增删字段：解码时忽略未知字段、缺失字段保持默认值，滚动发布期间新旧节点可互读</li>
+ *   <li>不兼容调整（字段改名、语义变化）递增 {@link #SCHEMA_VERSION}，并在 {@link #migrate} 中把旧结构转换为新结构</li>
+ * </ul>
+ *
+ * <p>消息历史不在上下文头中编码（见 {@link MemorySystem}：头与消息列表分开存储），
+ * 每条 {@link MessageBO} 通过 {@link #encodeMessage} 单独编码为 Smile，作为 Redis 列表元素追加。
+ *
+ * <p>指标：{@code aiagent.memory.context.bytes}（上下文头编码后字节数）、
+ * {@code aiagent.memory.context.encode} / {@code aiagent.memory.context.decode}（编解码耗时）。
+ */
+@Slf4j
+@Component
+public class AgentContextCodec {
+
+    private static final byte MAGIC_0 = 0x5A;
+    private static final byte MAGIC_1 = 0x43;
+    private static final byte FORMAT_VERSION = 1;
+    private static final byte FLAG_DEFLATE = 0x01;
+    private static final int HEADER_LENGTH = 5;
+
+    /**
+     * 当前 AgentContext 结构版本（不兼容调整时递增，并在 {@link #migrate} 中补充转换）
+     */
+    static final int SCHEMA_VERSION = 1;
+
+    @Autowired
+    private AgentConfig agentConfig;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private ObjectMapper mapper;
+
+    private DistributionSummary sizeSummary;
+
+    private Timer encodeTimer;
+
+    private Timer decodeTimer;
+
+    @PostConstruct
+    public void init() {
+        SmileFactory factory = SmileFactory.builder()
+            .enable(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES)
+            .build();
+        mapper = new ObjectMapper(factory);
+        // 只按字段编码：AgentContext 上的委托 getter（getModelId 等）不参与序列化
+        mapper.setVisibility(PropertyAccessor.ALL, JsonAutoDetect.Visibility.NONE);
+        mapper.setVisibility(PropertyAccessor.FIELD, JsonAutoDetect.Visibility.ANY);
+        mapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+        mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        // 上下文头不包含消息历史，消息单独存放在 Redis 列表中
+        mapper.addMixIn(AgentContext.class, HeaderMixIn.class);
+
+        sizeSummary = DistributionSummary.builder("aiagent.memory.context.bytes")
+            .description("AgentContext 编码后字节数")
+            .baseUnit("bytes")
+            .register(meterRegistry);
+        encodeTimer = Timer.builder("aiagent.memory.context.encode")
+            .description("AgentContext 编码耗时")
+            .register(meterRegistry);
+        decodeTimer = Timer.builder("aiagent.memory.context.decode")
+            .description("AgentContext 解码耗时")
+            .register(meterRegistry);
+    }
+
+    /**
+     * 是否为本编码格式
+     */
+    public boolean isEncoded(byte[] bytes) {
+        return bytes != null && bytes.length >= HEADER_LENGTH && bytes[0] == MAGIC_0 && bytes[1] == MAGIC_1;
+    }
+
+    /**
+     * 编码上下文头（不含 messageBOS）
+     */
+    public byte[] encode(AgentContext context) throws IOException {
+        long startNs = System.nanoTime();
+        byte[] payload = mapper.writeValueAsBytes(context);
+        byte flags = 0;
+        int threshold = config().getCompressThresholdBytes();
+        if (threshold > 0 && payload.length > threshold) {
+            byte[] compressed = deflate(payload);
+            if (compressed.length < payload.length) {
+                payload = compressed;
+                flags |= FLAG_DEFLATE;
+            }
+        }
+
+        byte[] bytes = new byte[HEADER_LENGTH + payload.length];
+        bytes[0] = MAGIC_0;
+        bytes[1] = MAGIC_1;
+        bytes[2] = FORMAT_VERSION;
+        bytes[3] = flags;
+        bytes[4] = (byte) SCHEMA_VERSION;
+        System.arraycopy(payload, 0, bytes, HEADER_LENGTH, payload.length);
+
+        encodeTimer.record(System.nanoTime() - startNs, TimeUnit.NANOSECONDS);
+        sizeSummary.record(bytes.length);
+        return bytes;
+    }
+
+    /**
+     * 解码上下文头（messageBOS 为 null，由调用方从消息列表填充）
+     */
+    public AgentContext decode(byte[] bytes) throws IOException {
+        if (!isEncoded(bytes)) {
+            throw new IOException("不是 AgentContext 编码格式");
+        }
+        if (bytes[2] != FORMAT_VERSION) {
+            throw new IOException("不支持的 AgentContext 编码格式版本: " + bytes[2]);
+        }
+        long startNs = System.nanoTime();
+        byte[] payload = Arrays.copyOfRange(bytes, HEADER_LENGTH, bytes.length);
+        if ((bytes[3] & FLAG_DEFLATE) != 0) {
+            payload = inflate(payload);
+        }
+
+        int schemaVersion = bytes[4] & 0xFF;
+        AgentContext context;
+        if (schemaVersion < SCHEMA_VERSION) {
+            JsonNode tree = mapper.readTree(payload);
+            context = mapper.treeToValue(migrate((ObjectNode) tree, schemaVersion), AgentContext.class);
+        } else {
+            // 更新的结构版本（滚动发布期间由新节点写入）：按兼容方式读取，忽略不认识的字段
+            if (schemaVersion > SCHEMA_VERSION) {
+                log.debug("读取更新结构版本的 AgentContext: schemaVersion={}, current={}", schemaVersion, SCHEMA_VERSION);
+            }
+            context = mapper.readValue(payload, AgentContext.class);
+        }
+        decodeTimer.record(System.nanoTime() - startNs, TimeUnit.NANOSECONDS);
+        return context;
+    }
+
+    /**
+     * 编码单条消息（消息列表元素；MessageBO 只做兼容式增删字段，解码时忽略未知字段）
+     */
+    public byte[] encodeMessage(MessageBO message) throws IOException {
+        return mapper.writeValueAsBytes(message);
+    }
+
+    public MessageBO decodeMessage(byte[] bytes) throws IOException {
+        return mapper.readValue(bytes, MessageBO.class);
+    }
+
+    /**
+     * 将旧结构版本的 AgentContext 转换为当前结构（目前只有版本 1，无需转换）
+     */
+    private ObjectNode migrate(ObjectNode tree, int fromVersion) {
+        return tree;
+    }
+
+    private byte[] deflate(byte[] input) {
+        Deflater deflater = new Deflater(Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION,
+            config().getCompressionLevel())));
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, input.length / 2));
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] input) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(input);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(input.length * 3);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("AgentContext 压缩数据不完整");
+                }
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("AgentContext 压缩数据损坏", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private AgentConfig.MemoryConfig.ContextCodecConfig config() {
+        return agentConfig.getMemory().getContextCodec();
+    }
+
+    @JsonIgnoreProperties({"messageBOS"})
+    private abstract static class HeaderMixIn {
+    }
+}
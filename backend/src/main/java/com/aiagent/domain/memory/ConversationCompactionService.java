@@ -0,0 +1,401 @@
+package com.aiagent.domain.memory;
+
+import com.aiagent.common.util.StringUtils;
+import com.aiagent.common.util.TokenEstimator;
+import com.aiagent.domain.conversation.MessageService;
+import com.aiagent.domain.llm.SimpleLLMChatHandler;
+import com.aiagent.domain.model.entity.ConversationSummaryEntity;
+import com.aiagent.domain.model.entity.MessageEntity;
+import com.aiagent.infrastructure.config.AgentConfig;
+import com.aiagent.infrastructure.external.llm.ModelManager;
+import com.aiagent.infrastructure.mapper.ConversationSummaryMapper;
+import com.aiagent.infrastructure.mapper.MessageMapper;
+import dev.langchain4j.agent.tool.ToolExecutionRequest;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.ToolExecutionResultMessage;
+import dev.langchain4j.data.message.UserMessage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 会话历史后台压缩（滚动摘要）
+ *
+ * <p>每次对话结束后由 {@link #maybeCompactAsync} 投递到后台线程池检查，不占用请求链路：
+ * 摘要之后的消息估算 token 数超过 {@code triggerTokens} 时，保留最近约 {@code keepRecentTokens} 的整轮原文，
+ * 更早的轮次与已有摘要一起交给廉价模型（默认 {@code task-model-mapping.SIMPLE_CHAT}）合并为新的滚动摘要，
+ * 写入 {@code agent_conversation_summary}，并记录摘要覆盖到的最后一条消息 ID。
+ *
+ * <p>加载上下文时 {@code AgentContextService} 使用"摘要 + 摘要之后的消息"代替完整历史。
+ * 同一会话同一时刻只有一个压缩任务；多实例并发写入时由 upsert 条件保证摘要只会向后推进。
+ *
+ * <p>指标：
+ * <ul>
+ *   <li>{@code aiagent.memory.compaction.runs} - 压缩任务数（按 result 标记：compacted / skipped / failed / rejected）</li>
+ *   <li>{@code aiagent.memory.compaction.duration} - 实际执行压缩的耗时</li>
+ *   <li>{@code aiagent.memory.compaction.messages} - 被压缩进摘要的消息条数</li>
+ * </ul>
+ */
+@Slf4j
+@Service
+public class ConversationCompactionService {
+
+    /** 注入上下文时摘要前的说明 */
+    public static final String SUMMARY_PREFIX = "以下是本会话较早内容的摘要（更早的原始消息已省略）：\n";
+
+    private static final String SUMMARY_SYSTEM_PROMPT =
+        "你是对话记忆压缩助手。请将【已有摘要】与【新增对话】合并为一份新的滚动摘要，供后续对话作为背景使用。\n"
+            + "要求：\n"
+            + "1. 保留用户的目标、偏好与约束，已确认的事实、结论与决定，尚未完成的事项，以及工具调用得到的关键数据；\n"
+            + "2. 省略寒暄与重复内容，不要编造对话中没有的信息；\n"
+            + "3. 使用客观的第三人称陈述，按主题组织；\n"
+            + "4. 篇幅不超过约 %d 个 token；\n"
+            + "5. 直接输出摘要正文，不要添加任何前言或解释。";
+
+    @Autowired
+    private AgentConfig agentConfig;
+
+    @Autowired
+    private MessageMapper messageMapper;
+
+    @Autowired
+    private ConversationSummaryMapper summaryMapper;
+
+    @Autowired
+    private MessageService messageService;
+
+    @Autowired
+    private SimpleLLMChatHandler llmChatHandler;
+
+    @Autowired
+    private ModelManager modelManager;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    /** 已投递且未完成的会话（去重，同一会话只排队一次） */
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+
+    private ThreadPoolExecutor executor;
+
+    /** 压缩任务数：result → Counter */
+    private final Map<String, Counter> runCounters = new HashMap<>();
+
+    private Timer durationTimer;
+
+    private Counter messagesCounter;
+
+    @PostConstruct
+    public void init() {
+        for (String result : List.of("compacted", "skipped", "failed", "rejected")) {
+            runCounters.put(result, Counter.builder("aiagent.memory.compaction.runs")
+                .description("会话历史压缩任务数")
+                .tag("result", result)
+                .register(meterRegistry));
+        }
+        durationTimer = Timer.builder("aiagent.memory.compaction.duration")
+            .description("会话历史压缩耗时")
+            .register(meterRegistry);
+        messagesCounter = Counter.builder("aiagent.memory.compaction.messages")
+            .description("被压缩进摘要的消息条数")
+            .register(meterRegistry);
+
+        AgentConfig.MemoryConfig.CompactionConfig cfg = config();
+        int threads = Math.max(1, cfg.getThreads());
+        AtomicInteger threadIndex = new AtomicInteger();
+        executor = new ThreadPoolExecutor(
+            threads, threads, 60L, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(Math.max(1, cfg.getQueueCapacity())),
+            r -> {
+                Thread t = new Thread(r, "conversation-compaction-" + threadIndex.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    public boolean isEnabled() {
+        return config().isEnabled();
+    }
+
+    /**
+     * 读取会话摘要（未启用、不存在或读取失败时返回 null，调用方退回加载完整历史）
+     */
+    public ConversationSummaryEntity loadSummary(String conversationId) {
+        if (!isEnabled() || StringUtils.isEmpty(conversationId)) {
+            return null;
+        }
+        try {
+            ConversationSummaryEntity summary = summaryMapper.selectByConversationId(conversationId);
+            if (summary == null || StringUtils.isEmpty(summary.getSummary()) || summary.getSummaryUntilId() == null) {
+                return null;
+            }
+            return summary;
+        } catch (Exception e) {
+            log.warn("读取会话摘要失败，使用完整历史: conversationId={}, error={}", conversationId, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 对话结束后投递压缩检查（立即返回；同一会话已在排队或执行时忽略）
+     */
+    public void maybeCompactAsync(String conversationId) {
+        if (!isEnabled() || StringUtils.isEmpty(conversationId) || !inFlight.add(conversationId)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    compact(conversationId);
+                } finally {
+                    inFlight.remove(conversationId);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(conversationId);
+            countRun("rejected");
+            log.debug("压缩队列已满，跳过本次检查: conversationId={}", conversationId);
+        }
+    }
+
+    /**
+     * 检查并压缩单个会话
+     */
+    private void compact(String conversationId) {
+        AgentConfig.MemoryConfig.CompactionConfig cfg = config();
+        try {
+            ConversationSummaryEntity existing = loadSummary(conversationId);
+            long afterId = existing != null ? existing.getSummaryUntilId() : 0L;
+            List<Item> items = loadItems(conversationId, afterId, cfg.getScanLimit());
+
+            long total = 0;
+            for (Item item : items) {
+                total += item.tokens;
+            }
+            if (total < cfg.getTriggerTokens()) {
+                countRun("skipped");
+                return;
+            }
+
+            int cut = findCut(items, cfg.getKeepRecentTokens());
+            if (cut <= 0) {
+                log.debug("没有可压缩的完整轮次: conversationId={}, tokens={}", conversationId, total);
+                countRun("skipped");
+                return;
+            }
+
+            String modelId = resolveModelId();
+            long startNs = System.nanoTime();
+            String summary = existing != null ? existing.getSummary() : null;
+            for (List<Item> batch : batches(items.subList(0, cut), cfg.getMaxInputTokens())) {
+                summary = summarize(modelId, summary, batch);
+            }
+            long durationNs = System.nanoTime() - startNs;
+
+            ConversationSummaryEntity entity = new ConversationSummaryEntity();
+            entity.setConversationId(conversationId);
+            entity.setSummary(summary);
+            entity.setSummaryUntilId(items.get(cut - 1).id);
+            entity.setSummaryTokens(TokenEstimator.estimate(summary));
+            entity.setModelId(modelId);
+            summaryMapper.upsert(entity);
+
+            durationTimer.record(durationNs, TimeUnit.NANOSECONDS);
+            messagesCounter.increment(cut);
+            countRun("compacted");
+            log.info("会话历史已压缩: conversationId={}, 压缩消息 {} 条（约 {} tokens），摘要约 {} tokens，summaryUntilId={}, 耗时 {}ms",
+                conversationId, cut, total - tailTokens(items, cut), entity.getSummaryTokens(),
+                entity.getSummaryUntilId(), durationNs / 1_000_000);
+        } catch (Exception e) {
+            countRun("failed");
+            log.warn("会话历史压缩失败: conversationId={}, error={}", conversationId, e.getMessage(), e);
+        }
+    }
+
+    // ── 内部工具方法 ──────────────────────────────────────────────────────────
+
+    private List<Item> loadItems(String conversationId, long afterId, int limit) {
+        List<MessageEntity> entities = messageMapper.selectAfterId(conversationId, afterId, limit);
+        List<Item> items = new ArrayList<>();
+        if (entities == null) {
+            return items;
+        }
+        for (MessageEntity entity : entities) {
+            ChatMessage message = messageService.toChatMessage(entity);
+            // 无法还原的消息仍占位，使摘要覆盖范围连续
+            items.add(new Item(entity.getId(), message, message != null ? TokenEstimator.estimate(message) : 0));
+        }
+        return items;
+    }
+
+    /**
+     * 计算压缩边界：从最新一轮开始整轮保留，直到超过 keepRecentTokens（至少保留最近一轮）。
+     * 返回保留部分的起始下标（必为 User 消息），之前的消息全部压缩；没有可压缩内容时返回 0 或 -1
+     */
+    private static int findCut(List<Item> items, int keepRecentTokens) {
+        int cut = -1;
+        long suffixTokens = 0;
+        for (int i = items.size() - 1; i >= 0; i--) {
+            suffixTokens += items.get(i).tokens;
+            if (!(items.get(i).message instanceof UserMessage)) {
+                continue;
+            }
+            if (cut >= 0 && suffixTokens > keepRecentTokens) {
+                break;
+            }
+            cut = i;
+        }
+        return cut;
+    }
+
+    private static long tailTokens(List<Item> items, int cut) {
+        long tokens = 0;
+        for (int i = cut; i < items.size(); i++) {
+            tokens += items.get(i).tokens;
+        }
+        return tokens;
+    }
+
+    /**
+     * 待压缩内容按输入上限分批（单条消息超过上限时独占一批，渲染时会截断）
+     */
+    private static List<List<Item>> batches(List<Item> items, int maxInputTokens) {
+        List<List<Item>> batches = new ArrayList<>();
+        List<Item> current = new ArrayList<>();
+        long tokens = 0;
+        for (Item item : items) {
+            if (!current.isEmpty() && tokens + item.tokens > maxInputTokens) {
+                batches.add(current);
+                current = new ArrayList<>();
+                tokens = 0;
+            }
+            current.add(item);
+            tokens += item.tokens;
+        }
+        if (!current.isEmpty()) {
+            batches.add(current);
+        }
+        return batches;
+    }
+
+    private String summarize(String modelId, String previousSummary, List<Item> batch) {
+        AgentConfig.MemoryConfig.CompactionConfig cfg = config();
+        StringBuilder transcript = new StringBuilder();
+        for (Item item : batch) {
+            render(item.message, cfg, transcript);
+        }
+        if (transcript.length() == 0) {
+            return previousSummary;
+        }
+
+        StringBuilder input = new StringBuilder();
+        input.append("【已有摘要】\n")
+            .append(StringUtils.isNotEmpty(previousSummary) ? previousSummary : "（无）")
+            .append("\n\n【新增对话】\n")
+            .append(transcript);
+
+        List<ChatMessage> messages = new ArrayList<>();
+        messages.add(SystemMessage.from(String.format(SUMMARY_SYSTEM_PROMPT, cfg.getMaxSummaryTokens())));
+        messages.add(UserMessage.from(input.toString()));
+        String summary = llmChatHandler.chatNonStreaming(modelId, messages);
+        if (StringUtils.isEmpty(summary) || summary.isBlank()) {
+            throw new IllegalStateException("摘要模型返回空内容: modelId=" + modelId);
+        }
+        return summary.trim();
+    }
+
+    /**
+     * 将消息渲染为摘要输入的对话文本
+     */
+    private static void render(ChatMessage message, AgentConfig.MemoryConfig.CompactionConfig cfg, StringBuilder out) {
+        int maxToolTokens = Math.max(1, cfg.getToolResultTokens());
+        int maxMessageTokens = Math.max(maxToolTokens, cfg.getMaxInputTokens());
+        if (message instanceof UserMessage) {
+            UserMessage userMessage = (UserMessage) message;
+            String text = userMessage.hasSingleText() ? userMessage.singleText() : userMessage.toString();
+            out.append("用户：").append(truncate(text, maxMessageTokens)).append('\n');
+        } else if (message instanceof AiMessage) {
+            AiMessage aiMessage = (AiMessage) message;
+            if (StringUtils.isNotEmpty(aiMessage.text())) {
+                out.append("助手：").append(truncate(aiMessage.text(), maxMessageTokens)).append('\n');
+            }
+            if (aiMessage.hasToolExecutionRequests()) {
+                for (ToolExecutionRequest request : aiMessage.toolExecutionRequests()) {
+                    out.append("助手调用工具 ").append(request.name()).append('(')
+                        .append(truncate(request.arguments(), maxToolTokens)).append(")\n");
+                }
+            }
+        } else if (message instanceof ToolExecutionResultMessage) {
+            ToolExecutionResultMessage result = (ToolExecutionResultMessage) message;
+            out.append("工具 ").append(result.toolName()).append(" 返回：")
+                .append(truncate(result.text(), maxToolTokens)).append('\n');
+        }
+    }
+
+    private static String truncate(String text, int maxTokens) {
+        if (text == null) {
+            return "";
+        }
+        int tokens = TokenEstimator.estimate(text);
+        if (tokens <= maxTokens) {
+            return text;
+        }
+        int keepChars = (int) ((long) text.length() * maxTokens / tokens);
+        return text.substring(0, keepChars) + "...[已截断]";
+    }
+
+    private String resolveModelId() {
+        String configured = config().getModelId();
+        if (StringUtils.isNotEmpty(configured)) {
+            return configured;
+        }
+        return modelManager.getModelIdsForTask("SIMPLE_CHAT").get(0);
+    }
+
+    private void countRun(String result) {
+        runCounters.get(result).increment();
+    }
+
+    private AgentConfig.MemoryConfig.CompactionConfig config() {
+        return agentConfig.getMemory().getCompaction();
+    }
+
+    private static final class Item {
+        private final long id;
+        private final ChatMessage message;
+        private final int tokens;
+
+        private Item(Long id, ChatMessage message, int tokens) {
+            this.id = id != null ? id : 0L;
+            this.message = message;
+            this.tokens = tokens;
+        }
+    }
+}
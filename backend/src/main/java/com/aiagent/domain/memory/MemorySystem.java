@@ -1,24 +1,30 @@
 package com.aiagent.domain.memory;
 
-import com.aiagent.application.StreamingCallback;
-import com.aiagent.domain.model.bo.AgentKnowledgeResult;
 import com.aiagent.common.constant.AgentConstants;
 import com.aiagent.domain.conversation.MessageService;
 import com.aiagent.common.util.StringUtils;
 import com.aiagent.domain.model.bo.AgentContext;
+import com.aiagent.domain.model.bo.MessageBO;
+import com.aiagent.infrastructure.cache.NearCache;
+import com.aiagent.infrastructure.cache.NearCacheRegistry;
+import com.aiagent.infrastructure.config.AgentConfig;
 import dev.langchain4j.data.message.ChatMessage;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.RedisOperations;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.SessionCallback;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
 
 /**
  * 记忆系统
- * 管理Agent的工作记忆（基于Redis Context缓存）
- * 消息持久化统一使用MySQL，不再使用Redis存储消息
+ * 管理Agent的工作记忆（基于Redis Context缓存：上下文头 hash + 只追加的消息 list）
+ * 消息持久化统一使用MySQL，Redis 消息列表只作为近期历史的热缓存
  * 
  * @author aiagent
  */
@@ -27,16 +33,44 @@ import java.util.concurrent.TimeUnit;
 public class MemorySystem {
     
     @Autowired
-    private RedisTemplate<String, Object> redisTemplate;
+    private RedisTemplate<String, byte[]> binaryRedisTemplate;
+    
+    @Autowired
+    private AgentConfig agentConfig;
+    
+    @Autowired
+    private AgentContextCodec contextCodec;
     
     @Autowired(required = false)
     private MessageService messageService;
     
+    @Autowired
+    private NearCacheRegistry nearCacheRegistry;
+    
+    /** 上下文头近端缓存名称 */
+    private static final String HEADER_CACHE_NAME = "agent-context";
+    
+    /**
+     * 上下文头近端缓存（编码后的字节，每次读取解码出独立实例）：本节点保存时回填，其他节点保存时经广播失效
+     */
+    private NearCache<byte[]> headerCache;
+    
+    /** 上下文头 hash 字段：编码后的上下文头 */
+    private static final String FIELD_CONTEXT = "ctx";
+    
+    /** 上下文头 hash 字段：累计追加到消息列表的条数（用于校验列表完整性） */
+    private static final String FIELD_MESSAGE_COUNT = "messageCount";
+    
     /**
      * 工作记忆过期时间（小时）
      */
     private static final int WORK_MEMORY_EXPIRE_HOURS = 1;
 
+    @PostConstruct
+    public void init() {
+        headerCache = nearCacheRegistry.create(HEADER_CACHE_NAME, agentConfig.getNearCache().getAgentContext());
+    }
+
     /**
      * 保存消息到MySQL（持久化）
      * 
@@ -46,11 +80,12 @@ public class MemorySystem {
      * @param tokens Token数量（可选）
      * @param duration 耗时（毫秒，可选）
      * @param metadata 元数据（可选，如工具调用、RAG结果等）
+     * @return 写入消息的 message_id，未写入时返回 null
      */
-    public void saveShortTermMemory(String conversationId, ChatMessage message,
+    public String saveShortTermMemory(String conversationId, ChatMessage message,
                                    String modelId, Integer tokens, Integer duration,
                                    Map<String, Object> metadata) {
-        saveShortTermMemory(conversationId, message, modelId, null, tokens, duration, metadata);
+        return saveShortTermMemory(conversationId, message, modelId, null, tokens, duration, metadata);
     }
 
     /**
@@ -63,23 +98,28 @@ public class MemorySystem {
      * @param tokens Token数量（可选）
      * @param duration 耗时（毫秒，可选）
      * @param metadata 元数据（可选，如工具调用、RAG结果等）
+     * @return 写入消息的 message_id，未写入时返回 null
      */
-    public void saveShortTermMemory(String conversationId, ChatMessage message,
+    public String saveShortTermMemory(String conversationId, ChatMessage message,
                                    String modelId, String agentId, Integer tokens, Integer duration,
                                    Map<String, Object> metadata) {
         // 保存到MySQL（持久化）
         if (messageService != null) {
             try {
-                messageService.saveMessage(conversationId, message, modelId, agentId, tokens, duration, metadata);
+                return messageService.saveMessage(conversationId, message, modelId, agentId, tokens, duration, metadata);
             } catch (Exception e) {
                 log.warn("保存消息到MySQL失败: conversationId={}", conversationId, e);
                 // 不抛出异常，MySQL失败不影响主流程
             }
         }
+        return null;
     }
 
     /**
      * 保存上下文
+     * <p>上下文头（配置、Todo、迭代计数等，不含消息）编码后写入 hash；消息历史是只追加的 list，
+     * 只写入 messageBOS 中尚未持久化的新增消息（{@code persistedMessageCount} 之后的部分），
+     * 消息被整体替换（如从数据库重新加载）时才重写整个列表。所有写入在一个 MULTI/EXEC 中提交。
      * 
      * @param context Agent上下文
      */
@@ -88,38 +128,63 @@ public class MemorySystem {
             return;
         }
         
-        String key = AgentConstants.CACHE_PREFIX_AGENT_CONTEXT + context.getConversationId();
+        String headerKey = headerKey(context.getConversationId());
+        String listKey = messageListKey(context.getConversationId());
         
         try {
-            // 保存前显式清理 transient 字段，避免序列化错误
-            // 这些字段已经有 @JsonIgnore，但为了兼容性和安全性，显式设为 null
-            String requestId = context.getRequestId();
-            StreamingCallback streamingCallback = context.getStreamingCallback();
-            com.aiagent.application.AgentEventPublisher eventPublisher = context.getEventPublisher();
-            AgentKnowledgeResult initialRagResult = context.getInitialRagResult();
-            
-            context.setRequestId(null);
-            context.setStreamingCallback(null);
-            context.setEventPublisher(null);
-            context.setInitialRagResult(null);
-            
-            // 保存到 Redis
-            redisTemplate.opsForValue().set(key, context, WORK_MEMORY_EXPIRE_HOURS, TimeUnit.HOURS);
+            byte[] header = contextCodec.encode(context);
+            List<MessageBO> messages = context.getMessageBOS() != null ? context.getMessageBOS() : new ArrayList<>();
+            int persisted = context.getPersistedMessageCount();
+            boolean rewrite = persisted < 0 || persisted > messages.size();
+            List<byte[]> delta = new ArrayList<>();
+            for (MessageBO message : messages.subList(rewrite ? 0 : persisted, messages.size())) {
+                delta.add(contextCodec.encodeMessage(message));
+            }
+            int maxListMessages = Math.max(1, agentConfig.getMemory().getContextCodec().getMaxListMessages());
             
-            // 恢复 transient 字段（如果需要继续使用）
-            context.setRequestId(requestId);
-            context.setStreamingCallback(streamingCallback);
-            context.setEventPublisher(eventPublisher);
-            context.setInitialRagResult(initialRagResult);
+            binaryRedisTemplate.execute(new SessionCallback<List<Object>>() {
+                @Override
+                @SuppressWarnings("unchecked")
+                public <K, V> List<Object> execute(RedisOperations<K, V> operations) {
+                    RedisOperations<String, byte[]> ops = (RedisOperations<String, byte[]>) operations;
+                    ops.multi();
+                    ops.opsForHash().put(headerKey, FIELD_CONTEXT, header);
+                    if (rewrite) {
+                        ops.delete(listKey);
+                        ops.opsForHash().put(headerKey, FIELD_MESSAGE_COUNT, longBytes(delta.size()));
+                    } else {
+                        ops.opsForHash().increment(headerKey, FIELD_MESSAGE_COUNT, delta.size());
+                    }
+                    if (!delta.isEmpty()) {
+                        ops.opsForList().rightPushAll(listKey, delta);
+                        ops.opsForList().trim(listKey, -maxListMessages, -1);
+                    }
+                    ops.expire(headerKey, WORK_MEMORY_EXPIRE_HOURS, TimeUnit.HOURS);
+                    ops.expire(listKey, WORK_MEMORY_EXPIRE_HOURS, TimeUnit.HOURS);
+                    return ops.exec();
+                }
+            });
+            context.setPersistedMessageCount(messages.size());
+            headerCache.put(context.getConversationId(), header);
+            nearCacheRegistry.publish(HEADER_CACHE_NAME, context.getConversationId());
             
-            log.debug("保存Agent上下文: conversationId={}", context.getConversationId());
+            log.debug("保存Agent上下文: conversationId={}, headerBytes={}, appendedMessages={}, rewrite={}",
+                context.getConversationId(), header.length, delta.size(), rewrite);
         } catch (Exception e) {
             log.error("保存Agent上下文失败", e);
+            nearCacheRegistry.invalidate(HEADER_CACHE_NAME, context.getConversationId());
+            // 头与列表可能已落后于数据库，删除上下文头使下一次请求从数据库重新加载
+            try {
+                binaryRedisTemplate.delete(headerKey);
+            } catch (Exception ignored) {
+                // Redis 不可用时上下文头会随过期时间失效
+            }
         }
     }
     
     /**
-     * 获取上下文
+     * 获取上下文头（不含消息历史，messageBOS 为空列表；消息通过 {@link #loadMessageTail} 按需加载）
+     * <p>优先读取近端缓存，未命中时读取 Redis
      * 
      * @param conversationId 会话ID
      * @return Agent上下文
@@ -128,32 +193,107 @@ public class MemorySystem {
         if (StringUtils.isEmpty(conversationId)) {
             return null;
         }
-        String key = AgentConstants.CACHE_PREFIX_AGENT_CONTEXT + conversationId;
         
         try {
-            return (AgentContext) redisTemplate.opsForValue().get(key);
+            byte[] header = headerCache.get(conversationId, id -> {
+                Object value = binaryRedisTemplate.opsForHash().get(headerKey(id), FIELD_CONTEXT);
+                return value instanceof byte[] ? (byte[]) value : null;
+            });
+            if (header == null) {
+                return null;
+            }
+            AgentContext context = contextCodec.decode(header);
+            context.setMessageBOS(new ArrayList<>());
+            return context;
         } catch (Exception e) {
             log.error("获取Agent上下文失败", e);
             return null;
         }
     }
     
+    /**
+     * 读取 Redis 消息列表的最近 limit 条（按时间正序）
+     * <p>列表长度与上下文头中记录的消息数不一致（列表单独过期、写入中断等）时返回 null，调用方应回退到数据库
+     */
+    public List<MessageBO> loadMessageTail(String conversationId, int limit) {
+        String headerKey = headerKey(conversationId);
+        String listKey = messageListKey(conversationId);
+        try {
+            List<Object> results = binaryRedisTemplate.executePipelined(new SessionCallback<Object>() {
+                @Override
+                @SuppressWarnings("unchecked")
+                public <K, V> Object execute(RedisOperations<K, V> operations) {
+                    RedisOperations<String, byte[]> ops = (RedisOperations<String, byte[]>) operations;
+                    ops.opsForHash().get(headerKey, FIELD_MESSAGE_COUNT);
+                    ops.opsForList().size(listKey);
+                    ops.opsForList().range(listKey, limit > 0 ? -limit : 0, -1);
+                    return null;
+                }
+            });
+            long recorded = parseLong(results.get(0));
+            long size = results.get(1) instanceof Long ? (Long) results.get(1) : -1L;
+            int maxListMessages = Math.max(1, agentConfig.getMemory().getContextCodec().getMaxListMessages());
+            if (recorded < 0 || size != Math.min(recorded, maxListMessages)) {
+                log.debug("Redis 消息列表不完整，回退数据库: conversationId={}, recorded={}, size={}",
+                    conversationId, recorded, size);
+                return null;
+            }
+            
+            List<MessageBO> messages = new ArrayList<>();
+            Object range = results.get(2);
+            if (range instanceof List) {
+                for (Object item : (List<?>) range) {
+                    messages.add(contextCodec.decodeMessage((byte[]) item));
+                }
+            }
+            return messages;
+        } catch (Exception e) {
+            log.warn("读取 Redis 消息列表失败，回退数据库: conversationId={}, error={}", conversationId, e.getMessage());
+            return null;
+        }
+    }
+    
     /**
      * 清除会话上下文缓存
      * 
      * @param conversationId 会话ID
      */
     public void clearMemory(String conversationId) {
-        String contextKey = AgentConstants.CACHE_PREFIX_AGENT_CONTEXT + conversationId;
-        
+        nearCacheRegistry.invalidate(HEADER_CACHE_NAME, conversationId);
         try {
-            redisTemplate.delete(contextKey);
+            binaryRedisTemplate.delete(Arrays.asList(
+                headerKey(conversationId),
+                messageListKey(conversationId),
+                AgentConstants.CACHE_PREFIX_AGENT_CONTEXT + conversationId));
             log.info("清除会话上下文缓存: conversationId={}", conversationId);
         } catch (Exception e) {
             log.error("清除会话上下文缓存失败", e);
         }
     }
 
+    private static String headerKey(String conversationId) {
+        return AgentConstants.CACHE_PREFIX_AGENT_CONTEXT + conversationId + ":header";
+    }
+
+    private static String messageListKey(String conversationId) {
+        return AgentConstants.CACHE_PREFIX_AGENT_CONTEXT + conversationId + ":messages";
+    }
+
+    private static byte[] longBytes(long value) {
+        return Long.toString(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static long parseLong(Object value) {
+        if (value instanceof byte[]) {
+            try {
+                return Long.parseLong(new String((byte[]) value, StandardCharsets.UTF_8));
+            } catch (NumberFormatException e) {
+                return -1L;
+            }
+        }
+        return -1L;
+    }
+
 }
 
 
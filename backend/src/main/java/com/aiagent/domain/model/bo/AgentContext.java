@@ -3,25 +3,32 @@ package com.aiagent.domain.model.bo;
 import com.aiagent.api.dto.PersonalMcpToolSchema;
 import com.aiagent.api.dto.RAGConfig;
 import com.aiagent.application.AgentEventPublisher;
+import com.aiagent.application.AgentStateMachine;
 import com.aiagent.domain.agent.AgentDefinition;
 import com.aiagent.domain.action.ActionResult;
 import com.aiagent.common.enums.AgentMode;
+import com.aiagent.common.util.CancellationToken;
 import com.aiagent.application.StreamingCallback;
 import com.aiagent.domain.tool.todo.TodoItem;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import dev.langchain4j.data.message.ChatMessage;
+import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
 import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
 
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.Set;
+import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
 
 /**
@@ -82,6 +89,23 @@ public class AgentContext implements Serializable {
     @Builder.Default
     private List<TodoItem> todos = new ArrayList<>();
 
+    /**
+     * 会话较早历史的滚动摘要（由后台压缩任务生成，messageBOS 中只包含摘要之后的消息）
+     */
+    private String conversationSummary;
+
+    /**
+     * Redis 消息列表的起点：列表中的消息紧接在该消息 ID 之后（摘要覆盖的最后一条消息，无摘要时为 0）。
+     * 与当前摘要不一致时列表失效，改从数据库加载历史并整体重写列表
+     */
+    private Long messageListBaseId;
+
+    /**
+     * Redis 消息列表末尾对应的数据库消息（agent_message.message_id）：仅在运行正常结束、本轮消息提交写入时更新。
+     * 加载时与数据库最新一条消息比对，不一致（运行中途失败、后台写入最终失败等）说明列表与数据库已分叉，改从数据库加载
+     */
+    private String messageListTailId;
+
     // ── 运行时 I/O（transient，不序列化）──────────────────────────────────────
 
     /** 用户名 */
@@ -117,6 +141,36 @@ public class AgentContext implements Serializable {
     @JsonIgnore
     private transient ExecutionProcessRecord executionProcess;
 
+    /**
+     * 本次运行的状态机（每次运行独立创建，见 {@link AgentStateMachine#of}）
+     */
+    @JsonIgnore
+    private transient AgentStateMachine stateMachine;
+
+    /**
+     * 本次运行的取消令牌（用户停止时取消，中止 LLM 流与工具调用）
+     */
+    @JsonIgnore
+    private transient CancellationToken cancellationToken;
+
+    /**
+     * messageBOS 中已写入 Redis 消息列表的条数（前 n 条）：保存时只追加之后的消息，-1 表示需要整体重写。
+     * 由 {@link #setMessages} 重置，由 MemorySystem 在加载 / 保存后更新
+     */
+    @JsonIgnore
+    @Builder.Default
+    private transient int persistedMessageCount = -1;
+
+    /**
+     * messageBOS 的 ChatMessage 物化视图（按需构建、追加时增量维护，避免每次读取都整体转换）
+     */
+    @JsonIgnore
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private transient ChatMessageView chatMessageView;
+
     // ── 消息操作 ─────────────────────────────────────────────────────────────
 
     /**
@@ -124,6 +178,7 @@ public class AgentContext implements Serializable {
      */
     @JsonIgnore
     public void setMessages(List<ChatMessage> messages) {
+        this.persistedMessageCount = -1;
         if (messages == null) {
             this.messageBOS = new ArrayList<>();
         } else {
@@ -134,17 +189,30 @@ public class AgentContext implements Serializable {
     }
 
     /**
-     * 获取 ChatMessage 列表（从 BO 转换）
+     * 获取 ChatMessage 列表（物化视图的不可变快照，之后追加的消息不会出现在已返回的列表中）
      */
     @JsonIgnore
     public List<ChatMessage> getMessages() {
         if (messageBOS == null) {
             return new ArrayList<>();
         }
-        return messageBOS.stream()
-            .map(MessageBO::toChatMessage)
-            .filter(Objects::nonNull)
-            .collect(Collectors.toList());
+        return view().snapshot();
+    }
+
+    /**
+     * 按顺序遍历历史消息（BO 与对应的 ChatMessage），跳过无法转换的消息
+     */
+    public void forEachMessage(BiConsumer<MessageBO, ChatMessage> consumer) {
+        if (messageBOS == null) {
+            return;
+        }
+        ChatMessageView view = view();
+        for (int i = 0; i < messageBOS.size(); i++) {
+            ChatMessage message = view.get(i);
+            if (message != null) {
+                consumer.accept(messageBOS.get(i), message);
+            }
+        }
     }
 
     /** 追加单条消息 */
@@ -155,7 +223,17 @@ public class AgentContext implements Serializable {
         MessageBO bo = MessageBO.from(message);
         if (bo != null) {
             messageBOS.add(bo);
+            if (chatMessageView != null && chatMessageView.isFor(messageBOS)) {
+                chatMessageView.appendConverted(message);
+            }
+        }
+    }
+
+    private ChatMessageView view() {
+        if (chatMessageView == null || !chatMessageView.isFor(messageBOS)) {
+            chatMessageView = new ChatMessageView(messageBOS);
         }
+        return chatMessageView;
     }
 
     // ── 配置委托（从 config 透传，保持旧调用点无感知）─────────────────────────
@@ -249,6 +327,26 @@ public class AgentContext implements Serializable {
         ensureConfig().setMaxToolRounds(rounds);
     }
 
+    @JsonIgnore
+    public int getMaxParallelToolCalls() {
+        return config != null ? config.getMaxParallelToolCalls() : 1;
+    }
+
+    @JsonIgnore
+    public void setMaxParallelToolCalls(int maxParallel) {
+        ensureConfig().setMaxParallelToolCalls(maxParallel);
+    }
+
+    @JsonIgnore
+    public int getStreamFlushIntervalMs() {
+        return config != null ? config.getStreamFlushIntervalMs() : 0;
+    }
+
+    @JsonIgnore
+    public void setStreamFlushIntervalMs(int intervalMs) {
+        ensureConfig().setStreamFlushIntervalMs(intervalMs);
+    }
+
     @JsonIgnore
     public RAGConfig getRagConfig() {
         return config != null ? config.getRagConfig() : null;
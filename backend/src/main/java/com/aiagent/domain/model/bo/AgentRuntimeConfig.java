@@ -78,6 +78,14 @@ public class AgentRuntimeConfig implements Serializable {
     @Builder.Default
     private int maxToolRounds = 8;
 
+    /** 同一轮内最大并行工具调用数（默认 4，1 表示串行） */
+    @Builder.Default
+    private int maxParallelToolCalls = 4;
+
+    /** 流式 token 合并发送的时间窗口（毫秒，默认 30，0 表示逐 token 发送） */
+    @Builder.Default
+    private int streamFlushIntervalMs = 30;
+
     // ── RAG 检索（来自 AgentDefinition.ragConfig）────────────────────────────
 
     /**
@@ -0,0 +1,91 @@
+package com.aiagent.domain.model.bo;
+
+import dev.langchain4j.data.message.ChatMessage;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * {@link AgentContext#getMessageBOS()} 的 ChatMessage 物化视图
+ *
+ * <p>每条 {@link MessageBO} 只转换一次：首次读取时构建，之后 {@link AgentContext#addMessage} 直接追加原始消息，
+ * BO 列表被外部追加时只转换新增部分。视图只追加不修改，{@link #snapshot()} 返回的不可变列表固定为调用时的长度，
+ * 之后的追加不影响已返回的快照（扩容时旧数组保留给已有快照），读取代价为 O(1)。
+ *
+ * <p>绑定到构建时的 BO 列表实例；列表被替换或缩短时由 {@link AgentContext} 丢弃并重建。
+ */
+final class ChatMessageView {
+
+    private final List<MessageBO> source;
+
+    /** 与 source 下标一一对应的转换结果（无法转换的为 null） */
+    private ChatMessage[] byIndex;
+
+    /** 已转换的 BO 条数 */
+    private int converted;
+
+    /** 过滤掉 null 后的消息，只追加 */
+    private ChatMessage[] messages;
+
+    private int size;
+
+    ChatMessageView(List<MessageBO> source) {
+        this.source = source;
+        int capacity = Math.max(16, source.size() + 8);
+        this.byIndex = new ChatMessage[capacity];
+        this.messages = new ChatMessage[capacity];
+    }
+
+    /**
+     * 视图是否仍对应该 BO 列表（同一实例且未被缩短）
+     */
+    boolean isFor(List<MessageBO> list) {
+        return list == source && list.size() >= converted;
+    }
+
+    /**
+     * 转换 BO 列表中尚未转换的部分
+     */
+    void sync() {
+        for (int i = converted; i < source.size(); i++) {
+            MessageBO bo = source.get(i);
+            append(bo != null ? bo.toChatMessage() : null);
+        }
+    }
+
+    /**
+     * BO 列表刚追加了一条与 message 对应的 BO 时调用，直接记录原始消息
+     */
+    void appendConverted(ChatMessage message) {
+        if (converted == source.size() - 1) {
+            append(message);
+        }
+    }
+
+    List<ChatMessage> snapshot() {
+        sync();
+        return Collections.unmodifiableList(Arrays.asList(messages).subList(0, size));
+    }
+
+    /**
+     * 下标对应 BO 的 ChatMessage（无法转换时为 null）
+     */
+    ChatMessage get(int index) {
+        sync();
+        return index < converted ? byIndex[index] : null;
+    }
+
+    private void append(ChatMessage message) {
+        if (converted == byIndex.length) {
+            byIndex = Arrays.copyOf(byIndex, converted * 2);
+        }
+        byIndex[converted++] = message;
+        if (message != null) {
+            if (size == messages.length) {
+                messages = Arrays.copyOf(messages, size * 2);
+            }
+            messages[size++] = message;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.aiagent.domain.model.bo;
 
+import com.aiagent.common.util.TokenEstimator;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import dev.langchain4j.agent.tool.ToolExecutionRequest;
 import dev.langchain4j.data.message.*;
@@ -55,6 +56,42 @@ public class MessageBO implements Serializable {
      */
     private List<ToolExecutionRequestDTO> toolExecutionRequests;
 
+    /**
+     * 估算 token 数（首次调用 {@link #estimateTokens()} 时计算并缓存，随消息一起序列化）
+     */
+    private Integer tokenEstimate;
+
+    public void setText(String text) {
+        this.text = text;
+        // 文本变化后缓存的估算值失效
+        this.tokenEstimate = null;
+    }
+
+    public void setToolExecutionRequests(List<ToolExecutionRequestDTO> toolExecutionRequests) {
+        this.toolExecutionRequests = toolExecutionRequests;
+        this.tokenEstimate = null;
+    }
+
+    /**
+     * 估算 token 数（只计算一次，之后读取缓存值）
+     */
+    public int estimateTokens() {
+        Integer cached = tokenEstimate;
+        if (cached != null) {
+            return cached;
+        }
+        int tokens = TokenEstimator.MESSAGE_OVERHEAD_TOKENS + TokenEstimator.estimate(text)
+            + TokenEstimator.estimate(toolName);
+        if (toolExecutionRequests != null) {
+            for (ToolExecutionRequestDTO request : toolExecutionRequests) {
+                tokens += TokenEstimator.MESSAGE_OVERHEAD_TOKENS + TokenEstimator.estimate(request.getName())
+                    + TokenEstimator.estimate(request.getArguments());
+            }
+        }
+        tokenEstimate = tokens;
+        return tokens;
+    }
+
     /**
      * ToolExecutionRequest 的可序列化 DTO
      */
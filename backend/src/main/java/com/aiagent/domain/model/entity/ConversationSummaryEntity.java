@@ -0,0 +1,44 @@
+package com.aiagent.domain.model.entity;
+
+import lombok.Data;
+
+import java.util.Date;
+
+/**
+ * 会话滚动摘要实体类
+ * 
+ * @author aiagent
+ */
+@Data
+public class ConversationSummaryEntity {
+    
+    /**
+     * 会话ID
+     */
+    private String conversationId;
+    
+    /**
+     * 滚动摘要内容（覆盖 summaryUntilId 及之前的全部消息）
+     */
+    private String summary;
+    
+    /**
+     * 摘要已覆盖的最后一条消息ID（agent_message.id）
+     */
+    private Long summaryUntilId;
+    
+    /**
+     * 摘要估算 token 数
+     */
+    private Integer summaryTokens;
+    
+    /**
+     * 生成摘要使用的模型ID
+     */
+    private String modelId;
+    
+    /**
+     * 更新时间
+     */
+    private Date updateTime;
+}
@@ -56,10 +56,13 @@ public class ObservationEngine {
     ) {
         log.info("开始观察阶段，当前迭代: {}/{}", currentIteration, maxIterations);
         
-        // 【最优先】检查 Redis 中的停止标志（支持多实例）
+        // 【最优先】检查停止请求：先读取取消令牌（其他实例的停止请求经 pub/sub 推送），
+        // 未取消时再读取 Redis 停止标志兜底（推送丢失或未登记令牌）
         String requestId = context.getRequestId();
-        if (requestId != null && stopRequestManager.isStopRequested(requestId)) {
-            log.info("检测到停止请求（Redis），终止任务: requestId={}", requestId);
+        boolean stopRequested = (context.getCancellationToken() != null && context.getCancellationToken().isCancelled())
+            || (requestId != null && stopRequestManager.isStopRequested(requestId));
+        if (stopRequested) {
+            log.info("检测到停止请求，终止任务: requestId={}", requestId);
             
             // 清除停止标志
             stopRequestManager.clearStopFlag(requestId);
@@ -0,0 +1,444 @@
+package com.aiagent.domain.rag;
+
+import com.aiagent.domain.model.bo.Document;
+import com.aiagent.domain.model.bo.KnowledgeBase;
+import com.aiagent.infrastructure.config.AgentConfig;
+import com.aiagent.infrastructure.external.llm.EmbeddingModelManager;
+import com.aiagent.infrastructure.repository.DocumentRepository;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * 文档入库流水线
+ *
+ * <p>解析 → 分段 → 分批向量化 → 批量写入 pgvector，四个阶段各有独立的工作线程，阶段之间是有界队列：
+ * 下游处理不过来时上游阻塞等待，内存中的分段和向量数量有上限。待解析的文档队列不设上限（文档已持久化，只保存引用）。
+ *
+ * <ul>
+ *   <li>向量化按提供商限制同时进行的 embedAll 调用数，导入大量文档时打满但不压垮 Embedding API；</li>
+ *   <li>向量化和写入失败后按指数退避重试（退避期间继续占用提供商并发名额，降低出错提供商的压力）；</li>
+ *   <li>文档的所有批次写入后状态变为 COMPLETE；任一批次重试耗尽则变为 FAILED，并清理已写入的分段
+ *       （失败时仍有批次正在写入的，由最后一个结束的写入负责清理，避免残留孤立向量）；</li>
+ *   <li>每个文档的进度以 {@link IngestionProgress} 推送给订阅者（{@link DocumentService} 据此提供进度查询接口）。</li>
+ * </ul>
+ *
+ * <p>指标：{@code aiagent.rag.ingest.queue{stage}}、{@code aiagent.rag.ingest.duration{result}}。
+ *
+ * @author aiagent
+ */
+@Slf4j
+@Component
+public class DocumentIngestionPipeline {
+
+    @Autowired
+    private AgentConfig agentConfig;
+
+    @Autowired
+    private DocumentRepository documentRepository;
+
+    @Autowired
+    private EmbeddingProcessor embeddingProcessor;
+
+    @Autowired
+    private EmbeddingModelManager embeddingModelManager;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    /** 待解析的文档 */
+    private final BlockingQueue<IngestionJob> parseQueue = new LinkedBlockingQueue<>();
+
+    /** 已解析、待分段的文档 */
+    private BlockingQueue<IngestionJob> splitQueue;
+
+    /** 待向量化的分段批次 */
+    private BlockingQueue<SegmentBatch> embedQueue;
+
+    /** 已向量化、待写入的分段批次 */
+    private BlockingQueue<SegmentBatch> storeQueue;
+
+    /** 各提供商的 embedAll 并发名额 */
+    private final Map<String, Semaphore> providerPermits = new ConcurrentHashMap<>();
+
+    private final List<Consumer<IngestionProgress>> listeners = new CopyOnWriteArrayList<>();
+
+    private final List<Thread> workers = new ArrayList<>();
+
+    private volatile boolean running;
+
+    private Timer completeTimer;
+
+    private Timer failedTimer;
+
+    @PostConstruct
+    public void init() {
+        AgentConfig.RAGConfig.IngestionConfig cfg = config();
+        int capacity = Math.max(1, cfg.getQueueCapacity());
+        splitQueue = new ArrayBlockingQueue<>(capacity);
+        embedQueue = new ArrayBlockingQueue<>(capacity);
+        storeQueue = new ArrayBlockingQueue<>(capacity);
+        registerQueueGauge("parse", parseQueue);
+        registerQueueGauge("split", splitQueue);
+        registerQueueGauge("embed", embedQueue);
+        registerQueueGauge("store", storeQueue);
+        completeTimer = durationTimer("complete");
+        failedTimer = durationTimer("failed");
+
+        running = true;
+        startWorkers("ingest-parse", cfg.getParseWorkers(), parseQueue, this::parse);
+        startWorkers("ingest-split", cfg.getSplitWorkers(), splitQueue, this::split);
+        startWorkers("ingest-embed", cfg.getEmbedWorkers(), embedQueue, this::embed);
+        startWorkers("ingest-store", cfg.getStoreWorkers(), storeQueue, this::store);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        running = false;
+        workers.forEach(Thread::interrupt);
+    }
+
+    /**
+     * 提交文档入库（立即返回）
+     *
+     * @param knowledgeBase 知识库
+     * @param document 文档
+     * @param contentLoader 读取文档内容（在解析阶段执行）
+     */
+    public void submit(KnowledgeBase knowledgeBase, Document document, Callable<String> contentLoader) {
+        parseQueue.add(new IngestionJob(knowledgeBase, document, contentLoader));
+        log.debug("文档已提交入库: docId={}, pending={}", document.getId(), parseQueue.size());
+    }
+
+    /**
+     * 订阅入库进度
+     *
+     * @return 取消订阅的句柄
+     */
+    public Runnable subscribe(Consumer<IngestionProgress> listener) {
+        listeners.add(listener);
+        return () -> listeners.remove(listener);
+    }
+
+    // ========== 各阶段 ==========
+
+    /**
+     * 解析：状态置为 BUILDING，读取内容，定位模型与向量表并清理旧向量
+     */
+    private void parse(IngestionJob job) {
+        try {
+            updateStatus(job, Document.Status.BUILDING);
+            publish(job, IngestionProgress.Stage.PARSING, null);
+
+            job.content = job.contentLoader.call();
+            String modelId = embeddingModelManager.resolveEmbeddingModelId(job.knowledgeBase.getEmbeddingModelId());
+            job.model = embeddingModelManager.getOrCreateEmbeddingModel(modelId);
+            job.store = embeddingProcessor.getEmbeddingStore(modelId);
+            job.provider = embeddingModelManager.getProvider(modelId);
+            embeddingProcessor.deleteDocumentVectors(job.document.getId(), job.store);
+
+            enqueue(splitQueue, job);
+        } catch (Exception e) {
+            fail(job, e);
+        }
+    }
+
+    /**
+     * 分段并按 embedBatchSize 切成批次
+     */
+    private void split(IngestionJob job) {
+        try {
+            List<TextSegment> segments = embeddingProcessor.splitDocument(
+                job.knowledgeBase.getId(), job.document, job.content, job.model);
+            job.content = null;
+            if (segments.isEmpty()) {
+                complete(job);
+                return;
+            }
+
+            int batchSize = Math.max(1, config().getEmbedBatchSize());
+            int batchCount = (segments.size() + batchSize - 1) / batchSize;
+            job.totalSegments = segments.size();
+            job.remainingBatches.set(batchCount);
+            publish(job, IngestionProgress.Stage.SPLIT, null);
+
+            for (int from = 0; from < segments.size() && !job.finished.get(); from += batchSize) {
+                List<TextSegment> batch = new ArrayList<>(segments.subList(from, Math.min(from + batchSize, segments.size())));
+                enqueue(embedQueue, new SegmentBatch(job, batch));
+            }
+        } catch (Exception e) {
+            fail(job, e);
+        }
+    }
+
+    /**
+     * 向量化一个批次（受提供商并发上限约束）
+     */
+    private void embed(SegmentBatch batch) {
+        IngestionJob job = batch.job;
+        if (job.finished.get()) {
+            return;
+        }
+        try {
+            Semaphore permits = providerPermits.computeIfAbsent(job.provider, p -> new Semaphore(Math.max(1,
+                config().getProviderConcurrency().getOrDefault(p, config().getDefaultProviderConcurrency()))));
+            permits.acquire();
+            try {
+                List<Embedding> embeddings = withRetry("embed", job,
+                    () -> job.model.embedAll(batch.segments).content());
+                if (embeddings == null || embeddings.size() != batch.segments.size()) {
+                    throw new IllegalStateException("embedAll 返回数量不匹配: expected=" + batch.segments.size()
+                        + ", actual=" + (embeddings != null ? embeddings.size() : 0));
+                }
+                batch.embeddings = embeddings;
+            } finally {
+                permits.release();
+            }
+            enqueue(storeQueue, batch);
+        } catch (Exception e) {
+            fail(job, e);
+        }
+    }
+
+    /**
+     * 批量写入一个批次；文档的最后一个批次写入后完成
+     *
+     * <p>先登记为进行中的写入再检查文档是否已结束：与 {@link #fail} 并发时，
+     * 要么本批次看到已结束而不写入，要么失败处理看到写入仍在进行、由本批次结束时清理。
+     */
+    private void store(SegmentBatch batch) {
+        IngestionJob job = batch.job;
+        job.storesInFlight.incrementAndGet();
+        try {
+            if (job.finished.get()) {
+                return;
+            }
+            withRetry("store", job, () -> job.store.addAll(batch.embeddings, batch.segments));
+            job.storedSegments.addAndGet(batch.segments.size());
+            publish(job, IngestionProgress.Stage.STORED, null);
+            if (job.remainingBatches.decrementAndGet() == 0) {
+                complete(job);
+            }
+        } catch (Exception e) {
+            fail(job, e);
+        } finally {
+            if (job.storesInFlight.decrementAndGet() == 0 && job.failed) {
+                // 文档已失败且没有其他写入在进行：清理失败处理之后才写入完成的批次
+                deleteVectors(job);
+            }
+        }
+    }
+
+    // ========== 完成 / 失败 ==========
+
+    private void complete(IngestionJob job) {
+        if (!job.finished.compareAndSet(false, true)) {
+            return;
+        }
+        updateStatus(job, Document.Status.COMPLETE);
+        recordDuration(job, completeTimer);
+        publish(job, IngestionProgress.Stage.COMPLETE, null);
+        log.info("Document vectorized successfully: docId={}, segments={}, costMs={}",
+            job.document.getId(), job.totalSegments, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - job.startNanos));
+    }
+
+    private void fail(IngestionJob job, Exception e) {
+        if (e instanceof InterruptedException) {
+            Thread.currentThread().interrupt();
+        }
+        if (!job.finished.compareAndSet(false, true)) {
+            return;
+        }
+        log.error("Failed to vectorize document: {}", job.document.getId(), e);
+        job.content = null;
+        job.failed = true;
+        if (job.storesInFlight.get() == 0) {
+            // 清理已写入的批次，避免失败文档的部分分段参与检索；仍有写入在进行时由最后一个写入结束后清理
+            deleteVectors(job);
+        }
+        updateStatus(job, Document.Status.FAILED);
+        recordDuration(job, failedTimer);
+        publish(job, IngestionProgress.Stage.FAILED, e.getMessage());
+    }
+
+    private void deleteVectors(IngestionJob job) {
+        if (job.store != null) {
+            embeddingProcessor.deleteDocumentVectors(job.document.getId(), job.store);
+        }
+    }
+
+    // ========== 工具方法 ==========
+
+    /**
+     * 执行 action，失败后按指数退避（带抖动）重试；文档已结束时不再重试
+     */
+    private <T> T withRetry(String stage, IngestionJob job, Callable<T> action) throws Exception {
+        AgentConfig.RAGConfig.IngestionConfig cfg = config();
+        int maxRetries = Math.max(0, cfg.getMaxRetries());
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return action.call();
+            } catch (Exception e) {
+                if (attempt >= maxRetries || job.finished.get() || !running) {
+                    throw e;
+                }
+                long backoff = Math.min(cfg.getMaxRetryBackoffMs(), cfg.getRetryBackoffMs() << Math.min(attempt, 20));
+                long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+                log.warn("文档入库{}失败，{}ms 后重试({}/{}): docId={}, error={}",
+                    stage, delay, attempt + 1, maxRetries, job.document.getId(), e.getMessage());
+                Thread.sleep(delay);
+            }
+        }
+    }
+
+    private <T> void startWorkers(String name, int count, BlockingQueue<T> queue, Consumer<T> handler) {
+        for (int i = 1; i <= Math.max(1, count); i++) {
+            Thread t = new Thread(() -> {
+                while (running) {
+                    T item;
+                    try {
+                        item = queue.take();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    try {
+                        handler.accept(item);
+                    } catch (Exception e) {
+                        log.error("文档入库工作线程异常: thread={}", Thread.currentThread().getName(), e);
+                    }
+                }
+            }, name + "-" + i);
+            t.setDaemon(true);
+            t.start();
+            workers.add(t);
+        }
+    }
+
+    /**
+     * 放入有界队列，队列满时阻塞（背压）
+     */
+    private <T> void enqueue(BlockingQueue<T> queue, T item) throws InterruptedException {
+        queue.put(item);
+    }
+
+    private void updateStatus(IngestionJob job, String status) {
+        try {
+            job.document.setStatus(status);
+            job.document.setUpdateTime(new Date());
+            documentRepository.save(job.document);
+        } catch (Exception e) {
+            log.error("更新文档状态失败: docId={}, status={}", job.document.getId(), status, e);
+        }
+    }
+
+    private void publish(IngestionJob job, IngestionProgress.Stage stage, String error) {
+        if (listeners.isEmpty()) {
+            return;
+        }
+        IngestionProgress progress = IngestionProgress.builder()
+            .documentId(job.document.getId())
+            .knowledgeBaseId(job.knowledgeBase.getId())
+            .stage(stage)
+            .totalSegments(job.totalSegments)
+            .storedSegments(job.storedSegments.get())
+            .error(error)
+            .timestamp(System.currentTimeMillis())
+            .build();
+        for (Consumer<IngestionProgress> listener : listeners) {
+            try {
+                listener.accept(progress);
+            } catch (Exception e) {
+                log.warn("入库进度回调失败: docId={}, error={}", job.document.getId(), e.getMessage());
+            }
+        }
+    }
+
+    private void recordDuration(IngestionJob job, Timer timer) {
+        timer.record(System.nanoTime() - job.startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private Timer durationTimer(String result) {
+        return Timer.builder("aiagent.rag.ingest.duration")
+            .description("单个文档入库耗时（提交到完成）")
+            .tag("result", result)
+            .register(meterRegistry);
+    }
+
+    private void registerQueueGauge(String stage, BlockingQueue<?> queue) {
+        Gauge.builder("aiagent.rag.ingest.queue", queue, BlockingQueue::size)
+            .description("文档入库各阶段待处理数量")
+            .tag("stage", stage)
+            .register(meterRegistry);
+    }
+
+    private AgentConfig.RAGConfig.IngestionConfig config() {
+        return agentConfig.getRag().getIngestion();
+    }
+
+    /**
+     * 一个文档的入库任务（各阶段依次填充，阶段之间经队列交接）
+     */
+    private static final class IngestionJob {
+        private final KnowledgeBase knowledgeBase;
+        private final Document document;
+        private final Callable<String> contentLoader;
+        private final long startNanos = System.nanoTime();
+
+        private String content;
+        private EmbeddingModel model;
+        private EmbeddingStore<TextSegment> store;
+        private String provider;
+        private volatile int totalSegments;
+
+        private final AtomicInteger storedSegments = new AtomicInteger();
+        private final AtomicInteger remainingBatches = new AtomicInteger();
+        private final AtomicBoolean finished = new AtomicBoolean();
+        /** 正在执行 {@link #store} 的批次数 */
+        private final AtomicInteger storesInFlight = new AtomicInteger();
+        private volatile boolean failed;
+
+        private IngestionJob(KnowledgeBase knowledgeBase, Document document, Callable<String> contentLoader) {
+            this.knowledgeBase = knowledgeBase;
+            this.document = document;
+            this.contentLoader = contentLoader;
+        }
+    }
+
+    private static final class SegmentBatch {
+        private final IngestionJob job;
+        private final List<TextSegment> segments;
+        private List<Embedding> embeddings;
+
+        private SegmentBatch(IngestionJob job, List<TextSegment> segments) {
+            this.job = job;
+            this.segments = segments;
+        }
+    }
+}
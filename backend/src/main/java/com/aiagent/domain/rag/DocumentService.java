@@ -15,6 +15,7 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
+import javax.annotation.PostConstruct;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -23,9 +24,8 @@ import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
-import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 
 /**
@@ -51,11 +51,6 @@ public class DocumentService {
     private static final long MAX_TOTAL_SIZE = 1024 * 1024 * 1024; // 1GB
     private static final int MAX_ENTRY_COUNT = 10000;
     
-    /**
-     * 向量化线程池
-     */
-    private static final ExecutorService VECTORIZATION_EXECUTOR = Executors.newFixedThreadPool(10);
-    
     @Autowired
     private DocumentRepository documentRepository;
     
@@ -68,12 +63,25 @@ public class DocumentService {
     @Autowired
     private EmbeddingProcessor embeddingProcessor;
     
+    @Autowired
+    private DocumentIngestionPipeline ingestionPipeline;
+    
     @Value("${aiagent.rag.upload.path:./uploads}")
     private String uploadPath;
     
     @Value("${aiagent.rag.upload.max-file-size:157286400}")
     private long maxFileSize;
     
+    /**
+     * 本实例正在入库的文档的最新进度（docId → 进度），入库结束（COMPLETE / FAILED）后移除，以文档状态为准
+     */
+    private final Map<String, IngestionProgress> ingestionProgress = new ConcurrentHashMap<>();
+    
+    @PostConstruct
+    public void init() {
+        ingestionPipeline.subscribe(this::onIngestionProgress);
+    }
+    
     /**
      * 上传单文件并向量化
      * 
@@ -287,6 +295,51 @@ public class DocumentService {
         
         // 删除文档记录
         documentRepository.deleteById(docId);
+        ingestionProgress.remove(docId);
+    }
+    
+    /**
+     * 查询文档入库进度
+     * <p>本实例正在入库时返回流水线推送的最新进度（含分段总数与已写入数）；
+     * 否则（已结束、排队中或由其他实例处理）按文档状态返回阶段，分段数为 0
+     * 
+     * @param docId 文档ID
+     * @return 入库进度（文档为草稿状态时 stage 为 null）
+     */
+    public IngestionProgress getIngestionProgress(String docId) {
+        Document document = documentRepository.findById(docId)
+                .orElseThrow(() -> new IllegalArgumentException("Document not found: " + docId));
+        IngestionProgress progress = ingestionProgress.get(docId);
+        if (progress != null) {
+            if (Document.Status.BUILDING.equals(document.getStatus())) {
+                return progress;
+            }
+            // 入库已结束（结束事件之后才送达的批次进度），以文档状态为准
+            ingestionProgress.remove(docId, progress);
+        }
+        IngestionProgress.Stage stage = null;
+        if (Document.Status.COMPLETE.equals(document.getStatus())) {
+            stage = IngestionProgress.Stage.COMPLETE;
+        } else if (Document.Status.FAILED.equals(document.getStatus())) {
+            stage = IngestionProgress.Stage.FAILED;
+        } else if (Document.Status.BUILDING.equals(document.getStatus())) {
+            stage = IngestionProgress.Stage.PARSING;
+        }
+        return IngestionProgress.builder()
+                .documentId(docId)
+                .knowledgeBaseId(document.getKnowledgeBaseId())
+                .stage(stage)
+                .timestamp(document.getUpdateTime() != null ? document.getUpdateTime().getTime() : 0L)
+                .build();
+    }
+    
+    private void onIngestionProgress(IngestionProgress progress) {
+        if (progress.getStage() == IngestionProgress.Stage.COMPLETE
+                || progress.getStage() == IngestionProgress.Stage.FAILED) {
+            ingestionProgress.remove(progress.getDocumentId());
+        } else {
+            ingestionProgress.put(progress.getDocumentId(), progress);
+        }
     }
     
     /**
@@ -357,43 +410,10 @@ public class DocumentService {
     }
     
     /**
-     * 异步向量化文档
+     * 异步向量化文档（提交到入库流水线）
      */
     private void asyncVectorizeDocument(KnowledgeBase knowledgeBase, Document document) {
-        CompletableFuture.runAsync(() -> {
-            try {
-                // 更新状态为构建中
-                document.setStatus(Document.Status.BUILDING);
-                document.setUpdateTime(new Date());
-                documentRepository.save(document);
-                
-                // 解析文档内容
-                String content = extractDocumentContent(document);
-                
-                // 向量化并存储
-                embeddingProcessor.processDocument(
-                        knowledgeBase.getId(),
-                        document,
-                        content,
-                        knowledgeBase.getEmbeddingModelId()
-                );
-                
-                // 更新状态为完成
-                document.setStatus(Document.Status.COMPLETE);
-                document.setUpdateTime(new Date());
-                documentRepository.save(document);
-                
-                log.info("Document vectorized successfully: {}", document.getId());
-                
-            } catch (Exception e) {
-                log.error("Failed to vectorize document: {}", document.getId(), e);
-                
-                // 更新状态为失败
-                document.setStatus(Document.Status.FAILED);
-                document.setUpdateTime(new Date());
-                documentRepository.save(document);
-            }
-        }, VECTORIZATION_EXECUTOR);
+        ingestionPipeline.submit(knowledgeBase, document, () -> extractDocumentContent(document));
     }
     
     /**
@@ -3,6 +3,7 @@ package com.aiagent.domain.rag;
 import com.aiagent.infrastructure.config.EmbeddingStoreConfiguration;
 import com.aiagent.domain.model.bo.Document;
 import com.aiagent.infrastructure.external.llm.EmbeddingModelManager;
+import com.aiagent.infrastructure.external.llm.QueryEmbeddingCache;
 import dev.langchain4j.data.document.DocumentSplitter;
 import dev.langchain4j.data.document.Metadata;
 import dev.langchain4j.data.document.splitter.DocumentSplitters;
@@ -11,14 +12,13 @@ import dev.langchain4j.data.segment.TextSegment;
 import dev.langchain4j.model.embedding.EmbeddingModel;
 import dev.langchain4j.model.openai.OpenAiTokenCountEstimator;
 import dev.langchain4j.store.embedding.EmbeddingStore;
-import dev.langchain4j.store.embedding.EmbeddingStoreIngestor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.io.FilenameUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
-import java.util.Map;
+import java.util.List;
 
 import static dev.langchain4j.store.embedding.filter.MetadataFilterBuilder.metadataKey;
 
@@ -63,6 +63,9 @@ public class EmbeddingProcessor {
     @Autowired
     private EmbeddingModelManager embeddingModelManager;
     
+    @Autowired
+    private QueryEmbeddingCache queryEmbeddingCache;
+    
     @Value("${aiagent.rag.document.segment-size:1000}")
     private int segmentSize;
     
@@ -70,71 +73,39 @@ public class EmbeddingProcessor {
     private int overlapSize;
     
     /**
-     * 处理文档，进行向量化并存储
+     * 将文档分段（分段元数据包含知识库ID、文档ID、文档名）
      * 
      * @param knowledgeBaseId 知识库ID
      * @param document 文档对象
      * @param content 文档内容
-     * @param embeddingModelId 向量模型ID（可选，如果为空则使用默认模型）
-     * @return 处理结果元数据
+     * @param embeddingModel 文档使用的Embedding模型（用于选择 token 估算模型）
+     * @return 分段列表
      */
-    public Map<String, Object> processDocument(String knowledgeBaseId, Document document, String content, String embeddingModelId) {
-        log.info("Processing document for vectorization: docId={}, knowledgeBaseId={}", 
-                 document.getId(), knowledgeBaseId);
+    public List<TextSegment> splitDocument(String knowledgeBaseId, Document document, String content, EmbeddingModel embeddingModel) {
+        // 注意：TokenCountEstimator 用于文档分段时的 token 估算，不需要匹配实际的 embedding 模型
+        // 对于自定义模型（如通过 LM Studio 部署的模型），使用已知的 OpenAI 模型名称
+        String tokenEstimatorModel = getTokenEstimatorModelName(embeddingModel.modelName());
+        DocumentSplitter splitter = DocumentSplitters.recursive(
+                segmentSize > 0 ? segmentSize : DEFAULT_SEGMENT_SIZE,
+                overlapSize > 0 ? overlapSize : DEFAULT_OVERLAP_SIZE,
+                new OpenAiTokenCountEstimator(tokenEstimatorModel)
+        );
         
-        try {
-            // 1. 获取或创建Embedding模型
-            EmbeddingModel embeddingModel = getOrCreateEmbeddingModel(embeddingModelId);
-            
-            // 2. 获取EmbeddingStore
-            EmbeddingStore<TextSegment> embeddingStore = embeddingStoreConfiguration
-                    .createDefaultEmbeddingStore(embeddingModel);
-            
-            // 3. 删除旧的向量数据（如果存在）
-            deleteDocumentVectors(document.getId(), embeddingStore);
-            
-            // 4. 分段器
-            // 注意：TokenCountEstimator 用于文档分段时的 token 估算，不需要匹配实际的 embedding 模型
-            // 对于自定义模型（如通过 LM Studio 部署的模型），使用已知的 OpenAI 模型名称
-            String tokenEstimatorModel = getTokenEstimatorModelName(embeddingModel.modelName());
-            DocumentSplitter splitter = DocumentSplitters.recursive(
-                    segmentSize > 0 ? segmentSize : DEFAULT_SEGMENT_SIZE,
-                    overlapSize > 0 ? overlapSize : DEFAULT_OVERLAP_SIZE,
-                    new OpenAiTokenCountEstimator(tokenEstimatorModel)
-            );
-            
-            // 5. 构建元数据
-            Metadata metadata = Metadata.metadata(METADATA_DOC_ID, document.getId())
-                    .put(METADATA_KNOWLEDGE_ID, knowledgeBaseId)
-                    .put(METADATA_DOC_NAME, FilenameUtils.getName(document.getTitle()));
-            
-            // 6. 如果有标题，将标题添加到内容前面
-            String finalContent = content;
-            if (document.getTitle() != null && !document.getTitle().trim().isEmpty()) {
-                finalContent = document.getTitle() + "\n\n" + content;
-            }
-            
-            // 7. 创建LangChain4j Document
-            dev.langchain4j.data.document.Document langChainDocument = 
-                    dev.langchain4j.data.document.Document.from(finalContent, metadata);
-            
-            // 8. 分段并向量化存储
-            EmbeddingStoreIngestor ingestor = EmbeddingStoreIngestor.builder()
-                    .documentSplitter(splitter)
-                    .embeddingModel(embeddingModel)
-                    .embeddingStore(embeddingStore)
-                    .build();
-            
-            ingestor.ingest(langChainDocument);
-            
-            log.info("Document vectorized successfully: docId={}", document.getId());
-            
-            return metadata.toMap();
-            
-        } catch (Exception e) {
-            log.error("Failed to process document: docId={}", document.getId(), e);
-            throw new RuntimeException("Failed to process document: " + document.getId(), e);
+        // 如果有标题，将标题添加到内容前面
+        String finalContent = content;
+        if (document.getTitle() != null && !document.getTitle().trim().isEmpty()) {
+            finalContent = document.getTitle() + "\n\n" + content;
         }
+        
+        dev.langchain4j.data.document.Document langChainDocument = 
+                dev.langchain4j.data.document.Document.from(finalContent, buildMetadata(knowledgeBaseId, document));
+        return splitter.split(langChainDocument);
+    }
+    
+    private Metadata buildMetadata(String knowledgeBaseId, Document document) {
+        return Metadata.metadata(METADATA_DOC_ID, document.getId())
+                .put(METADATA_KNOWLEDGE_ID, knowledgeBaseId)
+                .put(METADATA_DOC_NAME, FilenameUtils.getName(document.getTitle()));
     }
     
     /**
@@ -160,9 +131,7 @@ public class EmbeddingProcessor {
      */
     public void deleteKnowledgeBaseVectors(String knowledgeBaseId, String embeddingModelId) {
         try {
-            EmbeddingModel embeddingModel = getOrCreateEmbeddingModel(embeddingModelId);
-            EmbeddingStore<TextSegment> embeddingStore = embeddingStoreConfiguration
-                    .createDefaultEmbeddingStore(embeddingModel);
+            EmbeddingStore<TextSegment> embeddingStore = getEmbeddingStore(embeddingModelId);
             
             embeddingStore.removeAll(metadataKey(METADATA_KNOWLEDGE_ID).isEqualTo(knowledgeBaseId));
             log.info("Deleted vectors for knowledge base: {}", knowledgeBaseId);
@@ -179,9 +148,7 @@ public class EmbeddingProcessor {
      */
     public void deleteDocumentVectors(java.util.List<String> docIds, String embeddingModelId) {
         try {
-            EmbeddingModel embeddingModel = getOrCreateEmbeddingModel(embeddingModelId);
-            EmbeddingStore<TextSegment> embeddingStore = embeddingStoreConfiguration
-                    .createDefaultEmbeddingStore(embeddingModel);
+            EmbeddingStore<TextSegment> embeddingStore = getEmbeddingStore(embeddingModelId);
             
             for (String docId : docIds) {
                 deleteDocumentVectors(docId, embeddingStore);
@@ -194,17 +161,16 @@ public class EmbeddingProcessor {
     }
     
     /**
-     * 获取或创建Embedding模型
+     * 获取知识库向量模型对应的EmbeddingStore
      * 
      * @param embeddingModelId 模型ID（可选，如果为空则使用默认模型）
-     * @return EmbeddingModel实例
+     * @return EmbeddingStore实例
      */
-    private EmbeddingModel getOrCreateEmbeddingModel(String embeddingModelId) {
+    public EmbeddingStore<TextSegment> getEmbeddingStore(String embeddingModelId) {
         // 使用 EmbeddingModelManager 统一管理 Embedding 模型
-        if (embeddingModelId == null || embeddingModelId.isEmpty()) {
-            return embeddingModelManager.getDefaultEmbeddingModel();
-        }
-        return embeddingModelManager.getOrCreateEmbeddingModel(embeddingModelId);
+        String modelId = embeddingModelManager.resolveEmbeddingModelId(embeddingModelId);
+        EmbeddingModel embeddingModel = embeddingModelManager.getOrCreateEmbeddingModel(modelId);
+        return embeddingStoreConfiguration.getEmbeddingStore(embeddingModel, modelId);
     }
     
     /**
@@ -247,8 +213,7 @@ public class EmbeddingProcessor {
      * @return Embedding向量
      */
     public Embedding embedQuery(String queryText, String embeddingModelId) {
-        EmbeddingModel embeddingModel = getOrCreateEmbeddingModel(embeddingModelId);
-        return embeddingModel.embed(queryText).content();
+        return queryEmbeddingCache.embed(embeddingModelManager.resolveEmbeddingModelId(embeddingModelId), queryText);
     }
 }
 
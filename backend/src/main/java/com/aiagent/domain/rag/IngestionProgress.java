@@ -0,0 +1,57 @@
+package com.aiagent.domain.rag;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 文档入库进度事件
+ *
+ * @author aiagent
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class IngestionProgress {
+
+    /**
+     * 入库阶段
+     */
+    public enum Stage {
+        /** 进入解析阶段（文档状态变为 BUILDING） */
+        PARSING,
+        /** 分段完成，已知分段总数 */
+        SPLIT,
+        /** 一批分段已向量化并写入 */
+        STORED,
+        /** 全部写入完成 */
+        COMPLETE,
+        /** 入库失败（已写入的分段已清理） */
+        FAILED
+    }
+
+    private String documentId;
+
+    private String knowledgeBaseId;
+
+    private Stage stage;
+
+    /**
+     * 分段总数（分段完成前为 0）
+     */
+    private int totalSegments;
+
+    /**
+     * 已写入的分段数
+     */
+    private int storedSegments;
+
+    /**
+     * 失败原因（仅 FAILED）
+     */
+    private String error;
+
+    private long timestamp;
+}
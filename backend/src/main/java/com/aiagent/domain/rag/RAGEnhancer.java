@@ -1,10 +1,12 @@
 package com.aiagent.domain.rag;
 
 import com.aiagent.api.dto.RAGConfig;
+import com.aiagent.infrastructure.config.AgentConfig;
 import com.aiagent.infrastructure.config.EmbeddingStoreConfiguration;
 import com.aiagent.domain.model.bo.KnowledgeBase;
 import com.aiagent.infrastructure.repository.KnowledgeBaseRepository;
 import com.aiagent.infrastructure.external.llm.EmbeddingModelManager;
+import com.aiagent.infrastructure.external.llm.QueryEmbeddingCache;
 import com.aiagent.common.util.StringUtils;
 import com.aiagent.domain.model.bo.AgentKnowledgeDocument;
 import com.aiagent.domain.model.bo.AgentKnowledgeResult;
@@ -15,14 +17,29 @@ import dev.langchain4j.store.embedding.EmbeddingMatch;
 import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
 import dev.langchain4j.store.embedding.EmbeddingSearchResult;
 import dev.langchain4j.store.embedding.EmbeddingStore;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import static dev.langchain4j.store.embedding.filter.MetadataFilterBuilder.metadataKey;
@@ -48,7 +65,36 @@ public class RAGEnhancer {
     @Autowired
     private EmbeddingModelManager embeddingModelManager;
 
+    @Autowired
+    private QueryEmbeddingCache queryEmbeddingCache;
+
+    @Autowired
+    private AgentConfig agentConfig;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    /**
+     * 向量查询线程池（不同 EmbeddingStore 的查询并行执行）
+     */
+    private ExecutorService searchExecutor;
 
+    @PostConstruct
+    public void init() {
+        AtomicInteger threadIndex = new AtomicInteger();
+        searchExecutor = Executors.newFixedThreadPool(Math.max(1, searchConfig().getThreads()), r -> {
+            Thread t = new Thread(r, "rag-search-" + threadIndex.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (searchExecutor != null) {
+            searchExecutor.shutdownNow();
+        }
+    }
     
     
     /**
@@ -116,17 +162,14 @@ public class RAGEnhancer {
         
         // 使用langchain4j实现RAG检索
         try {
-            // 1. 获取或创建Embedding模型
-            EmbeddingModel model = embeddingModelManager.getDefaultEmbeddingModel();
-            if (model == null) {
-                log.warn("Embedding模型不可用，返回空结果");
+            // 1. 按知识库的Embedding模型分组（入库使用哪个模型，检索就用哪个模型和对应的向量表）
+            Map<String, List<String>> modelGroups = groupByEmbeddingModel(knowledgeIds, knowledgeBaseMap);
+            if (modelGroups.isEmpty()) {
+                log.warn("没有可检索的知识库，返回空结果");
                 return createEmptyResult(query);
             }
             
-            // 2. 生成查询向量
-            Embedding queryEmbedding = model.embed(query).content();
-            
-            // 3. 使用配置参数
+            // 2. 使用配置参数
             int maxResults = ragConfig.getMaxResultsOrDefault();
             double minScore = ragConfig.getMinScoreOrDefault();
             
@@ -135,50 +178,14 @@ public class RAGEnhancer {
                 ragConfig.hasDocumentLengthLimit() ? ragConfig.getMaxDocumentLength() : "无限制",
                 ragConfig.hasTotalContentLengthLimit() ? ragConfig.getMaxTotalContentLength() : "无限制");
             
-            // 4. 合并所有知识库的检索结果
-            List<EmbeddingMatch<TextSegment>> allMatches = new ArrayList<>();
-            
-            for (String knowledgeId : knowledgeIds) {
-                try {
-                    KnowledgeBase knowledgeBase = knowledgeBaseMap.get(knowledgeId);
-                    if (knowledgeBase == null) {
-                        log.warn("Knowledge base not found in map: {}", knowledgeId);
-                        continue;
-                    }
-                    
-                    // 获取该知识库的EmbeddingStore
-                    EmbeddingStore<TextSegment> store = embeddingStoreConfiguration
-                            .createDefaultEmbeddingStore(model);
-                    
-                    // 构建搜索请求，按知识库ID过滤
-                    EmbeddingSearchRequest searchRequest = EmbeddingSearchRequest.builder()
-                            .queryEmbedding(queryEmbedding)
-                            .maxResults(maxResults)
-                            .minScore(minScore)
-                            .filter(metadataKey(EmbeddingProcessor.METADATA_KNOWLEDGE_ID).isEqualTo(knowledgeId))
-                            .build();
-                    
-                    EmbeddingSearchResult<TextSegment> searchResult = store.search(searchRequest);
-                    List<EmbeddingMatch<TextSegment>> matches = searchResult.matches();
-                    
-                    if (matches != null && !matches.isEmpty()) {
-                        allMatches.addAll(matches);
-                    }
-                } catch (Exception e) {
-                    log.error("Failed to search in knowledge base: {}", knowledgeId, e);
-                }
-            }
-            
-            // 5. 按分数排序并取前N个
-            List<EmbeddingMatch<TextSegment>> matches = allMatches.stream()
-                    .sorted((a, b) -> Double.compare(b.score(), a.score()))
-                    .limit(maxResults)
-                    .collect(Collectors.toList());
+            // 3. 每个模型生成一次查询向量并在该模型的EmbeddingStore中检索（同一模型的知识库合并为一次 IN 过滤查询，
+            //    不同模型并行），合并为全局 top-k
+            List<EmbeddingMatch<TextSegment>> matches = searchAll(query, modelGroups, maxResults, minScore);
             
-            // 6. 转换为AgentKnowledgeResult
+            // 5. 转换为AgentKnowledgeResult
             AgentKnowledgeResult result = convertToKnowledgeResult(query, matches, knowledgeIds);
             
-            // 7. 应用文档长度限制（如果配置了）
+            // 6. 应用文档长度限制（如果配置了）
             if (ragConfig.hasDocumentLengthLimit() || ragConfig.hasTotalContentLengthLimit()) {
                 result = applyLengthLimits(result, ragConfig);
             } else {
@@ -194,6 +201,132 @@ public class RAGEnhancer {
     }
 
     
+    /**
+     * 按实际使用的 Embedding 模型ID分组知识库（保持知识库顺序）
+     */
+    private Map<String, List<String>> groupByEmbeddingModel(List<String> knowledgeIds,
+                                                            Map<String, KnowledgeBase> knowledgeBaseMap) {
+        Map<String, List<String>> groups = new LinkedHashMap<>();
+        for (String knowledgeId : knowledgeIds) {
+            KnowledgeBase knowledgeBase = knowledgeBaseMap.get(knowledgeId);
+            if (knowledgeBase == null) {
+                log.warn("Knowledge base not found in map: {}", knowledgeId);
+                continue;
+            }
+            String modelId = embeddingModelManager.resolveEmbeddingModelId(knowledgeBase.getEmbeddingModelId());
+            groups.computeIfAbsent(modelId, k -> new ArrayList<>()).add(knowledgeId);
+        }
+        return groups;
+    }
+    
+    /**
+     * 各模型分组并行执行：生成查询向量 → 在该模型的 EmbeddingStore 中检索（整个分组受超时限制，含生成查询向量）。
+     * 超时或失败的分组不计入结果，其余按分数合并取前 maxResults 个
+     */
+    private List<EmbeddingMatch<TextSegment>> searchAll(String query, Map<String, List<String>> modelGroups,
+                                                        int maxResults, double minScore) {
+        long timeoutMs = searchConfig().getTimeoutMs();
+        List<CompletableFuture<List<EmbeddingMatch<TextSegment>>>> futures = new ArrayList<>(modelGroups.size());
+        for (Map.Entry<String, List<String>> group : modelGroups.entrySet()) {
+            String modelId = group.getKey();
+            List<String> groupIds = group.getValue();
+            CompletableFuture<List<EmbeddingMatch<TextSegment>>> future = CompletableFuture.supplyAsync(() -> {
+                GroupQuery groupQuery = prepareQuery(modelId, query);
+                return searchGroup(groupQuery.store, groupIds, groupQuery.embedding, maxResults, minScore);
+            }, searchExecutor);
+            if (timeoutMs > 0) {
+                future = future.orTimeout(timeoutMs, TimeUnit.MILLISECONDS);
+            }
+            futures.add(future.exceptionally(e -> {
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                if (cause instanceof TimeoutException) {
+                    log.warn("知识库检索超时（含生成查询向量）: modelId={}, knowledgeIds={}, timeoutMs={}", modelId, groupIds, timeoutMs);
+                    groupIds.forEach(id -> meterRegistry.counter("aiagent.rag.search.timeouts", "knowledgeBase", id).increment());
+                } else {
+                    log.error("Failed to search in knowledge bases: modelId={}, knowledgeIds={}", modelId, groupIds, cause);
+                }
+                return Collections.emptyList();
+            }));
+        }
+        
+        // 小顶堆保留分数最高的 maxResults 个（不同模型的分数都是余弦相似度，可直接比较）
+        PriorityQueue<EmbeddingMatch<TextSegment>> topK = new PriorityQueue<>(
+            Math.max(1, maxResults), Comparator.comparingDouble(EmbeddingMatch::score));
+        for (CompletableFuture<List<EmbeddingMatch<TextSegment>>> future : futures) {
+            for (EmbeddingMatch<TextSegment> match : future.join()) {
+                topK.offer(match);
+                if (topK.size() > maxResults) {
+                    topK.poll();
+                }
+            }
+        }
+        List<EmbeddingMatch<TextSegment>> matches = new ArrayList<>(topK);
+        matches.sort((a, b) -> Double.compare(b.score(), a.score()));
+        return matches;
+    }
+    
+    /**
+     * 生成指定模型的查询向量并定位该模型对应的 EmbeddingStore（按维度区分向量表）
+     */
+    private GroupQuery prepareQuery(String modelId, String query) {
+        EmbeddingModel model = embeddingModelManager.getOrCreateEmbeddingModel(modelId);
+        Embedding embedding = queryEmbeddingCache.embed(modelId, query);
+        return new GroupQuery(embeddingStoreConfiguration.getEmbeddingStore(model, modelId), embedding);
+    }
+    
+    /**
+     * 在一个 EmbeddingStore 中检索一组知识库（一次查询，按知识库ID IN 过滤），并记录各知识库的查询耗时
+     */
+    private List<EmbeddingMatch<TextSegment>> searchGroup(EmbeddingStore<TextSegment> store, List<String> groupIds,
+                                                          Embedding queryEmbedding, int maxResults, double minScore) {
+        EmbeddingSearchRequest searchRequest = EmbeddingSearchRequest.builder()
+                .queryEmbedding(queryEmbedding)
+                .maxResults(maxResults)
+                .minScore(minScore)
+                .filter(groupIds.size() == 1
+                        ? metadataKey(EmbeddingProcessor.METADATA_KNOWLEDGE_ID).isEqualTo(groupIds.get(0))
+                        : metadataKey(EmbeddingProcessor.METADATA_KNOWLEDGE_ID).isIn(groupIds))
+                .build();
+        
+        long startNs = System.nanoTime();
+        String outcome = "error";
+        try {
+            EmbeddingSearchResult<TextSegment> searchResult = store.search(searchRequest);
+            outcome = "success";
+            List<EmbeddingMatch<TextSegment>> matches = searchResult.matches();
+            return matches != null ? matches : Collections.emptyList();
+        } finally {
+            long elapsedNs = System.nanoTime() - startNs;
+            for (String knowledgeId : groupIds) {
+                Timer.builder("aiagent.rag.search")
+                    .description("知识库向量查询耗时")
+                    .tag("knowledgeBase", knowledgeId)
+                    .tag("outcome", outcome)
+                    .register(meterRegistry)
+                    .record(elapsedNs, TimeUnit.NANOSECONDS);
+            }
+            log.debug("知识库向量查询完成: knowledgeIds={}, outcome={}, costMs={}",
+                groupIds, outcome, TimeUnit.NANOSECONDS.toMillis(elapsedNs));
+        }
+    }
+    
+    private AgentConfig.RAGConfig.SearchConfig searchConfig() {
+        return agentConfig.getRag().getSearch();
+    }
+    
+    /**
+     * 一个模型分组的查询向量及其 EmbeddingStore
+     */
+    private static final class GroupQuery {
+        private final EmbeddingStore<TextSegment> store;
+        private final Embedding embedding;
+        
+        private GroupQuery(EmbeddingStore<TextSegment> store, Embedding embedding) {
+            this.store = store;
+            this.embedding = embedding;
+        }
+    }
+    
     /**
      * 构建增强提示词
      */
@@ -41,6 +41,12 @@ public class AskUserQuestionTool implements SystemTool {
         return TOOL_NAME;
     }
 
+    /** 需等待用户逐一作答，串行执行 */
+    @Override
+    public boolean isParallelSafe() {
+        return false;
+    }
+
     @Override
     public ToolSpecification getSpecification() {
         return ToolSpecification.builder()
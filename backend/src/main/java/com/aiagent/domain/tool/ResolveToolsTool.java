@@ -32,6 +32,12 @@ public class ResolveToolsTool implements SystemTool {
         return TOOL_NAME;
     }
 
+    /** 修改 context.activeMcpToolNames，需串行执行 */
+    @Override
+    public boolean isParallelSafe() {
+        return false;
+    }
+
     @Override
     public ToolSpecification getSpecification() {
         return ToolSpecification.builder()
@@ -29,4 +29,15 @@ public interface SystemTool {
      * @return 工具执行结果文本（将被包装为 ToolExecutionResultMessage.text()）
      */
     String execute(String jsonArguments, AgentContext context);
+
+    /**
+     * 是否允许与同一轮的其他工具调用并行执行
+     * <p>会修改 {@link AgentContext} 状态或需要与用户逐一交互的工具应返回 false：
+     * FunctionCallingEngine 把这类调用全部放在第一条执行链上，按原顺序依次执行（彼此之间不并发）。
+     * 注意第一条链仍在 fc-tool-executor 上运行，与其他执行链上的并行安全工具同时进行，
+     * 因此返回 false 不能代替对共享状态的线程安全处理。
+     */
+    default boolean isParallelSafe() {
+        return true;
+    }
 }
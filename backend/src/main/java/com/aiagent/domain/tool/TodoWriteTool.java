@@ -44,6 +44,12 @@ public class TodoWriteTool implements SystemTool {
         return TOOL_NAME;
     }
 
+    /** 修改 context.todos，需串行执行 */
+    @Override
+    public boolean isParallelSafe() {
+        return false;
+    }
+
     @Override
     public ToolSpecification getSpecification() {
         return ToolSpecification.builder()
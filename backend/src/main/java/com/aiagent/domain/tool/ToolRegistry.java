@@ -148,6 +148,22 @@ public class ToolRegistry {
         return personalToolMap != null ? personalToolMap.get(toolName) : null;
     }
 
+    /**
+     * 判断工具调用能否与同一轮其他工具并行执行
+     * <p>PERSONAL / GLOBAL MCP 工具互不依赖，均可并行；系统工具由 {@link SystemTool#isParallelSafe()} 决定。
+     */
+    public boolean isParallelSafe(String toolName, Map<String, String> personalToolMap) {
+        if (getPersonalServerId(toolName, personalToolMap) != null) {
+            return true;
+        }
+        for (SystemTool tool : systemTools) {
+            if (tool.getName().equals(toolName)) {
+                return tool.isParallelSafe();
+            }
+        }
+        return true;
+    }
+
     /**
      * 将前端传入的原始 inputSchema（Map/Object）解析为 JsonObjectSchema
      */
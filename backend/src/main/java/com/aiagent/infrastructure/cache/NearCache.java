@@ -0,0 +1,184 @@
+package com.aiagent.infrastructure.cache;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * 进程内近端缓存（位于 Redis / MySQL 之前）
+ *
+ * <p>按访问顺序淘汰（LRU），条目数超过 {@code maxSize} 时淘汰最久未访问的条目，写入超过 {@code ttl} 后过期。
+ * 加载函数在锁外执行，返回 null 时不缓存；加载期间发生失效时不回填本次结果，避免旧值覆盖失效。
+ * 由 {@link NearCacheRegistry} 创建，集群内的失效通过 Redis pub/sub 广播。
+ *
+ * <p>指标：{@code aiagent.cache.requests{cache,result=hit|miss}}、{@code aiagent.cache.load{cache}}、
+ * {@code aiagent.cache.size{cache}}。
+ *
+ * @param <V> 缓存值类型（缓存的实例在多个请求间共享，调用方不得修改）
+ */
+public class NearCache<V> {
+
+    private final String name;
+
+    private final int maxSize;
+
+    private final long ttlNanos;
+
+    private final Map<String, Entry<V>> entries;
+
+    /** 每次失效递增：加载开始后发生过失效则不回填 */
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private final Counter hitCounter;
+
+    private final Counter missCounter;
+
+    private final Timer loadTimer;
+
+    NearCache(String name, int maxSize, long ttlSeconds, MeterRegistry meterRegistry) {
+        this.name = name;
+        this.maxSize = maxSize;
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(Math.max(1, ttlSeconds));
+        this.entries = new LinkedHashMap<String, Entry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry<V>> eldest) {
+                return size() > NearCache.this.maxSize;
+            }
+        };
+        this.hitCounter = Counter.builder("aiagent.cache.requests")
+            .description("近端缓存访问次数")
+            .tag("cache", name)
+            .tag("result", "hit")
+            .register(meterRegistry);
+        this.missCounter = Counter.builder("aiagent.cache.requests")
+            .description("近端缓存访问次数")
+            .tag("cache", name)
+            .tag("result", "miss")
+            .register(meterRegistry);
+        this.loadTimer = Timer.builder("aiagent.cache.load")
+            .description("近端缓存未命中时的加载耗时")
+            .tag("cache", name)
+            .register(meterRegistry);
+        Gauge.builder("aiagent.cache.size", this, NearCache::size)
+            .description("近端缓存条目数")
+            .tag("cache", name)
+            .register(meterRegistry);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 是否启用（maxSize &lt;= 0 时所有读取直接走加载函数）
+     */
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    /**
+     * 读取缓存，未命中或已过期时调用 loader 加载并回填
+     */
+    public V get(String key, Function<String, V> loader) {
+        if (key == null) {
+            return null;
+        }
+        if (isEnabled()) {
+            V cached = getIfPresent(key);
+            if (cached != null) {
+                hitCounter.increment();
+                return cached;
+            }
+        }
+        missCounter.increment();
+
+        long epoch = invalidations.get();
+        long startNs = System.nanoTime();
+        V value = loader.apply(key);
+        loadTimer.record(System.nanoTime() - startNs, TimeUnit.NANOSECONDS);
+        if (value != null && isEnabled()) {
+            synchronized (entries) {
+                if (invalidations.get() == epoch) {
+                    entries.put(key, new Entry<>(value, System.nanoTime() + ttlNanos));
+                }
+            }
+        }
+        return value;
+    }
+
+    /**
+     * 只读取缓存（不计入命中率，不触发加载）
+     */
+    public V getIfPresent(String key) {
+        if (!isEnabled() || key == null) {
+            return null;
+        }
+        synchronized (entries) {
+            Entry<V> entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.expireAtNanos - System.nanoTime() <= 0) {
+                entries.remove(key);
+                return null;
+            }
+            return entry.value;
+        }
+    }
+
+    /**
+     * 写入本地缓存（本节点刚写入下游存储的新值）
+     */
+    public void put(String key, V value) {
+        if (!isEnabled() || key == null) {
+            return;
+        }
+        synchronized (entries) {
+            if (value == null) {
+                entries.remove(key);
+            } else {
+                entries.put(key, new Entry<>(value, System.nanoTime() + ttlNanos));
+            }
+        }
+    }
+
+    /**
+     * 仅失效本地条目（集群广播由 {@link NearCacheRegistry#invalidate} 负责）
+     */
+    public void evictLocal(String key) {
+        invalidations.incrementAndGet();
+        synchronized (entries) {
+            entries.remove(key);
+        }
+    }
+
+    public void clearLocal() {
+        invalidations.incrementAndGet();
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private static final class Entry<V> {
+        private final V value;
+        private final long expireAtNanos;
+
+        private Entry(V value, long expireAtNanos) {
+            this.value = value;
+            this.expireAtNanos = expireAtNanos;
+        }
+    }
+}
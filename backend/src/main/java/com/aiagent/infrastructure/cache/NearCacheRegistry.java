@@ -0,0 +1,106 @@
+package com.aiagent.infrastructure.cache;
+
+import com.aiagent.common.util.UUIDGenerator;
+import com.aiagent.infrastructure.config.AgentConfig;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 近端缓存注册表与集群失效广播
+ *
+ * <p>各节点订阅同一个 Redis 频道；某节点修改了缓存对应的数据后调用 {@link #invalidate}，
+ * 本地失效后广播 {@code nodeId \n cacheName \n key}，其他节点收到后失效本地条目（忽略自己发出的消息）。
+ * 广播是尽力而为的：消息丢失时旧值最多保留到条目 TTL 过期。
+ */
+@Slf4j
+@Component
+public class NearCacheRegistry {
+
+    private static final String SEPARATOR = "\n";
+
+    @Autowired
+    private AgentConfig agentConfig;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    private final Map<String, NearCache<?>> caches = new ConcurrentHashMap<>();
+
+    /** 本节点标识，用于忽略自己广播的失效消息 */
+    private final String nodeId = UUIDGenerator.generate();
+
+    @PostConstruct
+    public void init() {
+        redisMessageListenerContainer.addMessageListener(
+            (Message message, byte[] pattern) -> onInvalidation(new String(message.getBody(), StandardCharsets.UTF_8)),
+            new ChannelTopic(config().getInvalidationChannel()));
+    }
+
+    /**
+     * 创建（或获取已创建的）近端缓存；整体关闭或 maxSize &lt;= 0 时返回不缓存的实例
+     */
+    @SuppressWarnings("unchecked")
+    public <V> NearCache<V> create(String name, AgentConfig.NearCacheConfig.CacheSpec spec) {
+        return (NearCache<V>) caches.computeIfAbsent(name, n -> new NearCache<V>(n,
+            config().isEnabled() ? spec.getMaxSize() : 0, spec.getTtlSeconds(), meterRegistry));
+    }
+
+    /**
+     * 失效本地条目并通知集群其他节点
+     */
+    public void invalidate(String cacheName, String key) {
+        NearCache<?> cache = caches.get(cacheName);
+        if (cache != null) {
+            cache.evictLocal(key);
+        }
+        publish(cacheName, key);
+    }
+
+    /**
+     * 只通知集群其他节点失效（本节点已用新值回填本地缓存时使用）
+     */
+    public void publish(String cacheName, String key) {
+        if (!config().isEnabled() || key == null) {
+            return;
+        }
+        try {
+            stringRedisTemplate.convertAndSend(config().getInvalidationChannel(),
+                nodeId + SEPARATOR + cacheName + SEPARATOR + key);
+        } catch (Exception e) {
+            log.warn("广播近端缓存失效失败: cache={}, key={}, error={}", cacheName, key, e.getMessage());
+        }
+    }
+
+    private void onInvalidation(String body) {
+        String[] parts = body.split(SEPARATOR, 3);
+        if (parts.length != 3 || nodeId.equals(parts[0])) {
+            return;
+        }
+        NearCache<?> cache = caches.get(parts[1]);
+        if (cache != null) {
+            cache.evictLocal(parts[2]);
+            log.debug("收到近端缓存失效: cache={}, key={}", parts[1], parts[2]);
+        }
+    }
+
+    private AgentConfig.NearCacheConfig config() {
+        return agentConfig.getNearCache();
+    }
+}
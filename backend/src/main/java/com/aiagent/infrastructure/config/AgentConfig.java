@@ -1,6 +1,8 @@
 package com.aiagent.infrastructure.config;
 
+import lombok.AllArgsConstructor;
 import lombok.Data;
+import lombok.NoArgsConstructor;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
 
@@ -44,6 +46,21 @@ public class AgentConfig {
      * 工具配置
      */
     private ToolConfig tools = new ToolConfig();
+
+    /**
+     * SSE 流式输出配置
+     */
+    private StreamingConfig streaming = new StreamingConfig();
+
+    /**
+     * Agent 执行调度配置
+     */
+    private ExecutionConfig execution = new ExecutionConfig();
+
+    /**
+     * 进程内近端缓存配置
+     */
+    private NearCacheConfig nearCache = new NearCacheConfig();
     
     @Data
     public static class LLMConfig {
@@ -106,6 +123,77 @@ public class AgentConfig {
              * 请求超时（秒），为空则使用全局默认值
              */
             private Integer timeoutSeconds;
+
+            /**
+             * HTTP 版本覆盖（HTTP_1_1 / HTTP_2），为空则使用 llm.http.version
+             */
+            private String httpVersion;
+
+            /**
+             * 上下文长度（token），为空则使用 memory.context-window.default-context-tokens
+             */
+            private Integer contextWindowTokens;
+
+            /**
+             * 每分钟请求数上限（集群共享），为空或小于等于 0 表示不限制
+             */
+            private Integer rpmLimit;
+
+            /**
+             * 每分钟估算 token 数上限（集群共享，按请求输入估算），为空或小于等于 0 表示不限制
+             */
+            private Integer tpmLimit;
+        }
+
+        /**
+         * 共享 HTTP 客户端配置（LLM 与 Embedding 模型共用）
+         */
+        private HttpConfig http = new HttpConfig();
+
+        @Data
+        public static class HttpConfig {
+            /**
+             * HTTP 版本（HTTP_1_1 / HTTP_2），明文 http:// 端点始终使用 HTTP_1_1
+             */
+            private String version = "HTTP_2";
+
+            /**
+             * 连接超时（秒），小于等于 0 时使用模型请求超时
+             */
+            private int connectTimeoutSeconds = 10;
+
+            /**
+             * 空闲连接保活时间（秒），对应 JDK jdk.httpclient.keepalive.timeout
+             */
+            private int keepAliveSeconds = 300;
+        }
+
+        /**
+         * 客户端限流配置（模型级 rpmLimit / tpmLimit）
+         */
+        private RateLimitConfig rateLimit = new RateLimitConfig();
+
+        @Data
+        public static class RateLimitConfig {
+            /**
+             * 是否启用客户端限流（模型未配置 rpmLimit / tpmLimit 时不生效）
+             */
+            private boolean enabled = true;
+
+            /**
+             * 令牌不足时的重试间隔（毫秒）
+             */
+            private long retryIntervalMs = 200;
+
+            /**
+             * 排队等待上限（秒），超时后本次调用按限流失败处理
+             */
+            private long maxWaitSeconds = 120;
+
+            /**
+             * Redis 令牌桶 key 前缀
+             */
+            private String keyPrefix = "aiagent:ratelimit:";
         }
     }
     
@@ -122,6 +210,97 @@ public class AgentConfig {
          * Value: 模型ID列表
          */
         private Map<String, List<String>> taskModelMapping = new HashMap<>();
+
+        /**
+         * 运行时模型路由与熔断配置
+         */
+        private RoutingConfig routing = new RoutingConfig();
+
+        /**
+         * 对冲请求（hedged request）配置
+         */
+        private HedgingConfig hedging = new HedgingConfig();
+
+        @Data
+        public static class RoutingConfig {
+            /**
+             * 是否启用熔断与故障转移（关闭时始终使用请求的模型）
+             */
+            private boolean enabled = true;
+
+            /**
+             * 统计滑动窗口大小（最近 N 次调用）
+             */
+            private int windowSize = 20;
+
+            /**
+             * 窗口内至少多少次调用才评估熔断
+             */
+            private int minCalls = 5;
+
+            /**
+             * 错误率达到该值时熔断
+             */
+            private double errorRateThreshold = 0.5;
+
+            /**
+             * 首 token 延迟 p95 超过该值（毫秒）时熔断，小于等于 0 表示不按延迟熔断
+             */
+            private long slowTtftMs = 0;
+
+            /**
+             * 熔断打开持续时间（秒），之后放行一个探测请求
+             */
+            private long openSeconds = 30;
+
+            /**
+             * 收到限流（429）后的冷却时间（秒）
+             */
+            private long throttleCooldownSeconds = 10;
+        }
+
+        @Data
+        public static class HedgingConfig {
+            /**
+             * 是否启用对冲请求（仅作用于 Function Calling 流式对话）
+             */
+            private boolean enabled = false;
+
+            /**
+             * 对冲延迟取模型首 token 延迟（TTFT）的该分位数
+             */
+            private double percentile = 0.95;
+
+            /**
+             * TTFT 样本不足时使用的对冲延迟（毫秒）
+             */
+            private long initialDelayMs = 3000;
+
+            /**
+             * 对冲延迟下限（毫秒）
+             */
+            private long minDelayMs = 500;
+
+            /**
+             * 对冲延迟上限（毫秒）
+             */
+            private long maxDelayMs = 10000;
+
+            /**
+             * 每个模型的对冲预算：统计窗口内对冲次数不超过请求数 × 该比例（上限 1.0，即负载最多翻倍）
+             */
+            private double budgetRatio = 0.1;
+
+            /**
+             * 对冲预算统计窗口（秒）
+             */
+            private long budgetWindowSeconds = 60;
+
+            /**
+             * 是否优先对冲到 task-model-mapping 中的后续模型（无可用后续模型时对冲到同一模型）
+             */
+            private boolean preferSecondaryModel = true;
+        }
     }
     
     @Data
@@ -129,6 +308,163 @@ public class AgentConfig {
         private int shortTermExpireHours = 24;
         private int contextExpireHours = 1;
         private int maxContextWindow = 20;
+
+        /**
+         * 按 token 预算组装上下文窗口的配置
+         */
+        private ContextWindowConfig contextWindow = new ContextWindowConfig();
+
+        @Data
+        public static class ContextWindowConfig {
+            /**
+             * 是否按 token 预算裁剪发送给模型的消息（关闭时发送全部已加载历史）
+             */
+            private boolean enabled = true;
+
+            /**
+             * 模型未配置 contextWindowTokens 时使用的上下文长度
+             */
+            private int defaultContextTokens = 32768;
+
+            /**
+             * 为模型输出预留的 token 数
+             */
+            private int outputReserveTokens = 4096;
+
+            /**
+             * 单条工具结果的 token 上限（超出部分截断）
+             */
+            private int maxToolResultTokens = 8000;
+
+            /**
+             * 历史轮次（非当前轮）中单条工具结果的 token 上限
+             */
+            private int historyToolResultTokens = 1500;
+
+            /**
+             * Agent 未配置 historyMessageLoadLimit 时从数据库加载的历史消息条数上限（再按 token 预算裁剪）
+             */
+            private int historyMaxMessages = 100;
+        }
+
+        /**
+         * Redis 中 AgentContext 的编码配置
+         */
+        private ContextCodecConfig contextCodec = new ContextCodecConfig();
+
+        @Data
+        public static class ContextCodecConfig {
+            /**
+             * 编码后超过该字节数时使用 Deflate 压缩（&lt;= 0 表示不压缩）
+             */
+            private int compressThresholdBytes = 4096;
+
+            /**
+             * Deflate 压缩级别（1 最快，9 压缩率最高）
+             */
+            private int compressionLevel = 1;
+
+            /**
+             * Redis 中每个会话消息列表保留的最大条数（超出部分从最旧开始裁剪）
+             */
+            private int maxListMessages = 500;
+        }
+
+        /**
+         * 消息异步批量持久化（write-behind）配置
+         */
+        private WriteBehindConfig writeBehind = new WriteBehindConfig();
+
+        @Data
+        public static class WriteBehindConfig {
+            /**
+             * 是否启用异步批量写入（关闭时在收尾阶段同步写入）
+             */
+            private boolean enabled = true;
+
+            /**
+             * 待写入轮次队列上限（队列满时由调用线程同步写入，不丢消息）
+             */
+            private int queueCapacity = 1000;
+
+            /**
+             * 单个事务最多合并的轮次数
+             */
+            private int maxBatchTurns = 32;
+
+            /**
+             * 加载历史前等待本会话未完成写入（含其他实例的写入）的最长时间（毫秒）
+             */
+            private long awaitTimeoutMs = 3000;
+
+            /**
+             * Redis 中会话待写入标记的过期时间（秒），实例写入中途宕机时标记到期自动消失
+             */
+            private long pendingMarkerTtlSeconds = 60;
+
+            /**
+             * 关闭时等待队列写完的最长时间（秒）
+             */
+            private int shutdownTimeoutSeconds = 10;
+        }
+
+        /**
+         * 会话历史后台压缩（滚动摘要）配置
+         */
+        private CompactionConfig compaction = new CompactionConfig();
+
+        @Data
+        public static class CompactionConfig {
+            /**
+             * 是否启用后台历史压缩
+             */
+            private boolean enabled = true;
+
+            /**
+             * 生成摘要使用的模型ID（为空时使用 task-model-mapping.SIMPLE_CHAT 的第一个模型）
+             */
+            private String modelId;
+
+            /**
+             * 摘要之后的消息估算 token 数超过该值时触发压缩
+             */
+            private int triggerTokens = 12000;
+
+            /**
+             * 压缩后保留原文的最近消息 token 数（按整轮保留，至少保留最近一轮）
+             */
+            private int keepRecentTokens = 4000;
+
+            /**
+             * 单次摘要调用输入的 token 上限（待压缩内容超出时分批滚动摘要）
+             */
+            private int maxInputTokens = 16000;
+
+            /**
+             * 摘要长度目标 token 数（写入提示词）
+             */
+            private int maxSummaryTokens = 1500;
+
+            /**
+             * 摘要输入中单条工具结果的 token 上限
+             */
+            private int toolResultTokens = 300;
+
+            /**
+             * 单次压缩最多扫描的消息条数
+             */
+            private int scanLimit = 1000;
+
+            /**
+             * 后台压缩线程数
+             */
+            private int threads = 1;
+
+            /**
+             * 等待压缩的会话队列上限（队列满时跳过，下次对话结束再触发）
+             */
+            private int queueCapacity = 200;
+        }
     }
     
     @Data
@@ -143,6 +479,26 @@ public class AgentConfig {
          */
         private EmbeddingStoreConfig embeddingStore = new EmbeddingStoreConfig();
         
+        /**
+         * 检索配置
+         */
+        private SearchConfig search = new SearchConfig();
+        
+        /**
+         * 查询向量缓存的 Redis 二级缓存配置（一级缓存见 near-cache.query-embedding）
+         */
+        private QueryEmbeddingCacheConfig queryEmbeddingCache = new QueryEmbeddingCacheConfig();
+        
+        /**
+         * 查询向量微批配置
+         */
+        private EmbeddingBatchConfig embeddingBatch = new EmbeddingBatchConfig();
+        
+        /**
+         * 文档入库流水线配置
+         */
+        private IngestionConfig ingestion = new IngestionConfig();
+        
         @Data
         public static class EmbeddingStoreConfig {
             private String host = "localhost";
@@ -154,8 +510,240 @@ public class AgentConfig {
             private boolean useIndex = true;
             private int indexListSize = 100;
         }
+        
+        @Data
+        public static class SearchConfig {
+            /**
+             * 单个模型分组的检索超时（毫秒，含排队、生成查询向量与向量查询），超时的知识库不计入结果
+             */
+            private long timeoutMs = 5000;
+            
+            /**
+             * 并行查询线程数（不同 Embedding 模型的查询向量生成与检索并发执行）
+             */
+            private int threads = 8;
+        }
+        
+        @Data
+        public static class QueryEmbeddingCacheConfig {
+            /**
+             * 是否启用 Redis 二级缓存（多实例共享热门查询的向量）
+             */
+            private boolean redisEnabled = false;
+            
+            /**
+             * Redis 中查询向量的存活时间（秒）
+             */
+            private long redisTtlSeconds = 86400;
+        }
+        
+        @Data
+        public static class EmbeddingBatchConfig {
+            /**
+             * 是否合并并发的单条查询向量请求为一次 embedAll 调用
+             */
+            private boolean enabled = true;
+            
+            /**
+             * 每批最多文本条数，凑满后立即发送
+             */
+            private int maxBatchSize = 32;
+            
+            /**
+             * 批次首条请求到达后最多等待的时间（毫秒），&lt;= 0 表示不合并
+             */
+            private long maxLingerMs = 5;
+            
+            /**
+             * 发送批量请求的线程数（即同时进行的 embedAll 调用上限）
+             */
+            private int threads = 4;
+            
+            /**
+             * 调用方等待批次结果的超时（毫秒，含收集、排队与 embedAll 调用），超时后该批次所有请求失败；&lt;= 0 表示不限制
+             */
+            private long timeoutMs = 10000;
+        }
+        
+        @Data
+        public static class IngestionConfig {
+            /**
+             * 解析阶段线程数（读取文档内容、清理旧向量）
+             */
+            private int parseWorkers = 2;
+            
+            /**
+             * 分段阶段线程数
+             */
+            private int splitWorkers = 2;
+            
+            /**
+             * 向量化阶段线程数（实际并发还受提供商并发上限约束）
+             */
+            private int embedWorkers = 8;
+            
+            /**
+             * 写入阶段线程数（批量写入 pgvector）
+             */
+            private int storeWorkers = 2;
+            
+            /**
+             * 每次 embedAll / 批量写入的分段数
+             */
+            private int embedBatchSize = 32;
+            
+            /**
+             * 阶段间队列容量（分段阶段为文档数，向量化和写入阶段为批次数），队列满时上游阶段阻塞等待
+             */
+            private int queueCapacity = 64;
+            
+            /**
+             * 向量化/写入失败后的最大重试次数
+             */
+            private int maxRetries = 3;
+            
+            /**
+             * 首次重试等待时间（毫秒），之后每次翻倍
+             */
+            private long retryBackoffMs = 500;
+            
+            /**
+             * 重试等待时间上限（毫秒）
+             */
+            private long maxRetryBackoffMs = 10000;
+            
+            /**
+             * 每个 Embedding 提供商同时进行的 embedAll 调用上限（未在 providerConcurrency 中配置的提供商）
+             */
+            private int defaultProviderConcurrency = 4;
+            
+            /**
+             * 按提供商（大写，如 OPENAI）覆盖并发上限
+             */
+            private Map<String, Integer> providerConcurrency = new HashMap<>();
+        }
     }
     
+    @Data
+    public static class StreamingConfig {
+        /**
+         * token 合并发送的时间窗口（毫秒），小于等于 0 表示每个 token 单独发送
+         * 可被 AgentDefinition.contextConfig.streamFlushIntervalMs 覆盖
+         */
+        private int tokenFlushIntervalMs = 30;
+
+        /**
+         * 缓冲区字符数达到该值时立即发送，不等待时间窗口结束
+         */
+        private int tokenFlushMaxChars = 256;
+
+        /**
+         * 单连接出站队列软上限：超过后丢弃低优先级事件（思考增量、状态提示）
+         */
+        private int outboundQueueSoftLimit = 256;
+
+        /**
+         * 单连接出站队列硬上限：超过后断开客户端，Agent 继续无头执行
+         */
+        private int outboundQueueHardLimit = 2048;
+
+        /**
+         * SSE writer 线程数上限（所有连接共享，按需创建、空闲 60 秒回收）
+         */
+        private int writerThreads = 32;
+
+        /**
+         * 单次 SSE 发送超时（毫秒）：send 阻塞超过该时间的连接被断开，Agent 继续无头执行；&lt;= 0 表示不检查
+         */
+        private long sendTimeoutMs = 10000;
+
+        /**
+         * 单次运行内存事件日志容量（断线重连可回放的最近事件数）
+         */
+        private int eventLogCapacity = 2000;
+
+        /**
+         * 运行结束后内存事件日志保留时间（秒）
+         */
+        private long eventLogRetentionSeconds = 300;
+
+        /**
+         * 是否将运行事件同时写入 Redis Stream（补齐内存缓冲区缺口、跨实例回放）
+         */
+        private boolean eventLogSpillEnabled = false;
+
+        /**
+         * Redis Stream 单次运行最多保留的事件数
+         */
+        private long eventLogSpillMaxLen = 10000;
+
+        /**
+         * Redis Stream 过期时间（秒）
+         */
+        private long eventLogSpillTtlSeconds = 3600;
+    }
+
+    @Data
+    public static class ExecutionConfig {
+        /**
+         * 最大并发执行的 Agent 运行数（独立线程池大小）
+         */
+        private int maxConcurrentRuns = 16;
+
+        /**
+         * 等待队列上限，超过后拒绝新的运行
+         */
+        private int maxQueuedRuns = 64;
+
+        /**
+         * 应用关闭时等待运行中任务结束的时间（秒）
+         */
+        private long shutdownTimeoutSeconds = 30;
+    }
+
+    @Data
+    public static class NearCacheConfig {
+        /**
+         * 是否启用近端缓存（关闭时每次读取都访问 Redis / MySQL）
+         */
+        private boolean enabled = true;
+
+        /**
+         * 集群内广播缓存失效的 Redis 频道
+         */
+        private String invalidationChannel = "aiagent:near-cache:invalidate";
+
+        /**
+         * AgentContext 上下文头缓存
+         */
+        private CacheSpec agentContext = new CacheSpec(2000, 60);
+
+        /**
+         * AgentDefinition 缓存
+         */
+        private CacheSpec agentDefinition = new CacheSpec(500, 300);
+
+        /**
+         * 查询向量缓存（按 Embedding 模型 + 规范化查询文本）
+         */
+        private CacheSpec queryEmbedding = new CacheSpec(10000, 3600);
+
+        @Data
+        @NoArgsConstructor
+        @AllArgsConstructor
+        public static class CacheSpec {
+            /**
+             * 最大条目数（超出时淘汰最久未访问的条目，&lt;= 0 表示不缓存）
+             */
+            private int maxSize;
+
+            /**
+             * 写入后的存活时间（秒），也是失效广播丢失时旧值的最长保留时间
+             */
+            private long ttlSeconds;
+        }
+    }
+
     @Data
     public static class ToolConfig {
         private boolean enabledByDefault = true;
@@ -166,11 +754,35 @@ public class AgentConfig {
          */
         private int progressiveThreshold = 20;
 
+        /**
+         * 同一轮 Function Calling 多个工具调用的并行执行配置
+         */
+        private ParallelExecutionConfig parallelExecution = new ParallelExecutionConfig();
+
         /**
          * Web 搜索工具配置
          */
         private WebSearchConfig webSearch = new WebSearchConfig();
 
+        @Data
+        public static class ParallelExecutionConfig {
+            /**
+             * 是否启用并行执行（LLM 单轮返回多个工具调用时生效，MANUAL 模式始终串行）
+             */
+            private boolean enabled = true;
+
+            /**
+             * 单次请求同一轮内最大并发工具数（可被 AgentDefinition.contextConfig.maxParallelToolCalls 覆盖）
+             * 小于等于 1 时退化为串行执行
+             */
+            private int maxConcurrencyPerRequest = 4;
+
+            /**
+             * 全局工具执行线程池线程数（所有请求共享；线程全忙时任务排队等待，不在调用方线程执行，避免阻塞 LLM 回调线程）
+             */
+            private int poolSize = 32;
+        }
+
         @Data
         public static class WebSearchConfig {
             /**
@@ -22,9 +22,15 @@ import java.util.concurrent.ConcurrentHashMap;
 public class EmbeddingStoreConfiguration {
     
     /**
-     * EmbeddingStore缓存
+     * 模型到EmbeddingStore的映射
      * Key: modelId + connectionInfo
      */
+    private static final ConcurrentHashMap<String, EmbeddingStore<TextSegment>> MODEL_STORE_CACHE = new ConcurrentHashMap<>();
+    
+    /**
+     * EmbeddingStore实例缓存（同一张表只创建一个实例，维度相同的模型共用）
+     * Key: connectionInfo + tableName
+     */
     private static final ConcurrentHashMap<String, EmbeddingStore<TextSegment>> EMBED_STORE_CACHE = new ConcurrentHashMap<>();
     
     /**
@@ -38,10 +44,10 @@ public class EmbeddingStoreConfiguration {
     
     /**
      * 获取或创建EmbeddingStore实例
-     * 根据模型维度自动创建不同表名
+     * 根据模型维度自动创建不同表名，按模型ID缓存；维度相同的模型共用同一张表（检索时按知识库ID过滤，不会混用向量空间）
      * 
      * @param embeddingModel Embedding模型（用于获取维度）
-     * @param modelId 模型ID（用于缓存key）
+     * @param modelId 模型ID（用于缓存key，必须是实际使用的模型ID）
      * @return EmbeddingStore实例
      */
     public EmbeddingStore<TextSegment> getEmbeddingStore(EmbeddingModel embeddingModel, String modelId) {
@@ -51,8 +57,9 @@ public class EmbeddingStoreConfiguration {
         String key = (modelId != null ? modelId : "default") + ":" + connectionInfo;
         
         // 从缓存获取
-        if (EMBED_STORE_CACHE.containsKey(key)) {
-            return EMBED_STORE_CACHE.get(key);
+        EmbeddingStore<TextSegment> cached = MODEL_STORE_CACHE.get(key);
+        if (cached != null) {
+            return cached;
         }
         
         // 尝试从缓存获取维度（避免重复调用 API）
@@ -85,9 +92,21 @@ public class EmbeddingStoreConfiguration {
             tableName += "_" + dimension;
         }
         
+        final String table = tableName;
+        final int tableDimension = dimension;
+        EmbeddingStore<TextSegment> embeddingStore = EMBED_STORE_CACHE.computeIfAbsent(connectionInfo + "/" + table,
+                k -> createPgVectorStore(config, table, tableDimension));
+        MODEL_STORE_CACHE.put(key, embeddingStore);
+        log.info("EmbeddingStore 已绑定模型: modelId={}, table={}, dimension={}", modelId, table, dimension);
+        
+        return embeddingStore;
+    }
+    
+    private EmbeddingStore<TextSegment> createPgVectorStore(AgentConfig.RAGConfig.EmbeddingStoreConfig config,
+                                                           String tableName, int dimension) {
         log.info("Creating PgVectorEmbeddingStore: table={}, dimension={}", tableName, dimension);
         
-        EmbeddingStore<TextSegment> embeddingStore = PgVectorEmbeddingStore.builder()
+        return PgVectorEmbeddingStore.builder()
                 .host(config.getHost())
                 .port(config.getPort())
                 .database(config.getDatabase())
@@ -100,27 +119,13 @@ public class EmbeddingStoreConfiguration {
                 .createTable(true)
                 .dropTableFirst(false)
                 .build();
-        
-        // 放入缓存
-        EMBED_STORE_CACHE.put(key, embeddingStore);
-        
-        return embeddingStore;
-    }
-    
-    /**
-     * 创建默认的EmbeddingStore（使用默认模型）
-     * 
-     * @param embeddingModel 默认Embedding模型
-     * @return EmbeddingStore实例
-     */
-    public EmbeddingStore<TextSegment> createDefaultEmbeddingStore(EmbeddingModel embeddingModel) {
-        return getEmbeddingStore(embeddingModel, "default");
     }
     
     /**
      * 清除缓存
      */
     public void clearCache() {
+        MODEL_STORE_CACHE.clear();
         EMBED_STORE_CACHE.clear();
         DIMENSION_CACHE.clear();
         log.info("EmbeddingStore 和 Dimension 缓存已清除");
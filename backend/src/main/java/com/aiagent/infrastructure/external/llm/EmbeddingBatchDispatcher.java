@@ -0,0 +1,281 @@
+package com.aiagent.infrastructure.external.llm;
+
+import com.aiagent.infrastructure.config.AgentConfig;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 查询向量微批调度器
+ *
+ * <p>高并发时大量运行几乎同时各自请求一条短文本的向量。调度器按模型收集单条请求，
+ * 等待最多 {@code maxLingerMs} 毫秒或凑满 {@code maxBatchSize} 条后合并为一次 {@code embedAll} 调用，
+ * 再把结果按下标分发给各调用方；同一批内的相同文本只发送一次。批量调用失败时该批所有调用方收到同一异常。
+ * 调用方最多等待 {@code timeoutMs}：超时后该批次所有请求以超时失败，并中断仍在进行的 {@code embedAll} 调用。
+ *
+ * <p>关闭（{@code enabled=false} 或 {@code maxLingerMs <= 0}）时直接调用 {@code embed}。
+ *
+ * <p>指标：{@code aiagent.rag.embedding.calls{model}}（实际 API 调用次数）、
+ * {@code aiagent.rag.embedding.batch.size{model}}（每次调用的文本条数）。
+ *
+ * @author aiagent
+ */
+@Slf4j
+@Component
+public class EmbeddingBatchDispatcher {
+
+    @Autowired
+    private AgentConfig agentConfig;
+
+    @Autowired
+    private EmbeddingModelManager embeddingModelManager;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    /** 各模型正在收集的批次（modelId → batch），由自身锁保护 */
+    private final Map<String, Batch> pending = new HashMap<>();
+
+    private ScheduledExecutorService lingerTimer;
+
+    private ExecutorService workers;
+
+    @PostConstruct
+    public void init() {
+        lingerTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "embedding-batch-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        AtomicInteger threadIndex = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(Math.max(1, config().getThreads()), r -> {
+            Thread t = new Thread(r, "embedding-batch-" + threadIndex.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (lingerTimer != null) {
+            lingerTimer.shutdownNow();
+        }
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * 获取单条文本的向量（阻塞直到所在批次完成）
+     *
+     * @param modelId 实际使用的 Embedding 模型ID
+     * @param text 文本
+     */
+    public Embedding embed(String modelId, String text) {
+        AgentConfig.RAGConfig.EmbeddingBatchConfig cfg = config();
+        if (!cfg.isEnabled() || cfg.getMaxLingerMs() <= 0 || cfg.getMaxBatchSize() <= 1) {
+            Embedding embedding = embeddingModelManager.getOrCreateEmbeddingModel(modelId).embed(text).content();
+            recordCall(modelId, 1);
+            return embedding;
+        }
+        Request request = submit(modelId, text, cfg);
+        try {
+            if (cfg.getTimeoutMs() > 0) {
+                awaitOrExpire(modelId, request, cfg.getTimeoutMs());
+            }
+            return request.future.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    /**
+     * 限时等待批次结果，超时则整批失败（结果由调用方通过 future 读取）
+     */
+    private void awaitOrExpire(String modelId, Request request, long timeoutMs) {
+        try {
+            request.future.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            Batch batch = request.batch;
+            synchronized (pending) {
+                // 仍在收集中的批次不再接收新请求，也不再发出
+                if (pending.get(modelId) == batch) {
+                    pending.remove(modelId);
+                    if (batch.lingerTask != null) {
+                        batch.lingerTask.cancel(false);
+                    }
+                }
+            }
+            log.warn("等待批量查询向量超时，该批次全部失败: modelId={}, requests={}, timeoutMs={}",
+                modelId, batch.requests.size(), timeoutMs);
+            batch.expire(new IllegalStateException("生成查询向量超时（" + timeoutMs + " ms）: modelId=" + modelId, e));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            request.future.completeExceptionally(new IllegalStateException("等待查询向量被中断", e));
+        } catch (ExecutionException e) {
+            // 批次失败，由调用方 join 抛出
+        }
+    }
+
+    private Request submit(String modelId, String text, AgentConfig.RAGConfig.EmbeddingBatchConfig cfg) {
+        Request request = new Request(text);
+        Batch full = null;
+        synchronized (pending) {
+            Batch batch = pending.computeIfAbsent(modelId, Batch::new);
+            batch.requests.add(request);
+            request.batch = batch;
+            if (batch.requests.size() >= cfg.getMaxBatchSize()) {
+                pending.remove(modelId);
+                if (batch.lingerTask != null) {
+                    batch.lingerTask.cancel(false);
+                }
+                full = batch;
+            } else if (batch.requests.size() == 1) {
+                batch.lingerTask = lingerTimer.schedule(() -> flushExpired(batch), cfg.getMaxLingerMs(), TimeUnit.MILLISECONDS);
+            }
+        }
+        if (full != null) {
+            dispatchAsync(full);
+        }
+        return request;
+    }
+
+    /**
+     * 等待时间到：批次仍在收集中则发出
+     */
+    private void flushExpired(Batch batch) {
+        synchronized (pending) {
+            if (pending.get(batch.modelId) != batch) {
+                return;
+            }
+            pending.remove(batch.modelId);
+        }
+        dispatchAsync(batch);
+    }
+
+    private void dispatchAsync(Batch batch) {
+        try {
+            Future<?> task = workers.submit(() -> dispatch(batch));
+            batch.bind(task);
+        } catch (Exception e) {
+            batch.fail(e);
+        }
+    }
+
+    private void dispatch(Batch batch) {
+        try {
+            // 同一批内相同文本只发送一次
+            Map<String, Integer> indexByText = new LinkedHashMap<>();
+            List<TextSegment> segments = new ArrayList<>();
+            for (Request request : batch.requests) {
+                indexByText.computeIfAbsent(request.text, t -> {
+                    segments.add(TextSegment.from(t));
+                    return segments.size() - 1;
+                });
+            }
+
+            EmbeddingModel model = embeddingModelManager.getOrCreateEmbeddingModel(batch.modelId);
+            List<Embedding> embeddings = model.embedAll(segments).content();
+            recordCall(batch.modelId, segments.size());
+            if (embeddings == null || embeddings.size() != segments.size()) {
+                throw new IllegalStateException("embedAll 返回数量不匹配: expected=" + segments.size()
+                    + ", actual=" + (embeddings != null ? embeddings.size() : 0));
+            }
+
+            for (Request request : batch.requests) {
+                request.future.complete(embeddings.get(indexByText.get(request.text)));
+            }
+            log.debug("批量生成查询向量: modelId={}, requests={}, texts={}",
+                batch.modelId, batch.requests.size(), segments.size());
+        } catch (Exception e) {
+            log.warn("批量生成查询向量失败: modelId={}, requests={}, error={}",
+                batch.modelId, batch.requests.size(), e.getMessage());
+            batch.fail(e);
+        }
+    }
+
+    private void recordCall(String modelId, int texts) {
+        meterRegistry.counter("aiagent.rag.embedding.calls", "model", modelId).increment();
+        DistributionSummary.builder("aiagent.rag.embedding.batch.size")
+            .description("每次 Embedding API 调用的文本条数")
+            .tag("model", modelId)
+            .register(meterRegistry)
+            .record(texts);
+    }
+
+    private AgentConfig.RAGConfig.EmbeddingBatchConfig config() {
+        return agentConfig.getRag().getEmbeddingBatch();
+    }
+
+    private static final class Request {
+        private final String text;
+        private final CompletableFuture<Embedding> future = new CompletableFuture<>();
+        /** 所在批次（入队时设置，超时后整批失败） */
+        private Batch batch;
+
+        private Request(String text) {
+            this.text = text;
+        }
+    }
+
+    private static final class Batch {
+        private final String modelId;
+        private final List<Request> requests = new ArrayList<>();
+        private ScheduledFuture<?> lingerTask;
+        /** 发出后执行 embedAll 的任务 */
+        private Future<?> task;
+        private boolean expired;
+
+        private Batch(String modelId) {
+            this.modelId = modelId;
+        }
+
+        private synchronized void bind(Future<?> dispatchTask) {
+            task = dispatchTask;
+            if (expired) {
+                dispatchTask.cancel(true);
+            }
+        }
+
+        /**
+         * 等待超时：该批次所有请求失败，并中断尚未完成的 embedAll 调用
+         */
+        private synchronized void expire(Throwable error) {
+            expired = true;
+            fail(error);
+            if (task != null) {
+                task.cancel(true);
+            }
+        }
+
+        private void fail(Throwable error) {
+            for (Request request : requests) {
+                request.future.completeExceptionally(error);
+            }
+        }
+    }
+}
@@ -2,14 +2,12 @@ package com.aiagent.infrastructure.external.llm;
 
 import com.aiagent.infrastructure.config.AgentConfig;
 import com.aiagent.common.enums.ModelType;
-import dev.langchain4j.http.client.jdk.JdkHttpClientBuilder;
 import dev.langchain4j.model.embedding.EmbeddingModel;
 import dev.langchain4j.model.openai.OpenAiEmbeddingModel;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import java.net.http.HttpClient;
 import java.time.Duration;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
@@ -27,6 +25,9 @@ public class EmbeddingModelManager {
     
     @Autowired
     private AgentConfig agentConfig;
+
+    @Autowired
+    private LlmHttpClientRegistry httpClientRegistry;
     
     /**
      * Embedding模型缓存（modelId -> EmbeddingModel）
@@ -80,6 +81,23 @@ public class EmbeddingModelManager {
      * @return EmbeddingModel实例
      */
     public EmbeddingModel getDefaultEmbeddingModel() {
+        return getOrCreateEmbeddingModel(getDefaultEmbeddingModelId());
+    }
+    
+    /**
+     * 解析实际使用的 Embedding 模型ID（为空时返回默认模型ID）
+     * 
+     * 知识库未指定模型时，入库和检索都使用该ID，保证两者落在同一向量空间和同一向量表
+     */
+    public String resolveEmbeddingModelId(String modelId) {
+        return modelId == null || modelId.isEmpty() ? getDefaultEmbeddingModelId() : modelId;
+    }
+    
+    /**
+     * 获取默认 Embedding 模型ID
+     * 优先从 task-model-mapping 的 RAG_QUERY 场景获取，如果没有配置则使用 rag.default-embedding-model-id
+     */
+    public String getDefaultEmbeddingModelId() {
         String defaultModelId = null;
         
         // 优先从 task-model-mapping 的 RAG_QUERY 场景获取
@@ -103,7 +121,15 @@ public class EmbeddingModelManager {
             throw new RuntimeException("未配置默认 Embedding 模型ID，请在 task-model-mapping.RAG_QUERY 或 rag.default-embedding-model-id 中配置");
         }
         
-        return getOrCreateEmbeddingModel(defaultModelId);
+        return defaultModelId;
+    }
+    
+    /**
+     * 获取 Embedding 模型的提供商（大写，未配置时为 OPENAI），用于按提供商限制并发
+     */
+    public String getProvider(String modelId) {
+        AgentConfig.LLMConfig.ModelDefinition modelDef = getEmbeddingModelDefinition(resolveEmbeddingModelId(modelId));
+        return modelDef != null && modelDef.getProvider() != null ? modelDef.getProvider().toUpperCase() : "OPENAI";
     }
     
     /**
@@ -159,23 +185,14 @@ public class EmbeddingModelManager {
         // 解析超时时间
         int timeoutSeconds = resolveTimeoutSeconds(modelDef);
         
-        // 计算连接超时（通常比请求超时短一些）
-        int connectTimeoutSeconds = Math.min(30, timeoutSeconds / 2);
-        if (connectTimeoutSeconds < 10) {
-            connectTimeoutSeconds = 10; // 最少10秒连接超时
-        }
-        
         // 所有提供商都使用OpenAI兼容接口
         switch (provider) {
             case "OPENAI":
             default:
                 // 所有OpenAI兼容接口的提供商都使用OpenAiEmbeddingModel
-                // 显式配置 HTTP 客户端，确保超时设置生效
+                // 使用按端点共享的 HTTP 客户端（连接超时由 aiagent.llm.http.connect-timeout-seconds 控制）
                 return OpenAiEmbeddingModel.builder()
-                    .httpClientBuilder(new JdkHttpClientBuilder()
-                        .httpClientBuilder(HttpClient.newBuilder()
-                            .connectTimeout(Duration.ofSeconds(connectTimeoutSeconds))
-                            .version(HttpClient.Version.HTTP_1_1)))
+                    .httpClientBuilder(httpClientRegistry.builderFor(baseUrl, modelDef.getHttpVersion()))
                     .apiKey(modelDef.getApiKey())
                     .baseUrl(baseUrl)
                     .modelName(modelName)
@@ -0,0 +1,219 @@
+package com.aiagent.infrastructure.external.llm;
+
+import com.aiagent.infrastructure.config.AgentConfig;
+import dev.langchain4j.http.client.HttpClient;
+import dev.langchain4j.http.client.HttpClientBuilder;
+import dev.langchain4j.http.client.jdk.JdkHttpClientBuilder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.net.URI;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * LLM / Embedding HTTP 客户端注册表
+ *
+ * <p>按服务端点（scheme + host + port）共享 JDK {@code HttpClient}，指向同一 baseUrl 的多个模型
+ * 复用同一个连接池，流式调用不必每次重新建立 TCP + TLS 连接。
+ *
+ * <p>客户端使用 JDK 默认执行器（按需创建线程的缓存线程池），不限制并发：LangChain4j 的 JDK 客户端在该执行器上
+ * 读取 SSE 流，每个进行中的流式调用 / 对冲 / embedAll 在整个响应期间占用一个线程，固定大小的线程池会把整个节点的
+ * 并发模型调用数限制为线程数。并发控制由模型级限流（{@link ModelRateLimiter}）与执行调度负责，共享客户端只用于复用连接。
+ *
+ * <p>JDK 客户端的读超时作用于整个客户端，因此共享键还包含读超时与 HTTP 版本：
+ * 同一端点、相同超时的模型共享连接，超时不同的模型各自持有一个客户端。
+ *
+ * <p>HTTP 版本默认 HTTP/2（TLS 下通过 ALPN 协商，服务端不支持时自动回退 HTTP/1.1）；
+ * 明文 http:// 端点固定使用 HTTP/1.1，避免 h2c Upgrade 与部分自建推理服务不兼容。
+ *
+ * <p>指标：
+ * <ul>
+ *   <li>{@code aiagent.llm.http.clients.active} - 当前共享客户端（连接池）数</li>
+ *   <li>{@code aiagent.llm.http.clients.created} - 新建客户端次数（按 endpoint / version 标记）</li>
+ *   <li>{@code aiagent.llm.http.clients.reused} - 模型创建时复用已有客户端的次数</li>
+ * </ul>
+ * JDK HttpClient 不暴露单个 TCP 连接建立事件，连接复用情况以客户端创建 / 复用计数体现。
+ */
+@Slf4j
+@Component
+public class LlmHttpClientRegistry {
+
+    private static final String KEEPALIVE_PROPERTY = "jdk.httpclient.keepalive.timeout";
+    private static final String KEEPALIVE_H2_PROPERTY = "jdk.httpclient.keepalive.timeout.h2";
+
+    @Autowired
+    private AgentConfig agentConfig;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    /** 共享键 → langchain4j HttpClient */
+    private final Map<String, HttpClient> clients = new ConcurrentHashMap<>();
+
+    private Counter reusedCounter;
+
+    @PostConstruct
+    public void init() {
+        AgentConfig.LLMConfig.HttpConfig cfg = agentConfig.getLlm().getHttp();
+        // JDK 连接池空闲保活时间在首次创建 HttpClient 时读取，显式配置的系统属性优先
+        if (cfg.getKeepAliveSeconds() > 0) {
+            String keepAlive = String.valueOf(cfg.getKeepAliveSeconds());
+            if (System.getProperty(KEEPALIVE_PROPERTY) == null) {
+                System.setProperty(KEEPALIVE_PROPERTY, keepAlive);
+            }
+            if (System.getProperty(KEEPALIVE_H2_PROPERTY) == null) {
+                System.setProperty(KEEPALIVE_H2_PROPERTY, keepAlive);
+            }
+        }
+
+        Gauge.builder("aiagent.llm.http.clients.active", clients, Map::size)
+            .description("共享 LLM HTTP 客户端（连接池）数")
+            .register(meterRegistry);
+        reusedCounter = Counter.builder("aiagent.llm.http.clients.reused")
+            .description("创建模型时复用已有 HTTP 客户端的次数")
+            .register(meterRegistry);
+    }
+
+    /**
+     * 获取指定端点的共享 HttpClientBuilder，传给 LangChain4j 模型的 {@code httpClientBuilder(...)}
+     *
+     * @param baseUrl     模型 baseUrl
+     * @param httpVersion 模型级 HTTP 版本覆盖（HTTP_1_1 / HTTP_2，为空使用全局配置）
+     */
+    public HttpClientBuilder builderFor(String baseUrl, String httpVersion) {
+        return new SharedHttpClientBuilder(baseUrl, resolveVersion(baseUrl, httpVersion));
+    }
+
+    /**
+     * 清除全部共享客户端（模型缓存清除时调用，下次创建模型时重建）
+     */
+    public void clear() {
+        clients.clear();
+        log.info("LLM HTTP 客户端缓存已清除");
+    }
+
+    // ── 内部工具方法 ──────────────────────────────────────────────────────────
+
+    private HttpClient obtain(String baseUrl, java.net.http.HttpClient.Version version,
+                              Duration connectTimeout, Duration readTimeout) {
+        String endpoint = endpointOf(baseUrl);
+        String key = endpoint + "|" + version + "|" + (readTimeout != null ? readTimeout.toMillis() : 0);
+        HttpClient existing = clients.get(key);
+        if (existing != null) {
+            reusedCounter.increment();
+            return existing;
+        }
+        return clients.computeIfAbsent(key, k -> {
+            Duration effectiveConnectTimeout = resolveConnectTimeout(connectTimeout);
+            HttpClient client = new JdkHttpClientBuilder()
+                .httpClientBuilder(java.net.http.HttpClient.newBuilder()
+                    .version(version))
+                .connectTimeout(effectiveConnectTimeout)
+                .readTimeout(readTimeout)
+                .build();
+            Counter.builder("aiagent.llm.http.clients.created")
+                .description("新建 LLM HTTP 客户端（连接池）次数")
+                .tag("endpoint", endpoint)
+                .tag("version", version.name())
+                .register(meterRegistry)
+                .increment();
+            log.info("创建共享 LLM HTTP 客户端: endpoint={}, version={}, connectTimeout={}, readTimeout={}",
+                endpoint, version, effectiveConnectTimeout, readTimeout);
+            return client;
+        });
+    }
+
+    private java.net.http.HttpClient.Version resolveVersion(String baseUrl, String httpVersion) {
+        if (baseUrl != null && baseUrl.toLowerCase().startsWith("http://")) {
+            return java.net.http.HttpClient.Version.HTTP_1_1;
+        }
+        String configured = httpVersion != null && !httpVersion.isBlank()
+            ? httpVersion
+            : agentConfig.getLlm().getHttp().getVersion();
+        if (configured == null) {
+            return java.net.http.HttpClient.Version.HTTP_2;
+        }
+        switch (configured.trim().toUpperCase().replace('.', '_').replace('/', '_')) {
+            case "HTTP_1_1":
+                return java.net.http.HttpClient.Version.HTTP_1_1;
+            case "HTTP_2":
+                return java.net.http.HttpClient.Version.HTTP_2;
+            default:
+                log.warn("未知的 HTTP 版本配置: {}，使用 HTTP_2", configured);
+                return java.net.http.HttpClient.Version.HTTP_2;
+        }
+    }
+
+    /**
+     * 连接超时：优先使用全局配置（通常远小于模型的读超时），未配置时使用模型传入值
+     */
+    private Duration resolveConnectTimeout(Duration requested) {
+        int configured = agentConfig.getLlm().getHttp().getConnectTimeoutSeconds();
+        if (configured > 0) {
+            return Duration.ofSeconds(configured);
+        }
+        return requested;
+    }
+
+    private static String endpointOf(String baseUrl) {
+        try {
+            URI uri = URI.create(baseUrl);
+            int port = uri.getPort();
+            if (port < 0) {
+                port = "http".equalsIgnoreCase(uri.getScheme()) ? 80 : 443;
+            }
+            return uri.getScheme().toLowerCase() + "://" + uri.getHost().toLowerCase() + ":" + port;
+        } catch (Exception e) {
+            return String.valueOf(baseUrl);
+        }
+    }
+
+    /**
+     * 交给 LangChain4j 的 HttpClientBuilder：模型设置超时后调用 build() 时返回共享客户端
+     */
+    private final class SharedHttpClientBuilder implements HttpClientBuilder {
+        private final String baseUrl;
+        private final java.net.http.HttpClient.Version version;
+        private Duration connectTimeout;
+        private Duration readTimeout;
+
+        private SharedHttpClientBuilder(String baseUrl, java.net.http.HttpClient.Version version) {
+            this.baseUrl = baseUrl;
+            this.version = version;
+        }
+
+        @Override
+        public Duration connectTimeout() {
+            return connectTimeout;
+        }
+
+        @Override
+        public HttpClientBuilder connectTimeout(Duration timeout) {
+            this.connectTimeout = timeout;
+            return this;
+        }
+
+        @Override
+        public Duration readTimeout() {
+            return readTimeout;
+        }
+
+        @Override
+        public HttpClientBuilder readTimeout(Duration timeout) {
+            this.readTimeout = timeout;
+            return this;
+        }
+
+        @Override
+        public HttpClient build() {
+            return obtain(baseUrl, version, connectTimeout, readTimeout);
+        }
+    }
+}
@@ -0,0 +1,324 @@
+package com.aiagent.infrastructure.external.llm;
+
+import com.aiagent.api.dto.ModelHealthVO;
+import com.aiagent.infrastructure.config.AgentConfig;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 模型运行时健康状态与熔断器
+ *
+ * <p>按 modelId 统计最近 {@code windowSize} 次调用的错误率与首 token 延迟（TTFT）p95，以及限流（429）情况：
+ * <ul>
+ *   <li>CLOSED：正常放行；窗口内调用数达到 {@code minCalls} 且错误率或 p95 TTFT 超过阈值时熔断</li>
+ *   <li>OPEN：拒绝路由到该模型，{@code openSeconds} 后进入 HALF_OPEN</li>
+ *   <li>HALF_OPEN：只放行一个探测请求，成功则恢复 CLOSED，失败重新 OPEN；
+ *       探测请求被取消或放弃（未得到结果）时通过 {@link #releaseProbe} 归还名额</li>
+ * </ul>
+ * 收到限流响应时额外进入 {@code throttleCooldownSeconds} 的冷却期，期间不路由到该模型。
+ */
+@Slf4j
+@Component
+public class ModelHealthRegistry {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * 申请结果
+     */
+    public enum Admission {
+        /** 不可用（熔断中或限流冷却中） */
+        REJECTED,
+        /** 正常放行 */
+        ADMITTED,
+        /** 作为 HALF_OPEN 状态的探测请求放行（占用唯一的探测名额） */
+        PROBE
+    }
+
+    @Autowired
+    private AgentConfig agentConfig;
+
+    private final Map<String, ModelHealth> healthMap = new ConcurrentHashMap<>();
+
+    /**
+     * 申请向该模型发起请求（HALF_OPEN 状态下占用唯一的探测名额）
+     *
+     * @return {@link Admission#PROBE} 时调用方占用了探测名额，调用结束时必须记录结果
+     *         （{@link #recordSuccess} / {@link #recordFailure}）或调用 {@link #releaseProbe} 归还
+     */
+    public Admission admit(String modelId) {
+        if (!routingConfig().isEnabled()) {
+            return Admission.ADMITTED;
+        }
+        return health(modelId).tryAcquire(System.currentTimeMillis());
+    }
+
+    /**
+     * 归还探测名额且不记录结果（探测请求被取消或放弃：对冲落败、用户停止、本地限流排队超时等）
+     */
+    public void releaseProbe(String modelId) {
+        ModelHealth health = healthMap.get(modelId);
+        if (health != null) {
+            health.releaseProbe();
+        }
+    }
+
+    /**
+     * 仅查询是否可用，不占用探测名额
+     */
+    public boolean isAvailable(String modelId) {
+        if (!routingConfig().isEnabled()) {
+            return true;
+        }
+        return health(modelId).isAvailable(System.currentTimeMillis());
+    }
+
+    public void recordFirstToken(String modelId, long ttftMs) {
+        health(modelId).recordTtft(ttftMs);
+    }
+
+    /**
+     * 最近窗口内首 token 延迟的分位数（毫秒）
+     *
+     * @param percentile 分位数（0~1）
+     * @return 样本数不足 {@code minCalls} 时返回 -1
+     */
+    public long ttftPercentile(String modelId, double percentile) {
+        return health(modelId).ttftPercentile(percentile, routingConfig().getMinCalls());
+    }
+
+    public void recordSuccess(String modelId) {
+        health(modelId).record(true, false, System.currentTimeMillis());
+    }
+
+    public void recordFailure(String modelId, Throwable error) {
+        boolean throttled = isThrottled(error);
+        health(modelId).record(false, throttled, System.currentTimeMillis());
+    }
+
+    /**
+     * 全部已调用过的模型健康快照
+     */
+    public List<ModelHealthVO> snapshot() {
+        long now = System.currentTimeMillis();
+        List<ModelHealthVO> result = new ArrayList<>();
+        healthMap.forEach((modelId, health) -> result.add(health.toVO(now)));
+        result.sort((a, b) -> a.getModelId().compareTo(b.getModelId()));
+        return result;
+    }
+
+    /**
+     * 判断异常是否为限流（HTTP 429 / RateLimitException）；本地限流排队超时不算
+     */
+    public static boolean isThrottled(Throwable error) {
+        for (Throwable t = error; t != null; t = t.getCause() == t ? null : t.getCause()) {
+            if (t instanceof ModelQueueTimeoutException) {
+                return false;
+            }
+            if (t.getClass().getSimpleName().contains("RateLimit")) {
+                return true;
+            }
+            String message = t.getMessage();
+            if (message != null && (message.contains("429") || message.toLowerCase().contains("rate limit"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private ModelHealth health(String modelId) {
+        return healthMap.computeIfAbsent(modelId, ModelHealth::new);
+    }
+
+    private AgentConfig.ModelConfig.RoutingConfig routingConfig() {
+        return agentConfig.getModel().getRouting();
+    }
+
+    /**
+     * 单个模型的滑动窗口统计与熔断状态
+     */
+    private final class ModelHealth {
+        private final String modelId;
+        private final boolean[] outcomes;
+        private final long[] ttfts;
+        private int outcomeCount;
+        private int outcomeIndex;
+        private int ttftCount;
+        private int ttftIndex;
+
+        private State state = State.CLOSED;
+        private long openUntil;
+        private long throttledUntil;
+        private boolean probeInFlight;
+
+        private long totalCalls;
+        private long totalFailures;
+        private long totalThrottled;
+        private String lastError;
+
+        private ModelHealth(String modelId) {
+            this.modelId = modelId;
+            int window = Math.max(1, routingConfig().getWindowSize());
+            this.outcomes = new boolean[window];
+            this.ttfts = new long[window];
+        }
+
+        synchronized boolean isAvailable(long now) {
+            if (now < throttledUntil) {
+                return false;
+            }
+            if (state == State.OPEN) {
+                return now >= openUntil;
+            }
+            return state != State.HALF_OPEN || !probeInFlight;
+        }
+
+        synchronized Admission tryAcquire(long now) {
+            if (now < throttledUntil) {
+                return Admission.REJECTED;
+            }
+            if (state == State.OPEN) {
+                if (now < openUntil) {
+                    return Admission.REJECTED;
+                }
+                state = State.HALF_OPEN;
+                probeInFlight = false;
+                log.info("模型熔断进入半开状态，放行探测请求: modelId={}", modelId);
+            }
+            if (state == State.HALF_OPEN) {
+                if (probeInFlight) {
+                    return Admission.REJECTED;
+                }
+                probeInFlight = true;
+                return Admission.PROBE;
+            }
+            return Admission.ADMITTED;
+        }
+
+        synchronized void releaseProbe() {
+            if (state == State.HALF_OPEN && probeInFlight) {
+                probeInFlight = false;
+                log.info("探测请求未得到结果，归还探测名额: modelId={}", modelId);
+            }
+        }
+
+        synchronized void recordTtft(long ttftMs) {
+            ttfts[ttftIndex] = ttftMs;
+            ttftIndex = (ttftIndex + 1) % ttfts.length;
+            ttftCount = Math.min(ttftCount + 1, ttfts.length);
+        }
+
+        synchronized void record(boolean success, boolean throttled, long now) {
+            AgentConfig.ModelConfig.RoutingConfig cfg = routingConfig();
+            totalCalls++;
+            if (!success) {
+                totalFailures++;
+            }
+            if (throttled) {
+                totalThrottled++;
+                throttledUntil = now + cfg.getThrottleCooldownSeconds() * 1000L;
+                log.warn("模型触发限流，冷却 {} 秒: modelId={}", cfg.getThrottleCooldownSeconds(), modelId);
+            }
+            outcomes[outcomeIndex] = success;
+            outcomeIndex = (outcomeIndex + 1) % outcomes.length;
+            outcomeCount = Math.min(outcomeCount + 1, outcomes.length);
+
+            if (state == State.HALF_OPEN) {
+                probeInFlight = false;
+                if (success) {
+                    state = State.CLOSED;
+                    resetWindow();
+                    log.info("模型探测成功，熔断恢复: modelId={}", modelId);
+                } else {
+                    open(now, cfg, "探测失败");
+                }
+                return;
+            }
+            if (state == State.CLOSED && outcomeCount >= cfg.getMinCalls()) {
+                double errorRate = errorRate();
+                if (errorRate >= cfg.getErrorRateThreshold()) {
+                    open(now, cfg, String.format("错误率 %.2f", errorRate));
+                } else if (cfg.getSlowTtftMs() > 0 && ttftCount >= cfg.getMinCalls()
+                        && p95Ttft() > cfg.getSlowTtftMs()) {
+                    open(now, cfg, "p95 TTFT " + p95Ttft() + "ms");
+                }
+            }
+        }
+
+        private void open(long now, AgentConfig.ModelConfig.RoutingConfig cfg, String reason) {
+            state = State.OPEN;
+            openUntil = now + cfg.getOpenSeconds() * 1000L;
+            lastError = reason;
+            log.warn("模型熔断打开 {} 秒: modelId={}, 原因={}", cfg.getOpenSeconds(), modelId, reason);
+        }
+
+        private void resetWindow() {
+            outcomeCount = 0;
+            outcomeIndex = 0;
+            ttftCount = 0;
+            ttftIndex = 0;
+        }
+
+        private double errorRate() {
+            if (outcomeCount == 0) {
+                return 0D;
+            }
+            int failures = 0;
+            for (int i = 0; i < outcomeCount; i++) {
+                if (!outcomes[i]) {
+                    failures++;
+                }
+            }
+            return (double) failures / outcomeCount;
+        }
+
+        private long p95Ttft() {
+            if (ttftCount == 0) {
+                return 0L;
+            }
+            return percentileOf(0.95);
+        }
+
+        synchronized long ttftPercentile(double percentile, int minSamples) {
+            if (ttftCount == 0 || ttftCount < minSamples) {
+                return -1L;
+            }
+            return percentileOf(percentile);
+        }
+
+        private long percentileOf(double percentile) {
+            long[] sorted = Arrays.copyOf(ttfts, ttftCount);
+            Arrays.sort(sorted);
+            double p = Math.min(1D, Math.max(0D, percentile));
+            int index = (int) Math.ceil(p * sorted.length) - 1;
+            return sorted[Math.max(0, index)];
+        }
+
+        synchronized ModelHealthVO toVO(long now) {
+            State effective = state == State.OPEN && now >= openUntil ? State.HALF_OPEN : state;
+            return ModelHealthVO.builder()
+                .modelId(modelId)
+                .state(effective.name())
+                .available(isAvailable(now))
+                .errorRate(errorRate())
+                .p95TtftMs(p95Ttft())
+                .windowCalls(outcomeCount)
+                .totalCalls(totalCalls)
+                .totalFailures(totalFailures)
+                .totalThrottled(totalThrottled)
+                .throttled(now < throttledUntil)
+                .openUntil(state == State.OPEN ? openUntil : null)
+                .lastTripReason(lastError)
+                .build();
+        }
+    }
+}
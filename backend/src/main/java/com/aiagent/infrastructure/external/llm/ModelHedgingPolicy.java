@@ -0,0 +1,178 @@
+package com.aiagent.infrastructure.external.llm;
+
+import com.aiagent.infrastructure.config.AgentConfig;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对冲请求（hedged request）策略
+ *
+ * <p>流式调用在 {@link #hedgeDelayMs} 内仍未收到首 token 时，由调用方向同一模型或后续模型再发起一次请求，
+ * 先产出 token 的一路胜出。对冲延迟取 {@link ModelHealthRegistry} 中该模型 TTFT 的配置分位数，
+ * 只有尾部慢请求会触发对冲。
+ *
+ * <p>每个模型维护固定窗口的对冲预算：窗口内对冲次数不超过请求数 × {@code budgetRatio}（上限 1.0），
+ * 模型整体变慢时对冲不会把负载放大超过一倍。
+ *
+ * <p>指标（按 model 标记）：
+ * <ul>
+ *   <li>{@code aiagent.llm.hedge.requests} - 可对冲的请求数</li>
+ *   <li>{@code aiagent.llm.hedge.fired} - 实际发出的对冲请求数（对冲率 = fired / requests）</li>
+ *   <li>{@code aiagent.llm.hedge.won} - 对冲请求先于原请求产出 token 的次数（胜率 = won / fired）</li>
+ *   <li>{@code aiagent.llm.hedge.budget.exhausted} - 因预算耗尽放弃对冲的次数</li>
+ * </ul>
+ */
+@Slf4j
+@Component
+public class ModelHedgingPolicy {
+
+    @Autowired
+    private AgentConfig agentConfig;
+
+    @Autowired
+    private ModelHealthRegistry modelHealthRegistry;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final Map<String, HedgeBudget> budgets = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService timer;
+
+    @PostConstruct
+    public void init() {
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "llm-hedge-timer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+    }
+
+    public boolean isEnabled() {
+        return config().isEnabled();
+    }
+
+    public boolean isPreferSecondaryModel() {
+        return config().isPreferSecondaryModel();
+    }
+
+    /**
+     * 对冲延迟：模型 TTFT 分位数，限制在 [minDelayMs, maxDelayMs]，样本不足时使用 initialDelayMs
+     */
+    public long hedgeDelayMs(String modelId) {
+        AgentConfig.ModelConfig.HedgingConfig cfg = config();
+        long delay = modelHealthRegistry.ttftPercentile(modelId, cfg.getPercentile());
+        if (delay < 0) {
+            delay = cfg.getInitialDelayMs();
+        }
+        long min = Math.max(0, cfg.getMinDelayMs());
+        long max = Math.max(min, cfg.getMaxDelayMs());
+        return Math.min(max, Math.max(min, delay));
+    }
+
+    /**
+     * 在对冲延迟后执行 task（由调用方在 task 中判断是否仍需对冲）
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long delayMs) {
+        return timer.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 记录一次可对冲的请求（计入预算分母）
+     */
+    public void recordRequest(String modelId) {
+        budget(modelId).recordRequest(System.currentTimeMillis());
+        counter("aiagent.llm.hedge.requests", "可对冲的 LLM 请求数", modelId).increment();
+    }
+
+    /**
+     * 申请一次对冲名额
+     *
+     * @return 预算内返回 true，并计入 fired
+     */
+    public boolean tryAcquireHedge(String modelId) {
+        if (!budget(modelId).tryAcquire(System.currentTimeMillis())) {
+            counter("aiagent.llm.hedge.budget.exhausted", "对冲预算耗尽次数", modelId).increment();
+            log.debug("对冲预算已耗尽: modelId={}", modelId);
+            return false;
+        }
+        counter("aiagent.llm.hedge.fired", "发出的对冲请求数", modelId).increment();
+        return true;
+    }
+
+    /**
+     * 记录对冲请求胜出（先于原请求产出 token）
+     *
+     * @param modelId 被对冲的原请求模型
+     */
+    public void recordHedgeWon(String modelId) {
+        counter("aiagent.llm.hedge.won", "对冲请求胜出次数", modelId).increment();
+    }
+
+    private Counter counter(String name, String description, String modelId) {
+        return Counter.builder(name)
+            .description(description)
+            .tag("model", String.valueOf(modelId))
+            .register(meterRegistry);
+    }
+
+    private HedgeBudget budget(String modelId) {
+        return budgets.computeIfAbsent(String.valueOf(modelId), k -> new HedgeBudget());
+    }
+
+    private AgentConfig.ModelConfig.HedgingConfig config() {
+        return agentConfig.getModel().getHedging();
+    }
+
+    /**
+     * 单个模型的固定窗口对冲预算
+     */
+    private final class HedgeBudget {
+        private long windowStart;
+        private long requests;
+        private long hedges;
+
+        synchronized void recordRequest(long now) {
+            roll(now);
+            requests++;
+        }
+
+        synchronized boolean tryAcquire(long now) {
+            roll(now);
+            double ratio = Math.min(1D, Math.max(0D, config().getBudgetRatio()));
+            if (hedges + 1 > requests * ratio) {
+                return false;
+            }
+            hedges++;
+            return true;
+        }
+
+        private void roll(long now) {
+            long windowMs = Math.max(1, config().getBudgetWindowSeconds()) * 1000L;
+            if (now - windowStart >= windowMs) {
+                windowStart = now;
+                requests = 0;
+                hedges = 0;
+            }
+        }
+    }
+}
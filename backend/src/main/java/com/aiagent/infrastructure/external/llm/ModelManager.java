@@ -1,7 +1,6 @@
 package com.aiagent.infrastructure.external.llm;
 
 import com.aiagent.infrastructure.config.AgentConfig;
-import dev.langchain4j.http.client.jdk.JdkHttpClientBuilder;
 import dev.langchain4j.model.chat.ChatModel;
 import dev.langchain4j.model.chat.StreamingChatModel;
 import dev.langchain4j.model.openai.OpenAiChatModel;
@@ -15,11 +14,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.time.Duration;
-import java.net.http.HttpClient;
 
 /**
  * 模型管理器
- * 支持多模型配置和故障转移
+ * 支持多模型配置和故障转移（结合 {@link ModelHealthRegistry} 的运行时熔断状态）
  * 
  * @author aiagent
  */
@@ -29,6 +27,12 @@ public class ModelManager {
     
     @Autowired
     private AgentConfig agentConfig;
+
+    @Autowired
+    private LlmHttpClientRegistry httpClientRegistry;
+
+    @Autowired
+    private ModelHealthRegistry modelHealthRegistry;
     
     /**
      * 流式模型缓存（modelId -> StreamingChatModel）
@@ -62,6 +66,38 @@ public class ModelManager {
         return defaultModels;
     }
     
+    /**
+     * 解析模型的故障转移链：请求的模型在前，其后依次为 task-model-mapping 中排在它后面的模型，
+     * 最后为默认模型（去重、保持顺序）
+     *
+     * @param modelId 请求的模型ID（为空时使用默认模型）
+     * @return 候选模型ID列表
+     */
+    public List<String> resolveFallbackChain(String modelId) {
+        String defaultModelId = agentConfig.getModel().getDefaultModelId();
+        if (modelId == null || modelId.isEmpty()) {
+            modelId = defaultModelId;
+        }
+        java.util.LinkedHashSet<String> chain = new java.util.LinkedHashSet<>();
+        chain.add(modelId);
+        Map<String, List<String>> taskModelMapping = agentConfig.getModel().getTaskModelMapping();
+        if (taskModelMapping != null) {
+            for (List<String> modelIds : taskModelMapping.values()) {
+                if (modelIds == null) {
+                    continue;
+                }
+                int index = modelIds.indexOf(modelId);
+                if (index >= 0) {
+                    chain.addAll(modelIds.subList(index + 1, modelIds.size()));
+                }
+            }
+        }
+        if (defaultModelId != null && !defaultModelId.isEmpty()) {
+            chain.add(defaultModelId);
+        }
+        return new ArrayList<>(chain);
+    }
+
     /**
      * 获取或创建流式模型实例
      * 
@@ -144,7 +180,14 @@ public class ModelManager {
         List<String> triedModels = new ArrayList<>();
         Exception lastException = null;
         
-        for (String modelId : modelIds) {
+        for (int i = 0; i < modelIds.size(); i++) {
+            String modelId = modelIds.get(i);
+            // 运行时熔断中的模型跳过（最后一个候选仍尝试）
+            if (i < modelIds.size() - 1 && !modelHealthRegistry.isAvailable(modelId)) {
+                log.info("模型 {} 处于熔断或限流冷却中，跳过", modelId);
+                triedModels.add(modelId);
+                continue;
+            }
             try {
                 log.debug("尝试使用模型: {}", modelId);
                 Object model = isStreaming ? 
@@ -171,7 +214,7 @@ public class ModelManager {
     /**
      * 获取模型定义
      */
-    private AgentConfig.LLMConfig.ModelDefinition getModelDefinition(String modelId) {
+    public AgentConfig.LLMConfig.ModelDefinition getModelDefinition(String modelId) {
         List<AgentConfig.LLMConfig.ModelDefinition> models = agentConfig.getLlm().getModels();
         if (models == null) {
             return null;
@@ -236,9 +279,7 @@ public class ModelManager {
                     provider, modelDef.getId(), baseUrl);
                 int timeoutSeconds = resolveTimeoutSeconds(modelDef);
                 return OpenAiStreamingChatModel.builder()
-                    .httpClientBuilder(new JdkHttpClientBuilder()
-                        .httpClientBuilder(HttpClient.newBuilder()
-                            .version(HttpClient.Version.HTTP_1_1)))
+                    .httpClientBuilder(httpClientRegistry.builderFor(baseUrl, modelDef.getHttpVersion()))
                     .apiKey(modelDef.getApiKey())
                     .baseUrl(baseUrl)
                     .modelName(modelDef.getId())
@@ -303,9 +344,7 @@ public class ModelManager {
                     provider, modelDef.getId(), baseUrl);
                 int timeoutSeconds = resolveTimeoutSeconds(modelDef);
                 return OpenAiChatModel.builder()
-                    .httpClientBuilder(new JdkHttpClientBuilder()
-                        .httpClientBuilder(HttpClient.newBuilder()
-                            .version(HttpClient.Version.HTTP_1_1)))
+                    .httpClientBuilder(httpClientRegistry.builderFor(baseUrl, modelDef.getHttpVersion()))
                     .apiKey(modelDef.getApiKey())
                     .baseUrl(baseUrl)
                     .modelName(modelDef.getId())
@@ -329,6 +368,7 @@ public class ModelManager {
     public void clearModelCache() {
         streamingModelCache.clear();
         chatModelCache.clear();
+        httpClientRegistry.clear();
         log.info("模型缓存已清除");
     }
 }
@@ -0,0 +1,23 @@
+package com.aiagent.infrastructure.external.llm;
+
+import lombok.Getter;
+
+/**
+ * 本地限流排队超时（{@link ModelRateLimiter} 等待令牌超过 maxWaitSeconds）
+ *
+ * <p>请求未发往服务商，不代表模型故障：调用方不应据此记录模型失败或计入 429 限流，
+ * {@link ModelHealthRegistry#isThrottled} 也不会把它识别为限流错误。
+ */
+@Getter
+public class ModelQueueTimeoutException extends RuntimeException {
+
+    private final String modelId;
+
+    private final long waitMs;
+
+    public ModelQueueTimeoutException(String modelId, long waitMs) {
+        super("模型 " + modelId + " 本地限流排队超时（" + waitMs + " ms）");
+        this.modelId = modelId;
+        this.waitMs = waitMs;
+    }
+}
@@ -0,0 +1,393 @@
+package com.aiagent.infrastructure.external.llm;
+
+import com.aiagent.infrastructure.config.AgentConfig;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RRateLimiter;
+import org.redisson.api.RateIntervalUnit;
+import org.redisson.api.RateLimiterConfig;
+import org.redisson.api.RateType;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 模型级客户端限流（RPM / TPM）
+ *
+ * <p>模型配置 {@code rpmLimit} / {@code tpmLimit} 后，每次调用前先从 Redis 令牌桶（Redisson {@link RRateLimiter}，
+ * 集群共享）申请 1 个请求令牌和按输入估算的 token 令牌，避免流量高峰时所有节点同时打满服务商额度后收到 429。
+ *
+ * <p>令牌不足时请求不会失败，而是进入该模型的本地等待队列：队列按会话分道，
+ * 每次从不同会话轮流取出队首请求（round-robin），单个会话的大量请求不会饿死其他会话。
+ * 队首请求每隔 {@code retryIntervalMs} 重试一次，等待期间不占用线程；超过 {@code maxWaitSeconds} 以
+ * {@link ModelQueueTimeoutException} 结束（请求未发往服务商，不计入模型健康状态）。
+ * 调用方取消返回的 Future（如流被停止）时请求立即离开等待队列，不再占用公平轮转的位置。
+ *
+ * <p>Redis 不可用时放行（fail-open），限流只作为保护手段，不影响可用性。
+ *
+ * <p>指标：
+ * <ul>
+ *   <li>{@code aiagent.llm.ratelimit.wait} - 限流排队等待时长（按 model 标记）</li>
+ *   <li>{@code aiagent.llm.ratelimit.queued} - 当前排队等待的请求数</li>
+ *   <li>{@code aiagent.llm.ratelimit.timeouts} - 排队超时的请求数（按 model 标记）</li>
+ * </ul>
+ */
+@Slf4j
+@Component
+public class ModelRateLimiter {
+
+    /** 未提供会话 ID 的请求共用的分道 */
+    private static final String SHARED_LANE = "-";
+
+    @Autowired
+    private AgentConfig agentConfig;
+
+    @Autowired
+    private ModelManager modelManager;
+
+    @Autowired
+    private RedissonClient redissonClient;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    /** modelId → 等待队列 */
+    private final Map<String, ModelQueue> queues = new ConcurrentHashMap<>();
+
+    /** 已同步过速率配置的令牌桶 key */
+    private final Map<String, Long> configuredRates = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService timer;
+
+    /**
+     * 排队状态回调
+     */
+    public interface Listener {
+        /**
+         * 令牌不足，开始排队等待
+         *
+         * @param queued 该模型当前排队的请求数（含本请求）
+         */
+        void onQueued(int queued);
+    }
+
+    @PostConstruct
+    public void init() {
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "llm-ratelimit");
+            t.setDaemon(true);
+            return t;
+        });
+        Gauge.builder("aiagent.llm.ratelimit.queued", queues,
+                q -> q.values().stream().mapToInt(ModelQueue::size).sum())
+            .description("限流排队等待的 LLM 请求数")
+            .register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+    }
+
+    /**
+     * 申请一次模型调用额度
+     *
+     * @param modelId         模型 ID
+     * @param conversationId  会话 ID（公平排队的分道键，可为空）
+     * @param estimatedTokens 本次请求估算 token 数
+     * @param listener        排队回调（可为空）
+     * @return 获得额度后完成，值为排队等待毫秒数；排队超时以异常完成。取消该 Future 即放弃排队
+     */
+    public CompletableFuture<Long> acquire(String modelId, String conversationId, long estimatedTokens,
+                                           Listener listener) {
+        if (!agentConfig.getLlm().getRateLimit().isEnabled()) {
+            return CompletableFuture.completedFuture(0L);
+        }
+        AgentConfig.LLMConfig.ModelDefinition modelDef = modelManager.getModelDefinition(modelId);
+        int rpm = modelDef != null && modelDef.getRpmLimit() != null ? modelDef.getRpmLimit() : 0;
+        int tpm = modelDef != null && modelDef.getTpmLimit() != null ? modelDef.getTpmLimit() : 0;
+        if (rpm <= 0 && tpm <= 0) {
+            return CompletableFuture.completedFuture(0L);
+        }
+        // 单次申请不能超过桶容量，超大请求按满桶计
+        long tokens = tpm > 0 ? Math.max(1L, Math.min(estimatedTokens, tpm)) : 0L;
+        Waiter waiter = new Waiter(conversationId != null ? conversationId : SHARED_LANE, tokens, listener);
+        ModelQueue queue = queues.computeIfAbsent(modelId, ModelQueue::new);
+        boolean startDrain = queue.enqueue(waiter);
+        waiter.future.whenComplete((v, e) -> {
+            if (waiter.future.isCancelled()) {
+                queue.discard(waiter);
+            }
+        });
+        if (startDrain) {
+            drain(queue, rpm, tpm);
+        }
+        return waiter.future;
+    }
+
+    // ── 内部工具方法 ──────────────────────────────────────────────────────────
+
+    /**
+     * 处理队首请求：申请令牌成功则放行并继续处理下一个，失败则延迟重试
+     */
+    private void drain(ModelQueue queue, int rpm, int tpm) {
+        Waiter head = queue.peek();
+        if (head == null) {
+            return;
+        }
+        if (head.future.isDone()) {
+            // 已被调用方取消
+            queue.discard(head);
+            drain(queue, rpm, tpm);
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long maxWaitMs = agentConfig.getLlm().getRateLimit().getMaxWaitSeconds() * 1000L;
+        if (maxWaitMs > 0 && now - head.enqueuedAt > maxWaitMs) {
+            queue.remove(head);
+            Counter.builder("aiagent.llm.ratelimit.timeouts")
+                .description("限流排队超时的 LLM 请求数")
+                .tag("model", queue.modelId)
+                .register(meterRegistry)
+                .increment();
+            log.warn("模型限流排队超时: modelId={}, lane={}, waitMs={}", queue.modelId, head.lane, now - head.enqueuedAt);
+            head.future.completeExceptionally(new ModelQueueTimeoutException(queue.modelId, now - head.enqueuedAt));
+            drain(queue, rpm, tpm);
+            return;
+        }
+        CompletionStage<Boolean> attempt;
+        try {
+            attempt = tryAcquire(queue.modelId, rpm, tpm, head.tokens);
+        } catch (Exception e) {
+            attempt = CompletableFuture.failedFuture(e);
+        }
+        attempt.whenComplete((acquired, error) -> {
+            if (error != null) {
+                log.warn("Redis 限流令牌申请失败，直接放行: modelId={}, error={}", queue.modelId, error.getMessage());
+            }
+            if (error != null || Boolean.TRUE.equals(acquired)) {
+                queue.remove(head);
+                release(queue.modelId, head);
+                // 切换到定时线程继续，避免在 Redisson 回调线程上递归
+                timer.execute(() -> drain(queue, rpm, tpm));
+                return;
+            }
+            if (!head.notified && !head.future.isDone()) {
+                head.notified = true;
+                notifyQueued(queue, head);
+            }
+            long retryMs = Math.max(10, agentConfig.getLlm().getRateLimit().getRetryIntervalMs());
+            timer.schedule(() -> drain(queue, rpm, tpm), retryMs, TimeUnit.MILLISECONDS);
+        });
+    }
+
+    /**
+     * 申请请求令牌与 token 令牌：先只读检查 TPM 余量，再申请廉价的 RPM 令牌，最后扣减 TPM。
+     * RPM 不足时不消耗任何 TPM 额度（重试不会反复扣减 token 桶）；
+     * 检查与扣减之间 TPM 被其他节点抢占时最多浪费 1 个请求令牌。
+     */
+    private CompletionStage<Boolean> tryAcquire(String modelId, int rpm, int tpm, long tokens) {
+        CompletionStage<Boolean> tpmAvailable = tpm > 0
+            ? limiter(modelId, "tpm", tpm).availablePermitsAsync().thenApply(available -> available >= tokens)
+            : CompletableFuture.completedFuture(true);
+        return tpmAvailable.thenCompose(ok -> {
+            if (!Boolean.TRUE.equals(ok) || rpm <= 0) {
+                return CompletableFuture.completedFuture(ok);
+            }
+            return limiter(modelId, "rpm", rpm).tryAcquireAsync(1L);
+        }).thenCompose(ok -> {
+            if (!Boolean.TRUE.equals(ok) || tpm <= 0) {
+                return CompletableFuture.completedFuture(ok);
+            }
+            return limiter(modelId, "tpm", tpm).tryAcquireAsync(tokens);
+        });
+    }
+
+    private RRateLimiter limiter(String modelId, String kind, long rate) {
+        String key = agentConfig.getLlm().getRateLimit().getKeyPrefix() + modelId + ":" + kind;
+        RRateLimiter limiter = redissonClient.getRateLimiter(key);
+        Long configured = configuredRates.get(key);
+        if (configured == null || configured != rate) {
+            if (!limiter.trySetRate(RateType.OVERALL, rate, 1, RateIntervalUnit.MINUTES)) {
+                // 已存在的令牌桶速率与当前配置不同（配置变更）时覆盖
+                RateLimiterConfig existing = limiter.getConfig();
+                if (existing == null || existing.getRate() == null || existing.getRate() != rate) {
+                    limiter.setRate(RateType.OVERALL, rate, 1, RateIntervalUnit.MINUTES);
+                    log.info("更新模型限流速率: key={}, rate={}/min", key, rate);
+                }
+            }
+            configuredRates.put(key, rate);
+        }
+        return limiter;
+    }
+
+    private void release(String modelId, Waiter waiter) {
+        long waitMs = System.currentTimeMillis() - waiter.enqueuedAt;
+        Timer.builder("aiagent.llm.ratelimit.wait")
+            .description("LLM 请求限流排队等待时长")
+            .tag("model", modelId)
+            .register(meterRegistry)
+            .record(waitMs, TimeUnit.MILLISECONDS);
+        if (waiter.notified) {
+            log.info("模型限流排队结束: modelId={}, lane={}, waitMs={}", modelId, waiter.lane, waitMs);
+        }
+        waiter.future.complete(waiter.notified ? waitMs : 0L);
+    }
+
+    private void notifyQueued(ModelQueue queue, Waiter waiter) {
+        if (waiter.listener == null) {
+            return;
+        }
+        try {
+            waiter.listener.onQueued(queue.size());
+        } catch (Exception e) {
+            log.debug("通知限流排队失败: modelId={}", queue.modelId, e);
+        }
+    }
+
+    /**
+     * 排队中的一次调用
+     */
+    private static final class Waiter {
+        private final String lane;
+        private final long tokens;
+        private final Listener listener;
+        private final long enqueuedAt = System.currentTimeMillis();
+        private final CompletableFuture<Long> future = new CompletableFuture<>();
+        /** 是否已通知排队（只有真正等待过的请求才上报等待时长） */
+        private volatile boolean notified;
+
+        private Waiter(String lane, long tokens, Listener listener) {
+            this.lane = lane;
+            this.tokens = tokens;
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * 单个模型的等待队列：按会话分道，轮流从各分道取队首
+     */
+    private final class ModelQueue {
+        private final String modelId;
+        /** 会话 → 该会话的等待请求；迭代顺序即轮转顺序 */
+        private final LinkedHashMap<String, Deque<Waiter>> lanes = new LinkedHashMap<>();
+        private int size;
+        /** 当前被处理的队首请求（处理完成前不换道） */
+        private Waiter head;
+        /** 是否有处理链在运行（保证同一模型只有一个处理链） */
+        private boolean draining;
+
+        private ModelQueue(String modelId) {
+            this.modelId = modelId;
+        }
+
+        /**
+         * 入队
+         *
+         * @return 没有处理链在运行（需要调用方启动处理）时返回 true
+         */
+        synchronized boolean enqueue(Waiter waiter) {
+            lanes.computeIfAbsent(waiter.lane, k -> new ArrayDeque<>()).addLast(waiter);
+            size++;
+            if (size > 1) {
+                // 前面已有排队请求，立即上报
+                waiter.notified = true;
+                notifyLater(waiter, size);
+            }
+            if (draining) {
+                return false;
+            }
+            draining = true;
+            return true;
+        }
+
+        /**
+         * 当前队首：沿用正在处理的请求，否则取轮转顺序中第一个分道的队首
+         */
+        synchronized Waiter peek() {
+            if (head != null) {
+                return head;
+            }
+            Iterator<Map.Entry<String, Deque<Waiter>>> it = lanes.entrySet().iterator();
+            if (!it.hasNext()) {
+                // 队列已空，结束处理链
+                draining = false;
+                return null;
+            }
+            Map.Entry<String, Deque<Waiter>> lane = it.next();
+            head = lane.getValue().peekFirst();
+            return head;
+        }
+
+        /**
+         * 移除已放行或超时的队首，并将其分道移到轮转末尾
+         */
+        synchronized void remove(Waiter waiter) {
+            if (head == waiter) {
+                head = null;
+            }
+            Deque<Waiter> lane = lanes.get(waiter.lane);
+            if (lane == null || !lane.remove(waiter)) {
+                // 已被取消移除
+                return;
+            }
+            size--;
+            lanes.remove(waiter.lane);
+            if (!lane.isEmpty()) {
+                lanes.put(waiter.lane, lane);
+            }
+        }
+
+        /**
+         * 移除被取消的请求（可能不在队首），不改变分道的轮转顺序
+         */
+        synchronized void discard(Waiter waiter) {
+            if (head == waiter) {
+                head = null;
+            }
+            Deque<Waiter> lane = lanes.get(waiter.lane);
+            if (lane == null || !lane.remove(waiter)) {
+                return;
+            }
+            size--;
+            if (lane.isEmpty()) {
+                lanes.remove(waiter.lane);
+            }
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        private void notifyLater(Waiter waiter, int queued) {
+            if (waiter.listener != null) {
+                timer.execute(() -> {
+                    try {
+                        waiter.listener.onQueued(queued);
+                    } catch (Exception e) {
+                        log.debug("通知限流排队失败: modelId={}", modelId, e);
+                    }
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.aiagent.infrastructure.external.llm;
+
+import com.aiagent.infrastructure.cache.NearCache;
+import com.aiagent.infrastructure.cache.NearCacheRegistry;
+import com.aiagent.infrastructure.config.AgentConfig;
+import dev.langchain4j.data.embedding.Embedding;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 查询向量缓存
+ *
+ * <p>按（Embedding 模型ID, 规范化文本）缓存查询向量：一级为进程内 {@link NearCache}（LRU + TTL），
+ * 二级为可选的 Redis（跨实例共享热门查询）。同一个 key 的并发请求合并为一次加载（single-flight），
+ * 其余请求等待同一结果。同一模型对同一文本的向量不会变化，因此无需失效广播。
+ * 未命中时经 {@link EmbeddingBatchDispatcher} 与其他并发请求合并调用模型。
+ *
+ * <p>只用于检索时的查询文本；文档入库的分段向量不经过此缓存。
+ *
+ * <p>指标：一级命中率见 {@code aiagent.cache.requests{cache=query-embedding}}，
+ * 另有 {@code aiagent.rag.embedding.cache.redis{result=hit|miss}}、{@code aiagent.rag.embedding.singleflight.joined}。
+ *
+ * @author aiagent
+ */
+@Slf4j
+@Component
+public class QueryEmbeddingCache {
+
+    private static final String CACHE_NAME = "query-embedding";
+
+    private static final String REDIS_KEY_PREFIX = "aiagent:embedding:query:";
+
+    @Autowired
+    private AgentConfig agentConfig;
+
+    @Autowired
+    private EmbeddingBatchDispatcher embeddingBatchDispatcher;
+
+    @Autowired
+    private NearCacheRegistry nearCacheRegistry;
+
+    @Autowired
+    private RedisTemplate<String, byte[]> binaryRedisTemplate;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private NearCache<Embedding> localCache;
+
+    /** 加载中的请求（key → 结果），用于合并并发的相同请求 */
+    private final Map<String, CompletableFuture<Embedding>> inFlight = new ConcurrentHashMap<>();
+
+    private Counter redisHitCounter;
+
+    private Counter redisMissCounter;
+
+    private Counter joinedCounter;
+
+    @PostConstruct
+    public void init() {
+        localCache = nearCacheRegistry.create(CACHE_NAME, agentConfig.getNearCache().getQueryEmbedding());
+        redisHitCounter = Counter.builder("aiagent.rag.embedding.cache.redis")
+            .description("查询向量 Redis 二级缓存访问次数")
+            .tag("result", "hit")
+            .register(meterRegistry);
+        redisMissCounter = Counter.builder("aiagent.rag.embedding.cache.redis")
+            .description("查询向量 Redis 二级缓存访问次数")
+            .tag("result", "miss")
+            .register(meterRegistry);
+        joinedCounter = Counter.builder("aiagent.rag.embedding.singleflight.joined")
+            .description("合并到进行中请求的查询向量请求数")
+            .register(meterRegistry);
+    }
+
+    /**
+     * 获取查询文本的向量（缓存未命中时调用 Embedding 模型）
+     *
+     * @param modelId 实际使用的 Embedding 模型ID（见 {@link EmbeddingModelManager#resolveEmbeddingModelId}）
+     * @param text 查询文本
+     * @return 查询向量（多个调用方共享同一实例，不得修改）
+     */
+    public Embedding embed(String modelId, String text) {
+        String normalized = normalize(text);
+        String key = modelId + "\n" + normalized;
+        return localCache.get(key, k -> loadOnce(k, modelId, normalized));
+    }
+
+    /**
+     * 同一 key 同时只有一个请求真正加载，其余请求等待并共享结果（包括异常）
+     */
+    private Embedding loadOnce(String key, String modelId, String text) {
+        CompletableFuture<Embedding> mine = new CompletableFuture<>();
+        CompletableFuture<Embedding> existing = inFlight.putIfAbsent(key, mine);
+        if (existing != null) {
+            joinedCounter.increment();
+            try {
+                return existing.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+        try {
+            Embedding embedding = load(modelId, text);
+            mine.complete(embedding);
+            return embedding;
+        } catch (RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    private Embedding load(String modelId, String text) {
+        AgentConfig.RAGConfig.QueryEmbeddingCacheConfig config = agentConfig.getRag().getQueryEmbeddingCache();
+        String redisKey = config.isRedisEnabled() ? redisKey(modelId, text) : null;
+        if (redisKey != null) {
+            Embedding cached = readRedis(redisKey);
+            if (cached != null) {
+                redisHitCounter.increment();
+                return cached;
+            }
+            redisMissCounter.increment();
+        }
+
+        Embedding embedding = embeddingBatchDispatcher.embed(modelId, text);
+
+        if (redisKey != null) {
+            writeRedis(redisKey, embedding, config.getRedisTtlSeconds());
+        }
+        return embedding;
+    }
+
+    private Embedding readRedis(String redisKey) {
+        try {
+            byte[] bytes = binaryRedisTemplate.opsForValue().get(redisKey);
+            return bytes != null ? decode(bytes) : null;
+        } catch (Exception e) {
+            log.warn("读取查询向量缓存失败: key={}, error={}", redisKey, e.getMessage());
+            return null;
+        }
+    }
+
+    private void writeRedis(String redisKey, Embedding embedding, long ttlSeconds) {
+        try {
+            binaryRedisTemplate.opsForValue().set(redisKey, encode(embedding), Duration.ofSeconds(Math.max(1, ttlSeconds)));
+        } catch (Exception e) {
+            log.warn("写入查询向量缓存失败: key={}, error={}", redisKey, e.getMessage());
+        }
+    }
+
+    /**
+     * 规范化查询文本：去掉首尾空白并合并连续空白（不改变大小写，避免改变语义）
+     */
+    private static String normalize(String text) {
+        return text == null ? "" : text.trim().replaceAll("\\s+", " ");
+    }
+
+    /**
+     * Redis key：模型ID + 文本 SHA-256（避免长文本作为 key）
+     */
+    private static String redisKey(String modelId, String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+            StringBuilder key = new StringBuilder(REDIS_KEY_PREFIX).append(modelId).append(':');
+            for (byte b : digest) {
+                key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] encode(Embedding embedding) {
+        float[] vector = embedding.vector();
+        ByteBuffer buffer = ByteBuffer.allocate(vector.length * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asFloatBuffer().put(vector);
+        return buffer.array();
+    }
+
+    private static Embedding decode(byte[] bytes) {
+        float[] vector = new float[bytes.length / Float.BYTES];
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(vector);
+        return Embedding.from(vector);
+    }
+}
@@ -6,6 +6,7 @@ import org.springframework.stereotype.Component;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -68,6 +69,34 @@ public class ClientToolCallManager {
         }
     }
 
+    /**
+     * 异步等待客户端结果（超时后以异常完成），不占用调用线程
+     *
+     * @param callId 调用 ID
+     * @return 工具执行结果 JSON 的 Future
+     */
+    public CompletableFuture<String> awaitResult(String callId) {
+        CompletableFuture<String> future = pendingCalls.get(callId);
+        if (future == null) {
+            return CompletableFuture.failedFuture(new IllegalStateException("未找到客户端工具调用: callId=" + callId));
+        }
+        return future
+            .orTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+            .handle((result, e) -> {
+                pendingCalls.remove(callId);
+                if (e == null) {
+                    log.debug("客户端工具执行成功: callId={}", callId);
+                    return result;
+                }
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                if (cause instanceof TimeoutException) {
+                    log.warn("客户端工具执行超时: callId={}", callId);
+                    throw new CompletionException(new RuntimeException("客户端工具执行超时（" + TIMEOUT_SECONDS + "s）"));
+                }
+                throw new CompletionException(new RuntimeException("客户端工具执行失败: " + cause.getMessage(), cause));
+            });
+    }
+
     /**
      * 客户端工具执行成功，唤醒等待的 Future
      *
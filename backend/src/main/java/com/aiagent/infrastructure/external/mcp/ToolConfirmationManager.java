@@ -7,6 +7,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -60,6 +61,34 @@ public class ToolConfirmationManager {
         }
     }
 
+    /**
+     * 异步等待用户确认结果（Redis 阻塞 poll 由 Redisson 在连接层等待，不占用调用线程）
+     */
+    public CompletableFuture<ToolConfirmationDecision> awaitDecision(String toolExecutionId, long timeoutMs) {
+        RBlockingQueue<String> queue = getQueue(toolExecutionId);
+        queue.expire(Duration.ofMillis(Math.max(timeoutMs * 2, DEFAULT_EXPIRE_MS)));
+        return queue.pollAsync(timeoutMs, TimeUnit.MILLISECONDS)
+            .handle((decision, e) -> {
+                try {
+                    queue.deleteAsync();
+                } catch (Exception ex) {
+                    log.debug("清理确认队列失败: toolExecutionId={}", toolExecutionId, ex);
+                }
+                if (e != null) {
+                    log.warn("等待用户确认异常: toolExecutionId={}", toolExecutionId, e);
+                    return ToolConfirmationDecision.REJECTED;
+                }
+                if (decision == null) {
+                    log.warn("等待用户确认超时: toolExecutionId={}", toolExecutionId);
+                    return ToolConfirmationDecision.TIMEOUT;
+                }
+                return "APPROVED".equalsIgnoreCase(decision)
+                    ? ToolConfirmationDecision.APPROVED
+                    : ToolConfirmationDecision.REJECTED;
+            })
+            .toCompletableFuture();
+    }
+
     /**
      * 用户确认执行
      */
@@ -58,6 +58,11 @@ public interface ConversationMapper {
      */
     void incrementMessageCount(@Param("id") String id);
     
+    /**
+     * 增加指定数量的消息数量
+     */
+    void addMessageCount(@Param("id") String id, @Param("delta") int delta);
+    
     /**
      * 删除会话
      */
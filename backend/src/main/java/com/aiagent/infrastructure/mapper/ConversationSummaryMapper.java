@@ -0,0 +1,24 @@
+package com.aiagent.infrastructure.mapper;
+
+import com.aiagent.domain.model.entity.ConversationSummaryEntity;
+import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+
+/**
+ * 会话摘要Mapper接口
+ * 
+ * @author aiagent
+ */
+@Mapper
+public interface ConversationSummaryMapper {
+    
+    /**
+     * 根据会话ID查询摘要
+     */
+    ConversationSummaryEntity selectByConversationId(@Param("conversationId") String conversationId);
+    
+    /**
+     * 写入或更新摘要（仅当新摘要覆盖到更靠后的消息时才覆盖，避免并发压缩回退）
+     */
+    void upsert(ConversationSummaryEntity summary);
+}
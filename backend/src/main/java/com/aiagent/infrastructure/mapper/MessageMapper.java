@@ -8,6 +8,9 @@ import java.util.List;
 
 /**
  * 消息Mapper接口
+ * <p>
+ * 历史查询统一按 (conversation_id, id) 复合索引做 keyset 定位，不使用 OFFSET，
+ * 查询代价只与返回条数有关，与会话总长度无关。
  * 
  * @author aiagent
  */
@@ -20,16 +23,52 @@ public interface MessageMapper {
     void insert(MessageEntity message);
     
     /**
-     * 根据会话ID查询消息列表
+     * 批量插入消息（单条多行 INSERT，自增 ID 按列表顺序分配）
      */
-    List<MessageEntity> selectByConversationId(
+    void insertBatch(@Param("messages") List<MessageEntity> messages);
+    
+    /**
+     * 按 keyset 倒序查询会话消息（完整列，用于前端展示与翻页）
+     *
+     * @param beforeId 只返回 id 小于该值的消息（向前翻页游标，null 表示从最新开始）
+     * @param limit    返回条数（&lt;= 0 时不限制）
+     */
+    List<MessageEntity> selectPageDesc(
+        @Param("conversationId") String conversationId,
+        @Param("beforeId") Long beforeId,
+        @Param("limit") int limit
+    );
+    
+    /**
+     * 按 keyset 倒序查询会话历史（仅投影还原 ChatMessage 所需的列，metadata 只保留 messageData）
+     *
+     * @param afterId  只返回 id 大于该值的消息（如摘要覆盖点，null 表示不限制）
+     * @param beforeId 只返回 id 小于该值的消息（null 表示从最新开始）
+     * @param limit    返回条数（&lt;= 0 时不限制）
+     */
+    List<MessageEntity> selectHistoryDesc(
         @Param("conversationId") String conversationId,
+        @Param("afterId") Long afterId,
+        @Param("beforeId") Long beforeId,
         @Param("limit") int limit
     );
     
+    /**
+     * 查询 id 大于 afterId 的消息（按 id 升序从最早的开始取，列投影同 {@link #selectHistoryDesc}）
+     */
+    List<MessageEntity> selectAfterId(
+        @Param("conversationId") String conversationId,
+        @Param("afterId") long afterId,
+        @Param("limit") int limit
+    );
+    
+    /**
+     * 查询会话最新一条消息的 message_id（无消息时返回 null）
+     */
+    String selectLatestMessageId(@Param("conversationId") String conversationId);
+    
     /**
      * 删除会话的所有消息
      */
     void deleteByConversationId(@Param("conversationId") String conversationId);
 }
-
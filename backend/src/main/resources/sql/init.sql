@@ -56,12 +56,26 @@ CREATE TABLE IF NOT EXISTS `agent_message` (
   `duration` INT DEFAULT NULL COMMENT '耗时（毫秒）',
   `metadata` JSON DEFAULT NULL COMMENT '元数据（工具调用、RAG结果等）',
   `create_time` DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
-  INDEX `idx_conversation_id` (`conversation_id`),
+  INDEX `idx_conversation_id_id` (`conversation_id`, `id`),
   INDEX `idx_message_id` (`message_id`),
   INDEX `idx_create_time` (`create_time`),
   CONSTRAINT `fk_message_conversation` FOREIGN KEY (`conversation_id`) 
     REFERENCES `agent_conversation`(`id`) ON DELETE CASCADE
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci COMMENT='Agent消息表';
+-- 已有库升级：历史消息按 (conversation_id, id) keyset 加载
+-- ALTER TABLE `agent_message` ADD INDEX `idx_conversation_id_id` (`conversation_id`, `id`), DROP INDEX `idx_conversation_id`;
+
+-- 会话滚动摘要表（较早的历史由后台任务压缩为摘要，加载上下文时使用"摘要 + 最近消息"）
+CREATE TABLE IF NOT EXISTS `agent_conversation_summary` (
+  `conversation_id` VARCHAR(64) PRIMARY KEY COMMENT '会话ID',
+  `summary` MEDIUMTEXT NOT NULL COMMENT '滚动摘要内容',
+  `summary_until_id` BIGINT NOT NULL COMMENT '摘要已覆盖的最后一条消息ID（agent_message.id）',
+  `summary_tokens` INT DEFAULT NULL COMMENT '摘要估算 token 数',
+  `model_id` VARCHAR(64) DEFAULT NULL COMMENT '生成摘要使用的模型ID',
+  `update_time` DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+  CONSTRAINT `fk_summary_conversation` FOREIGN KEY (`conversation_id`)
+    REFERENCES `agent_conversation`(`id`) ON DELETE CASCADE
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci COMMENT='Agent会话摘要表';
 
 -- 知识库表
 CREATE TABLE IF NOT EXISTS `knowledge_base` (
@@ -0,0 +1,188 @@
+package com.aiagent.domain.llm;
+
+import com.aiagent.common.util.CancellationToken;
+import com.aiagent.infrastructure.config.AgentConfig;
+import com.aiagent.infrastructure.external.llm.ModelHealthRegistry;
+import com.aiagent.infrastructure.external.llm.ModelHedgingPolicy;
+import com.aiagent.infrastructure.external.llm.ModelManager;
+import com.aiagent.infrastructure.external.llm.ModelQueueTimeoutException;
+import com.aiagent.infrastructure.external.llm.ModelRateLimiter;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.model.chat.StreamingChatModel;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.chat.response.StreamingChatResponseHandler;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 被取消 / 放弃的调用归还熔断器 HALF_OPEN 探测名额
+ */
+class SimpleLLMChatHandlerProbeTest {
+
+    private static final List<ChatMessage> MESSAGES = List.of(UserMessage.from("你好"));
+
+    private ModelHealthRegistry healthRegistry;
+
+    private ModelManager modelManager;
+
+    private ModelHedgingPolicy hedgingPolicy;
+
+    private ModelRateLimiter rateLimiter;
+
+    private SimpleLLMChatHandler handler;
+
+    /** 模型 → 最近一次发起的流式调用的回调 */
+    private final Map<String, StreamingChatResponseHandler> streams = new ConcurrentHashMap<>();
+
+    @BeforeEach
+    void setUp() {
+        AgentConfig agentConfig = new AgentConfig();
+        AgentConfig.ModelConfig.RoutingConfig routing = agentConfig.getModel().getRouting();
+        routing.setMinCalls(1);
+        routing.setErrorRateThreshold(0.5);
+        routing.setOpenSeconds(0);
+
+        healthRegistry = new ModelHealthRegistry();
+        ReflectionTestUtils.setField(healthRegistry, "agentConfig", agentConfig);
+
+        modelManager = mock(ModelManager.class);
+        hedgingPolicy = mock(ModelHedgingPolicy.class);
+        rateLimiter = mock(ModelRateLimiter.class);
+        when(rateLimiter.acquire(anyString(), any(), anyLong(), any()))
+            .thenReturn(CompletableFuture.completedFuture(0L));
+        for (String modelId : List.of("m1", "m2")) {
+            StreamingChatModel model = mock(StreamingChatModel.class);
+            doAnswer(inv -> {
+                streams.put(modelId, inv.getArgument(1));
+                return null;
+            }).when(model).chat(any(ChatRequest.class), any(StreamingChatResponseHandler.class));
+            when(modelManager.getOrCreateStreamingModel(modelId)).thenReturn(model);
+        }
+
+        handler = new SimpleLLMChatHandler();
+        ReflectionTestUtils.setField(handler, "modelManager", modelManager);
+        ReflectionTestUtils.setField(handler, "modelHealthRegistry", healthRegistry);
+        ReflectionTestUtils.setField(handler, "hedgingPolicy", hedgingPolicy);
+        ReflectionTestUtils.setField(handler, "rateLimiter", rateLimiter);
+        ReflectionTestUtils.setField(handler, "agentConfig", agentConfig);
+    }
+
+    @Test
+    void releaseProbeReopensHalfOpenModel() {
+        openBreaker("m1");
+
+        assertEquals(ModelHealthRegistry.Admission.PROBE, healthRegistry.admit("m1"));
+        assertFalse(healthRegistry.isAvailable("m1"));
+
+        healthRegistry.releaseProbe("m1");
+
+        assertTrue(healthRegistry.isAvailable("m1"));
+        assertEquals(ModelHealthRegistry.Admission.PROBE, healthRegistry.admit("m1"));
+    }
+
+    @Test
+    void stoppedProbeStreamReleasesProbe() {
+        openBreaker("m1");
+        when(modelManager.resolveFallbackChain("m1")).thenReturn(List.of("m1"));
+        CancellationToken token = new CancellationToken();
+
+        handler.chatWithToolsStreamingAsync("m1", MESSAGES, null, null, null, token);
+        StreamingChatResponseHandler stream = streams.get("m1");
+        assertNotNull(stream);
+        assertFalse(healthRegistry.isAvailable("m1"), "探测请求进行中");
+
+        token.cancel("用户已停止");
+        // 中止的 HTTP 流以错误结束
+        stream.onError(new RuntimeException("stream aborted"));
+
+        assertTrue(healthRegistry.isAvailable("m1"), "用户停止后应归还探测名额");
+    }
+
+    @Test
+    void stopWhileWaitingForRateLimitReleasesProbe() {
+        openBreaker("m1");
+        when(modelManager.resolveFallbackChain("m1")).thenReturn(List.of("m1"));
+        when(rateLimiter.acquire(anyString(), any(), anyLong(), any())).thenReturn(new CompletableFuture<>());
+        CancellationToken token = new CancellationToken();
+
+        handler.chatWithToolsStreamingAsync("m1", MESSAGES, null, null, null, token);
+        assertFalse(healthRegistry.isAvailable("m1"), "探测请求排队中");
+
+        token.cancel("用户已停止");
+
+        assertTrue(healthRegistry.isAvailable("m1"), "排队期间停止应归还探测名额");
+    }
+
+    @Test
+    void losingHedgeReleasesProbe() {
+        openBreaker("m2");
+        when(modelManager.resolveFallbackChain("m1")).thenReturn(List.of("m1", "m2"));
+        when(hedgingPolicy.isEnabled()).thenReturn(true);
+        when(hedgingPolicy.isPreferSecondaryModel()).thenReturn(true);
+        when(hedgingPolicy.hedgeDelayMs(anyString())).thenReturn(0L);
+        when(hedgingPolicy.tryAcquireHedge(anyString())).thenReturn(true);
+        AtomicReference<Runnable> hedgeTask = new AtomicReference<>();
+        doAnswer(inv -> {
+            hedgeTask.set(inv.getArgument(0));
+            return null;
+        }).when(hedgingPolicy).schedule(any(Runnable.class), anyLong());
+
+        handler.chatWithToolsStreamingAsync("m1", MESSAGES, null, null, null, null);
+        assertNotNull(streams.get("m1"));
+        assertNotNull(hedgeTask.get());
+
+        // 对冲延迟到期：对冲到半开的 m2，占用探测名额
+        hedgeTask.get().run();
+        StreamingChatResponseHandler hedge = streams.get("m2");
+        assertNotNull(hedge);
+        assertFalse(healthRegistry.isAvailable("m2"), "对冲探测请求进行中");
+
+        // 主调用先产出 token 胜出，对冲被中止后以错误结束
+        streams.get("m1").onPartialResponse("你好");
+        hedge.onError(new RuntimeException("stream aborted"));
+
+        assertTrue(healthRegistry.isAvailable("m2"), "对冲落败后应归还探测名额");
+    }
+
+    @Test
+    void queueTimeoutIsNotRecordedAsModelFailure() {
+        openBreaker("m1");
+        when(modelManager.resolveFallbackChain("m1")).thenReturn(List.of("m1", "m2"));
+        when(rateLimiter.acquire(eq("m1"), any(), anyLong(), any()))
+            .thenReturn(CompletableFuture.failedFuture(new ModelQueueTimeoutException("m1", 30_000)));
+
+        handler.chatWithToolsStreamingAsync("m1", MESSAGES, null, null, null, null);
+
+        // 排队超时不计入 m1 健康状态：归还探测名额，并故障转移到 m2
+        assertTrue(healthRegistry.isAvailable("m1"));
+        assertNotNull(streams.get("m2"));
+        assertFalse(ModelHealthRegistry.isThrottled(new ModelQueueTimeoutException("m1", 30_000)));
+    }
+
+    /**
+     * 记录一次失败使模型熔断（openSeconds=0，下一次申请即进入 HALF_OPEN）
+     */
+    private void openBreaker(String modelId) {
+        healthRegistry.recordFailure(modelId, new RuntimeException("boom"));
+    }
+}
@@ -0,0 +1,89 @@
+package com.aiagent.domain.memory;
+
+import com.aiagent.domain.model.bo.AgentContext;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.springframework.data.redis.serializer.GenericJackson2JsonRedisSerializer;
+
+import java.util.List;
+
+import static com.aiagent.domain.memory.AgentContextCodecTest.buildContext;
+import static com.aiagent.domain.memory.AgentContextCodecTest.decodeMessages;
+import static com.aiagent.domain.memory.AgentContextCodecTest.encodeMessages;
+
+/**
+ * AgentContextCodec 与原 GenericJackson2JsonRedisSerializer 的编解码耗时对比
+ *
+ * <p>标记为 benchmark，默认构建不运行（见 pom.xml 的 {@code test.excludedGroups}）；
+ * 耗时为预热后的平均值，只输出到日志用于量级对比，不作为断言条件。正确性与体积断言见 {@link AgentContextCodecTest}。
+ */
+@Slf4j
+@Tag("benchmark")
+class AgentContextCodecBenchmarkTest {
+
+    private static final int WARMUP_ROUNDS = 200;
+
+    private static final int MEASURE_ROUNDS = 500;
+
+    private AgentContextCodec codec;
+
+    private GenericJackson2JsonRedisSerializer legacySerializer;
+
+    @BeforeEach
+    void setUp() {
+        codec = AgentContextCodecTest.newCodec();
+        legacySerializer = AgentContextCodecTest.newLegacySerializer();
+    }
+
+    @ParameterizedTest(name = "{0} 条消息")
+    @ValueSource(ints = {20, 100, 500})
+    void compareWithLegacySerializer(int messageCount) throws Exception {
+        AgentContext context = buildContext(messageCount);
+        byte[] header = codec.encode(context);
+        List<byte[]> messages = encodeMessages(codec, context);
+        byte[] legacy = legacySerializer.serialize(context);
+
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            decodeMessages(codec, encodeMessages(codec, context));
+            codec.decode(codec.encode(context));
+            legacySerializer.deserialize(legacySerializer.serialize(context), AgentContext.class);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURE_ROUNDS; i++) {
+            codec.encode(context);
+            encodeMessages(codec, context);
+        }
+        double newEncodeUs = elapsedMicrosPerRound(start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < MEASURE_ROUNDS; i++) {
+            codec.decode(header);
+            decodeMessages(codec, messages);
+        }
+        double newDecodeUs = elapsedMicrosPerRound(start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < MEASURE_ROUNDS; i++) {
+            legacySerializer.serialize(context);
+        }
+        double legacyEncodeUs = elapsedMicrosPerRound(start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < MEASURE_ROUNDS; i++) {
+            legacySerializer.deserialize(legacy, AgentContext.class);
+        }
+        double legacyDecodeUs = elapsedMicrosPerRound(start);
+
+        log.info("[AgentContextCodec] messages={} | encode us: new={} legacy={} | decode us: new={} legacy={}",
+            messageCount, String.format("%.1f", newEncodeUs), String.format("%.1f", legacyEncodeUs),
+            String.format("%.1f", newDecodeUs), String.format("%.1f", legacyDecodeUs));
+    }
+
+    private static double elapsedMicrosPerRound(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1000.0 / MEASURE_ROUNDS;
+    }
+}
@@ -0,0 +1,154 @@
+package com.aiagent.domain.memory;
+
+import com.aiagent.domain.model.bo.AgentContext;
+import com.aiagent.domain.model.bo.MessageBO;
+import com.aiagent.infrastructure.config.AgentConfig;
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.springframework.data.redis.serializer.GenericJackson2JsonRedisSerializer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * AgentContextCodec 的编解码正确性，以及与原 GenericJackson2JsonRedisSerializer 的体积对比
+ *
+ * <p>新格式 = 上下文头（{@link AgentContextCodec#encode}）+ 每条消息单独编码（{@link AgentContextCodec#encodeMessage}），
+ * 旧格式 = RedisConfig 原配置（{@code DefaultTyping.NON_FINAL}）整体序列化含消息的 AgentContext。
+ * 编解码耗时对比见 {@link AgentContextCodecBenchmarkTest}。
+ */
+class AgentContextCodecTest {
+
+    private AgentContextCodec codec;
+
+    private GenericJackson2JsonRedisSerializer legacySerializer;
+
+    @BeforeEach
+    void setUp() {
+        codec = newCodec();
+        legacySerializer = newLegacySerializer();
+    }
+
+    @ParameterizedTest(name = "{0} 条消息")
+    @ValueSource(ints = {20, 100, 500})
+    void roundTripsAndIsSmallerThanLegacySerializer(int messageCount) throws Exception {
+        AgentContext context = buildContext(messageCount);
+
+        // 正确性：两种格式都能还原消息
+        byte[] header = codec.encode(context);
+        List<byte[]> messages = encodeMessages(codec, context);
+        AgentContext decodedHeader = codec.decode(header);
+        assertEquals(context.getConversationId(), decodedHeader.getConversationId());
+        assertEquals(context.getMessageListBaseId(), decodedHeader.getMessageListBaseId());
+        assertEquals(context.getMessageBOS(), decodeMessages(codec, messages));
+
+        byte[] legacy = legacySerializer.serialize(context);
+        AgentContext legacyDecoded = legacySerializer.deserialize(legacy, AgentContext.class);
+        assertEquals(context.getMessageBOS(), legacyDecoded.getMessageBOS());
+
+        long newBytes = header.length + messages.stream().mapToLong(m -> m.length).sum();
+        long legacyBytes = legacy.length;
+
+        assertTrue(newBytes < legacyBytes,
+            "新格式应小于旧格式: new=" + newBytes + ", legacy=" + legacyBytes);
+    }
+
+    static AgentContextCodec newCodec() {
+        AgentContextCodec codec = new AgentContextCodec();
+        ReflectionTestUtils.setField(codec, "agentConfig", new AgentConfig());
+        ReflectionTestUtils.setField(codec, "meterRegistry", new SimpleMeterRegistry());
+        codec.init();
+        return codec;
+    }
+
+    /**
+     * 与 RedisConfig.redisTemplate 的值序列化器配置一致
+     */
+    static GenericJackson2JsonRedisSerializer newLegacySerializer() {
+        ObjectMapper objectMapper = new ObjectMapper();
+        objectMapper.setVisibility(PropertyAccessor.ALL, JsonAutoDetect.Visibility.ANY);
+        objectMapper.activateDefaultTyping(
+            objectMapper.getPolymorphicTypeValidator(),
+            ObjectMapper.DefaultTyping.NON_FINAL
+        );
+        return new GenericJackson2JsonRedisSerializer(objectMapper);
+    }
+
+    static List<byte[]> encodeMessages(AgentContextCodec codec, AgentContext context) throws Exception {
+        List<byte[]> encoded = new ArrayList<>(context.getMessageBOS().size());
+        for (MessageBO message : context.getMessageBOS()) {
+            encoded.add(codec.encodeMessage(message));
+        }
+        return encoded;
+    }
+
+    static List<MessageBO> decodeMessages(AgentContextCodec codec, List<byte[]> encoded) throws Exception {
+        List<MessageBO> decoded = new ArrayList<>(encoded.size());
+        for (byte[] bytes : encoded) {
+            decoded.add(codec.decodeMessage(bytes));
+        }
+        return decoded;
+    }
+
+    /**
+     * 构造接近真实对话的上下文：系统提示 + 用户 / AI（含工具调用）/ 工具结果交替
+     */
+    static AgentContext buildContext(int messageCount) {
+        List<MessageBO> messages = new ArrayList<>(messageCount);
+        messages.add(message("SYSTEM", "你是一个企业知识库助手，回答时引用检索到的文档，并在必要时调用工具。"));
+        for (int i = 1; i < messageCount; i++) {
+            switch (i % 4) {
+                case 1:
+                    messages.add(message("USER", "请帮我查询第 " + i + " 个项目的部署状态，并总结最近一周的告警情况。"));
+                    break;
+                case 2: {
+                    MessageBO ai = message("AI", null);
+                    ai.setToolExecutionRequests(Collections.singletonList(new MessageBO.ToolExecutionRequestDTO(
+                        "call_" + i, "query_deployment",
+                        "{\"project\":\"project-" + i + "\",\"range\":\"7d\",\"includeAlerts\":true}")));
+                    messages.add(ai);
+                    break;
+                }
+                case 3: {
+                    MessageBO tool = message("TOOL_EXECUTION",
+                        "{\"status\":\"RUNNING\",\"replicas\":3,\"alerts\":[{\"level\":\"WARN\",\"count\":"
+                            + i + "},{\"level\":\"ERROR\",\"count\":1}]}");
+                    tool.setToolExecutionId("call_" + (i - 1));
+                    tool.setToolName("query_deployment");
+                    messages.add(tool);
+                    break;
+                }
+                default:
+                    messages.add(message("AI", "项目 " + i + " 当前运行正常，共 3 个副本；最近一周有少量 WARN 级别告警，"
+                        + "另有 1 条 ERROR 告警已自动恢复，建议关注磁盘使用率。"));
+                    break;
+            }
+        }
+        return AgentContext.builder()
+            .conversationId("conv-benchmark")
+            .agentId("agent-benchmark")
+            .username("benchmark")
+            .iterations(3)
+            .conversationSummary("用户在排查多个项目的部署与告警情况。")
+            .messageListBaseId(1000L)
+            .messageBOS(messages)
+            .build();
+    }
+
+    private static MessageBO message(String type, String text) {
+        MessageBO message = new MessageBO();
+        message.setType(type);
+        message.setText(text);
+        return message;
+    }
+}
@@ -0,0 +1,119 @@
+package com.aiagent.domain.model.bo;
+
+import dev.langchain4j.agent.tool.ToolExecutionRequest;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.ToolExecutionResultMessage;
+import dev.langchain4j.data.message.UserMessage;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * AgentContext 消息物化视图（{@link ChatMessageView}）与逐次转换的耗时对比
+ *
+ * <p>标记为 benchmark，默认构建不运行（见 pom.xml 的 {@code test.excludedGroups}）；
+ * 耗时只输出到日志用于量级对比，不作为断言条件。
+ */
+@Slf4j
+@Tag("benchmark")
+class AgentContextMessageViewBenchmarkTest {
+
+    /**
+     * 模拟推理循环：每轮追加一条 AI（工具调用）与一条工具结果，并多次读取历史
+     */
+    @ParameterizedTest(name = "history={0}, rounds={1}")
+    @CsvSource({"20, 10", "100, 20", "500, 30"})
+    void compareWithPerCallConversion(int historySize, int rounds) {
+        int readsPerRound = 3;
+        // 预热
+        for (int i = 0; i < 20; i++) {
+            runRounds(historySize, rounds, readsPerRound, true);
+            runRounds(historySize, rounds, readsPerRound, false);
+        }
+
+        int repeats = 50;
+        long start = System.nanoTime();
+        int viewTotal = 0;
+        for (int i = 0; i < repeats; i++) {
+            viewTotal += runRounds(historySize, rounds, readsPerRound, true);
+        }
+        double viewUs = (System.nanoTime() - start) / 1000.0 / repeats;
+
+        start = System.nanoTime();
+        int legacyTotal = 0;
+        for (int i = 0; i < repeats; i++) {
+            legacyTotal += runRounds(historySize, rounds, readsPerRound, false);
+        }
+        double legacyUs = (System.nanoTime() - start) / 1000.0 / repeats;
+
+        log.info("[ChatMessageView] history={} rounds={} | per run us: view={} per-call={} ({}x)",
+            historySize, rounds, String.format("%.1f", viewUs), String.format("%.1f", legacyUs),
+            String.format("%.1f", legacyUs / viewUs));
+
+        assertEquals(legacyTotal, viewTotal);
+    }
+
+    /**
+     * @return 所有读取到的消息条数之和（两种方式应一致）
+     */
+    private static int runRounds(int historySize, int rounds, int readsPerRound, boolean useView) {
+        AgentContext context = new AgentContext();
+        context.setMessages(buildHistory(historySize));
+        int total = 0;
+        for (int round = 0; round < rounds; round++) {
+            context.addMessage(AiMessage.from(List.of(ToolExecutionRequest.builder()
+                .id("call_" + round)
+                .name("search_docs")
+                .arguments("{\"query\":\"第 " + round + " 轮检索\",\"topK\":5}")
+                .build())));
+            context.addMessage(ToolExecutionResultMessage.from("call_" + round, "search_docs",
+                "检索到 5 条结果，最高相似度 0.87，第 " + round + " 轮"));
+            for (int read = 0; read < readsPerRound; read++) {
+                total += useView ? context.getMessages().size() : convertPerCall(context).size();
+            }
+            int[] visited = {0};
+            if (useView) {
+                context.forEachMessage((bo, message) -> visited[0]++);
+            } else {
+                for (MessageBO bo : context.getMessageBOS()) {
+                    if (bo.toChatMessage() != null) {
+                        visited[0]++;
+                    }
+                }
+            }
+            total += visited[0];
+        }
+        return total;
+    }
+
+    /**
+     * 原实现：每次读取都把整个 BO 列表重新转换为 ChatMessage
+     */
+    private static List<ChatMessage> convertPerCall(AgentContext context) {
+        return context.getMessageBOS().stream()
+            .map(MessageBO::toChatMessage)
+            .filter(Objects::nonNull)
+            .collect(Collectors.toList());
+    }
+
+    private static List<ChatMessage> buildHistory(int size) {
+        List<ChatMessage> history = new ArrayList<>(size);
+        history.add(SystemMessage.from("你是一个企业知识库助手，回答时引用检索到的文档。"));
+        for (int i = 1; i < size; i++) {
+            history.add(i % 2 == 1
+                ? UserMessage.from("第 " + i + " 个问题：请总结最近一周的部署告警情况。")
+                : AiMessage.from("第 " + i + " 个回答：最近一周共有 3 条 WARN 告警，1 条 ERROR 告警已自动恢复。"));
+        }
+        return history;
+    }
+}
@@ -0,0 +1,96 @@
+package com.aiagent.domain.model.bo;
+
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.UserMessage;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * AgentContext 消息物化视图（{@link ChatMessageView}）的行为
+ *
+ * <p>与逐次转换的耗时对比见 {@link AgentContextMessageViewBenchmarkTest}。
+ */
+class AgentContextMessageViewTest {
+
+    @Test
+    void snapshotDoesNotSeeLaterAppends() {
+        AgentContext context = new AgentContext();
+        context.setMessages(List.of(UserMessage.from("你好")));
+
+        List<ChatMessage> snapshot = context.getMessages();
+        // 追加到超过初始容量，覆盖扩容路径
+        for (int i = 0; i < 40; i++) {
+            context.addMessage(AiMessage.from("回复 " + i));
+        }
+
+        assertEquals(1, snapshot.size());
+        assertEquals(UserMessage.from("你好"), snapshot.get(0));
+        assertEquals(41, context.getMessages().size());
+        assertEquals(AiMessage.from("回复 39"), context.getMessages().get(40));
+    }
+
+    @Test
+    void viewRebuildsWhenMessageBosReplaced() {
+        AgentContext context = new AgentContext();
+        context.setMessages(List.of(UserMessage.from("旧消息 1"), AiMessage.from("旧消息 2")));
+        assertEquals(2, context.getMessages().size());
+
+        List<MessageBO> replaced = new ArrayList<>();
+        replaced.add(MessageBO.from(SystemMessage.from("系统提示")));
+        replaced.add(MessageBO.from(UserMessage.from("新消息")));
+        context.setMessageBOS(replaced);
+
+        assertEquals(List.of(SystemMessage.from("系统提示"), UserMessage.from("新消息")), context.getMessages());
+
+        // 替换为更短的同一实例内容（外部清空后重新填充）时也重新转换
+        replaced.clear();
+        replaced.add(MessageBO.from(UserMessage.from("清空后")));
+        assertEquals(List.of(UserMessage.from("清空后")), context.getMessages());
+    }
+
+    @Test
+    void externalAppendsToMessageBosAreConverted() {
+        AgentContext context = new AgentContext();
+        context.setMessages(List.of(UserMessage.from("问题")));
+        context.getMessages();
+
+        context.getMessageBOS().add(MessageBO.from(AiMessage.from("外部追加")));
+
+        assertEquals(List.of(UserMessage.from("问题"), AiMessage.from("外部追加")), context.getMessages());
+    }
+
+    @Test
+    void forEachMessagePairsBoWithConvertedMessage() {
+        AgentContext context = new AgentContext();
+        context.setMessages(List.of(UserMessage.from("问题")));
+        AiMessage reply = AiMessage.from("回答");
+        context.addMessage(reply);
+
+        List<ChatMessage> visited = new ArrayList<>();
+        context.forEachMessage((bo, message) -> {
+            assertEquals(bo.getText(), textOf(message));
+            visited.add(message);
+        });
+
+        assertEquals(2, visited.size());
+        // addMessage 直接记录原始消息，不再从 BO 转换
+        assertSame(reply, visited.get(1));
+    }
+
+    private static String textOf(ChatMessage message) {
+        if (message instanceof UserMessage) {
+            return ((UserMessage) message).singleText();
+        }
+        if (message instanceof AiMessage) {
+            return ((AiMessage) message).text();
+        }
+        return null;
+    }
+}